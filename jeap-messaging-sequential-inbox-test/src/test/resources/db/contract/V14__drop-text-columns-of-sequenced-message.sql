@@ -0,0 +1,39 @@
+-- Contract step of the compact sequenced message schema, to be applied once no node of a version writing the text
+-- columns is running anymore. Kept outside of db/migration so that Flyway does not apply it together with V12 and V13;
+-- copy it to the migration location of the service with a later release. The NOT NULL constraints are first added as
+-- check constraints validated without blocking writes, so that SET NOT NULL does not need to scan the table while
+-- holding an exclusive lock.
+DROP TRIGGER sequenced_message_sync_compact_columns ON sequenced_message;
+DROP FUNCTION sequenced_message_sync_compact_columns();
+DROP FUNCTION sequenced_message_trace_context_id(bytea, integer);
+DROP FUNCTION sequenced_message_trace_context(bigint, bigint, bigint, bigint, boolean);
+DROP FUNCTION sequenced_message_state(smallint);
+DROP FUNCTION sequenced_message_state_id(text);
+DROP FUNCTION sequenced_message_dictionary_id(text);
+
+ALTER TABLE sequenced_message
+    ADD CONSTRAINT sequenced_message_compact_columns_not_null
+        CHECK (message_type_id IS NOT NULL AND cluster_name_id IS NOT NULL AND topic_id IS NOT NULL AND state_id IS NOT NULL)
+        NOT VALID;
+ALTER TABLE sequenced_message VALIDATE CONSTRAINT sequenced_message_compact_columns_not_null;
+ALTER TABLE sequenced_message
+    ALTER COLUMN message_type_id SET NOT NULL,
+    ALTER COLUMN cluster_name_id SET NOT NULL,
+    ALTER COLUMN topic_id SET NOT NULL,
+    ALTER COLUMN state_id SET NOT NULL,
+    DROP CONSTRAINT sequenced_message_compact_columns_not_null;
+
+DROP INDEX idx_sequenced_message_state_message_type;
+ALTER INDEX idx_sequenced_message_state_id_message_type_id RENAME TO idx_sequenced_message_state_message_type;
+
+ALTER TABLE sequenced_message
+    DROP COLUMN message_type,
+    DROP COLUMN cluster_name,
+    DROP COLUMN topic,
+    DROP COLUMN state,
+    DROP COLUMN trace_id_high,
+    DROP COLUMN trace_id,
+    DROP COLUMN span_id,
+    DROP COLUMN parent_span_id,
+    DROP COLUMN trace_id_string,
+    DROP COLUMN sampled;
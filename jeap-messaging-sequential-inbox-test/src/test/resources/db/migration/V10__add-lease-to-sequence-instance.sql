@@ -0,0 +1,4 @@
+ALTER TABLE sequence_instance
+    ADD COLUMN lock_version bigint NOT NULL DEFAULT 0,
+    ADD COLUMN lease_owner varchar(36),
+    ADD COLUMN lease_expires_at timestamp with time zone;
@@ -0,0 +1,3 @@
+ALTER TABLE sequential_inbox_idempotence
+    ADD COLUMN state varchar(16) NOT NULL DEFAULT 'DONE',
+    ADD COLUMN lease_expires_at timestamp with time zone;
@@ -0,0 +1,135 @@
+-- Expand step of the compact sequenced message schema: message types, topics and cluster names are stored as smallint
+-- IDs of sequenced_message_dictionary, the state as a smallint and the trace context as a single 34-byte binary column
+-- (version, 128-bit trace ID, span ID, parent span ID, flags). The text columns are kept until the contract step V14
+-- in db/contract, and a trigger keeps both representations in sync while nodes of the previous and the current version
+-- write messages during a rolling deployment.
+CREATE SEQUENCE sequenced_message_dictionary_sequence AS smallint START WITH 1 INCREMENT 1;
+
+CREATE TABLE sequenced_message_dictionary
+(
+    id    smallint not null
+        constraint sequenced_message_dictionary_pkey primary key,
+    value text     not null
+        constraint sequenced_message_dictionary_value_uk unique
+);
+
+ALTER TABLE sequenced_message
+    ADD COLUMN message_type_id smallint,
+    ADD COLUMN cluster_name_id smallint,
+    ADD COLUMN topic_id        smallint,
+    ADD COLUMN state_id        smallint,
+    ADD COLUMN trace_context   bytea,
+    ALTER COLUMN message_type DROP NOT NULL,
+    ALTER COLUMN cluster_name DROP NOT NULL,
+    ALTER COLUMN topic DROP NOT NULL,
+    ALTER COLUMN state DROP NOT NULL;
+
+CREATE FUNCTION sequenced_message_dictionary_id(dictionary_value text) RETURNS smallint
+    LANGUAGE plpgsql AS
+$$
+DECLARE
+    dictionary_id smallint;
+BEGIN
+    IF dictionary_value IS NULL THEN
+        RETURN NULL;
+    END IF;
+    SELECT id INTO dictionary_id FROM sequenced_message_dictionary WHERE value = dictionary_value;
+    IF dictionary_id IS NULL THEN
+        INSERT INTO sequenced_message_dictionary (id, value)
+        VALUES (nextval('sequenced_message_dictionary_sequence'), dictionary_value)
+        ON CONFLICT (value) DO NOTHING;
+        SELECT id INTO dictionary_id FROM sequenced_message_dictionary WHERE value = dictionary_value;
+    END IF;
+    RETURN dictionary_id;
+END;
+$$;
+
+CREATE FUNCTION sequenced_message_state_id(state text) RETURNS smallint
+    LANGUAGE sql IMMUTABLE AS
+$$
+SELECT CASE state WHEN 'WAITING' THEN 1 WHEN 'PROCESSED' THEN 2 WHEN 'FAILED' THEN 3 END::smallint
+$$;
+
+CREATE FUNCTION sequenced_message_state(state_id smallint) RETURNS text
+    LANGUAGE sql IMMUTABLE AS
+$$
+SELECT CASE state_id WHEN 1 THEN 'WAITING' WHEN 2 THEN 'PROCESSED' WHEN 3 THEN 'FAILED' END
+$$;
+
+CREATE FUNCTION sequenced_message_trace_context(trace_id_high bigint, trace_id bigint, span_id bigint,
+                                                parent_span_id bigint, sampled boolean)
+    RETURNS bytea
+    LANGUAGE sql IMMUTABLE AS
+$$
+SELECT CASE
+           WHEN trace_id_high IS NULL AND trace_id IS NULL AND span_id IS NULL AND parent_span_id IS NULL
+               AND sampled IS NULL THEN NULL
+           ELSE '\x00'::bytea
+               || int8send(coalesce(trace_id_high, 0))
+               || int8send(coalesce(trace_id, 0))
+               || int8send(coalesce(span_id, 0))
+               || int8send(coalesce(parent_span_id, 0))
+               || set_byte('\x00'::bytea, 0, CASE WHEN sampled IS NULL THEN 0 WHEN sampled THEN 3 ELSE 2 END)
+           END
+$$;
+
+CREATE FUNCTION sequenced_message_trace_context_id(trace_context bytea, offset_in_bytes integer) RETURNS bigint
+    LANGUAGE sql IMMUTABLE AS
+$$
+SELECT nullif(('x' || encode(substring(trace_context FROM offset_in_bytes + 1 FOR 8), 'hex'))::bit(64)::bigint, 0)
+$$;
+
+-- Fills the columns not written by the version of the node inserting or updating a message
+CREATE FUNCTION sequenced_message_sync_compact_columns() RETURNS trigger
+    LANGUAGE plpgsql AS
+$$
+BEGIN
+    IF NEW.message_type_id IS NULL THEN
+        NEW.message_type_id := sequenced_message_dictionary_id(NEW.message_type);
+    ELSIF NEW.message_type IS NULL THEN
+        NEW.message_type := (SELECT value FROM sequenced_message_dictionary WHERE id = NEW.message_type_id);
+    END IF;
+    IF NEW.cluster_name_id IS NULL THEN
+        NEW.cluster_name_id := sequenced_message_dictionary_id(NEW.cluster_name);
+    ELSIF NEW.cluster_name IS NULL THEN
+        NEW.cluster_name := (SELECT value FROM sequenced_message_dictionary WHERE id = NEW.cluster_name_id);
+    END IF;
+    IF NEW.topic_id IS NULL THEN
+        NEW.topic_id := sequenced_message_dictionary_id(NEW.topic);
+    ELSIF NEW.topic IS NULL THEN
+        NEW.topic := (SELECT value FROM sequenced_message_dictionary WHERE id = NEW.topic_id);
+    END IF;
+
+    IF NEW.state_id IS NULL
+        OR (TG_OP = 'UPDATE' AND NEW.state IS DISTINCT FROM OLD.state AND NEW.state_id IS NOT DISTINCT FROM OLD.state_id) THEN
+        NEW.state_id := sequenced_message_state_id(NEW.state);
+    ELSIF NEW.state IS NULL OR (TG_OP = 'UPDATE' AND NEW.state_id IS DISTINCT FROM OLD.state_id) THEN
+        NEW.state := sequenced_message_state(NEW.state_id);
+    END IF;
+
+    IF NEW.trace_context IS NULL THEN
+        NEW.trace_context := sequenced_message_trace_context(NEW.trace_id_high, NEW.trace_id, NEW.span_id,
+                                                             NEW.parent_span_id, NEW.sampled);
+    ELSIF NEW.trace_id IS NULL AND NEW.span_id IS NULL THEN
+        NEW.trace_id_high := sequenced_message_trace_context_id(NEW.trace_context, 1);
+        NEW.trace_id := sequenced_message_trace_context_id(NEW.trace_context, 9);
+        NEW.span_id := sequenced_message_trace_context_id(NEW.trace_context, 17);
+        NEW.parent_span_id := sequenced_message_trace_context_id(NEW.trace_context, 25);
+        NEW.trace_id_string := CASE
+                                   WHEN NEW.trace_id_high IS NULL THEN encode(substring(NEW.trace_context FROM 10 FOR 8), 'hex')
+                                   ELSE encode(substring(NEW.trace_context FROM 2 FOR 16), 'hex')
+            END;
+        NEW.sampled := CASE
+                           WHEN get_byte(NEW.trace_context, 33) & 2 = 0 THEN NULL
+                           ELSE get_byte(NEW.trace_context, 33) & 1 = 1
+            END;
+    END IF;
+    RETURN NEW;
+END;
+$$;
+
+CREATE TRIGGER sequenced_message_sync_compact_columns
+    BEFORE INSERT OR UPDATE
+    ON sequenced_message
+    FOR EACH ROW
+EXECUTE FUNCTION sequenced_message_sync_compact_columns();
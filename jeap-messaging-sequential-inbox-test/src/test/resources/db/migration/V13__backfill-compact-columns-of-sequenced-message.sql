@@ -0,0 +1,39 @@
+-- Fills the compact columns of the existing messages in batches of 10000 rows, each committed on its own so that row
+-- locks are only held briefly and the table stays writable. Rows written since V12 are filled by the trigger.
+-- Runs outside of a transaction, see the .conf file of this migration. Flyway runs it while the application starts, so
+-- on large tables the backfill and the concurrent index creation delay the startup accordingly; run it out of band
+-- before deploying in that case, see docs/getting-started.md.
+CREATE PROCEDURE sequenced_message_backfill_compact_columns(batch_size integer)
+    LANGUAGE plpgsql AS
+$$
+DECLARE
+    last_id  bigint := -1;
+    batch_id bigint;
+BEGIN
+    LOOP
+        SELECT max(id) INTO batch_id
+        FROM (SELECT id FROM sequenced_message WHERE id > last_id ORDER BY id LIMIT batch_size) batch;
+        EXIT WHEN batch_id IS NULL;
+
+        UPDATE sequenced_message
+        SET message_type_id = sequenced_message_dictionary_id(message_type),
+            cluster_name_id = sequenced_message_dictionary_id(cluster_name),
+            topic_id        = sequenced_message_dictionary_id(topic),
+            state_id        = sequenced_message_state_id(state),
+            trace_context   = sequenced_message_trace_context(trace_id_high, trace_id, span_id, parent_span_id, sampled)
+        WHERE id > last_id
+          AND id <= batch_id
+          AND (message_type_id IS NULL OR cluster_name_id IS NULL OR topic_id IS NULL OR state_id IS NULL);
+
+        last_id := batch_id;
+        COMMIT;
+    END LOOP;
+END;
+$$;
+
+CALL sequenced_message_backfill_compact_columns(10000);
+
+DROP PROCEDURE sequenced_message_backfill_compact_columns(integer);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_sequenced_message_state_id_message_type_id
+    ON sequenced_message (state_id, message_type_id); -- for metrics
@@ -0,0 +1,5 @@
+ALTER TABLE sequence_instance
+    ADD COLUMN processed_message_types bigint NOT NULL DEFAULT 0;
+
+ALTER TABLE sequence_instance
+    ADD COLUMN message_type_index_hash integer;
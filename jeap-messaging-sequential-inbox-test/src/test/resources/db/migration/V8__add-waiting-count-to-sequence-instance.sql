@@ -0,0 +1,13 @@
+ALTER TABLE sequence_instance
+    ADD COLUMN waiting_count integer NOT NULL DEFAULT 0;
+
+UPDATE sequence_instance si
+SET waiting_count = (SELECT count(*)
+                     FROM sequenced_message sm
+                     WHERE sm.sequence_instance_id = si.id
+                       AND sm.state = 'WAITING')
+WHERE si.state <> 'CLOSED'
+  AND EXISTS (SELECT 1
+              FROM sequenced_message sm
+              WHERE sm.sequence_instance_id = si.id
+                AND sm.state = 'WAITING');
@@ -0,0 +1,5 @@
+ALTER TABLE sequence_instance
+    ADD COLUMN release_requested_at timestamp with time zone;
+
+CREATE INDEX idx_sequence_instance_release_requested_at ON sequence_instance (release_requested_at)
+    WHERE release_requested_at IS NOT NULL;
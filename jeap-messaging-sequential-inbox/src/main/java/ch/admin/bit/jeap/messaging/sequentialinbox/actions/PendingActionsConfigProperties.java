@@ -36,5 +36,10 @@ public class PendingActionsConfigProperties {
      * Default is 10
      */
     private int maxPages = 10;
-}
 
+    /**
+     * Time after which a release requested for asynchronous release is considered lost and is recovered by the
+     * pending actions job. Default is 2 minutes
+     */
+    private Duration releaseRecoveryDelay = Duration.of(2, ChronoUnit.MINUTES);
+}
@@ -15,6 +15,7 @@ import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.util.List;
 import java.util.function.BooleanSupplier;
 
 @Slf4j
@@ -57,6 +58,22 @@ public class SequentialInboxPendingActionsService {
         log.debug("SequentialInbox: pending actions completed for sequences");
     }
 
+    @Scheduled(cron = "${jeap.messaging.sequential-inbox.pending-actions.releases-cron:30 0/1 * * * *}")
+    @SchedulerLock(name = "sequential-inbox-pending-actions-releases", lockAtLeastFor = "#{@pendingActionsConfigProperties.lockAtLeast.toString()}", lockAtMostFor = "#{@pendingActionsConfigProperties.lockAtMost.toString()}")
+    public void runRequestedReleases() {
+        log.debug("SequentialInbox: starting recovering requested releases");
+        executeInTransactionPerPage(this::processRequestedReleases);
+        log.debug("SequentialInbox: requested releases recovered");
+    }
+
+    private boolean processRequestedReleases() {
+        // Each release pass clears the request, so the next page is queried from the start again
+        List<SequenceInstance> sequenceInstances = sequenceInstanceRepository.findReleaseRequestedBefore(
+                pendingActionsConfigProperties.getReleaseRecoveryDelay(), pendingActionsConfigProperties.getPageSize());
+        sequenceInstances.forEach(sequentialInboxService::handleRequestedRelease);
+        return sequenceInstances.size() == pendingActionsConfigProperties.getPageSize();
+    }
+
     private boolean processSequencesWithPendingActions() {
         Slice<SequenceInstance> resultPage = sequenceInstanceRepository.findAllByPendingActionIsNotNull(pageable);
         resultPage.forEach(sequentialInboxService::handleSequenceWithPendingAction);
@@ -65,6 +65,11 @@ public class SequentialInboxConfigurationException extends RuntimeException {
                 "The sequential inbox configuration contains an empty sequence (sequence name: %s)".formatted(name));
     }
 
+    public static SequentialInboxConfigurationException tooManyMessageTypes(String name, int maxMessageTypes) {
+        return new SequentialInboxConfigurationException(
+                "The sequential inbox configuration contains more than %d message types in sequence %s".formatted(maxMessageTypes, name));
+    }
+
     public static SequentialInboxConfigurationException missingMessageType(String sequenceName) {
         return new SequentialInboxConfigurationException(
                 "The sequential inbox configuration contains a message without a type attribute in sequence %s".formatted(sequenceName));
@@ -52,6 +52,9 @@ class ConfigurationValidator {
         if (sequence.getMessages() == null || sequence.getMessages().isEmpty()) {
             throw SequentialInboxConfigurationException.emptySequence(sequence.getName());
         }
+        if (sequence.getMessages().size() > Sequence.MAX_MESSAGE_TYPES) {
+            throw SequentialInboxConfigurationException.tooManyMessageTypes(sequence.getName(), Sequence.MAX_MESSAGE_TYPES);
+        }
 
         sequence.getMessages().forEach(message ->
                 validateSequencedMessageType(sequence.getName(), message));
@@ -3,8 +3,10 @@ package ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model;
 import lombok.Getter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.function.ToLongFunction;
 
 @Getter
 class ReleaseCondition {
@@ -31,4 +33,44 @@ class ReleaseCondition {
 
         return or.stream().anyMatch(rc -> rc.isSatisfied(releasedMessageTypes));
     }
+
+    /**
+     * Compiles this release condition to a disjunctive normal form over the message type bits of its sequence. The
+     * condition is satisfied if all bits of at least one of the returned terms are set in the processed message types.
+     */
+    long[] toDisjunctiveNormalForm(ToLongFunction<String> messageTypeBit) {
+        if (predecessor != null) {
+            return new long[]{messageTypeBit.applyAsLong(predecessor)};
+        }
+
+        if (!and.isEmpty()) {
+            long[] terms = {0L};
+            for (ReleaseCondition releaseCondition : and) {
+                long[] operandTerms = releaseCondition.toDisjunctiveNormalForm(messageTypeBit);
+                long[] product = new long[terms.length * operandTerms.length];
+                int i = 0;
+                for (long term : terms) {
+                    for (long operandTerm : operandTerms) {
+                        product[i++] = term | operandTerm;
+                    }
+                }
+                terms = simplify(product);
+            }
+            return terms;
+        }
+
+        return simplify(or.stream()
+                .flatMapToLong(rc -> Arrays.stream(rc.toDisjunctiveNormalForm(messageTypeBit)))
+                .toArray());
+    }
+
+    /**
+     * Removes duplicated terms and terms implied by a more general term, i.e. (a OR (a AND b)) becomes a.
+     */
+    private static long[] simplify(long[] terms) {
+        return Arrays.stream(terms)
+                .distinct()
+                .filter(term -> Arrays.stream(terms).noneMatch(other -> other != term && (other & term) == other))
+                .toArray();
+    }
 }
@@ -1,9 +1,13 @@
 package ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 
 import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static java.util.stream.Collectors.toSet;
@@ -17,8 +21,36 @@ public class Sequence {
 
     private List<SequencedMessageType> messages;
 
+    /**
+     * How concurrent access to the context of a sequence instance is serialized, defaults to the row lock
+     */
+    private SequenceContextLockType contextLock = SequenceContextLockType.ROW;
+
     private Set<String> messageTypeQualifiedNames;
 
+    /**
+     * Maximum number of message types in a sequence, as the processed message types are tracked as bits of a long
+     */
+    static final int MAX_MESSAGE_TYPES = Long.SIZE;
+
+    @Getter(AccessLevel.NONE)
+    private Map<String, Long> messageTypeBitByQualifiedName;
+
+    @Getter(AccessLevel.NONE)
+    private long allMessageTypeBits;
+
+    /**
+     * For each message type by bit index, the bits of the message types whose release condition depends on it
+     */
+    @Getter(AccessLevel.NONE)
+    private long[] successorMessageTypeBits;
+
+    /**
+     * Identifies the assignment of message types to bits, which changes if message types are added, removed or
+     * reordered in the sequence declaration. Stored along with the processed message types of a sequence instance.
+     */
+    private int messageTypeIndexHash;
+
     @Override
     public String toString() {
         return "Sequence{name='%s',messages=%s}".formatted(name, messages);
@@ -28,9 +60,70 @@ public class Sequence {
         return messageTypeQualifiedNames.equals(processedMessageTypes);
     }
 
+    public boolean isComplete(long processedMessageTypes) {
+        return processedMessageTypes == allMessageTypeBits;
+    }
+
+    /**
+     * @return The bit representing the given message type in this sequence, or 0 if the type is not part of the sequence
+     */
+    public long messageTypeBit(String messageTypeQualifiedName) {
+        Long bit = messageTypeBitByQualifiedName.get(messageTypeQualifiedName);
+        return bit == null ? 0L : bit;
+    }
+
+    /**
+     * @return The bits of the message types whose release condition depends on the given message type, i.e. whose
+     * release condition may become satisfied once a message of the given type has been processed
+     */
+    public long successorMessageTypeBits(String messageTypeQualifiedName) {
+        long bit = messageTypeBit(messageTypeQualifiedName);
+        return bit == 0L ? 0L : successorMessageTypeBits[Long.numberOfTrailingZeros(bit)];
+    }
+
+    /**
+     * @return The message type represented by the given bit, see {@link #messageTypeBit(String)}
+     */
+    public SequencedMessageType messageTypeByBit(long messageTypeBit) {
+        return messages.get(Long.numberOfTrailingZeros(messageTypeBit));
+    }
+
+    public long messageTypeBits(Collection<String> messageTypeQualifiedNames) {
+        long bits = 0L;
+        for (String messageTypeQualifiedName : messageTypeQualifiedNames) {
+            bits |= messageTypeBit(messageTypeQualifiedName);
+        }
+        return bits;
+    }
+
     void init() {
+        if (contextLock == null) {
+            contextLock = SequenceContextLockType.ROW;
+        }
         messageTypeQualifiedNames = messages.stream()
                 .map(SequencedMessageType::getQualifiedName)
                 .collect(toSet());
+
+        messageTypeBitByQualifiedName = new HashMap<>();
+        allMessageTypeBits = 0L;
+        for (int i = 0; i < messages.size(); i++) {
+            long bit = 1L << i;
+            messageTypeBitByQualifiedName.put(messages.get(i).getQualifiedName(), bit);
+            allMessageTypeBits |= bit;
+        }
+        messageTypeIndexHash = messages.stream()
+                .map(SequencedMessageType::getQualifiedName)
+                .toList()
+                .hashCode();
+        messages.forEach(message -> message.compileReleaseCondition(this::messageTypeBit));
+
+        successorMessageTypeBits = new long[messages.size()];
+        for (int i = 0; i < messages.size(); i++) {
+            long predecessors = messages.get(i).getPredecessorMessageTypeBits();
+            while (predecessors != 0L) {
+                successorMessageTypeBits[Long.numberOfTrailingZeros(predecessors)] |= 1L << i;
+                predecessors &= predecessors - 1;
+            }
+        }
     }
 }
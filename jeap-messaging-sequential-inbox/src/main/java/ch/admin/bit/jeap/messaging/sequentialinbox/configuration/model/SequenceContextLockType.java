@@ -0,0 +1,37 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model;
+
+/**
+ * How access to the context of a sequence instance is serialized between transactions, configured per sequence.
+ */
+public enum SequenceContextLockType {
+
+    /**
+     * Locks the sequence instance row for the transaction (SELECT ... FOR UPDATE)
+     */
+    ROW,
+
+    /**
+     * Takes a transaction-scoped PostgreSQL advisory lock on the sequence instance ID, without locking its row
+     */
+    ADVISORY,
+
+    /**
+     * Takes the same exclusive advisory lock as {@link #ADVISORY} before invoking handlers, while transactions storing a
+     * message do not take it shared and thus do not wait for it, the processed message types and waiting count they
+     * write are merged instead
+     */
+    ADVISORY_UNSHARED,
+
+    /**
+     * Leases the sequence instance to a release pass in a short transaction and renews the lease by heartbeat, so that
+     * buffered messages are released without an open transaction
+     */
+    LEASE,
+
+    /**
+     * For sequences whose topics are keyed by context ID, so that a context is only touched by the consumer owning
+     * its partition. The context is locked like {@link #ADVISORY_UNSHARED}, and the processed message types are kept in
+     * memory by the owning consumer
+     */
+    PARTITION
+}
@@ -4,6 +4,7 @@ import ch.admin.bit.jeap.messaging.avro.AvroMessage;
 import lombok.*;
 
 import java.util.Set;
+import java.util.function.ToLongFunction;
 
 @AllArgsConstructor // for builder
 @NoArgsConstructor // for jackson
@@ -23,6 +24,11 @@ public class SequencedMessageType {
     private MessageFilter<AvroMessage> messageFilter;
     @Getter
     private ReleaseCondition releaseCondition;
+    /**
+     * The release condition in disjunctive normal form, compiled from {@link #releaseCondition} when the sequence is
+     * initialized. Null if no release condition is configured.
+     */
+    private long[] releaseConditionTerms;
 
     /**
      * @return The message type name, postfixed with .&lt;subType&gt; if a subtype is configured
@@ -66,4 +72,41 @@ public class SequencedMessageType {
     public boolean isReleaseConditionSatisfied(Set<String> previouslyReleasedMessageTypes) {
         return releaseCondition == null || releaseCondition.isSatisfied(previouslyReleasedMessageTypes);
     }
+
+    /**
+     * Evaluates the compiled release condition without allocating.
+     *
+     * @param processedMessageTypes The bits of the processed message types, see {@link Sequence#messageTypeBits(java.util.Collection)}
+     */
+    public boolean isReleaseConditionSatisfied(long processedMessageTypes) {
+        if (releaseCondition == null) {
+            return true;
+        }
+        if (releaseConditionTerms == null) {
+            throw new IllegalStateException("Release condition of %s has not been compiled".formatted(getQualifiedName()));
+        }
+        for (long term : releaseConditionTerms) {
+            if ((term & processedMessageTypes) == term) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The bits of all message types the compiled release condition depends on
+     */
+    long getPredecessorMessageTypeBits() {
+        long predecessors = 0L;
+        if (releaseConditionTerms != null) {
+            for (long term : releaseConditionTerms) {
+                predecessors |= term;
+            }
+        }
+        return predecessors;
+    }
+
+    void compileReleaseCondition(ToLongFunction<String> messageTypeBit) {
+        releaseConditionTerms = releaseCondition == null ? null : releaseCondition.toDisjunctiveNormalForm(messageTypeBit);
+    }
 }
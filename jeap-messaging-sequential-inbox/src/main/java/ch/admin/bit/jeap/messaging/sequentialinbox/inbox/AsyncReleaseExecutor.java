@@ -0,0 +1,98 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Runs release passes for sequence instances on a bounded pool of virtual threads, so that the consumer thread does
+ * not handle the released buffered messages itself. At most one pass per sequence instance is queued: a pass requested
+ * while another one is still queued is covered by the queued pass. If the queue is full, the pass is run by the
+ * requesting consumer thread, which slows down consumption until the workers have caught up.
+ */
+@Component
+@Slf4j
+public class AsyncReleaseExecutor implements DisposableBean {
+
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+    private final SequentialInboxMetricsCollector metricsCollector;
+    private final ThreadPoolExecutor executor;
+    private final Set<Long> queuedSequenceInstanceIds = ConcurrentHashMap.newKeySet();
+
+    AsyncReleaseExecutor(SequentialInboxMetricsCollector metricsCollector,
+                         @Value("${jeap.messaging.sequential-inbox.release.async.enabled:false}") boolean enabled,
+                         @Value("${jeap.messaging.sequential-inbox.release.async.max-concurrency:16}") int maxConcurrency,
+                         @Value("${jeap.messaging.sequential-inbox.release.async.queue-capacity:1000}") int queueCapacity) {
+        this.metricsCollector = metricsCollector;
+        if (enabled) {
+            log.info("Releasing buffered messages asynchronously with up to {} workers and {} queued release passes",
+                    maxConcurrency, queueCapacity);
+            this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    Thread.ofVirtual().name("sequential-inbox-release-", 0).factory(),
+                    new ThreadPoolExecutor.AbortPolicy());
+        } else {
+            this.executor = null;
+        }
+    }
+
+    boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * @return The underlying executor for registering executor metrics, or empty if asynchronous release is disabled
+     */
+    public Optional<ExecutorService> getNativeExecutor() {
+        return Optional.ofNullable(executor);
+    }
+
+    void submit(long sequenceInstanceId, Runnable releasePass) {
+        if (!queuedSequenceInstanceIds.add(sequenceInstanceId)) {
+            log.debug("Release pass for sequence instance {} is already queued", sequenceInstanceId);
+            return;
+        }
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> runReleasePass(sequenceInstanceId, releasePass, queuedAt));
+        } catch (RejectedExecutionException ex) {
+            queuedSequenceInstanceIds.remove(sequenceInstanceId);
+            metricsCollector.onAsyncReleaseRejected();
+            log.debug("Release queue is full, releasing buffered messages of sequence instance {} on the consumer thread", sequenceInstanceId);
+            releasePass.run();
+        }
+    }
+
+    private void runReleasePass(long sequenceInstanceId, Runnable releasePass, long queuedAt) {
+        // Passes requested from now on are queued again, as this pass may not see the messages they have been requested for
+        queuedSequenceInstanceIds.remove(sequenceInstanceId);
+        metricsCollector.onAsyncReleaseStarted(Duration.ofNanos(System.nanoTime() - queuedAt));
+        try {
+            releasePass.run();
+        } catch (Exception ex) {
+            log.error("Release pass for sequence instance {} failed, the release is recovered by the pending actions job",
+                    sequenceInstanceId, ex);
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("{} release passes have not completed on shutdown, they are recovered by the pending actions job",
+                    executor.getQueue().size() + executor.getActiveCount());
+            executor.shutdownNow();
+        }
+    }
+}
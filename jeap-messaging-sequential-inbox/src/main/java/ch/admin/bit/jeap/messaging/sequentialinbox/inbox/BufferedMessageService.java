@@ -6,18 +6,19 @@ import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequenced
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
 import ch.admin.bit.jeap.messaging.kafka.tracing.TraceContextScope;
 import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.MessageRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
 import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.*;
 import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.stream.Collectors;
 
 @Component
 @RequiredArgsConstructor
@@ -28,65 +29,218 @@ class BufferedMessageService {
     private final SequentialInboxDeserializer inboxDeserializer;
     private final MessageHandlerService messageHandlerService;
     private final MessageRepository messageRepository;
+    private final SequenceInstanceRepository sequenceInstanceRepository;
     private final SequentialInboxConfiguration sequentialInboxConfiguration;
     private final BufferedMessageTracing bufferedMessageTracing;
     private final SequentialInboxMetricsCollector metricsCollector;
 
+    private int prefetchSize = 100;
+    private int stateBatchSize = 100;
+    private boolean skipReleaseIfNothingWaiting = true;
+
+    @Value("${jeap.messaging.sequential-inbox.release.prefetch-size:100}")
+    public void setPrefetchSize(int prefetchSize) {
+        this.prefetchSize = Math.max(1, prefetchSize);
+    }
+
+    @Value("${jeap.messaging.sequential-inbox.release.state-batch-size:100}")
+    public void setStateBatchSize(int stateBatchSize) {
+        this.stateBatchSize = Math.max(1, stateBatchSize);
+    }
+
+    @Value("${jeap.messaging.sequential-inbox.release.skip-if-nothing-waiting:true}")
+    public void setSkipReleaseIfNothingWaiting(boolean skipReleaseIfNothingWaiting) {
+        this.skipReleaseIfNothingWaiting = skipReleaseIfNothingWaiting;
+    }
+
     /**
+     * Checks without locking the sequence instance whether buffered messages may have to be released, or the sequence
+     * may have to be closed. This is not the case if no message is waiting in the sequence instance and its stored
+     * processed message types do not complete the sequence. A message buffered concurrently increments the number of
+     * waiting messages before its transaction commits, and the consumer buffering it releases buffered messages
+     * afterwards, so the message is not missed.
+     */
+    boolean isReleaseRequired(long sequenceInstanceId, Sequence sequence) {
+        OptionalLong processedMessageTypes = findProcessedMessageTypesIfNothingWaiting(sequenceInstanceId, sequence);
+        return processedMessageTypes.isEmpty() || sequence.isComplete(processedMessageTypes.getAsLong());
+    }
+
+    private OptionalLong findProcessedMessageTypesIfNothingWaiting(long sequenceInstanceId, Sequence sequence) {
+        if (!skipReleaseIfNothingWaiting) {
+            return OptionalLong.empty();
+        }
+        return sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(sequenceInstanceId, sequence.getMessageTypeIndexHash());
+    }
+
+    /**
+     * Processes the buffered messages of the sequence instance locked by the current transaction. The messages are
+     * read and their states are written in the current transaction, so that no second connection is held while the
+     * instance is locked. Messages stored earlier in the current transaction are thus taken into account.
+     *
      * @return true if sequence is complete, false otherwise
      */
-    boolean processBufferedMessages(SequenceInstance sequenceInstance, Sequence sequence) {
-        return processBufferedMessages(sequenceInstance, sequence, false);
+    boolean processBufferedMessagesInCurrentTransaction(SequenceInstance sequenceInstance, Sequence sequence) {
+        return processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence, false);
     }
 
     /**
+     * @param forceProcessAll true to release all waiting messages, whether or not their release condition is satisfied
      * @return true if sequence is complete, false otherwise
      */
-    boolean processBufferedMessages(SequenceInstance sequenceInstance, Sequence sequence, boolean forceProcessAll) {
-        List<SequencedMessage> waitingAndProcessedMessages = messageRepository.getWaitingAndProcessedMessagesInNewTransaction(sequenceInstance.getId());
-        List<SequencedMessage> waitingMessages = waitingMessagesInModifiableList(waitingAndProcessedMessages);
-        Set<String> processedMessageTypes = processedMessageTypes(waitingAndProcessedMessages);
-
-        boolean waitingMessageProcessed;
-        do {
-            Optional<SequencedMessage> nextWaitingMessageReadyToBeProcessed = waitingMessages.stream()
-                    .filter(sequencedMessage -> forceProcessAll || sequencedMessageType(sequencedMessage).isReleaseConditionSatisfied(processedMessageTypes))
-                    .findFirst();
-
-            if (nextWaitingMessageReadyToBeProcessed.isPresent()) {
-                log.debug("Next waiting message ready to be processed: {}", nextWaitingMessageReadyToBeProcessed);
-                SequencedMessage sequencedMessage = nextWaitingMessageReadyToBeProcessed.get();
-                waitingMessages.remove(sequencedMessage);
-                waitingMessageProcessed = true;
-
-                boolean success = handleBufferedMessage(sequencedMessage);
-                if (success) {
-                    processedMessageTypes.add(sequencedMessage.getMessageType());
-                }
+    boolean processBufferedMessagesInCurrentTransaction(SequenceInstance sequenceInstance, Sequence sequence, boolean forceProcessAll) {
+        if (!forceProcessAll) {
+            OptionalLong processedMessageTypesIfNothingWaiting = findProcessedMessageTypesIfNothingWaiting(sequenceInstance.getId(), sequence);
+            if (processedMessageTypesIfNothingWaiting.isPresent()) {
+                log.debug("No waiting message in sequence {}", sequenceInstance);
+                return sequence.isComplete(processedMessageTypesIfNothingWaiting.getAsLong());
+            }
+        }
+
+        ReleaseRound releaseRound = releaseWaitingMessages(sequenceInstance, sequence, forceProcessAll, true);
+
+        // The processed message types are written once for the whole round. This also repairs processed message types
+        // stored for another message type index. The released messages are subtracted from the waiting count, so that
+        // the increments of messages buffered concurrently are kept.
+        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(sequenceInstance.getId(),
+                releaseRound.processedMessageTypes(), releaseRound.releasedCount(), releaseRound.waitingCount(),
+                sequence.getMessageTypeIndexHash());
+
+        return sequence.isComplete(releaseRound.processedMessageTypes());
+    }
+
+    /**
+     * Releases the waiting messages like {@link #processBufferedMessagesInCurrentTransaction(SequenceInstance, Sequence)},
+     * but without a transaction being open: the messages are read and their states are written in new transactions, and
+     * the message handlers are invoked outside of any transaction. The processed message types and the number of
+     * released messages are not written to the sequence instance, they are returned to be written by the caller.
+     */
+    ReleaseRound releaseWaitingMessagesWithoutTransaction(SequenceInstance sequenceInstance, Sequence sequence) {
+        return releaseWaitingMessages(sequenceInstance, sequence, false, false);
+    }
+
+    /**
+     * Releases the waiting messages as a worklist: initially, the waiting messages whose release condition is satisfied
+     * are queued. Once a message type has been processed for the first time, only the waiting messages of its
+     * successor types are checked and queued if their release condition has become satisfied. Each waiting message is
+     * thus checked at most once per predecessor type processed. The buffered messages of the queued messages are
+     * loaded in chunks of at most {@code prefetchSize} messages, so that they are not read one by one. The states of
+     * the released messages are written in batches of at most {@code stateBatchSize} messages, and at the latest at the
+     * end of the round.
+     */
+    private ReleaseRound releaseWaitingMessages(SequenceInstance sequenceInstance, Sequence sequence, boolean forceProcessAll, boolean inCurrentTransaction) {
+        List<SequencedMessage> waitingAndProcessedMessages = inCurrentTransaction ?
+                messageRepository.getWaitingAndProcessedMessagesInCurrentTransaction(sequenceInstance.getId()) :
+                messageRepository.getWaitingAndProcessedMessagesInNewTransaction(sequenceInstance.getId());
+        long processedMessageTypes = processedMessageTypes(sequence, waitingAndProcessedMessages);
+
+        Deque<SequencedMessage> releasableMessages = new ArrayDeque<>();
+        Map<String, List<SequencedMessage>> blockedMessagesByType = new HashMap<>();
+        for (SequencedMessage sequencedMessage : waitingAndProcessedMessages) {
+            if (sequencedMessage.getState() != SequencedMessageState.WAITING) {
+                continue;
+            }
+            if (forceProcessAll || sequencedMessageType(sequencedMessage).isReleaseConditionSatisfied(processedMessageTypes)) {
+                releasableMessages.add(sequencedMessage);
             } else {
-                log.debug("No waiting message ready to be processed in sequence {}", sequenceInstance);
-                waitingMessageProcessed = false;
+                blockedMessagesByType.computeIfAbsent(sequencedMessage.getMessageType(), _ -> new ArrayList<>()).add(sequencedMessage);
             }
-        } while (waitingMessageProcessed);
+        }
 
-        return sequence.isComplete(processedMessageTypes);
+        Map<Long, BufferedMessage> prefetchedBufferedMessages = new HashMap<>();
+        SequencedMessageStateUpdates stateUpdates = new SequencedMessageStateUpdates(messageRepository, inCurrentTransaction, stateBatchSize);
+        int releasedCount = 0;
+        while (!releasableMessages.isEmpty()) {
+            SequencedMessage sequencedMessage = releasableMessages.poll();
+            releasedCount++;
+            log.debug("Next waiting message ready to be processed: {}", sequencedMessage);
+
+            if (!prefetchedBufferedMessages.containsKey(sequencedMessage.getId())) {
+                prefetchBufferedMessages(sequencedMessage, releasableMessages, prefetchedBufferedMessages, inCurrentTransaction);
+            }
+            BufferedMessage bufferedMessage = prefetchedBufferedMessages.remove(sequencedMessage.getId());
+            boolean success = handleBufferedMessage(sequencedMessage, bufferedMessage, stateUpdates);
+            long messageTypeBit = sequence.messageTypeBit(sequencedMessage.getMessageType());
+            if (success && (processedMessageTypes & messageTypeBit) == 0L) {
+                processedMessageTypes |= messageTypeBit;
+                queueReleasableSuccessors(sequence, sequencedMessage.getMessageType(), processedMessageTypes,
+                        blockedMessagesByType, releasableMessages);
+            }
+        }
+        log.debug("No waiting message ready to be processed in sequence {}", sequenceInstance);
+        stateUpdates.flush();
+
+        int waitingCount = blockedMessagesByType.values().stream().mapToInt(List::size).sum();
+        return new ReleaseRound(processedMessageTypes, releasedCount, waitingCount);
+    }
+
+    /**
+     * Loads the buffered messages of the next message and of the following queued messages not loaded yet, up to
+     * {@code prefetchSize} messages in total. Messages queued later are loaded once they reach the head of the queue.
+     */
+    private void prefetchBufferedMessages(SequencedMessage nextMessage, Deque<SequencedMessage> releasableMessages,
+                                          Map<Long, BufferedMessage> prefetchedBufferedMessages, boolean inCurrentTransaction) {
+        List<SequencedMessage> chunk = new ArrayList<>();
+        chunk.add(nextMessage);
+        Iterator<SequencedMessage> queuedMessages = releasableMessages.iterator();
+        while (chunk.size() < prefetchSize && queuedMessages.hasNext()) {
+            SequencedMessage queuedMessage = queuedMessages.next();
+            if (!prefetchedBufferedMessages.containsKey(queuedMessage.getId())) {
+                chunk.add(queuedMessage);
+            }
+        }
+        log.debug("Prefetching {} buffered messages", chunk.size());
+        prefetchedBufferedMessages.putAll(inCurrentTransaction ?
+                messageRepository.getBufferedMessagesInCurrentTransaction(chunk) :
+                messageRepository.getBufferedMessagesInNewTransaction(chunk));
+    }
+
+    private static void queueReleasableSuccessors(Sequence sequence, String processedMessageType, long processedMessageTypes,
+                                                  Map<String, List<SequencedMessage>> blockedMessagesByType,
+                                                  Deque<SequencedMessage> releasableMessages) {
+        long successors = sequence.successorMessageTypeBits(processedMessageType);
+        while (successors != 0L) {
+            SequencedMessageType successor = sequence.messageTypeByBit(Long.lowestOneBit(successors));
+            successors &= successors - 1;
+            // The release condition only depends on the message type, so all blocked messages of the type are released
+            if (blockedMessagesByType.containsKey(successor.getQualifiedName()) &&
+                    successor.isReleaseConditionSatisfied(processedMessageTypes)) {
+                releasableMessages.addAll(blockedMessagesByType.remove(successor.getQualifiedName()));
+            }
+        }
     }
 
-    void processBufferedMessageWithPendingAction(SequencedMessage sequencedMessage) {
+    /**
+     * Runs the pending action of a buffered message. Must be called by a transaction locking the sequence instance of
+     * the message. The state of the message is written in this transaction, together with the waiting count and the
+     * processed message types of the sequence instance, so buffered messages released afterwards must be processed
+     * with {@link #processBufferedMessagesInCurrentTransaction(SequenceInstance, Sequence)}.
+     */
+    void processBufferedMessageWithPendingAction(SequencedMessage sequencedMessage, Sequence sequence) {
         log.info("SequentialInbox: Next waiting message with pending action ready to be processed: {}", sequencedMessage);
 
         if (SequencedMessagePendingAction.CONSUME.equals(sequencedMessage.getPendingAction())){
-            handleBufferedMessage(sequencedMessage);
-            messageRepository.clearPendingActionInNewTransaction(sequencedMessage);
+            // The message leaves the waiting state whether or not it is handled successfully
+            sequenceInstanceRepository.decrementWaitingCountIfWaiting(sequencedMessage.getSequenceInstanceId(), sequencedMessage.getId());
+            if (handleBufferedMessage(sequencedMessage)) {
+                addProcessedMessageType(sequencedMessage, sequence);
+            }
+            messageRepository.clearPendingActionInCurrentTransaction(sequencedMessage);
         } else if (SequencedMessagePendingAction.EXPIRE.equals(sequencedMessage.getPendingAction())) {
             log.info("Mark message as processed without consuming {}", sequencedMessage);
-            messageRepository.clearPendingActionInNewTransaction(sequencedMessage, SequencedMessageState.PROCESSED);
+            sequenceInstanceRepository.decrementWaitingCountIfWaiting(sequencedMessage.getSequenceInstanceId(), sequencedMessage.getId());
+            messageRepository.clearPendingActionInCurrentTransaction(sequencedMessage, SequencedMessageState.PROCESSED);
+            addProcessedMessageType(sequencedMessage, sequence);
         } else {
             log.warn("Unknown pending action {} for message {}", sequencedMessage.getPendingAction(), sequencedMessage);
         }
 
     }
 
+    private void addProcessedMessageType(SequencedMessage sequencedMessage, Sequence sequence) {
+        sequenceInstanceRepository.addProcessedMessageType(sequencedMessage.getSequenceInstanceId(),
+                sequence.messageTypeBit(sequencedMessage.getMessageType()), sequence.getMessageTypeIndexHash());
+    }
+
     private SequencedMessageType sequencedMessageType(SequencedMessage sequencedMessage) {
         return sequentialInboxConfiguration.requireSequencedMessageTypeByQualifiedName(sequencedMessage.getMessageType());
     }
@@ -95,9 +249,19 @@ class BufferedMessageService {
      * @return true if the message was successfully handled, false otherwise
      */
     private boolean handleBufferedMessage(SequencedMessage sequencedMessage) {
+        BufferedMessage bufferedMessage = messageRepository.getBufferedMessageInCurrentTransaction(sequencedMessage);
+        SequencedMessageStateUpdates stateUpdates = new SequencedMessageStateUpdates(messageRepository, true, 1);
+        return handleBufferedMessage(sequencedMessage, bufferedMessage, stateUpdates);
+    }
+
+    /**
+     * @return true if the message was successfully handled, false otherwise
+     */
+    private boolean handleBufferedMessage(SequencedMessage sequencedMessage, BufferedMessage bufferedMessage,
+                                          SequencedMessageStateUpdates stateUpdates) {
         TraceContextScope traceContextScope = bufferedMessageTracing.updateCurrentTraceContext(sequencedMessage.getTraceContext());
         try (traceContextScope) {
-            Optional<DeserializedMessage> deserializedMessage = getDeserializedMessage(sequencedMessage);
+            Optional<DeserializedMessage> deserializedMessage = getDeserializedMessage(sequencedMessage, bufferedMessage, stateUpdates);
             if (deserializedMessage.isEmpty()) {
                 log.debug("Deserialization failed for message {}", sequencedMessage);
                 return false;
@@ -107,13 +271,12 @@ class BufferedMessageService {
                 log.debug("Processing buffered message {}", sequencedMessage);
                 recordWaitingMessageCompletedTimer(sequencedMessage);
                 messageHandlerService.handle(deserializedMessage.get());
-                messageRepository.setMessageStateInNewTransaction(sequencedMessage, SequencedMessageState.PROCESSED);
+                stateUpdates.markProcessed(sequencedMessage);
                 log.debug("Processed buffered message {}", sequencedMessage);
             } catch (Exception ex) {
-                Map<String, byte[]> headers = messageRepository.getHeaders(sequencedMessage);
                 FailedConsumerRecord failedConsumerRecord = FailedConsumerRecord.of(
-                        sequencedMessage, headers, deserializedMessage.get().key(), deserializedMessage.get().message());
-                sendMessageToErrorHandlerAndMarkFailed(sequencedMessage, ex, failedConsumerRecord);
+                        sequencedMessage, bufferedMessage.getHeaderMap(), deserializedMessage.get().key(), deserializedMessage.get().message());
+                sendMessageToErrorHandlerAndMarkFailed(sequencedMessage, ex, failedConsumerRecord, stateUpdates);
                 return false;
             }
         }
@@ -130,41 +293,40 @@ class BufferedMessageService {
         }
     }
 
-    private Optional<DeserializedMessage> getDeserializedMessage(SequencedMessage sequencedMessage) {
-        BufferedMessage bufferedMessage = messageRepository.getBufferedMessageInNewTransaction(sequencedMessage);
+    private Optional<DeserializedMessage> getDeserializedMessage(SequencedMessage sequencedMessage, BufferedMessage bufferedMessage,
+                                                                 SequencedMessageStateUpdates stateUpdates) {
         DeserializedMessage deserializedMessage;
         try {
             deserializedMessage = inboxDeserializer.deserialize(sequencedMessage, bufferedMessage);
         } catch (Exception ex) {
             // Exception while deserializing - pass raw serialized bytes to the MessageProcessingFailedEventBuilder
             FailedConsumerRecord failedConsumerRecord = FailedConsumerRecord.of(sequencedMessage, bufferedMessage.getHeaderMap(), bufferedMessage);
-            sendMessageToErrorHandlerAndMarkFailed(sequencedMessage, ex, failedConsumerRecord);
+            sendMessageToErrorHandlerAndMarkFailed(sequencedMessage, ex, failedConsumerRecord, stateUpdates);
             return Optional.empty();
         }
         if (deserializedMessage.deserializationFailed()) {
             sendMessageToErrorHandlerAndMarkFailed(sequencedMessage,
                     SequentialInboxException.deserializationFailed(sequencedMessage),
-                    FailedConsumerRecord.of(sequencedMessage, bufferedMessage.getHeaderMap(), deserializedMessage));
+                    FailedConsumerRecord.of(sequencedMessage, bufferedMessage.getHeaderMap(), deserializedMessage),
+                    stateUpdates);
             return Optional.empty();
         }
         return Optional.of(deserializedMessage);
     }
 
-    private void sendMessageToErrorHandlerAndMarkFailed(SequencedMessage sequencedMessage, Exception ex, FailedConsumerRecord failedConsumerRecord) {
+    private void sendMessageToErrorHandlerAndMarkFailed(SequencedMessage sequencedMessage, Exception ex,
+                                                        FailedConsumerRecord failedConsumerRecord, SequencedMessageStateUpdates stateUpdates) {
         errorServiceSender.accept(failedConsumerRecord, ex);
-        messageRepository.markMessageFailedAndReleaseIdempotenceClaimInNewTransaction(sequencedMessage);
+        stateUpdates.markFailedAndReleaseIdempotenceClaim(sequencedMessage);
     }
 
-    private static List<SequencedMessage> waitingMessagesInModifiableList(List<SequencedMessage> waitingAndProcessedMessages) {
-        return waitingAndProcessedMessages.stream()
-                .filter(sequencedMessage -> sequencedMessage.getState() == SequencedMessageState.WAITING)
-                .collect(Collectors.toCollection(ArrayList::new));
-    }
-
-    private static Set<String> processedMessageTypes(List<SequencedMessage> waitingAndProcessedMessages) {
-        return waitingAndProcessedMessages.stream()
-                .filter(sequencedMessage -> sequencedMessage.getState() == SequencedMessageState.PROCESSED)
-                .map(SequencedMessage::getMessageType)
-                .collect(Collectors.toSet());
+    private static long processedMessageTypes(Sequence sequence, List<SequencedMessage> waitingAndProcessedMessages) {
+        long processedMessageTypes = 0L;
+        for (SequencedMessage sequencedMessage : waitingAndProcessedMessages) {
+            if (sequencedMessage.getState() == SequencedMessageState.PROCESSED) {
+                processedMessageTypes |= sequence.messageTypeBit(sequencedMessage.getMessageType());
+            }
+        }
+        return processedMessageTypes;
     }
 }
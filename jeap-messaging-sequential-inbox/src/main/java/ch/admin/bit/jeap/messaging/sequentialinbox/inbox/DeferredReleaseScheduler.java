@@ -0,0 +1,133 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries release passes that could not lock their sequence instance within the lock wait timeout, so that a consumer
+ * thread does not wait for a context locked by another transaction. Deferred passes are run on virtual threads after
+ * the deferral delay, and deferred again while the context is still locked. After the maximum number of deferrals, a
+ * pass waits for the lock. At most one pass per sequence instance is deferred: a pass deferred while another one is
+ * still pending is covered by the pending pass.
+ * <p>
+ * Deferred passes are kept in memory. If a deferred pass fails, or is still pending on shutdown, the release of its
+ * sequence instance is recorded as requested, so that it is recovered by the pending actions job.
+ */
+@Component
+@Slf4j
+class DeferredReleaseScheduler implements DisposableBean {
+
+    private final SequentialInboxMetricsCollector metricsCollector;
+    private final SequenceInstanceRepository sequenceInstanceRepository;
+    private final Transactions tx;
+    private final Duration lockWaitTimeout;
+    private final Duration deferralDelay;
+    private final int maxDeferrals;
+    private final ScheduledExecutorService scheduler;
+    private final Set<Long> deferredSequenceInstanceIds = ConcurrentHashMap.newKeySet();
+
+    DeferredReleaseScheduler(SequentialInboxMetricsCollector metricsCollector,
+                             SequenceInstanceRepository sequenceInstanceRepository,
+                             Transactions tx,
+                             @Value("${jeap.messaging.sequential-inbox.release.lock-wait-timeout:#{null}}") Duration lockWaitTimeout,
+                             @Value("${jeap.messaging.sequential-inbox.release.deferral-delay:1s}") Duration deferralDelay,
+                             @Value("${jeap.messaging.sequential-inbox.release.max-deferrals:10}") int maxDeferrals) {
+        this.metricsCollector = metricsCollector;
+        this.sequenceInstanceRepository = sequenceInstanceRepository;
+        this.tx = tx;
+        this.lockWaitTimeout = lockWaitTimeout;
+        this.deferralDelay = deferralDelay;
+        this.maxDeferrals = Math.max(1, maxDeferrals);
+        if (lockWaitTimeout != null) {
+            log.info("Deferring release passes not locking their sequence instance within {}, retrying after {} up to {} times",
+                    lockWaitTimeout, deferralDelay, this.maxDeferrals);
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("sequential-inbox-deferred-release").daemon().factory());
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    boolean isEnabled() {
+        return scheduler != null;
+    }
+
+    Duration getLockWaitTimeout() {
+        return lockWaitTimeout;
+    }
+
+    void defer(long sequenceInstanceId, DeferredRelease releasePass) {
+        metricsCollector.onReleaseDeferred();
+        if (!deferredSequenceInstanceIds.add(sequenceInstanceId)) {
+            log.debug("Release pass for sequence instance {} is already deferred", sequenceInstanceId);
+            return;
+        }
+        schedule(sequenceInstanceId, releasePass, 1, System.nanoTime());
+    }
+
+    private void schedule(long sequenceInstanceId, DeferredRelease releasePass, int deferral, long deferredAt) {
+        scheduler.schedule(() -> Thread.ofVirtual().name("sequential-inbox-deferred-release-" + sequenceInstanceId)
+                        .start(() -> runReleasePass(sequenceInstanceId, releasePass, deferral, deferredAt)),
+                deferralDelay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void runReleasePass(long sequenceInstanceId, DeferredRelease releasePass, int deferral, long deferredAt) {
+        // Passes deferred from now on are scheduled again, as this pass may not see the messages they have been deferred for
+        deferredSequenceInstanceIds.remove(sequenceInstanceId);
+        try {
+            if (releasePass.tryRelease(deferral >= maxDeferrals)) {
+                metricsCollector.onDeferredReleaseCompleted(Duration.ofNanos(System.nanoTime() - deferredAt));
+                return;
+            }
+            log.debug("Sequence instance {} is still locked, deferring release pass again ({} deferrals)", sequenceInstanceId, deferral);
+            metricsCollector.onReleaseDeferred();
+            if (deferredSequenceInstanceIds.add(sequenceInstanceId)) {
+                schedule(sequenceInstanceId, releasePass, deferral + 1, deferredAt);
+            }
+        } catch (Exception ex) {
+            log.error("Deferred release pass for sequence instance {} failed, the release is recovered by the pending actions job",
+                    sequenceInstanceId, ex);
+            requestRelease(sequenceInstanceId);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        deferredSequenceInstanceIds.forEach(this::requestRelease);
+    }
+
+    private void requestRelease(long sequenceInstanceId) {
+        try {
+            tx.runInNewTransaction(() -> sequenceInstanceRepository.markReleaseRequested(sequenceInstanceId));
+        } catch (Exception ex) {
+            log.warn("Failed to record the release of sequence instance {} as requested", sequenceInstanceId, ex);
+        }
+    }
+
+    /**
+     * A release pass, which either waits for the lock of the sequence instance or gives up if it is locked.
+     */
+    @FunctionalInterface
+    interface DeferredRelease {
+
+        /**
+         * @return true if the pass has been run, false if the sequence instance is still locked
+         */
+        boolean tryRelease(boolean waitForLock);
+    }
+}
@@ -0,0 +1,86 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionExecution;
+import org.springframework.transaction.TransactionExecutionListener;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the transactions open on the thread of an inbox operation, i.e. the handling of a record or a batch. Each
+ * open transaction holds a pooled connection, including transactions suspended by a nested transaction and the
+ * transactions of message handlers, so the maximum per operation is the number of connections the operation needs
+ * at once. Registered with the transaction manager as an execution listener by Spring Boot.
+ */
+@Component
+@RequiredArgsConstructor
+public class InboxConnectionTracker implements TransactionExecutionListener {
+
+    private static final ThreadLocal<Operation> CURRENT_OPERATION = new ThreadLocal<>();
+
+    private final SequentialInboxMetricsCollector metricsCollector;
+    private final AtomicInteger connectionsHeld = new AtomicInteger();
+
+    /**
+     * Runs an inbox operation, counting the connections it holds. Operations nested in an operation of the same thread
+     * are counted as part of the outer operation.
+     */
+    void track(Runnable operation) {
+        if (CURRENT_OPERATION.get() != null) {
+            operation.run();
+            return;
+        }
+        Operation currentOperation = new Operation();
+        CURRENT_OPERATION.set(currentOperation);
+        try {
+            operation.run();
+        } finally {
+            CURRENT_OPERATION.remove();
+            // Transactions not reported as completed are no longer counted once the operation has ended
+            connectionsHeld.addAndGet(-currentOperation.connections);
+            metricsCollector.onOperationCompleted(currentOperation.maxConnections);
+        }
+    }
+
+    /**
+     * @return The number of connections currently held by inbox operations of all threads
+     */
+    public int getConnectionsHeld() {
+        return connectionsHeld.get();
+    }
+
+    @Override
+    public void afterBegin(TransactionExecution transaction, Throwable beginFailure) {
+        Operation currentOperation = CURRENT_OPERATION.get();
+        if (currentOperation != null && beginFailure == null && transaction.isNewTransaction()) {
+            currentOperation.connections++;
+            currentOperation.maxConnections = Math.max(currentOperation.maxConnections, currentOperation.connections);
+            connectionsHeld.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void afterCommit(TransactionExecution transaction, Throwable commitFailure) {
+        onCompleted(transaction);
+    }
+
+    @Override
+    public void afterRollback(TransactionExecution transaction, Throwable rollbackFailure) {
+        onCompleted(transaction);
+    }
+
+    private void onCompleted(TransactionExecution transaction) {
+        Operation currentOperation = CURRENT_OPERATION.get();
+        if (currentOperation != null && transaction.isNewTransaction() && currentOperation.connections > 0) {
+            currentOperation.connections--;
+            connectionsHeld.decrementAndGet();
+        }
+    }
+
+    private static final class Operation {
+        private int connections;
+        private int maxConnections;
+    }
+}
@@ -0,0 +1,46 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.kafka.properties.KafkaProperties;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.MessageDictionary;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Loads the message dictionary entries of the configured message types, their topics and the Kafka clusters on
+ * startup, before the message listeners are started, so that storing a message does not access the dictionary.
+ */
+@Component
+@RequiredArgsConstructor
+class MessageDictionaryPreloader {
+
+    private final SequentialInboxConfiguration inboxConfiguration;
+    private final KafkaProperties kafkaProperties;
+    private final MessageDictionary messageDictionary;
+
+    @EventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onAppStarted(ApplicationStartedEvent ignored) {
+        preload();
+    }
+
+    void preload() {
+        Set<String> values = Stream.concat(
+                        inboxConfiguration.getSequencedMessageTypes().stream()
+                                .flatMap(messageType -> Stream.of(messageType.getQualifiedName(), messageType.getTopic(),
+                                        messageType.getClusterName())),
+                        kafkaProperties.clusterNames().stream())
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        messageDictionary.preload(values);
+    }
+}
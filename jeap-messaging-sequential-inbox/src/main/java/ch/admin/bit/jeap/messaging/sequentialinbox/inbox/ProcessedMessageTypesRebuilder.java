@@ -0,0 +1,82 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequencedMessageType;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Recomputes the processed message types of open sequence instances from their processed sequenced messages, for
+ * instances created before the processed message types were stored on the instance, or whose sequence declaration has
+ * changed since. Until an instance has been rebuilt, its processed message types are read from the sequenced messages.
+ */
+@Component
+@Slf4j
+class ProcessedMessageTypesRebuilder {
+
+    private final SequentialInboxConfiguration inboxConfiguration;
+    private final SequenceInstanceRepository sequenceInstanceRepository;
+    private final Transactions tx;
+    private final boolean rebuildOnStartup;
+    private final int batchSize;
+
+    ProcessedMessageTypesRebuilder(SequentialInboxConfiguration inboxConfiguration,
+                                   SequenceInstanceRepository sequenceInstanceRepository,
+                                   Transactions tx,
+                                   @Value("${jeap.messaging.sequential-inbox.processed-message-types.rebuild-on-startup:true}") boolean rebuildOnStartup,
+                                   @Value("${jeap.messaging.sequential-inbox.processed-message-types.rebuild-batch-size:1000}") int batchSize) {
+        this.inboxConfiguration = inboxConfiguration;
+        this.sequenceInstanceRepository = sequenceInstanceRepository;
+        this.tx = tx;
+        this.rebuildOnStartup = rebuildOnStartup;
+        this.batchSize = batchSize;
+    }
+
+    @EventListener
+    public void onAppReady(ApplicationReadyEvent ignored) {
+        if (rebuildOnStartup) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Rebuilds the processed message types of all sequences, one batch of sequence instances per transaction.
+     * Instances locked by the inbox are skipped, their processed message types are stored when buffered messages are
+     * released.
+     *
+     * @return The number of rebuilt sequence instances
+     */
+    int rebuild() {
+        int rebuiltTotal = 0;
+        for (String sequenceName : inboxConfiguration.getSequenceTypes()) {
+            Sequence sequence = inboxConfiguration.getSequenceByName(sequenceName).orElseThrow();
+            rebuiltTotal += rebuild(sequence);
+        }
+        return rebuiltTotal;
+    }
+
+    private int rebuild(Sequence sequence) {
+        List<String> messageTypeQualifiedNames = sequence.getMessages().stream()
+                .map(SequencedMessageType::getQualifiedName)
+                .toList();
+        int rebuiltTotal = 0;
+        int rebuilt;
+        do {
+            rebuilt = tx.callInNewTransaction(() -> sequenceInstanceRepository.rebuildProcessedMessageTypes(
+                    sequence.getName(), messageTypeQualifiedNames, sequence.getMessageTypeIndexHash(), batchSize));
+            rebuiltTotal += rebuilt;
+        } while (rebuilt > 0);
+
+        if (rebuiltTotal > 0) {
+            log.info("Rebuilt the processed message types of {} instances of sequence {}", rebuiltTotal, sequence.getName());
+        }
+        return rebuiltTotal;
+    }
+}
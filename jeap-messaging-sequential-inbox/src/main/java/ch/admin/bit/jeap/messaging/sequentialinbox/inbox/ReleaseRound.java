@@ -0,0 +1,11 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+/**
+ * Outcome of releasing the waiting messages of a sequence instance.
+ *
+ * @param processedMessageTypes The processed message types of the sequence instance after the release
+ * @param releasedCount         The number of waiting messages that have been handled by the release, successfully or not
+ * @param waitingCount          The number of messages read by the release that are still waiting after the release
+ */
+record ReleaseRound(long processedMessageTypes, int releasedCount, int waitingCount) {
+}
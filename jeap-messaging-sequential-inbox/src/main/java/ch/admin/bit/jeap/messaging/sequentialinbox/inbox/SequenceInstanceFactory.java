@@ -1,60 +1,194 @@
 package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
 
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceContextLocks;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceLeasedException;
 import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
-import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
 
-import java.util.Optional;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Component
 @Slf4j
 class SequenceInstanceFactory {
 
     private final SequenceInstanceRepository repository;
+    private final SequenceContextLocks contextLocks;
     private final Transactions tx;
     private final int idleLockTimeoutSeconds;
+    private final int lockConflictMaxAttempts;
+    private final ReentrantLock[] localLocks;
 
     SequenceInstanceFactory(SequenceInstanceRepository repository,
+                            SequenceContextLocks contextLocks,
                             Transactions tx,
-                            @Value("${jeap.messaging.sequential-inbox.idle-lock-timeout-seconds:600}") int idleLockTimeoutSeconds) {
+                            @Value("${jeap.messaging.sequential-inbox.idle-lock-timeout-seconds:600}") int idleLockTimeoutSeconds,
+                            @Value("${jeap.messaging.sequential-inbox.local-lock.stripes:1024}") int localLockStripes,
+                            @Value("${jeap.messaging.sequential-inbox.context-lock.max-attempts:5}") int lockConflictMaxAttempts) {
         this.repository = repository;
+        this.contextLocks = contextLocks;
         this.tx = tx;
         this.idleLockTimeoutSeconds = idleLockTimeoutSeconds;
+        this.lockConflictMaxAttempts = Math.max(1, lockConflictMaxAttempts);
+        this.localLocks = new ReentrantLock[Math.max(0, localLockStripes)];
+        for (int i = 0; i < localLocks.length; i++) {
+            localLocks[i] = new ReentrantLock();
+        }
         log.info("Setting idle lock timeout to {} seconds for sequential inbox transactions", idleLockTimeoutSeconds);
+        log.info("Using {} local lock stripes for sequence instances", localLocks.length);
     }
 
-    SequenceInstance getExistingSequenceInstanceAndLockForUpdate(long sequenceInstanceId) {
-        return repository.getByIdAndLockForUpdate(sequenceInstanceId, idleLockTimeoutSeconds);
+    /**
+     * Runs the action, which starts the transaction locking the context of the sequence instance, while holding the
+     * local lock of the sequence instance. Threads of this node locking the same sequence instance wait for the local
+     * lock before starting their transaction, so that only one of them holds a connection while waiting for the
+     * context lock. Sequence instances are mapped to a fixed number of local locks, so that instances sharing a local
+     * lock are serialized on this node as well. The action is run once, as it may invoke message handlers.
+     */
+    void runLocked(long sequenceInstanceId, Runnable action) {
+        if (localLocks.length == 0) {
+            action.run();
+            return;
+        }
+        ReentrantLock localLock = localLock(sequenceInstanceId);
+        localLock.lock();
+        try {
+            action.run();
+        } finally {
+            localLock.unlock();
+        }
     }
 
-    long createOrGetSequenceInstance(Sequence sequence, String contextId) {
+    /**
+     * Same as {@link #runLocked(long, Runnable)}, but waits at most the given timeout for the local lock.
+     *
+     * @return true if the action has been run, false if the local lock is held by another thread
+     */
+    boolean tryRunLocked(long sequenceInstanceId, Duration timeout, Runnable action) {
+        if (localLocks.length == 0) {
+            action.run();
+            return true;
+        }
+        ReentrantLock localLock = localLock(sequenceInstanceId);
+        try {
+            if (!localLock.tryLock(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
         try {
-            return tx.callInNewTransaction(() -> {
-                // First, attempt to find an existing instance
-                Optional<Long> existingInstance = repository.findIdByNameAndContextId(sequence.getName(), contextId);
-                // Return the existing instance if found, otherwise create a new one
-                return existingInstance.orElseGet(() -> saveNewInstance(sequence, contextId));
-            });
-        } catch (DataIntegrityViolationException e) {
-            // If another thread inserted the same contextId concurrently, find and return it
-            // Note: The transaction will be rolled back upon a DataIntegrityViolationException, so this needs to happen
-            // in a new transaction.
-            return tx.callInNewTransaction(() -> repository.findIdByNameAndContextId(sequence.getName(), contextId))
-                    .orElseThrow(() -> SequentialInboxException.failedToReadExistingSequenceInstance(sequence, contextId, e));
-        }
-    }
-
-    private long saveNewInstance(Sequence sequence, String contextId) {
-        SequenceInstance newInstance = SequenceInstance.builder()
+            action.run();
+            return true;
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    private ReentrantLock localLock(long sequenceInstanceId) {
+        return localLocks[Math.floorMod(Long.hashCode(sequenceInstanceId) * 0x9E3779B9, localLocks.length)];
+    }
+
+    /**
+     * Runs the action, which starts the transaction locking the context of a sequence instance, and repeats it if the
+     * context could not be locked because it is leased by a release pass. This only happens for sequences using lease
+     * context locking. The context is locked before any message handler is invoked, an attempt that is repeated has
+     * thus not invoked a handler. Any other failure, including a concurrency failure of a handler, is not repeated.
+     */
+    void retryOnLockConflict(Runnable action) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                action.run();
+                return;
+            } catch (SequenceInstanceLeasedException ex) {
+                if (attempt >= lockConflictMaxAttempts) {
+                    throw ex;
+                }
+                log.debug("Sequence context is leased, repeating attempt {}: {}", attempt, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Locks the context of the sequence instance for the current transaction, as configured for the sequence. Must be
+     * called before the transaction invokes any message handler.
+     *
+     * @param sequence The sequence of the instance, or null if it is not configured anymore
+     */
+    SequenceInstance getExistingSequenceInstanceAndLock(Sequence sequence, long sequenceInstanceId) {
+        return contextLocks.forSequence(sequence).lock(sequenceInstanceId, idleLockTimeoutSeconds);
+    }
+
+    /**
+     * Same as {@link #getExistingSequenceInstanceAndLock(Sequence, long)}, but waits at most the given timeout for the
+     * context lock. Later statements of the transaction wait for locks as configured for the session.
+     *
+     * @throws org.springframework.dao.PessimisticLockingFailureException if the context is locked by another transaction
+     */
+    SequenceInstance tryGetExistingSequenceInstanceAndLock(Sequence sequence, long sequenceInstanceId, Duration lockWaitTimeout) {
+        repository.setLockTimeoutForCurrentTransaction(lockWaitTimeout);
+        SequenceInstance lockedSequenceInstance = getExistingSequenceInstanceAndLock(sequence, sequenceInstanceId);
+        repository.resetLockTimeoutForCurrentTransaction();
+        return lockedSequenceInstance;
+    }
+
+    /**
+     * Gets or creates the sequence instance with a single statement in a new transaction.
+     */
+    long createOrGetSequenceInstance(Sequence sequence, String contextId) {
+        return tx.callInNewTransaction(() -> createOrGetSequenceInstanceInCurrentTransaction(sequence, contextId));
+    }
+
+    /**
+     * Gets or creates the sequence instance with a single statement in the current transaction. A concurrent creation
+     * of the same instance does not fail the current transaction, the ID of the concurrently created instance is
+     * returned instead.
+     */
+    long createOrGetSequenceInstanceInCurrentTransaction(Sequence sequence, String contextId) {
+        return repository.getOrCreateInstance(newInstance(sequence, contextId), sequence.getMessageTypeIndexHash());
+    }
+
+    /**
+     * Sequence instance IDs are cached on each node. An instance deleted by the housekeeping on another node leaves a
+     * stale ID in the cache, which is only detected once a row referencing the instance is inserted.
+     *
+     * @return true if the cached ID of the sequence instance was stale and has been evicted
+     */
+    boolean evictStaleSequenceInstanceId(Sequence sequence, String contextId) {
+        return tx.callInNewTransaction(() -> repository.evictStaleId(sequence.getName(), contextId));
+    }
+
+    /**
+     * Creates or gets the sequence instances for all given context IDs. Existing instances are read with a single
+     * query, missing instances are created one by one.
+     *
+     * @return The sequence instance IDs by context ID
+     */
+    Map<String, Long> createOrGetSequenceInstances(Sequence sequence, Set<String> contextIds) {
+        Map<String, Long> sequenceInstanceIds = new HashMap<>(tx.callInNewTransaction(() ->
+                repository.findIdsByNameAndContextIds(sequence.getName(), contextIds)));
+        for (String contextId : contextIds) {
+            if (!sequenceInstanceIds.containsKey(contextId)) {
+                sequenceInstanceIds.put(contextId, createOrGetSequenceInstance(sequence, contextId));
+            }
+        }
+        return sequenceInstanceIds;
+    }
+
+    private static SequenceInstance newInstance(Sequence sequence, String contextId) {
+        return SequenceInstance.builder()
                 .contextId(contextId)
                 .name(sequence.getName())
                 .retentionPeriod(sequence.getRetentionPeriod())
                 .build();
-        return repository.saveNewInstance(newInstance);
     }
 }
@@ -0,0 +1,156 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Leases sequence instances of sequences using lease context locking to release passes. A lease is acquired and
+ * released in short transactions and renewed by a heartbeat while the pass runs, so that no transaction is open and
+ * no connection is held while the handlers of the released messages are invoked.
+ * <p>
+ * A pass failing to acquire the lease increments the version of the sequence instance, as do transactions buffering or
+ * processing a message of the instance. The lease holder only releases the lease if the version is unchanged since it
+ * has started its pass, and repeats the pass otherwise. The release marker of the instance is kept while the lease is
+ * held, so that the release is recovered by the pending actions job if the node stops before the lease is released.
+ */
+@Component
+@Slf4j
+class SequenceInstanceLeases implements DisposableBean {
+
+    private final SequenceInstanceRepository repository;
+    private final Transactions tx;
+    private final Duration leaseDuration;
+    private final Duration heartbeatInterval;
+    private final ScheduledExecutorService heartbeatScheduler;
+
+    SequenceInstanceLeases(SequenceInstanceRepository repository,
+                           Transactions tx,
+                           @Value("${jeap.messaging.sequential-inbox.lease.duration:30s}") Duration leaseDuration,
+                           @Value("${jeap.messaging.sequential-inbox.lease.heartbeat-interval:10s}") Duration heartbeatInterval) {
+        this.repository = repository;
+        this.tx = tx;
+        this.leaseDuration = leaseDuration;
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("sequential-inbox-lease-heartbeat").daemon().factory());
+        if (heartbeatInterval.compareTo(leaseDuration) >= 0) {
+            log.warn("Lease heartbeat interval {} is not shorter than the lease duration {}, leases expire while held",
+                    heartbeatInterval, leaseDuration);
+        }
+    }
+
+    /**
+     * Acquires the lease of the sequence instance in a new transaction and starts its heartbeat.
+     *
+     * @return The lease, or empty if the instance is leased by another pass, which then repeats its pass, or if the
+     * instance does not exist anymore
+     */
+    Optional<Lease> tryAcquire(long sequenceInstanceId) {
+        String owner = UUID.randomUUID().toString();
+        Optional<SequenceInstance> leasedSequenceInstance = tx.callInNewTransaction(() -> {
+            if (!repository.tryAcquireLease(sequenceInstanceId, owner, leaseDuration)) {
+                repository.markReleaseRequested(sequenceInstanceId);
+                repository.incrementLockVersion(sequenceInstanceId);
+                return Optional.empty();
+            }
+            repository.markReleaseRequested(sequenceInstanceId);
+            return Optional.ofNullable(repository.getById(sequenceInstanceId));
+        });
+        return leasedSequenceInstance.map(sequenceInstance -> {
+            Lease lease = new Lease(sequenceInstance, owner);
+            lease.heartbeat = heartbeatScheduler.scheduleAtFixedRate(lease::renew,
+                    heartbeatInterval.toMillis(), heartbeatInterval.toMillis(), TimeUnit.MILLISECONDS);
+            return lease;
+        });
+    }
+
+    /**
+     * Releases the lease in a new transaction if the sequence instance has not been changed since the lease has been
+     * acquired or since the last call of this method. The given action is run in the same transaction with the leased
+     * sequence instance, e.g. to write the outcome of the pass.
+     *
+     * @return true if the lease has been released or lost, false if the instance has been changed concurrently, in
+     * which case the lease is kept and the pass is to be repeated
+     */
+    boolean release(Lease lease, Consumer<SequenceInstance> onRelease) {
+        long sequenceInstanceId = lease.sequenceInstance.getId();
+        return tx.callInNewTransaction(() -> {
+            boolean released = repository.releaseLeaseIfUnchanged(sequenceInstanceId, lease.owner, lease.sequenceInstance.getLockVersion());
+            SequenceInstance sequenceInstance = repository.getById(sequenceInstanceId);
+            if (released) {
+                lease.released = true;
+                onRelease.accept(sequenceInstance);
+                return true;
+            }
+            if (sequenceInstance == null || !lease.owner.equals(sequenceInstance.getLeaseOwner())) {
+                log.warn("Lease of sequence instance {} has been lost during the release pass", sequenceInstanceId);
+                lease.released = true;
+                return true;
+            }
+            log.debug("Sequence instance {} has been changed during the release pass, repeating the pass", sequenceInstanceId);
+            lease.sequenceInstance = sequenceInstance;
+            return false;
+        });
+    }
+
+    @Override
+    public void destroy() {
+        heartbeatScheduler.shutdownNow();
+    }
+
+    /**
+     * The lease of a sequence instance held by a release pass. Closing the lease stops its heartbeat, and abandons the
+     * lease if it has not been released, e.g. because the pass has failed. The release marker is kept in this case.
+     */
+    final class Lease implements AutoCloseable {
+
+        private final String owner;
+        private volatile SequenceInstance sequenceInstance;
+        private ScheduledFuture<?> heartbeat;
+        private boolean released;
+
+        private Lease(SequenceInstance sequenceInstance, String owner) {
+            this.sequenceInstance = sequenceInstance;
+            this.owner = owner;
+        }
+
+        /**
+         * @return The leased sequence instance, as read when the lease has been acquired or the pass has been repeated
+         */
+        SequenceInstance getSequenceInstance() {
+            return sequenceInstance;
+        }
+
+        private void renew() {
+            long sequenceInstanceId = sequenceInstance.getId();
+            try {
+                if (!tx.callInNewTransaction(() -> repository.renewLease(sequenceInstanceId, owner, leaseDuration))) {
+                    log.warn("Lease of sequence instance {} could not be renewed, it has expired or been taken over", sequenceInstanceId);
+                }
+            } catch (Exception ex) {
+                log.warn("Failed to renew the lease of sequence instance {}", sequenceInstanceId, ex);
+            }
+        }
+
+        @Override
+        public void close() {
+            heartbeat.cancel(false);
+            if (!released) {
+                tx.runInNewTransaction(() -> repository.abandonLease(sequenceInstance.getId(), owner));
+            }
+        }
+    }
+}
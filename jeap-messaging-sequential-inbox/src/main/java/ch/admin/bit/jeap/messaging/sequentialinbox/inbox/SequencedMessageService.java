@@ -8,7 +8,12 @@ import ch.admin.bit.jeap.messaging.kafka.properties.KafkaProperties;
 import ch.admin.bit.jeap.messaging.kafka.signature.SignatureHeaders;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequencedMessageType;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.ClaimedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.IdempotenceClaim;
 import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.MessageRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceContextLocks;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
 import ch.admin.bit.jeap.messaging.sequentialinbox.kafka.TraceContextFactory;
 import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.BufferedMessage;
@@ -24,6 +29,7 @@ import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
 import java.util.*;
 
 @Component
@@ -32,6 +38,9 @@ class SequencedMessageService {
 
     private final TraceContextFactory traceContextFactory;
     private final MessageRepository messageRepository;
+    private final SequenceInstanceRepository sequenceInstanceRepository;
+    private final SequenceContextLocks contextLocks;
+    private final SequentialInboxConfiguration inboxConfiguration;
     private final KafkaProperties kafkaProperties;
     private final SequentialInboxMetricsCollector metricsCollector;
 
@@ -41,12 +50,65 @@ class SequencedMessageService {
             SignatureHeaders.SIGNATURE_VALUE_HEADER_KEY,
             SignatureHeaders.SIGNATURE_KEY_HEADER_KEY);
 
-    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
+    /**
+     * Stores the message in the caller's transaction if one is open, e.g. the transaction holding the idempotence claim,
+     * or in a new transaction otherwise. The processed message types and the number of waiting messages of the sequence
+     * instance are updated in the same transaction, so that a thread waiting for a release pass holding the context
+     * lock does not hold a second connection.
+     */
+    @Transactional(propagation = Propagation.REQUIRED, isolation = Isolation.READ_COMMITTED)
     public void storeSequencedMessage(String messageTypeQualifiedName,
                                       Optional<SequencedMessage> existingSequencedMessage,
                                       long sequenceInstanceId,
                                       SequencedMessageState state,
                                       ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        saveSequencedMessage(messageTypeQualifiedName, existingSequencedMessage, sequenceInstanceId, state, consumerRecord, false);
+    }
+
+    /**
+     * Stores the message as failed in a new transaction, which is committed even if the caller's transaction is rolled
+     * back afterwards. The sequence instance is not updated for a failed message.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
+    public void storeFailedSequencedMessageInNewTransaction(String messageTypeQualifiedName,
+                                                            Optional<SequencedMessage> existingSequencedMessage,
+                                                            long sequenceInstanceId,
+                                                            ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        saveSequencedMessage(messageTypeQualifiedName, existingSequencedMessage, sequenceInstanceId,
+                SequencedMessageState.FAILED, consumerRecord, false);
+    }
+
+    /**
+     * Stores the message in the current transaction, which must hold the context lock of the sequence instance if the
+     * message is processed or waiting.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void storeSequencedMessageInCurrentTransaction(String messageTypeQualifiedName,
+                                                          Optional<SequencedMessage> existingSequencedMessage,
+                                                          long sequenceInstanceId,
+                                                          SequencedMessageState state,
+                                                          ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        saveSequencedMessage(messageTypeQualifiedName, existingSequencedMessage, sequenceInstanceId, state, consumerRecord, true);
+    }
+
+    private void saveSequencedMessage(String messageTypeQualifiedName,
+                                      Optional<SequencedMessage> existingSequencedMessage,
+                                      long sequenceInstanceId,
+                                      SequencedMessageState state,
+                                      ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
+                                      boolean contextLocked) {
+        boolean addWaitingMessage = state == SequencedMessageState.WAITING &&
+                                    existingSequencedMessage.map(SequencedMessage::getState).orElse(null) != SequencedMessageState.WAITING;
+        if (!contextLocked && (state == SequencedMessageState.PROCESSED || addWaitingMessage)) {
+            // Do not lose the update to a concurrent release writing the processed types and waiting count
+            Sequence sequence = inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName(messageTypeQualifiedName);
+            contextLocks.forSequence(sequence).lockShared(sequenceInstanceId);
+        }
+        if (state == SequencedMessageState.PROCESSED) {
+            addProcessedMessageType(messageTypeQualifiedName, sequenceInstanceId);
+        } else if (addWaitingMessage) {
+            sequenceInstanceRepository.incrementWaitingCount(sequenceInstanceId);
+        }
 
         if (existingSequencedMessage.isPresent()) {
             messageRepository.setMessageStateInCurrentTransaction(existingSequencedMessage.get(), state);
@@ -57,28 +119,63 @@ class SequencedMessageService {
 
         BufferedMessage bufferedMessage = null;
         if (state == SequencedMessageState.WAITING) {
-            bufferedMessage = BufferedMessage.builder()
-                    .sequenceInstanceId(sequenceInstanceId)
-                    .key(consumerRecord.key() == null ? null : consumerRecord.key().getSerializedMessage())
-                    .value(consumerRecord.value().getSerializedMessage())
-                     .build();
-            bufferedMessage.setHeaders(getMessageHeaders(consumerRecord.headers(), bufferedMessage));
+            bufferedMessage = createBufferedMessage(sequenceInstanceId, consumerRecord);
         }
+        SequencedMessage sequencedMessage = createSequencedMessage(messageTypeQualifiedName, sequenceInstanceId, state, consumerRecord);
+
+        messageRepository.saveMessage(bufferedMessage, sequencedMessage);
+    }
 
-        String clusterName = getClusterName(consumerRecord);
+    /**
+     * Claims the idempotence ID of the message and buffers the message as waiting with a single write, in the current
+     * transaction which must hold the context lock of the sequence instance. The message is not saved if the claim
+     * exists already, or if a message with the same idempotence ID has been stored before. Such an existing message is
+     * returned to the caller, which decides how to proceed.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public ClaimedMessage claimAndBufferMessageInCurrentTransaction(String messageTypeQualifiedName,
+                                                                    long sequenceInstanceId,
+                                                                    ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        BufferedMessage bufferedMessage = createBufferedMessage(sequenceInstanceId, consumerRecord);
+        SequencedMessage sequencedMessage = createSequencedMessage(messageTypeQualifiedName, sequenceInstanceId,
+                SequencedMessageState.WAITING, consumerRecord);
+        ClaimedMessage claimedMessage = messageRepository.claimAndSaveMessage(bufferedMessage, sequencedMessage);
+        if (claimedMessage.messageSaved()) {
+            sequenceInstanceRepository.incrementWaitingCount(sequenceInstanceId);
+            metricsCollector.onConsumedSequencedMessage(messageTypeQualifiedName);
+        }
+        return claimedMessage;
+    }
 
-        SequencedMessage sequencedMessage = SequencedMessage.builder()
+    private BufferedMessage createBufferedMessage(long sequenceInstanceId, ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        BufferedMessage bufferedMessage = BufferedMessage.builder()
+                .sequenceInstanceId(sequenceInstanceId)
+                .key(consumerRecord.key() == null ? null : consumerRecord.key().getSerializedMessage())
+                .value(consumerRecord.value().getSerializedMessage())
+                .build();
+        bufferedMessage.setHeaders(getMessageHeaders(consumerRecord.headers(), bufferedMessage));
+        return bufferedMessage;
+    }
+
+    private SequencedMessage createSequencedMessage(String messageTypeQualifiedName, long sequenceInstanceId,
+                                                    SequencedMessageState state,
+                                                    ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        return SequencedMessage.builder()
                 .messageType(messageTypeQualifiedName)
                 .sequenceInstanceId(sequenceInstanceId)
-                .clusterName(clusterName)
+                .clusterName(getClusterName(consumerRecord))
                 .topic(consumerRecord.topic())
                 .sequencedMessageId(UUID.fromString(consumerRecord.value().getIdentity().getId()))
                 .idempotenceId(consumerRecord.value().getIdentity().getIdempotenceId())
                 .traceContext(traceContextFactory.currentTraceContext())
                 .state(state)
                 .build();
+    }
 
-        messageRepository.saveMessage(bufferedMessage, sequencedMessage);
+    private void addProcessedMessageType(String messageTypeQualifiedName, long sequenceInstanceId) {
+        Sequence sequence = inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName(messageTypeQualifiedName);
+        sequenceInstanceRepository.addProcessedMessageType(sequenceInstanceId,
+                sequence.messageTypeBit(messageTypeQualifiedName), sequence.getMessageTypeIndexHash());
     }
 
     private List<MessageHeader> getMessageHeaders(Headers headers, BufferedMessage bufferedMessage) {
@@ -105,25 +202,76 @@ class SequencedMessageService {
         return messageRepository.findByMessageTypeAndIdempotenceIdInNewTransaction(messageType, idempotenceId);
     }
 
+    Optional<SequencedMessage> findByMessageTypeAndIdempotenceIdInCurrentTransaction(String messageType, String idempotenceId) {
+        return messageRepository.findByMessageTypeAndIdempotenceIdInCurrentTransaction(messageType, idempotenceId);
+    }
+
     boolean createIdempotenceClaim(String messageType, String idempotenceId, long sequenceInstanceId) {
         return messageRepository.createIdempotenceClaim(messageType, idempotenceId, sequenceInstanceId);
     }
 
-    boolean isReleaseConditionSatisfied(SequencedMessageType sequencedMessageType, long sequenceInstanceId) {
+    Set<IdempotenceClaim> createIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId) {
+        return messageRepository.createIdempotenceClaims(new LinkedHashSet<>(claims), sequenceInstanceId);
+    }
+
+    void releaseIdempotenceClaim(IdempotenceClaim claim) {
+        messageRepository.releaseIdempotenceClaim(claim);
+    }
+
+    boolean createInProgressIdempotenceClaim(IdempotenceClaim claim, long sequenceInstanceId, Duration leaseDuration) {
+        return messageRepository.createInProgressIdempotenceClaim(claim.messageType(), claim.idempotenceId(), sequenceInstanceId, leaseDuration);
+    }
+
+    Set<IdempotenceClaim> createInProgressIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId, Duration leaseDuration) {
+        return messageRepository.createInProgressIdempotenceClaims(new LinkedHashSet<>(claims), sequenceInstanceId, leaseDuration);
+    }
+
+    boolean isIdempotenceClaimInProgress(IdempotenceClaim claim) {
+        return messageRepository.isIdempotenceClaimInProgress(claim.messageType(), claim.idempotenceId());
+    }
+
+    void completeIdempotenceClaimInNewTransaction(IdempotenceClaim claim) {
+        messageRepository.completeIdempotenceClaimInNewTransaction(claim);
+    }
+
+    void completeIdempotenceClaimsInNewTransaction(Collection<IdempotenceClaim> claims) {
+        messageRepository.completeIdempotenceClaimsInNewTransaction(claims);
+    }
+
+    void releaseIdempotenceClaimInNewTransaction(IdempotenceClaim claim) {
+        messageRepository.releaseIdempotenceClaimInNewTransaction(claim);
+    }
+
+    /**
+     * Checks the release condition of the message type in the current transaction, so that the processed message types
+     * stored earlier in the transaction are seen and no second connection is held.
+     */
+    boolean isReleaseConditionSatisfiedInCurrentTransaction(Sequence sequence, SequencedMessageType sequencedMessageType, long sequenceInstanceId) {
         // Avoid querying the database if there is no release condition. In case the message does not have a release
         // condition (first message in a sequence), it should be processed immediately.
-        Set<String> emptyProcessedMessageSet = Set.of();
-        if (sequencedMessageType.isReleaseConditionSatisfied(emptyProcessedMessageSet)) {
+        if (sequencedMessageType.isReleaseConditionSatisfied(0L)) {
             return true;
         }
 
-        Set<String> processedMessageTypes = messageRepository.getProcessedMessageTypesInSequenceInNewTransaction(sequenceInstanceId);
+        long processedMessageTypes = getProcessedMessageTypesInCurrentTransaction(sequence, sequenceInstanceId);
         return sequencedMessageType.isReleaseConditionSatisfied(processedMessageTypes);
     }
 
-    boolean areAllMessagesProcessed(Sequence sequence, long sequenceInstanceId) {
-        Set<String> allMessageTypeQns = sequence.getMessageTypeQualifiedNames();
-        Set<String> processedMessageTypeQns = messageRepository.getProcessedMessageTypesInSequenceInNewTransaction(sequenceInstanceId);
-        return allMessageTypeQns.equals(processedMessageTypeQns);
+    boolean areAllMessagesProcessedInCurrentTransaction(Sequence sequence, long sequenceInstanceId) {
+        return sequence.isComplete(getProcessedMessageTypesInCurrentTransaction(sequence, sequenceInstanceId));
+    }
+
+    /**
+     * Reads the processed message types stored on the sequence instance. They are only read from the sequenced
+     * messages if they have not been stored for the current message type index of the sequence yet.
+     */
+    private long getProcessedMessageTypesInCurrentTransaction(Sequence sequence, long sequenceInstanceId) {
+        OptionalLong processedMessageTypes = sequenceInstanceRepository.findProcessedMessageTypes(
+                sequenceInstanceId, sequence.getMessageTypeIndexHash());
+        if (processedMessageTypes.isPresent()) {
+            return processedMessageTypes.getAsLong();
+        }
+        Set<String> processedMessageTypeQns = messageRepository.getProcessedMessageTypesInSequenceInCurrentTransaction(sequenceInstanceId);
+        return sequence.messageTypeBits(processedMessageTypeQns);
     }
 }
@@ -0,0 +1,57 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.MessageRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the state changes of released buffered messages and writes them with JDBC batch updates, either in a new
+ * transaction per flush or in the current transaction. Processed messages are written once {@code batchSize} state
+ * changes have been collected or when {@link #flush()} is called at the end of a release round. A failed message is
+ * written immediately together with the collected state changes, as releasing its idempotence claim allows a
+ * redelivery to retry the message.
+ */
+@Slf4j
+class SequencedMessageStateUpdates {
+
+    private final MessageRepository messageRepository;
+    private final boolean inCurrentTransaction;
+    private final int batchSize;
+    private final List<SequencedMessage> processedMessages = new ArrayList<>();
+    private final List<SequencedMessage> failedMessages = new ArrayList<>();
+
+    SequencedMessageStateUpdates(MessageRepository messageRepository, boolean inCurrentTransaction, int batchSize) {
+        this.messageRepository = messageRepository;
+        this.inCurrentTransaction = inCurrentTransaction;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    void markProcessed(SequencedMessage sequencedMessage) {
+        processedMessages.add(sequencedMessage);
+        if (processedMessages.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    void markFailedAndReleaseIdempotenceClaim(SequencedMessage sequencedMessage) {
+        failedMessages.add(sequencedMessage);
+        flush();
+    }
+
+    void flush() {
+        if (processedMessages.isEmpty() && failedMessages.isEmpty()) {
+            return;
+        }
+        log.debug("Writing {} processed and {} failed message states", processedMessages.size(), failedMessages.size());
+        if (inCurrentTransaction) {
+            messageRepository.updateMessageStatesInCurrentTransaction(List.copyOf(processedMessages), List.copyOf(failedMessages));
+        } else {
+            messageRepository.updateMessageStatesInNewTransaction(List.copyOf(processedMessages), List.copyOf(failedMessages));
+        }
+        processedMessages.clear();
+        failedMessages.clear();
+    }
+}
@@ -2,23 +2,36 @@ package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
 
 import ch.admin.bit.jeap.messaging.avro.AvroMessage;
 import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.kafka.errorhandling.ErrorServiceSender;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequencedMessageType;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.ClaimedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.IdempotenceClaim;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.PartitionOwnedSequenceInstances;
 import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.*;
+import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxException;
 import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxMessageHandler;
 import io.micrometer.core.annotation.Timed;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.PessimisticLockingFailureException;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.Optional;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+import static java.util.stream.Collectors.*;
 
 @Component
 @Slf4j
@@ -31,8 +44,17 @@ public class SequentialInboxService {
     private final Transactions tx;
     private final MessageHandlerService messageHandlerService;
     private final BufferedMessageService bufferedMessageService;
+    private final ErrorServiceSender errorServiceSender;
+    private final AsyncReleaseExecutor asyncReleaseExecutor;
+    private final SequenceInstanceLeases sequenceInstanceLeases;
+    private final DeferredReleaseScheduler deferredReleaseScheduler;
+    private final PartitionOwnedSequenceInstances partitionOwnedSequenceInstances;
+    private final InboxConnectionTracker connectionTracker;
 
     private LocalDateTime sequencingStartTimestamp;
+    private boolean singleTransactionEnabled;
+    private boolean twoPhaseIdempotenceClaimEnabled;
+    private Duration idempotenceClaimLeaseDuration = Duration.ofMinutes(5);
 
     @Value("${jeap.messaging.sequential-inbox.sequencing-start-timestamp:#{null}}")
     public void setSequencingStartTimestamp(LocalDateTime sequencingStartTimestamp) {
@@ -43,11 +65,31 @@ public class SequentialInboxService {
         return sequencingStartTimestamp;
     }
 
+    @Value("${jeap.messaging.sequential-inbox.single-transaction.enabled:false}")
+    public void setSingleTransactionEnabled(boolean singleTransactionEnabled) {
+        this.singleTransactionEnabled = singleTransactionEnabled;
+    }
+
+    @Value("${jeap.messaging.sequential-inbox.idempotence-claim.two-phase.enabled:false}")
+    public void setTwoPhaseIdempotenceClaimEnabled(boolean twoPhaseIdempotenceClaimEnabled) {
+        this.twoPhaseIdempotenceClaimEnabled = twoPhaseIdempotenceClaimEnabled;
+    }
+
+    @Value("${jeap.messaging.sequential-inbox.idempotence-claim.lease-duration:5m}")
+    public void setIdempotenceClaimLeaseDuration(Duration idempotenceClaimLeaseDuration) {
+        this.idempotenceClaimLeaseDuration = idempotenceClaimLeaseDuration;
+    }
+
     @Timed(value = "jeap.messaging.sequential-inbox.handle-message", percentiles = {0.5, 0.8, 0.95, 0.99})
     public void handleMessage(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
                               SequentialInboxMessageHandler messageHandler,
                               Acknowledgment acknowledgment) {
+        connectionTracker.track(() -> handleMessageTracked(consumerRecord, messageHandler, acknowledgment));
+    }
 
+    private void handleMessageTracked(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
+                                      SequentialInboxMessageHandler messageHandler,
+                                      Acknowledgment acknowledgment) {
         AvroMessage avroMessage = consumerRecord.value();
         String qualifiedSequencedMessageTypeName = inboxConfiguration.qualifiedSequencedMessageTypeName(avroMessage);
         SequencedMessageType sequencedMessageType = inboxConfiguration.requireSequencedMessageTypeByQualifiedName(qualifiedSequencedMessageTypeName);
@@ -65,85 +107,659 @@ public class SequentialInboxService {
         Sequence sequence = inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName(qualifiedSequencedMessageTypeName);
         log.info("Handling message {} ({}) in sequence {} with context ID {}",
                 qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getId(), sequence.getName(), contextId);
-        long sequenceInstanceId = sequenceInstanceFactory.createOrGetSequenceInstance(sequence, contextId);
-
-        // If the sequencing start timestamp is set and the current time is before the start timestamp, start the record mode and handle the message immediately.
-        // The record activates sequencing with a delay. Until activation, the predecessor messages are recorded (Recording Mode).
-        // This is needed to handle messages that need to be newly sequenced, but their predecessor was received before the introduction of the sequence.
-        boolean recordingModeIsEnabled = sequencingStartTimestamp != null && LocalDateTime.now(ZoneId.systemDefault()).isBefore(sequencingStartTimestamp);
+        if (singleTransactionEnabled) {
+            handleMessageInSingleTransaction(consumerRecord, messageHandler, sequencedMessageType, sequence, contextId,
+                    qualifiedSequencedMessageTypeName);
+            acknowledgment.acknowledge();
+            return;
+        }
+        boolean recordingModeIsEnabled = isRecordingModeEnabled();
 
         // Atomically claim the idempotence ID before checking and processing the message. A concurrent insert for the
         // same qualified message type and idempotence ID waits for this transaction. It can only proceed if this
         // transaction rolls back; after a commit ON CONFLICT on the claim key reports that the claim already exists.
+        // The message is checked, handled or buffered in the transaction holding the claim, so that no second
+        // connection is held. If the message handler fails, the transaction is rolled back and the message is marked
+        // as failed afterwards, as in single transaction mode.
+        long sequenceInstanceId;
+        try {
+            sequenceInstanceId = runWithSequenceInstanceId(sequence, contextId,
+                    sequenceInstanceFactory.createOrGetSequenceInstance(sequence, contextId),
+                    instanceId -> {
+                        ownIfPartitionLocked(sequence, consumerRecord, instanceId);
+                        if (twoPhaseIdempotenceClaimEnabled) {
+                            handleMessageWithInProgressClaim(consumerRecord, messageHandler, sequencedMessageType, instanceId,
+                                    sequence, contextId, recordingModeIsEnabled, qualifiedSequencedMessageTypeName);
+                            return;
+                        }
+                        tx.runInNewTransaction(() -> {
+                            boolean claimCreated = sequencedMessageService.createIdempotenceClaim(
+                                    qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getIdempotenceId(), instanceId);
+                            if (claimCreated) {
+                                handleMessage(consumerRecord, messageHandler, sequencedMessageType, instanceId, sequence,
+                                        contextId, recordingModeIsEnabled, qualifiedSequencedMessageTypeName, true);
+                            } else {
+                                logAlreadyClaimed(avroMessage, qualifiedSequencedMessageTypeName);
+                            }
+                        });
+                    });
+        } catch (MessageHandlerFailedException ex) {
+            throw markMessageFailedAfterRollback(ex, consumerRecord, sequence, contextId, qualifiedSequencedMessageTypeName);
+        }
+
+        releaseBufferedMessages(sequence, sequenceInstanceId, recordingModeIsEnabled);
+
+        // Acknowledge the current record
+        acknowledgment.acknowledge();
+    }
+
+    /**
+     * Commits the idempotence claim as in progress before handling the message, so that no transaction and no
+     * connection of the inbox is held while the handler runs. The claim is completed once the message has been
+     * processed or buffered, and released if the handler failed so that a later delivery retries the message. A claim
+     * left in progress by a failed consumer is taken over by a redelivery once its lease expired, which resumes from
+     * the stored state of the message. A delivery meeting a claim in progress whose lease has not expired fails and is
+     * retried by the error handling.
+     */
+    @SuppressWarnings("java:S107")
+    private void handleMessageWithInProgressClaim(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, SequentialInboxMessageHandler messageHandler,
+                                                  SequencedMessageType sequencedMessageType, long sequenceInstanceId, Sequence sequence, String contextId,
+                                                  boolean recordingModeIsEnabled, String qualifiedSequencedMessageTypeName) {
+        AvroMessage avroMessage = consumerRecord.value();
+        IdempotenceClaim idempotenceClaim = new IdempotenceClaim(qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getIdempotenceId());
+        boolean claimCreated = tx.callInNewTransaction(() -> {
+            if (sequencedMessageService.createInProgressIdempotenceClaim(idempotenceClaim, sequenceInstanceId, idempotenceClaimLeaseDuration)) {
+                return true;
+            }
+            if (sequencedMessageService.isIdempotenceClaimInProgress(idempotenceClaim)) {
+                throw SequentialInboxException.idempotenceClaimInProgress(idempotenceClaim);
+            }
+            return false;
+        });
+        if (!claimCreated) {
+            log.info("Message {} (id={}) has already been claimed with idempotence ID {}, skipping processing",
+                    qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getId(), idempotenceClaim.idempotenceId());
+            return;
+        }
+
+        try {
+            handleMessage(consumerRecord, messageHandler, sequencedMessageType, sequenceInstanceId, sequence,
+                    contextId, recordingModeIsEnabled, qualifiedSequencedMessageTypeName, false);
+        } catch (RuntimeException ex) {
+            sequencedMessageService.releaseIdempotenceClaimInNewTransaction(idempotenceClaim);
+            throw ex;
+        }
+        sequencedMessageService.completeIdempotenceClaimInNewTransaction(idempotenceClaim);
+    }
+
+    /**
+     * Identifies the sequence context of a record without handling it, e.g. to dispatch the records of a partition to
+     * lanes per context. Records of the same context have the same key, records of different contexts usually not.
+     *
+     * @return The key of the sequence context of the message, or empty if the message is not sequenced
+     */
+    public Optional<String> getSequenceContextKey(AvroMessage avroMessage) {
+        String qualifiedSequencedMessageTypeName = inboxConfiguration.qualifiedSequencedMessageTypeName(avroMessage);
+        SequencedMessageType sequencedMessageType = inboxConfiguration.requireSequencedMessageTypeByQualifiedName(qualifiedSequencedMessageTypeName);
+        String contextId = getContextId(avroMessage, sequencedMessageType);
+        if (contextId == null) {
+            return Optional.empty();
+        }
+        Sequence sequence = inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName(qualifiedSequencedMessageTypeName);
+        return Optional.of(sequence.getName() + ":" + contextId);
+    }
+
+    /**
+     * Handles a sequenced message with all its bookkeeping in a single transaction: the sequence instance is created
+     * or read, locked for update, the idempotence ID is claimed, the message is handled or buffered and the buffered
+     * messages whose release condition is satisfied are released. Locking the sequence instance before the claim
+     * serializes all messages of the context, so that a message buffered by one transaction cannot be missed by the
+     * release in a concurrent transaction.
+     * <p>
+     * If the message handler fails, the transaction is rolled back and the message is marked as failed in a separate
+     * transaction afterwards. The transaction is only repeated if the sequence instance could not be locked because it
+     * is leased, i.e. before the handler has been invoked.
+     */
+    private void handleMessageInSingleTransaction(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
+                                                  SequentialInboxMessageHandler messageHandler,
+                                                  SequencedMessageType sequencedMessageType, Sequence sequence,
+                                                  String contextId, String qualifiedSequencedMessageTypeName) {
+        boolean recordingModeIsEnabled = isRecordingModeEnabled();
+        try {
+            sequenceInstanceFactory.retryOnLockConflict(() ->
+                    retryOnStaleSequenceInstanceId(sequence, contextId, () -> tx.runInNewTransaction(() ->
+                            handleMessageInCurrentTransaction(consumerRecord, messageHandler, sequencedMessageType, sequence,
+                                    contextId, qualifiedSequencedMessageTypeName, recordingModeIsEnabled))));
+        } catch (MessageHandlerFailedException ex) {
+            throw markMessageFailedAfterRollback(ex, consumerRecord, sequence, contextId, qualifiedSequencedMessageTypeName);
+        }
+    }
+
+    private void handleMessageInCurrentTransaction(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
+                                                   SequentialInboxMessageHandler messageHandler,
+                                                   SequencedMessageType sequencedMessageType, Sequence sequence,
+                                                   String contextId, String qualifiedSequencedMessageTypeName,
+                                                   boolean recordingModeIsEnabled) {
+        long sequenceInstanceId = sequenceInstanceFactory.createOrGetSequenceInstanceInCurrentTransaction(sequence, contextId);
+        ownIfPartitionLocked(sequence, consumerRecord, sequenceInstanceId);
+        SequenceInstance lockedSequenceInstance = sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, sequenceInstanceId);
+
+        // The release condition cannot change while the sequence instance is locked. Checking it before claiming the
+        // idempotence ID allows to claim and buffer a message that is not released with a single statement.
+        boolean releaseConditionSatisfied = recordingModeIsEnabled ||
+                sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, sequenceInstanceId);
+        if (releaseConditionSatisfied) {
+            claimAndInvokeMessageHandlerInCurrentTransaction(consumerRecord, messageHandler, sequenceInstanceId,
+                    qualifiedSequencedMessageTypeName, recordingModeIsEnabled);
+        } else {
+            claimAndBufferMessageInCurrentTransaction(consumerRecord, sequence, contextId, sequenceInstanceId,
+                    qualifiedSequencedMessageTypeName);
+        }
+
+        boolean sequenceComplete;
+        if (recordingModeIsEnabled) {
+            sequenceComplete = sequencedMessageService.areAllMessagesProcessedInCurrentTransaction(sequence, sequenceInstanceId);
+        } else {
+            sequenceComplete = bufferedMessageService.processBufferedMessagesInCurrentTransaction(lockedSequenceInstance, sequence);
+        }
+        if (sequenceComplete) {
+            lockedSequenceInstance.close();
+        }
+    }
+
+    private void claimAndInvokeMessageHandlerInCurrentTransaction(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
+                                                                  SequentialInboxMessageHandler messageHandler,
+                                                                  long sequenceInstanceId, String qualifiedSequencedMessageTypeName,
+                                                                  boolean recordingModeIsEnabled) {
+        AvroMessage avroMessage = consumerRecord.value();
+        String idempotenceId = avroMessage.getIdentity().getIdempotenceId();
+        if (!sequencedMessageService.createIdempotenceClaim(qualifiedSequencedMessageTypeName, idempotenceId, sequenceInstanceId)) {
+            logAlreadyClaimed(avroMessage, qualifiedSequencedMessageTypeName);
+            return;
+        }
+        Optional<SequencedMessage> existingSequencedMessage = sequencedMessageService
+                .findByMessageTypeAndIdempotenceIdInCurrentTransaction(qualifiedSequencedMessageTypeName, idempotenceId);
+        if (isAlreadyProcessedOrWaiting(existingSequencedMessage)) {
+            logAlreadyProcessed(avroMessage, qualifiedSequencedMessageTypeName);
+            return;
+        }
+        if (recordingModeIsEnabled) {
+            log.info("Recording mode active, handling message {} immediately", avroMessage);
+        }
+        invokeMessageHandler(consumerRecord, messageHandler, existingSequencedMessage, sequenceInstanceId, qualifiedSequencedMessageTypeName, true, true);
+    }
+
+    private void claimAndBufferMessageInCurrentTransaction(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, Sequence sequence,
+                                                           String contextId, long sequenceInstanceId, String qualifiedSequencedMessageTypeName) {
+        AvroMessage avroMessage = consumerRecord.value();
+        ClaimedMessage claimedMessage = sequencedMessageService.claimAndBufferMessageInCurrentTransaction(
+                qualifiedSequencedMessageTypeName, sequenceInstanceId, consumerRecord);
+        if (!claimedMessage.claimCreated()) {
+            logAlreadyClaimed(avroMessage, qualifiedSequencedMessageTypeName);
+            return;
+        }
+        Optional<SequencedMessage> existingSequencedMessage = claimedMessage.existingMessage();
+        if (isAlreadyProcessedOrWaiting(existingSequencedMessage)) {
+            logAlreadyProcessed(avroMessage, qualifiedSequencedMessageTypeName);
+            return;
+        }
+        log.info("Buffering message {} in sequence {} with context ID {}", qualifiedSequencedMessageTypeName, sequence.getName(), contextId);
+        if (existingSequencedMessage.isPresent()) {
+            // A failed message is retried, its stored state is updated
+            sequencedMessageService.storeSequencedMessageInCurrentTransaction(qualifiedSequencedMessageTypeName,
+                    existingSequencedMessage, sequenceInstanceId, SequencedMessageState.WAITING, consumerRecord);
+        }
+    }
+
+    private static void logAlreadyClaimed(AvroMessage avroMessage, String qualifiedSequencedMessageTypeName) {
+        log.info("Message {} (id={}) has already been claimed with idempotence ID {}, skipping processing",
+                qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getId(),
+                avroMessage.getIdentity().getIdempotenceId());
+    }
+
+    private static void logAlreadyProcessed(AvroMessage avroMessage, String qualifiedSequencedMessageTypeName) {
+        log.info("Message {} (id={}) has already been processed with idempotence ID {}, skipping listener invocation", qualifiedSequencedMessageTypeName,
+                avroMessage.getIdentity().getId(), avroMessage.getIdentity().getIdempotenceId());
+    }
+
+    /**
+     * Marks a message as failed after the transaction in which its handler has failed has been rolled back.
+     *
+     * @return The exception of the message handler, to be processed by the error handler and sent to the error
+     * handling service
+     */
+    private RuntimeException markMessageFailedAfterRollback(MessageHandlerFailedException ex,
+                                                            ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
+                                                            Sequence sequence, String contextId,
+                                                            String qualifiedSequencedMessageTypeName) {
+        RuntimeException cause = ex.unwrap();
+        try {
+            markMessageFailed(consumerRecord, sequence, contextId, qualifiedSequencedMessageTypeName);
+        } catch (RuntimeException markFailedException) {
+            cause.addSuppressed(markFailedException);
+        }
+        return cause;
+    }
+
+    /**
+     * Marks a message as failed in a new transaction. The idempotence ID is claimed while writing the state, and
+     * released again in the same transaction so that the message can be retried. If the message has been claimed
+     * concurrently in the meantime, its state is left to the concurrent delivery.
+     */
+    private void markMessageFailed(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, Sequence sequence,
+                                   String contextId, String qualifiedSequencedMessageTypeName) {
+        String idempotenceId = consumerRecord.value().getIdentity().getIdempotenceId();
         tx.runInNewTransaction(() -> {
-            boolean claimCreated = sequencedMessageService.createIdempotenceClaim(
-                    qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getIdempotenceId(), sequenceInstanceId);
-            if (claimCreated) {
-                handleMessage(consumerRecord, messageHandler, sequencedMessageType, sequenceInstanceId, sequence,
-                        contextId, recordingModeIsEnabled, qualifiedSequencedMessageTypeName);
+            long sequenceInstanceId = sequenceInstanceFactory.createOrGetSequenceInstanceInCurrentTransaction(sequence, contextId);
+            if (sequencedMessageService.createIdempotenceClaim(qualifiedSequencedMessageTypeName, idempotenceId, sequenceInstanceId)) {
+                Optional<SequencedMessage> existingSequencedMessage = sequencedMessageService
+                        .findByMessageTypeAndIdempotenceIdInCurrentTransaction(qualifiedSequencedMessageTypeName, idempotenceId);
+                sequencedMessageService.storeSequencedMessageInCurrentTransaction(qualifiedSequencedMessageTypeName,
+                        existingSequencedMessage, sequenceInstanceId, SequencedMessageState.FAILED, consumerRecord);
+                sequencedMessageService.releaseIdempotenceClaim(new IdempotenceClaim(qualifiedSequencedMessageTypeName, idempotenceId));
             } else {
-                log.info("Message {} (id={}) has already been claimed with idempotence ID {}, skipping processing",
-                        qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getId(),
-                        avroMessage.getIdentity().getIdempotenceId());
+                log.info("Message {} with idempotence ID {} has been claimed concurrently, not marking it as failed",
+                        qualifiedSequencedMessageTypeName, idempotenceId);
             }
         });
+    }
 
-        // Lock the sequence instance for update to avoid concurrent access to the inbox for the current context
-        tx.runInNewTransaction(() -> {
-            SequenceInstance lockedSequenceInstance = sequenceInstanceFactory.getExistingSequenceInstanceAndLockForUpdate(sequenceInstanceId);
+    /**
+     * Handles all records of a poll batch. Records are grouped by sequence and context ID, preserving the order of
+     * the records within each group. Sequence instances are resolved in bulk for the whole batch, idempotence claims
+     * are created in bulk and committed in progress per group before the handlers of the group are invoked outside of
+     * any transaction, and each sequence instance is locked once per group to release buffered messages. The claims
+     * are completed once the messages of the group have been stored, and the batch is acknowledged once all groups
+     * have been handled.
+     * <p>
+     * A failing message handler does not fail the batch: the message is marked as failed, its idempotence claim is
+     * released and the record is sent to the error handling service, as it is done for failing buffered messages. A
+     * record whose claim is still in progress by another consumer is sent to the error handling service as well, so
+     * that it is retried once the claim has been completed or its lease has expired.
+     */
+    @Timed(value = "jeap.messaging.sequential-inbox.handle-messages", percentiles = {0.5, 0.8, 0.95, 0.99})
+    public void handleMessages(List<ConsumerRecord<AvroMessageKey, AvroMessage>> consumerRecords,
+                               SequentialInboxMessageHandler messageHandler,
+                               Acknowledgment acknowledgment) {
+        connectionTracker.track(() -> handleMessagesTracked(consumerRecords, messageHandler, acknowledgment));
+    }
+
+    private void handleMessagesTracked(List<ConsumerRecord<AvroMessageKey, AvroMessage>> consumerRecords,
+                                       SequentialInboxMessageHandler messageHandler,
+                                       Acknowledgment acknowledgment) {
+        boolean recordingModeIsEnabled = isRecordingModeEnabled();
+
+        Map<SequenceContext, List<SequencedRecord>> recordsBySequenceContext = new LinkedHashMap<>();
+        for (ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord : consumerRecords) {
+            AvroMessage avroMessage = consumerRecord.value();
+            String qualifiedSequencedMessageTypeName = inboxConfiguration.qualifiedSequencedMessageTypeName(avroMessage);
+            SequencedMessageType sequencedMessageType = inboxConfiguration.requireSequencedMessageTypeByQualifiedName(qualifiedSequencedMessageTypeName);
+
+            String contextId = getContextId(avroMessage, sequencedMessageType);
+            if (contextId == null) {
+                log.debug("Message {} is filtered out from sequencing, handling immediately", avroMessage);
+                invokeMessageHandlerForBatchRecord(consumerRecord, () -> messageHandler.invoke(consumerRecord.key(), avroMessage));
+                continue;
+            }
+
+            Sequence sequence = inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName(qualifiedSequencedMessageTypeName);
+            recordsBySequenceContext.computeIfAbsent(new SequenceContext(sequence, contextId), _ -> new ArrayList<>())
+                    .add(new SequencedRecord(consumerRecord, sequencedMessageType, qualifiedSequencedMessageTypeName));
+        }
+
+        Map<SequenceContext, Long> sequenceInstanceIds = createOrGetSequenceInstances(recordsBySequenceContext.keySet());
+        recordsBySequenceContext.forEach((sequenceContext, sequencedRecords) ->
+                handleSequenceContextRecords(sequenceContext, sequenceInstanceIds.get(sequenceContext), sequencedRecords,
+                        messageHandler, recordingModeIsEnabled));
+
+        // Acknowledge the whole batch
+        if (acknowledgment != null) {
+            acknowledgment.acknowledge();
+        }
+    }
+
+    private Map<SequenceContext, Long> createOrGetSequenceInstances(Set<SequenceContext> sequenceContexts) {
+        Map<SequenceContext, Long> sequenceInstanceIds = new HashMap<>();
+        sequenceContexts.stream()
+                .collect(groupingBy(SequenceContext::sequence, mapping(SequenceContext::contextId, toSet())))
+                .forEach((sequence, contextIds) -> sequenceInstanceFactory.createOrGetSequenceInstances(sequence, contextIds)
+                        .forEach((contextId, id) -> sequenceInstanceIds.put(new SequenceContext(sequence, contextId), id)));
+        return sequenceInstanceIds;
+    }
 
-            boolean sequenceComplete;
-            if (recordingModeIsEnabled) {
-                // After all messages are processed, the sequence is completed
-                sequenceComplete = sequencedMessageService.areAllMessagesProcessed(sequence, sequenceInstanceId);
+    private void handleSequenceContextRecords(SequenceContext sequenceContext, long sequenceInstanceId,
+                                              List<SequencedRecord> sequencedRecords,
+                                              SequentialInboxMessageHandler messageHandler,
+                                              boolean recordingModeIsEnabled) {
+        Sequence sequence = sequenceContext.sequence();
+        String contextId = sequenceContext.contextId();
+        log.info("Handling {} message(s) in sequence {} with context ID {}", sequencedRecords.size(), sequence.getName(), contextId);
+
+        // Claim all idempotence IDs of the group at once, and commit the claims in progress before invoking any handler,
+        // so that no transaction of the inbox is open while the handlers run. A claim left in progress by a consumer
+        // failing before the message has been stored is taken over by a redelivery once its lease has expired. The
+        // claims of messages whose handler fails are released in new transactions, so that a later delivery retries
+        // them.
+        Set<IdempotenceClaim> createdClaims = new HashSet<>();
+        Set<IdempotenceClaim> inProgressClaims = new HashSet<>();
+        long currentSequenceInstanceId = runWithSequenceInstanceId(sequence, contextId, sequenceInstanceId,
+                instanceId -> {
+                    ownIfPartitionLocked(sequence, sequencedRecords.getFirst().consumerRecord(), instanceId);
+                    tx.runInNewTransaction(() -> {
+                        createdClaims.addAll(sequencedMessageService.createInProgressIdempotenceClaims(
+                                sequencedRecords.stream().map(SequencedRecord::idempotenceClaim).toList(), instanceId,
+                                idempotenceClaimLeaseDuration));
+                        sequencedRecords.stream()
+                                .map(SequencedRecord::idempotenceClaim)
+                                .filter(claim -> !createdClaims.contains(claim))
+                                .filter(sequencedMessageService::isIdempotenceClaimInProgress)
+                                .forEach(inProgressClaims::add);
+                    });
+                });
+
+        List<IdempotenceClaim> handledClaims = new ArrayList<>();
+        for (SequencedRecord sequencedRecord : sequencedRecords) {
+            ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord = sequencedRecord.consumerRecord();
+            IdempotenceClaim idempotenceClaim = sequencedRecord.idempotenceClaim();
+            if (createdClaims.remove(idempotenceClaim)) {
+                boolean handled = invokeMessageHandlerForBatchRecord(consumerRecord, () -> handleMessage(consumerRecord, messageHandler,
+                                sequencedRecord.sequencedMessageType(), currentSequenceInstanceId, sequence, contextId,
+                                recordingModeIsEnabled, sequencedRecord.qualifiedName(), false),
+                        () -> sequencedMessageService.releaseIdempotenceClaimInNewTransaction(idempotenceClaim));
+                if (handled) {
+                    handledClaims.add(idempotenceClaim);
+                }
+            } else if (inProgressClaims.remove(idempotenceClaim)) {
+                invokeMessageHandlerForBatchRecord(consumerRecord, () -> {
+                    throw SequentialInboxException.idempotenceClaimInProgress(idempotenceClaim);
+                });
             } else {
-                // Check for waiting messages after handling the current message
-                sequenceComplete = bufferedMessageService.processBufferedMessages(lockedSequenceInstance, sequence);
+                logAlreadyClaimed(consumerRecord.value(), idempotenceClaim.messageType());
             }
+        }
+        if (!handledClaims.isEmpty()) {
+            sequencedMessageService.completeIdempotenceClaimsInNewTransaction(handledClaims);
+        }
 
-            // Set the sequence to complete if all messages have been processed
-            if (sequenceComplete) {
-                lockedSequenceInstance.close();
+        releaseBufferedMessages(sequence, currentSequenceInstanceId, recordingModeIsEnabled);
+    }
+
+    /**
+     * Runs the action with the given sequence instance ID. Sequence instance IDs are cached, and a cached ID becomes
+     * stale if the instance is deleted by the housekeeping on another node. Inserting a row referencing a stale ID
+     * fails with a foreign key violation. In this case, the stale ID is evicted and the action is retried once with
+     * the ID of a newly created or read sequence instance.
+     *
+     * @return The sequence instance ID the action has completed with
+     */
+    private long runWithSequenceInstanceId(Sequence sequence, String contextId, long sequenceInstanceId, LongConsumer action) {
+        try {
+            action.accept(sequenceInstanceId);
+            return sequenceInstanceId;
+        } catch (DataIntegrityViolationException ex) {
+            if (!sequenceInstanceFactory.evictStaleSequenceInstanceId(sequence, contextId)) {
+                throw ex;
             }
-        });
+            long currentSequenceInstanceId = sequenceInstanceFactory.createOrGetSequenceInstance(sequence, contextId);
+            log.info("Sequence instance ID {} in sequence {} with context ID {} was stale, retrying with ID {}",
+                    sequenceInstanceId, sequence.getName(), contextId, currentSequenceInstanceId);
+            action.accept(currentSequenceInstanceId);
+            return currentSequenceInstanceId;
+        }
+    }
 
-        // Acknowledge the current record
-        acknowledgment.acknowledge();
+    /**
+     * Same as {@link #runWithSequenceInstanceId(Sequence, String, long, LongConsumer)} for actions reading the sequence
+     * instance ID themselves.
+     */
+    private void retryOnStaleSequenceInstanceId(Sequence sequence, String contextId, Runnable action) {
+        try {
+            action.run();
+        } catch (DataIntegrityViolationException ex) {
+            if (!sequenceInstanceFactory.evictStaleSequenceInstanceId(sequence, contextId)) {
+                throw ex;
+            }
+            log.info("Sequence instance ID in sequence {} with context ID {} was stale, retrying", sequence.getName(), contextId);
+            action.run();
+        }
+    }
+
+    private void invokeMessageHandlerForBatchRecord(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, Runnable invocation) {
+        invokeMessageHandlerForBatchRecord(consumerRecord, invocation, () -> {});
+    }
+
+    /**
+     * @return true if the invocation has completed, false if it has failed and the record has been sent to the error
+     * handling service
+     */
+    private boolean invokeMessageHandlerForBatchRecord(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
+                                                       Runnable invocation, Runnable onFailure) {
+        try {
+            invocation.run();
+            return true;
+        } catch (Exception ex) {
+            onFailure.run();
+            @SuppressWarnings("unchecked")
+            ConsumerRecord<Object, Object> objectRecord = (ConsumerRecord<Object, Object>) (ConsumerRecord<?, ?>) consumerRecord;
+            errorServiceSender.accept(objectRecord, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Locks the sequence instance for update to avoid concurrent access to the inbox for the current context, and
+     * releases buffered messages whose release condition is satisfied after handling the current message(s). The lock
+     * is not taken if no message is waiting and the sequence is not complete.
+     * <p>
+     * If asynchronous release is enabled, the release is requested on the sequence instance and the release pass is
+     * handed over to the release workers. The request is kept until a release pass has completed, and is recovered by
+     * the pending actions job if the pass is lost.
+     * <p>
+     * Otherwise, if a lock wait timeout is configured, a release pass not locking the sequence instance within the
+     * timeout is deferred, so that the consumer thread is not blocked by a context locked by another transaction.
+     */
+    private void releaseBufferedMessages(Sequence sequence, long sequenceInstanceId, boolean recordingModeIsEnabled) {
+        if (!recordingModeIsEnabled &&
+                !tx.callInNewTransaction(() -> bufferedMessageService.isReleaseRequired(sequenceInstanceId, sequence))) {
+            log.debug("No waiting message in sequence {} with ID {}, not releasing buffered messages", sequence.getName(), sequenceInstanceId);
+            return;
+        }
+
+        if (asyncReleaseExecutor.isEnabled()) {
+            // The request is recorded with a single statement, without waiting for a local contender of the instance
+            tx.runInNewTransaction(() -> sequenceInstanceRepository.markReleaseRequested(sequenceInstanceId));
+            asyncReleaseExecutor.submit(sequenceInstanceId,
+                    () -> releaseBufferedMessagesInLockedTransaction(sequence, sequenceInstanceId, recordingModeIsEnabled, true));
+            return;
+        }
+
+        if (deferredReleaseScheduler.isEnabled()) {
+            if (!tryReleaseBufferedMessages(sequence, sequenceInstanceId, recordingModeIsEnabled, false)) {
+                log.debug("Sequence instance {} is locked by another transaction, deferring release pass", sequenceInstanceId);
+                deferredReleaseScheduler.defer(sequenceInstanceId, waitForLock ->
+                        tryReleaseBufferedMessages(sequence, sequenceInstanceId, recordingModeIsEnabled, waitForLock));
+            }
+            return;
+        }
+
+        releaseBufferedMessagesInLockedTransaction(sequence, sequenceInstanceId, recordingModeIsEnabled, true);
+    }
+
+    /**
+     * Runs a release pass, waiting at most the lock wait timeout for the lock of the sequence instance unless
+     * {@code waitForLock} is set. Leased sequence instances are not waited for, see
+     * {@link #releaseBufferedMessagesWithLease(Sequence, long, boolean)}.
+     *
+     * @return true if the pass has been run, false if the sequence instance is locked by another transaction
+     */
+    private boolean tryReleaseBufferedMessages(Sequence sequence, long sequenceInstanceId, boolean recordingModeIsEnabled,
+                                               boolean waitForLock) {
+        if (waitForLock || sequence.getContextLock() == SequenceContextLockType.LEASE) {
+            releaseBufferedMessagesInLockedTransaction(sequence, sequenceInstanceId, recordingModeIsEnabled, true);
+            return true;
+        }
+        Duration lockWaitTimeout = deferredReleaseScheduler.getLockWaitTimeout();
+        try {
+            return sequenceInstanceFactory.tryRunLocked(sequenceInstanceId, lockWaitTimeout, () -> tx.runInNewTransaction(() ->
+                    releaseBufferedMessagesInCurrentTransaction(sequence, sequenceInstanceId, recordingModeIsEnabled, true,
+                            sequenceInstanceFactory.tryGetExistingSequenceInstanceAndLock(sequence, sequenceInstanceId, lockWaitTimeout))));
+        } catch (PessimisticLockingFailureException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @param consumerPass true if the pass has been triggered by the consumer of the released messages, false if it
+     *                     is recovered, see {@link #releaseBufferedMessagesInCurrentTransaction}
+     */
+    private void releaseBufferedMessagesInLockedTransaction(Sequence sequence, long sequenceInstanceId, boolean recordingModeIsEnabled,
+                                                            boolean consumerPass) {
+        if (sequence.getContextLock() == SequenceContextLockType.LEASE) {
+            sequenceInstanceFactory.runLocked(sequenceInstanceId, () ->
+                    releaseBufferedMessagesWithLease(sequence, sequenceInstanceId, recordingModeIsEnabled));
+            return;
+        }
+        sequenceInstanceFactory.runLocked(sequenceInstanceId, () -> tx.runInNewTransaction(() ->
+                releaseBufferedMessagesInCurrentTransaction(sequence, sequenceInstanceId, recordingModeIsEnabled, consumerPass,
+                        sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, sequenceInstanceId))));
+    }
+
+    /**
+     * Releases the buffered messages of the sequence instance locked by the current transaction. A pass triggered by
+     * the consumer of a sequence using partition context locking is fenced on the ownership of the partition once the
+     * lock is held, before any handler is invoked: if the partition has been revoked meanwhile, the pass is left to
+     * the new owner or to the recovery of the release, which is requested instead.
+     */
+    private void releaseBufferedMessagesInCurrentTransaction(Sequence sequence, long sequenceInstanceId, boolean recordingModeIsEnabled,
+                                                             boolean consumerPass, SequenceInstance lockedSequenceInstance) {
+        if (consumerPass && sequence.getContextLock() == SequenceContextLockType.PARTITION &&
+                !partitionOwnedSequenceInstances.isOwned(sequenceInstanceId)) {
+            log.info("Partition of sequence instance {} has been revoked, requesting release instead of releasing", sequenceInstanceId);
+            sequenceInstanceRepository.markReleaseRequested(sequenceInstanceId);
+            return;
+        }
+
+        boolean sequenceComplete;
+        if (recordingModeIsEnabled) {
+            // After all messages are processed, the sequence is completed
+            sequenceComplete = sequencedMessageService.areAllMessagesProcessedInCurrentTransaction(sequence, sequenceInstanceId);
+        } else {
+            // Check for waiting messages after handling the current message
+            sequenceComplete = bufferedMessageService.processBufferedMessagesInCurrentTransaction(lockedSequenceInstance, sequence);
+        }
+
+        // Set the sequence to complete if all messages have been processed
+        if (sequenceComplete) {
+            lockedSequenceInstance.close();
+        }
+        // This pass covers the release requests made before its transaction started. The marker is only written at the
+        // end of the pass, so that a request made while the pass is running does not wait for the pass.
+        sequenceInstanceRepository.clearReleaseRequested(sequenceInstanceId);
+    }
+
+    /**
+     * Releases buffered messages while holding the lease of the sequence instance instead of a lock. The handlers of the
+     * released messages are invoked without an open transaction, so a slow handler neither holds a lock nor a
+     * connection. The pass is repeated as long as the sequence instance has been changed concurrently, e.g. by a
+     * message buffered or processed meanwhile. If another pass holds the lease, that pass repeats its pass instead.
+     */
+    private void releaseBufferedMessagesWithLease(Sequence sequence, long sequenceInstanceId, boolean recordingModeIsEnabled) {
+        Optional<SequenceInstanceLeases.Lease> acquiredLease = sequenceInstanceLeases.tryAcquire(sequenceInstanceId);
+        if (acquiredLease.isEmpty()) {
+            log.debug("Sequence instance {} is leased by another release pass, which repeats its pass", sequenceInstanceId);
+            return;
+        }
+        try (SequenceInstanceLeases.Lease lease = acquiredLease.get()) {
+            boolean released;
+            // The messages released by repeated passes are subtracted from the waiting count once the lease is released
+            int releasedCount = 0;
+            do {
+                if (recordingModeIsEnabled) {
+                    boolean sequenceComplete = tx.callInNewTransaction(() ->
+                            sequencedMessageService.areAllMessagesProcessedInCurrentTransaction(sequence, sequenceInstanceId));
+                    released = sequenceInstanceLeases.release(lease, leasedSequenceInstance -> {
+                        if (sequenceComplete) {
+                            leasedSequenceInstance.close();
+                        }
+                    });
+                } else {
+                    ReleaseRound releaseRound = bufferedMessageService.releaseWaitingMessagesWithoutTransaction(
+                            lease.getSequenceInstance(), sequence);
+                    releasedCount += releaseRound.releasedCount();
+                    int totalReleasedCount = releasedCount;
+                    released = sequenceInstanceLeases.release(lease, leasedSequenceInstance -> {
+                        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(sequenceInstanceId,
+                                releaseRound.processedMessageTypes(), totalReleasedCount, releaseRound.waitingCount(),
+                                sequence.getMessageTypeIndexHash());
+                        if (sequence.isComplete(releaseRound.processedMessageTypes())) {
+                            leasedSequenceInstance.close();
+                        }
+                    });
+                }
+            } while (!released);
+        }
+    }
+
+    /**
+     * If the sequencing start timestamp is set and the current time is before the start timestamp, start the record mode and handle the message immediately.
+     * The record activates sequencing with a delay. Until activation, the predecessor messages are recorded (Recording Mode).
+     * This is needed to handle messages that need to be newly sequenced, but their predecessor was received before the introduction of the sequence.
+     */
+    private boolean isRecordingModeEnabled() {
+        return sequencingStartTimestamp != null && LocalDateTime.now(ZoneId.systemDefault()).isBefore(sequencingStartTimestamp);
     }
 
     @Timed(value = "jeap.messaging.sequential-inbox.handle-message-with-pending-action", percentiles = {0.5, 0.8, 0.95, 0.99})
     public void handleMessageWithPendingAction(SequencedMessage sequencedMessage) {
-        tx.runInNewTransaction(() -> {
+        Sequence sequence = inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName(sequencedMessage.getMessageType());
+        sequenceInstanceFactory.runLocked(sequencedMessage.getSequenceInstanceId(), () -> sequenceInstanceFactory.retryOnLockConflict(() -> tx.runInNewTransaction(() -> {
+            // Lock the sequence instance to avoid concurrent access to the inbox for the current context, before any
+            // handler is invoked
+            SequenceInstance lockedSequenceInstance = sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, sequencedMessage.getSequenceInstanceId());
             // First process the buffered message with pending action
-            bufferedMessageService.processBufferedMessageWithPendingAction(sequencedMessage);
-            // Lock the sequence instance for update to avoid concurrent access to the inbox for the current context
-            SequenceInstance lockedSequenceInstance = sequenceInstanceFactory.getExistingSequenceInstanceAndLockForUpdate(sequencedMessage.getSequenceInstanceId());
+            bufferedMessageService.processBufferedMessageWithPendingAction(sequencedMessage, sequence);
             inboxConfiguration.getSequenceByName(lockedSequenceInstance.getName()).ifPresent(seq -> {
-                // Process any other buffered messages that can now be released
-                boolean sequenceComplete = bufferedMessageService.processBufferedMessages(lockedSequenceInstance, seq);
+                // Process any other buffered messages that can now be released, seeing the state written above
+                boolean sequenceComplete = bufferedMessageService.processBufferedMessagesInCurrentTransaction(lockedSequenceInstance, seq);
                 // Set the sequence to complete if all messages have been processed
                 if (sequenceComplete) {
                     lockedSequenceInstance.close();
                 }
             });
-        });
+        })));
+
+    }
 
+    /**
+     * Recovers a release requested on the sequence instance whose release pass has not completed, e.g. because the
+     * node has been stopped before the release workers could run it.
+     */
+    public void handleRequestedRelease(SequenceInstance sequenceInstance) {
+        Optional<Sequence> sequence = inboxConfiguration.getSequenceByName(sequenceInstance.getName());
+        if (sequence.isEmpty()) {
+            log.warn("Unknown sequence {}, discarding requested release", sequenceInstance);
+            tx.runInNewTransaction(() -> sequenceInstanceRepository.clearReleaseRequested(sequenceInstance.getId()));
+            return;
+        }
+        log.info("Recovering requested release of sequence {}", sequenceInstance);
+        releaseBufferedMessagesInLockedTransaction(sequence.get(), sequenceInstance.getId(), isRecordingModeEnabled(), false);
     }
 
     @Timed(value = "jeap.messaging.sequential-inbox.handle-sequence-with-pending-action", percentiles = {0.5, 0.8, 0.95, 0.99})
     public void handleSequenceWithPendingAction(SequenceInstance sequenceInstance) {
-        tx.runInNewTransaction(() -> {
+        Sequence sequence = inboxConfiguration.getSequenceByName(sequenceInstance.getName()).orElse(null);
+        sequenceInstanceFactory.runLocked(sequenceInstance.getId(), () -> sequenceInstanceFactory.retryOnLockConflict(() -> tx.runInNewTransaction(() -> {
             if (SequenceInstancePendingAction.CLOSE.equals(sequenceInstance.getPendingAction())) {
                 log.info("Force close sequence {}", sequenceInstance);
-                SequenceInstance lockedSequenceInstance = sequenceInstanceFactory.getExistingSequenceInstanceAndLockForUpdate(sequenceInstance.getId());
+                SequenceInstance lockedSequenceInstance = sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, sequenceInstance.getId());
                 lockedSequenceInstance.close();
                 lockedSequenceInstance.setPendingAction(null);
             } else if (SequenceInstancePendingAction.CONSUME_ALL.equals(sequenceInstance.getPendingAction())) {
-                // Lock the sequence instance for update to avoid concurrent access to the inbox for the current context
-                SequenceInstance lockedSequenceInstance = sequenceInstanceFactory.getExistingSequenceInstanceAndLockForUpdate(sequenceInstance.getId());
+                // Lock the sequence instance to avoid concurrent access to the inbox for the current context
+                SequenceInstance lockedSequenceInstance = sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, sequenceInstance.getId());
                 inboxConfiguration.getSequenceByName(lockedSequenceInstance.getName()).ifPresent(seq -> {
                     // Process any buffered messages with forceProcessAll = true
-                    boolean sequenceComplete = bufferedMessageService.processBufferedMessages(lockedSequenceInstance, seq, true);
+                    boolean sequenceComplete = bufferedMessageService.processBufferedMessagesInCurrentTransaction(lockedSequenceInstance, seq, true);
 
                     // Set the sequence to complete if all messages have been processed
                     if (sequenceComplete) {
@@ -158,8 +774,18 @@ public class SequentialInboxService {
                 log.warn("Unknown pending action {} for sequence {}", sequenceInstance.getPendingAction(), sequenceInstance);
             }
 
-        });
+        })));
+
+    }
 
+    /**
+     * Records the sequence instance as owned by the consumer of the partition of the record if its sequence uses
+     * partition context locking, so that its state is kept in memory, see {@link PartitionOwnedSequenceInstances}.
+     */
+    private void ownIfPartitionLocked(Sequence sequence, ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, long sequenceInstanceId) {
+        if (sequence.getContextLock() == SequenceContextLockType.PARTITION) {
+            partitionOwnedSequenceInstances.own(new TopicPartition(consumerRecord.topic(), consumerRecord.partition()), sequenceInstanceId);
+        }
     }
 
     private String getContextId(AvroMessage avroMessage, SequencedMessageType sequencedMessageType) {
@@ -169,47 +795,72 @@ public class SequentialInboxService {
         return sequencedMessageType.extractContextId(avroMessage);
     }
 
+    /**
+     * @param inCurrentTransaction true if the message is handled in the transaction holding its idempotence claim, false
+     *                             if no transaction is open and the handler is invoked outside of any transaction
+     */
     @SuppressWarnings("java:S107")
     private void handleMessage(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, SequentialInboxMessageHandler messageHandler,
-                               SequencedMessageType sequencedMessageType, long sequenceInstanceId, Sequence sequence, String contextId, boolean recordModeIsEnabled, String qualifiedSequencedMessageTypeName) {
+                               SequencedMessageType sequencedMessageType, long sequenceInstanceId, Sequence sequence, String contextId, boolean recordModeIsEnabled, String qualifiedSequencedMessageTypeName,
+                               boolean inCurrentTransaction) {
         AvroMessage avroMessage = consumerRecord.value();
 
-        Optional<SequencedMessage> existingSequencedMessage = sequencedMessageService
-                .findByMessageTypeAndIdempotenceId(qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getIdempotenceId());
+        String idempotenceId = avroMessage.getIdentity().getIdempotenceId();
+        Optional<SequencedMessage> existingSequencedMessage = inCurrentTransaction ?
+                sequencedMessageService.findByMessageTypeAndIdempotenceIdInCurrentTransaction(qualifiedSequencedMessageTypeName, idempotenceId) :
+                sequencedMessageService.findByMessageTypeAndIdempotenceId(qualifiedSequencedMessageTypeName, idempotenceId);
         // Idempotence handling: Has the message already been successfully persisted or is it a new message?
         if (!isAlreadyProcessedOrWaiting(existingSequencedMessage)) {
 
             if (recordModeIsEnabled) {
                 log.info("Recording mode active, handling message {} immediately", avroMessage);
-                invokeMessageHandler(consumerRecord, messageHandler, existingSequencedMessage, sequenceInstanceId, qualifiedSequencedMessageTypeName);
+                invokeMessageHandler(consumerRecord, messageHandler, existingSequencedMessage, sequenceInstanceId, qualifiedSequencedMessageTypeName, false, inCurrentTransaction);
                 return;
             }
 
             // If the release condition is not satisfied, buffer the message and return
-            if (!sequencedMessageService.isReleaseConditionSatisfied(sequencedMessageType, sequenceInstanceId)) {
+            boolean releaseConditionSatisfied = inCurrentTransaction ?
+                    sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, sequenceInstanceId) :
+                    tx.callInNewTransaction(() ->
+                            sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, sequenceInstanceId));
+            if (!releaseConditionSatisfied) {
                 bufferMessage(consumerRecord, sequence, contextId, existingSequencedMessage, sequenceInstanceId, qualifiedSequencedMessageTypeName);
                 return;
             }
 
             // Release condition is satisfied, invoke the message handler
-            invokeMessageHandler(consumerRecord, messageHandler, existingSequencedMessage, sequenceInstanceId, qualifiedSequencedMessageTypeName);
+            invokeMessageHandler(consumerRecord, messageHandler, existingSequencedMessage, sequenceInstanceId, qualifiedSequencedMessageTypeName, false, inCurrentTransaction);
         } else {
-            log.info("Message {} (id={}) has already been processed with idempotence ID {}, skipping listener invocation", qualifiedSequencedMessageTypeName,
-                    avroMessage.getIdentity().getId(), avroMessage.getIdentity().getIdempotenceId());
+            logAlreadyProcessed(avroMessage, qualifiedSequencedMessageTypeName);
         }
     }
 
+    /**
+     * @param contextLocked        true if the current transaction holds the context lock of the sequence instance
+     * @param inCurrentTransaction true if the handler is invoked in the transaction holding the idempotence claim, which
+     *                             is rolled back if the handler fails
+     */
+    @SuppressWarnings("java:S107")
     private void invokeMessageHandler(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, SequentialInboxMessageHandler messageHandler,
-                                      Optional<SequencedMessage> existingSequencedMessage, long sequenceInstanceId, String qualifiedSequencedMessageTypeName) {
+                                      Optional<SequencedMessage> existingSequencedMessage, long sequenceInstanceId, String qualifiedSequencedMessageTypeName,
+                                      boolean contextLocked, boolean inCurrentTransaction) {
         AvroMessage avroMessage = consumerRecord.value();
         try {
             log.debug("Invoking message handler for message {} (id={})", qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getId());
             messageHandlerService.invokeMessageHandler(consumerRecord.key(), avroMessage, consumerRecord.topic(), messageHandler);
-            sequencedMessageService.storeSequencedMessage(qualifiedSequencedMessageTypeName, existingSequencedMessage, sequenceInstanceId, SequencedMessageState.PROCESSED, consumerRecord);
+            if (contextLocked) {
+                sequencedMessageService.storeSequencedMessageInCurrentTransaction(qualifiedSequencedMessageTypeName, existingSequencedMessage, sequenceInstanceId, SequencedMessageState.PROCESSED, consumerRecord);
+            } else {
+                sequencedMessageService.storeSequencedMessage(qualifiedSequencedMessageTypeName, existingSequencedMessage, sequenceInstanceId, SequencedMessageState.PROCESSED, consumerRecord);
+            }
         } catch (Exception ex) {
             // Exception is logged by the error service sender
             log.error("Error processing message {} (id={}), marking as failed", qualifiedSequencedMessageTypeName, avroMessage.getIdentity().getId());
-            sequencedMessageService.storeSequencedMessage(qualifiedSequencedMessageTypeName, existingSequencedMessage, sequenceInstanceId, SequencedMessageState.FAILED, consumerRecord);
+            if (inCurrentTransaction) {
+                // The transaction is rolled back, the message is marked as failed afterwards
+                throw new MessageHandlerFailedException(ex);
+            }
+            sequencedMessageService.storeFailedSequencedMessageInNewTransaction(qualifiedSequencedMessageTypeName, existingSequencedMessage, sequenceInstanceId, consumerRecord);
             throw ex; // Process record in error handler and send to the error handling service
         }
     }
@@ -223,4 +874,30 @@ public class SequentialInboxService {
         return existingSequencedMessage.isPresent() &&
                SequencedMessageState.waitingOrProcessed(existingSequencedMessage.get().getState());
     }
+
+    private record SequenceContext(Sequence sequence, String contextId) {
+    }
+
+    /**
+     * Signals a failing message handler to the transaction holding the idempotence claim, which is rolled back.
+     */
+    private static final class MessageHandlerFailedException extends RuntimeException {
+
+        private MessageHandlerFailedException(Exception cause) {
+            super(cause);
+        }
+
+        private RuntimeException unwrap() {
+            return getCause() instanceof RuntimeException runtimeException ? runtimeException : this;
+        }
+    }
+
+    private record SequencedRecord(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord,
+                                   SequencedMessageType sequencedMessageType,
+                                   String qualifiedName) {
+
+        IdempotenceClaim idempotenceClaim() {
+            return new IdempotenceClaim(qualifiedName, consumerRecord.value().getIdentity().getIdempotenceId());
+        }
+    }
 }
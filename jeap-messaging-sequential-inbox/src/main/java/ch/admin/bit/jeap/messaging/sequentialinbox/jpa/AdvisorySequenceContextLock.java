@@ -0,0 +1,32 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Takes a transaction-scoped advisory lock on the sequence instance ID instead of locking its row. Transactions
+ * updating the sequence instance without holding the lock take it shared.
+ */
+@Component
+@RequiredArgsConstructor
+class AdvisorySequenceContextLock implements SequenceContextLock {
+
+    private final SequenceInstanceRepository repository;
+
+    @Override
+    public SequenceContextLockType getType() {
+        return SequenceContextLockType.ADVISORY;
+    }
+
+    @Override
+    public SequenceInstance lock(long sequenceInstanceId, int idleLockTimeoutSeconds) {
+        return repository.getByIdAndLockAdvisory(sequenceInstanceId, idleLockTimeoutSeconds);
+    }
+
+    @Override
+    public void lockShared(long sequenceInstanceId) {
+        repository.lockAdvisoryShared(sequenceInstanceId);
+    }
+}
@@ -0,0 +1,22 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessage;
+
+import java.util.Optional;
+
+/**
+ * Result of claiming the idempotence ID of a message and saving the message in one write.
+ *
+ * @param claimCreated    true if the idempotence claim has been created, false if it existed already
+ * @param existingMessage The message stored before with the same message type and idempotence ID, e.g. a failed
+ *                        message whose claim has been released
+ */
+public record ClaimedMessage(boolean claimCreated, Optional<SequencedMessage> existingMessage) {
+
+    /**
+     * @return true if the message has been saved, i.e. the claim has been created and no message existed before
+     */
+    public boolean messageSaved() {
+        return claimCreated && existingMessage.isEmpty();
+    }
+}
@@ -0,0 +1,7 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+/**
+ * Key of an idempotence claim in the table sequential_inbox_idempotence.
+ */
+public record IdempotenceClaim(String messageType, String idempotenceId) {
+}
@@ -0,0 +1,256 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.*;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the messages and idempotence claims in memory, to measure the sequencing engine without the latency of the
+ * database in benchmarks and to run fast tests. Not intended for production use: nothing is persisted, and messages
+ * are only removed by {@link #clear()}.
+ * <p>
+ * Claims are created atomically per message type and idempotence ID, as with the unique key of the database stores.
+ * Writes are visible to other threads immediately, and are undone if the transaction they have been made in is
+ * rolled back. Sequence instances and their context locks are still held in the database.
+ */
+@Component
+@ConditionalOnProperty(name = SequentialInboxStore.STORE_PROPERTY, havingValue = "in-memory")
+@Slf4j
+public class InMemorySequentialInboxStore implements SequentialInboxStore {
+
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, StoredMessage> messages = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Long>> messageIdsBySequenceInstanceId = new ConcurrentHashMap<>();
+    private final Map<IdempotenceClaim, Long> messageIdsByIdempotenceId = new ConcurrentHashMap<>();
+    private final Map<Long, StoredBufferedMessage> bufferedMessagesBySequencedMessageId = new ConcurrentHashMap<>();
+    private final Map<IdempotenceClaim, Long> claims = new ConcurrentHashMap<>();
+
+    @Override
+    public void saveMessage(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage) {
+        long sequencedMessageId = ids.incrementAndGet();
+        IdempotenceClaim idempotenceKey = new IdempotenceClaim(sequencedMessage.getMessageType(), sequencedMessage.getIdempotenceId());
+        messages.put(sequencedMessageId, StoredMessage.of(sequencedMessageId, sequencedMessage));
+        messageIdsBySequenceInstanceId.computeIfAbsent(sequencedMessage.getSequenceInstanceId(), _ -> ConcurrentHashMap.newKeySet())
+                .add(sequencedMessageId);
+        messageIdsByIdempotenceId.putIfAbsent(idempotenceKey, sequencedMessageId);
+        sequencedMessage.setId(sequencedMessageId);
+        if (bufferedMessage != null) {
+            bufferedMessage.setId(ids.incrementAndGet());
+            bufferedMessage.setSequencedMessageId(sequencedMessageId);
+            bufferedMessage.getHeaders().forEach(header -> header.setId(ids.incrementAndGet()));
+            bufferedMessagesBySequencedMessageId.put(sequencedMessageId, StoredBufferedMessage.of(bufferedMessage));
+        }
+
+        undoOnRollback(() -> {
+            bufferedMessagesBySequencedMessageId.remove(sequencedMessageId);
+            messageIdsByIdempotenceId.remove(idempotenceKey, sequencedMessageId);
+            messageIdsBySequenceInstanceId.getOrDefault(sequencedMessage.getSequenceInstanceId(), Set.of()).remove(sequencedMessageId);
+            messages.remove(sequencedMessageId);
+        });
+    }
+
+    @Override
+    public Optional<SequencedMessage> findMessageByMessageTypeAndIdempotenceId(String messageType, String idempotenceId) {
+        return Optional.ofNullable(messageIdsByIdempotenceId.get(new IdempotenceClaim(messageType, idempotenceId)))
+                .map(messages::get)
+                .map(StoredMessage::toSequencedMessage);
+    }
+
+    @Override
+    public List<SequencedMessage> findMessagesBySequenceInstanceIdAndStates(long sequenceInstanceId, Set<SequencedMessageState> states) {
+        return messageIdsBySequenceInstanceId.getOrDefault(sequenceInstanceId, Set.of()).stream()
+                .map(messages::get)
+                .filter(message -> message != null && states.contains(message.state()))
+                .sorted(Comparator.comparingLong(StoredMessage::id))
+                .map(StoredMessage::toSequencedMessage)
+                .toList();
+    }
+
+    @Override
+    public Map<Long, BufferedMessage> findBufferedMessagesBySequencedMessageIds(Collection<Long> sequencedMessageIds) {
+        Map<Long, BufferedMessage> bufferedMessages = new HashMap<>();
+        for (Long sequencedMessageId : sequencedMessageIds) {
+            StoredBufferedMessage bufferedMessage = bufferedMessagesBySequencedMessageId.get(sequencedMessageId);
+            if (bufferedMessage != null) {
+                bufferedMessages.put(sequencedMessageId, bufferedMessage.toBufferedMessage());
+            }
+        }
+        return bufferedMessages;
+    }
+
+    @Override
+    public void updateMessageState(long sequencedMessageId, SequencedMessageState state) {
+        StoredMessage updated = messages.computeIfPresent(sequencedMessageId, (_, message) -> message.withState(state));
+        if (updated != null) {
+            undoOnRollback(() -> messages.computeIfPresent(sequencedMessageId, (_, message) ->
+                    message == updated ? message.withState(null) : message));
+        }
+    }
+
+    @Override
+    public void updateMessageStates(List<SequencedMessage> processedMessages, List<SequencedMessage> failedMessages) {
+        processedMessages.forEach(message -> updateMessageState(message.getId(), SequencedMessageState.PROCESSED));
+        for (SequencedMessage failedMessage : failedMessages) {
+            updateMessageState(failedMessage.getId(), SequencedMessageState.FAILED);
+            if (!deleteIdempotenceClaim(failedMessage.getMessageType(), failedMessage.getIdempotenceId())) {
+                log.warn("No idempotence claim found while marking sequenced message {} of type {} with idempotence ID {} as FAILED.",
+                        failedMessage.getId(), failedMessage.getMessageType(), failedMessage.getIdempotenceId());
+            }
+        }
+    }
+
+    @Override
+    public boolean createIdempotenceClaim(String messageType, String idempotenceId, long sequenceInstanceId) {
+        IdempotenceClaim claim = new IdempotenceClaim(messageType, idempotenceId);
+        if (claims.putIfAbsent(claim, sequenceInstanceId) != null) {
+            return false;
+        }
+        undoOnRollback(() -> claims.remove(claim, sequenceInstanceId));
+        return true;
+    }
+
+    @Override
+    public Set<IdempotenceClaim> createIdempotenceClaims(Collection<IdempotenceClaim> claimsToCreate, long sequenceInstanceId) {
+        Set<IdempotenceClaim> createdClaims = new HashSet<>();
+        for (IdempotenceClaim claim : claimsToCreate) {
+            if (createIdempotenceClaim(claim.messageType(), claim.idempotenceId(), sequenceInstanceId)) {
+                createdClaims.add(claim);
+            }
+        }
+        return createdClaims;
+    }
+
+    /**
+     * Claims kept in memory do not outlive a failed consumer, so there is no claim in progress to take over, and the
+     * claims are created as completed.
+     */
+    @Override
+    public Set<IdempotenceClaim> createInProgressIdempotenceClaims(Collection<IdempotenceClaim> claimsToCreate, long sequenceInstanceId, Duration leaseDuration) {
+        return createIdempotenceClaims(claimsToCreate, sequenceInstanceId);
+    }
+
+    @Override
+    public void completeIdempotenceClaims(Collection<IdempotenceClaim> claimsToComplete) {
+        // Claims are created as completed
+    }
+
+    @Override
+    public boolean deleteIdempotenceClaim(String messageType, String idempotenceId) {
+        IdempotenceClaim claim = new IdempotenceClaim(messageType, idempotenceId);
+        Long sequenceInstanceId = claims.remove(claim);
+        if (sequenceInstanceId == null) {
+            return false;
+        }
+        undoOnRollback(() -> claims.putIfAbsent(claim, sequenceInstanceId));
+        return true;
+    }
+
+    /**
+     * Removes all messages and idempotence claims, e.g. between benchmark runs.
+     */
+    public void clear() {
+        messages.clear();
+        messageIdsBySequenceInstanceId.clear();
+        messageIdsByIdempotenceId.clear();
+        bufferedMessagesBySequencedMessageId.clear();
+        claims.clear();
+    }
+
+    private static void undoOnRollback(Runnable undo) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_ROLLED_BACK) {
+                    undo.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param previous The message before its state has been updated, to restore it on rollback
+     */
+    private record StoredMessage(long id, long sequenceInstanceId, String messageType, UUID sequencedMessageId,
+                                 String idempotenceId, String clusterName, String topic, SequencedMessageState state,
+                                 SequentialInboxTraceContext traceContext, ZonedDateTime createdAt,
+                                 ZonedDateTime stateChangedAt, StoredMessage previous) {
+
+        static StoredMessage of(long id, SequencedMessage sequencedMessage) {
+            return new StoredMessage(id, sequencedMessage.getSequenceInstanceId(), sequencedMessage.getMessageType(),
+                    sequencedMessage.getSequencedMessageId(), sequencedMessage.getIdempotenceId(),
+                    sequencedMessage.getClusterName(), sequencedMessage.getTopic(), sequencedMessage.getState(),
+                    sequencedMessage.getTraceContext(), sequencedMessage.getCreatedAt(), sequencedMessage.getStateChangedAt(), null);
+        }
+
+        /**
+         * @param state The new state, or null to restore the message before its last state update
+         */
+        StoredMessage withState(SequencedMessageState state) {
+            if (state == null) {
+                return previous;
+            }
+            return new StoredMessage(id, sequenceInstanceId, messageType, sequencedMessageId, idempotenceId,
+                    clusterName, topic, state, traceContext, createdAt, ZonedDateTime.now(), this);
+        }
+
+        SequencedMessage toSequencedMessage() {
+            return SequencedMessage.restore()
+                    .id(id)
+                    .sequenceInstanceId(sequenceInstanceId)
+                    .messageType(messageType)
+                    .sequencedMessageId(sequencedMessageId)
+                    .idempotenceId(idempotenceId)
+                    .clusterName(clusterName)
+                    .topic(topic)
+                    .state(state)
+                    .traceContext(traceContext)
+                    .createdAt(createdAt)
+                    .stateChangedAt(stateChangedAt)
+                    .build();
+        }
+    }
+
+    private record StoredBufferedMessage(long id, long sequenceInstanceId, long sequencedMessageId, byte[] key,
+                                         byte[] value, List<MessageHeader> headers) {
+
+        static StoredBufferedMessage of(BufferedMessage bufferedMessage) {
+            return new StoredBufferedMessage(bufferedMessage.getId(), bufferedMessage.getSequenceInstanceId(),
+                    bufferedMessage.getSequencedMessageId(), bufferedMessage.getKey(), bufferedMessage.getValue(),
+                    List.copyOf(bufferedMessage.getHeaders()));
+        }
+
+        BufferedMessage toBufferedMessage() {
+            BufferedMessage bufferedMessage = BufferedMessage.builder()
+                    .sequenceInstanceId(sequenceInstanceId)
+                    .key(key)
+                    .value(value)
+                    .build();
+            bufferedMessage.setId(id);
+            bufferedMessage.setSequencedMessageId(sequencedMessageId);
+            bufferedMessage.setHeaders(headers.stream()
+                    .map(header -> {
+                        MessageHeader copy = MessageHeader.builder()
+                                .headerName(header.getHeaderName())
+                                .headerValue(header.getHeaderValue())
+                                .bufferedMessage(bufferedMessage)
+                                .build();
+                        copy.setId(header.getId());
+                        return copy;
+                    })
+                    .toList());
+            return bufferedMessage;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessageState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Statements writing several rows at once, shared by the database stores.
+ */
+@Slf4j
+final class JdbcBatchStatements {
+
+    private JdbcBatchStatements() {
+    }
+
+    static Set<IdempotenceClaim> createIdempotenceClaims(JdbcTemplate jdbcTemplate, Collection<IdempotenceClaim> claims, long sequenceInstanceId) {
+        if (claims.isEmpty()) {
+            return Set.of();
+        }
+        String[] messageTypes = claims.stream().map(IdempotenceClaim::messageType).toArray(String[]::new);
+        String[] idempotenceIds = claims.stream().map(IdempotenceClaim::idempotenceId).toArray(String[]::new);
+        List<IdempotenceClaim> createdClaims = jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement("""
+                    INSERT INTO sequential_inbox_idempotence
+                        (message_type, idempotence_id, sequence_instance_id, created_at)
+                    SELECT claim.message_type, claim.idempotence_id, ?, NOW()
+                    FROM unnest(?::text[], ?::text[]) AS claim(message_type, idempotence_id)
+                    ON CONFLICT (message_type, idempotence_id) DO NOTHING
+                    RETURNING message_type, idempotence_id
+                    """);
+            ps.setLong(1, sequenceInstanceId);
+            ps.setArray(2, con.createArrayOf("text", messageTypes));
+            ps.setArray(3, con.createArrayOf("text", idempotenceIds));
+            return ps;
+        }, (rs, rowNum) -> new IdempotenceClaim(rs.getString(1), rs.getString(2)));
+        return new HashSet<>(createdClaims);
+    }
+
+    static Set<IdempotenceClaim> createInProgressIdempotenceClaims(JdbcTemplate jdbcTemplate, Collection<IdempotenceClaim> claims,
+                                                                   long sequenceInstanceId, Duration leaseDuration) {
+        if (claims.isEmpty()) {
+            return Set.of();
+        }
+        String[] messageTypes = claims.stream().map(IdempotenceClaim::messageType).toArray(String[]::new);
+        String[] idempotenceIds = claims.stream().map(IdempotenceClaim::idempotenceId).toArray(String[]::new);
+        List<IdempotenceClaim> createdClaims = jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement("""
+                    INSERT INTO sequential_inbox_idempotence
+                        (message_type, idempotence_id, sequence_instance_id, created_at, state, lease_expires_at)
+                    SELECT claim.message_type, claim.idempotence_id, ?, NOW(), 'IN_PROGRESS', NOW() + ? * INTERVAL '1 millisecond'
+                    FROM unnest(?::text[], ?::text[]) AS claim(message_type, idempotence_id)
+                    ON CONFLICT (message_type, idempotence_id) DO UPDATE
+                        SET lease_expires_at = EXCLUDED.lease_expires_at
+                        WHERE sequential_inbox_idempotence.state = 'IN_PROGRESS'
+                          AND sequential_inbox_idempotence.lease_expires_at < NOW()
+                    RETURNING message_type, idempotence_id
+                    """);
+            ps.setLong(1, sequenceInstanceId);
+            ps.setLong(2, leaseDuration.toMillis());
+            ps.setArray(3, con.createArrayOf("text", messageTypes));
+            ps.setArray(4, con.createArrayOf("text", idempotenceIds));
+            return ps;
+        }, (rs, rowNum) -> new IdempotenceClaim(rs.getString(1), rs.getString(2)));
+        return new HashSet<>(createdClaims);
+    }
+
+    static void completeIdempotenceClaims(JdbcTemplate jdbcTemplate, Collection<IdempotenceClaim> claims) {
+        if (claims.isEmpty()) {
+            return;
+        }
+        String[] messageTypes = claims.stream().map(IdempotenceClaim::messageType).toArray(String[]::new);
+        String[] idempotenceIds = claims.stream().map(IdempotenceClaim::idempotenceId).toArray(String[]::new);
+        jdbcTemplate.update(con -> {
+            PreparedStatement ps = con.prepareStatement("""
+                    UPDATE sequential_inbox_idempotence
+                    SET state = 'DONE', lease_expires_at = NULL
+                    FROM unnest(?::text[], ?::text[]) AS claim(message_type, idempotence_id)
+                    WHERE sequential_inbox_idempotence.message_type = claim.message_type
+                      AND sequential_inbox_idempotence.idempotence_id = claim.idempotence_id
+                    """);
+            ps.setArray(1, con.createArrayOf("text", messageTypes));
+            ps.setArray(2, con.createArrayOf("text", idempotenceIds));
+            return ps;
+        });
+    }
+
+    static void updateMessageStates(JdbcTemplate jdbcTemplate, List<SequencedMessage> processedMessages, List<SequencedMessage> failedMessages) {
+        batchUpdateState(jdbcTemplate, processedMessages, SequencedMessageState.PROCESSED);
+        batchUpdateState(jdbcTemplate, failedMessages, SequencedMessageState.FAILED);
+        if (failedMessages.isEmpty()) {
+            return;
+        }
+        int[][] deletedClaims = jdbcTemplate.batchUpdate("""
+                        DELETE FROM sequential_inbox_idempotence
+                        WHERE message_type = ?
+                          AND idempotence_id = ?
+                        """, failedMessages, failedMessages.size(), (ps, sequencedMessage) -> {
+                    ps.setString(1, sequencedMessage.getMessageType());
+                    ps.setString(2, sequencedMessage.getIdempotenceId());
+                });
+        for (int i = 0; i < failedMessages.size(); i++) {
+            if (deletedClaims[0][i] == 0) {
+                logMissingIdempotenceClaim(failedMessages.get(i));
+            }
+        }
+    }
+
+    private static void batchUpdateState(JdbcTemplate jdbcTemplate, List<SequencedMessage> sequencedMessages, SequencedMessageState state) {
+        if (sequencedMessages.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("UPDATE sequenced_message SET state_id = ?, state_changed_at = NOW() WHERE id = ?",
+                sequencedMessages, sequencedMessages.size(), (ps, sequencedMessage) -> {
+                    ps.setShort(1, state.getCode());
+                    ps.setLong(2, sequencedMessage.getId());
+                });
+    }
+
+    private static void logMissingIdempotenceClaim(SequencedMessage sequencedMessage) {
+        log.warn("No idempotence claim found while marking sequenced message {} of type {} with idempotence ID {} as FAILED. " +
+                 "The message remains retryable, but the missing claim indicates previously modified or inconsistent Inbox state.",
+                sequencedMessage.getId(), sequencedMessage.getMessageType(), sequencedMessage.getIdempotenceId());
+    }
+}
@@ -0,0 +1,351 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.*;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Component;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * Stores the messages with plain JDBC statements. Rows are neither tracked by nor hydrated into the persistence
+ * context, the returned messages are detached entities. IDs are drawn from the same database sequences as the entity
+ * ID generators, using the value returned by {@code nextval} which is never handed out to another allocation.
+ */
+@Component
+@ConditionalOnProperty(name = SequentialInboxStore.STORE_PROPERTY, havingValue = "jdbc")
+@RequiredArgsConstructor
+class JdbcSequentialInboxStore implements SequentialInboxStore {
+
+    private static final String SEQUENCED_MESSAGE_COLUMNS = """
+            id, message_type_id, cluster_name_id, topic_id, sequenced_message_id, idempotence_id, state_id, trace_context,
+            created_at, state_changed_at, sequence_instance_id, pending_action""";
+
+    private static final ResultSetExtractor<Long> SINGLE_ID = rs -> {
+        rs.next();
+        return rs.getLong(1);
+    };
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MessageDictionary messageDictionary;
+
+    @Override
+    public void saveMessage(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage) {
+        Long sequencedMessageId = jdbcTemplate.query("""
+                INSERT INTO sequenced_message
+                    (id, message_type_id, cluster_name_id, topic_id, sequenced_message_id, idempotence_id, state_id,
+                     trace_context, created_at, sequence_instance_id)
+                VALUES (nextval('sequenced_message_sequence'), ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                RETURNING id
+                """, ps -> setSequencedMessageParameters(ps, 1, sequencedMessage), SINGLE_ID);
+        sequencedMessage.setId(sequencedMessageId);
+        if (bufferedMessage == null) {
+            return;
+        }
+
+        bufferedMessage.setSequencedMessageId(sequencedMessageId);
+        Long bufferedMessageId = jdbcTemplate.query("""
+                INSERT INTO buffered_message
+                    (id, sequence_instance_id, sequenced_message_id, message_key, message_value)
+                VALUES (nextval('buffered_message_sequence'), ?, ?, ?, ?)
+                RETURNING id
+                """, ps -> {
+            ps.setLong(1, bufferedMessage.getSequenceInstanceId());
+            ps.setLong(2, sequencedMessageId);
+            ps.setBytes(3, bufferedMessage.getKey());
+            ps.setBytes(4, bufferedMessage.getValue());
+        }, SINGLE_ID);
+        bufferedMessage.setId(bufferedMessageId);
+
+        List<MessageHeader> headers = bufferedMessage.getHeaders();
+        if (!headers.isEmpty()) {
+            jdbcTemplate.batchUpdate("""
+                    INSERT INTO message_header (id, buffered_message_id, header_name, header_value)
+                    VALUES (nextval('message_header_sequence'), ?, ?, ?)
+                    """, headers, headers.size(), (ps, header) -> {
+                ps.setLong(1, bufferedMessageId);
+                ps.setString(2, header.getHeaderName());
+                ps.setBytes(3, header.getHeaderValue());
+            });
+        }
+    }
+
+    /**
+     * Claims the idempotence ID and inserts the sequenced message, its buffered message and headers with a single
+     * data-modifying statement. All parts of the statement see the same snapshot: the lookup of an existing message
+     * does not see the message inserted by the statement itself. The message rows are only inserted if the claim has
+     * been created and no message exists yet.
+     */
+    @Override
+    public ClaimedMessage claimAndSaveMessage(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage) {
+        List<MessageHeader> headers = bufferedMessage == null ? List.of() : bufferedMessage.getHeaders();
+        String[] headerNames = headers.stream().map(MessageHeader::getHeaderName).toArray(String[]::new);
+        byte[][] headerValues = headers.stream().map(MessageHeader::getHeaderValue).toArray(byte[][]::new);
+        short messageTypeId = messageDictionary.getId(sequencedMessage.getMessageType());
+        return jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement("""
+                    WITH claim AS (
+                        INSERT INTO sequential_inbox_idempotence
+                            (message_type, idempotence_id, sequence_instance_id, created_at)
+                        VALUES (?, ?, ?, NOW())
+                        ON CONFLICT (message_type, idempotence_id) DO NOTHING
+                        RETURNING message_type
+                    ), existing_message AS (
+                        SELECT %s
+                        FROM sequenced_message
+                        WHERE message_type_id = ? AND idempotence_id = ?
+                    ), inserted_message AS (
+                        INSERT INTO sequenced_message
+                            (id, message_type_id, cluster_name_id, topic_id, sequenced_message_id, idempotence_id, state_id,
+                             trace_context, created_at, sequence_instance_id)
+                        SELECT nextval('sequenced_message_sequence'), ?, ?, ?, ?, ?, ?, ?, ?, ?
+                        FROM claim
+                        WHERE NOT EXISTS (SELECT 1 FROM existing_message)
+                        RETURNING id
+                    ), inserted_buffered_message AS (
+                        INSERT INTO buffered_message
+                            (id, sequence_instance_id, sequenced_message_id, message_key, message_value)
+                        SELECT nextval('buffered_message_sequence'), ?, inserted_message.id, ?, ?
+                        FROM inserted_message
+                        WHERE ?
+                        RETURNING id
+                    ), new_header AS MATERIALIZED (
+                        SELECT nextval('message_header_sequence') AS id, inserted_buffered_message.id AS buffered_message_id,
+                               header.name, header.value, header.position
+                        FROM inserted_buffered_message,
+                             unnest(?::text[], ?::bytea[]) WITH ORDINALITY AS header(name, value, position)
+                    ), inserted_header AS (
+                        INSERT INTO message_header (id, buffered_message_id, header_name, header_value)
+                        SELECT id, buffered_message_id, name, value
+                        FROM new_header
+                    )
+                    SELECT EXISTS (SELECT 1 FROM claim) AS claim_created,
+                           (SELECT id FROM inserted_message) AS inserted_message_id,
+                           (SELECT id FROM inserted_buffered_message) AS inserted_buffered_message_id,
+                           (SELECT array_agg(id ORDER BY position) FROM new_header) AS inserted_header_ids,
+                           existing_message.*
+                    FROM (SELECT 1) AS result
+                    LEFT JOIN existing_message ON true
+                    """.formatted(SEQUENCED_MESSAGE_COLUMNS));
+            ps.setString(1, sequencedMessage.getMessageType());
+            ps.setString(2, sequencedMessage.getIdempotenceId());
+            ps.setLong(3, sequencedMessage.getSequenceInstanceId());
+            ps.setShort(4, messageTypeId);
+            ps.setString(5, sequencedMessage.getIdempotenceId());
+            setSequencedMessageParameters(ps, 6, sequencedMessage);
+            ps.setLong(15, sequencedMessage.getSequenceInstanceId());
+            ps.setBytes(16, bufferedMessage == null ? null : bufferedMessage.getKey());
+            ps.setBytes(17, bufferedMessage == null ? null : bufferedMessage.getValue());
+            ps.setBoolean(18, bufferedMessage != null);
+            ps.setArray(19, con.createArrayOf("text", headerNames));
+            ps.setArray(20, con.createArrayOf("bytea", headerValues));
+            return ps;
+        }, rs -> {
+            rs.next();
+            boolean claimCreated = rs.getBoolean("claim_created");
+            Optional<SequencedMessage> existingMessage = rs.getObject("id") == null ?
+                    Optional.empty() : Optional.of(mapSequencedMessage(rs, 0));
+            Long insertedMessageId = rs.getObject("inserted_message_id", Long.class);
+            if (insertedMessageId != null) {
+                assignInsertedIds(bufferedMessage, sequencedMessage, insertedMessageId, rs);
+            }
+            return new ClaimedMessage(claimCreated, existingMessage);
+        });
+    }
+
+    private static void assignInsertedIds(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage,
+                                          long insertedMessageId, ResultSet rs) throws SQLException {
+        sequencedMessage.setId(insertedMessageId);
+        if (bufferedMessage == null) {
+            return;
+        }
+        bufferedMessage.setId(rs.getLong("inserted_buffered_message_id"));
+        bufferedMessage.setSequencedMessageId(insertedMessageId);
+        Array headerIds = rs.getArray("inserted_header_ids");
+        if (headerIds == null) {
+            return;
+        }
+        // The IDs are ordered by the position of the header in the inserted arrays, headers may share a name
+        Long[] ids = (Long[]) headerIds.getArray();
+        List<MessageHeader> headers = bufferedMessage.getHeaders();
+        for (int i = 0; i < headers.size(); i++) {
+            headers.get(i).setId(ids[i]);
+        }
+    }
+
+    /**
+     * Sets the 9 parameters of the sequenced message columns inserted by {@link #saveMessage}, starting at the given
+     * index.
+     */
+    private void setSequencedMessageParameters(PreparedStatement ps, int index, SequencedMessage sequencedMessage) throws SQLException {
+        ps.setShort(index, messageDictionary.getId(sequencedMessage.getMessageType()));
+        ps.setShort(index + 1, messageDictionary.getId(sequencedMessage.getClusterName()));
+        ps.setShort(index + 2, messageDictionary.getId(sequencedMessage.getTopic()));
+        ps.setObject(index + 3, sequencedMessage.getSequencedMessageId());
+        ps.setString(index + 4, sequencedMessage.getIdempotenceId());
+        ps.setShort(index + 5, sequencedMessage.getState().getCode());
+        ps.setBytes(index + 6, SequentialInboxTraceContextConverter.encode(sequencedMessage.getTraceContext()));
+        ps.setObject(index + 7, sequencedMessage.getCreatedAt().toOffsetDateTime());
+        ps.setLong(index + 8, sequencedMessage.getSequenceInstanceId());
+    }
+
+    private SequencedMessage mapSequencedMessage(ResultSet rs, int rowNum) throws SQLException {
+        return SequencedMessage.restore()
+                .id(rs.getLong("id"))
+                .messageType(messageDictionary.getValue(rs.getShort("message_type_id")))
+                .clusterName(messageDictionary.getValue(rs.getShort("cluster_name_id")))
+                .topic(messageDictionary.getValue(rs.getShort("topic_id")))
+                .sequencedMessageId(rs.getObject("sequenced_message_id", UUID.class))
+                .idempotenceId(rs.getString("idempotence_id"))
+                .state(SequencedMessageState.fromCode(rs.getShort("state_id")))
+                .traceContext(SequentialInboxTraceContextConverter.decode(rs.getBytes("trace_context")))
+                .createdAt(zonedDateTime(rs, "created_at"))
+                .stateChangedAt(zonedDateTime(rs, "state_changed_at"))
+                .sequenceInstanceId(rs.getLong("sequence_instance_id"))
+                .pendingAction(pendingAction(rs.getString("pending_action")))
+                .build();
+    }
+
+    @Override
+    public Optional<SequencedMessage> findMessageByMessageTypeAndIdempotenceId(String messageType, String idempotenceId) {
+        Optional<Short> messageTypeId = messageDictionary.findId(messageType);
+        if (messageTypeId.isEmpty()) {
+            // An unknown message type is not added to the dictionary, no message of the type has been stored
+            return Optional.empty();
+        }
+        List<SequencedMessage> sequencedMessages = jdbcTemplate.query(
+                "SELECT " + SEQUENCED_MESSAGE_COLUMNS + " FROM sequenced_message WHERE message_type_id = ? AND idempotence_id = ?",
+                this::mapSequencedMessage, messageTypeId.get(), idempotenceId);
+        return Optional.ofNullable(DataAccessUtils.singleResult(sequencedMessages));
+    }
+
+    @Override
+    public List<SequencedMessage> findMessagesBySequenceInstanceIdAndStates(long sequenceInstanceId, Set<SequencedMessageState> states) {
+        Short[] stateCodes = states.stream().map(SequencedMessageState::getCode).toArray(Short[]::new);
+        return jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(
+                    "SELECT " + SEQUENCED_MESSAGE_COLUMNS + " FROM sequenced_message WHERE sequence_instance_id = ? AND state_id = ANY (?)");
+            ps.setLong(1, sequenceInstanceId);
+            ps.setArray(2, con.createArrayOf("smallint", stateCodes));
+            return ps;
+        }, this::mapSequencedMessage);
+    }
+
+    @Override
+    public Map<Long, BufferedMessage> findBufferedMessagesBySequencedMessageIds(Collection<Long> sequencedMessageIds) {
+        if (sequencedMessageIds.isEmpty()) {
+            return Map.of();
+        }
+        Long[] ids = sequencedMessageIds.toArray(Long[]::new);
+        Map<Long, BufferedMessage> bufferedMessages = new HashMap<>();
+        Map<Long, List<MessageHeader>> headersBySequencedMessageId = new HashMap<>();
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement("""
+                    SELECT bm.id, bm.sequence_instance_id, bm.sequenced_message_id, bm.message_key, bm.message_value,
+                           mh.id AS header_id, mh.header_name, mh.header_value
+                    FROM buffered_message bm
+                    LEFT JOIN message_header mh ON mh.buffered_message_id = bm.id
+                    WHERE bm.sequenced_message_id = ANY (?)
+                    """);
+            ps.setArray(1, con.createArrayOf("bigint", ids));
+            return ps;
+        }, rs -> {
+            long sequencedMessageId = rs.getLong("sequenced_message_id");
+            BufferedMessage bufferedMessage = bufferedMessages.computeIfAbsent(sequencedMessageId, _ -> restoreBufferedMessage(rs));
+            long headerId = rs.getLong("header_id");
+            if (!rs.wasNull()) {
+                MessageHeader header = MessageHeader.builder()
+                        .headerName(rs.getString("header_name"))
+                        .headerValue(rs.getBytes("header_value"))
+                        .bufferedMessage(bufferedMessage)
+                        .build();
+                header.setId(headerId);
+                headersBySequencedMessageId.computeIfAbsent(sequencedMessageId, _ -> new ArrayList<>()).add(header);
+            }
+        });
+        headersBySequencedMessageId.forEach((sequencedMessageId, headers) ->
+                bufferedMessages.get(sequencedMessageId).setHeaders(headers));
+        return bufferedMessages;
+    }
+
+    private static BufferedMessage restoreBufferedMessage(ResultSet rs) {
+        try {
+            BufferedMessage bufferedMessage = BufferedMessage.builder()
+                    .sequenceInstanceId(rs.getLong("sequence_instance_id"))
+                    .key(rs.getBytes("message_key"))
+                    .value(rs.getBytes("message_value"))
+                    .build();
+            bufferedMessage.setId(rs.getLong("id"));
+            bufferedMessage.setSequencedMessageId(rs.getLong("sequenced_message_id"));
+            return bufferedMessage;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read buffered message", e);
+        }
+    }
+
+    @Override
+    public void updateMessageState(long sequencedMessageId, SequencedMessageState state) {
+        jdbcTemplate.update("UPDATE sequenced_message SET state_id = ?, state_changed_at = NOW() WHERE id = ?",
+                state.getCode(), sequencedMessageId);
+    }
+
+    @Override
+    public void updateMessageStates(List<SequencedMessage> processedMessages, List<SequencedMessage> failedMessages) {
+        JdbcBatchStatements.updateMessageStates(jdbcTemplate, processedMessages, failedMessages);
+    }
+
+    @Override
+    public Set<IdempotenceClaim> createIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId) {
+        return JdbcBatchStatements.createIdempotenceClaims(jdbcTemplate, claims, sequenceInstanceId);
+    }
+
+    @Override
+    public Set<IdempotenceClaim> createInProgressIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId, Duration leaseDuration) {
+        return JdbcBatchStatements.createInProgressIdempotenceClaims(jdbcTemplate, claims, sequenceInstanceId, leaseDuration);
+    }
+
+    @Override
+    public void completeIdempotenceClaims(Collection<IdempotenceClaim> claims) {
+        JdbcBatchStatements.completeIdempotenceClaims(jdbcTemplate, claims);
+    }
+
+    @Override
+    public boolean createIdempotenceClaim(String messageType, String idempotenceId, long sequenceInstanceId) {
+        int insertedRows = jdbcTemplate.update("""
+                INSERT INTO sequential_inbox_idempotence
+                    (message_type, idempotence_id, sequence_instance_id, created_at)
+                VALUES (?, ?, ?, NOW())
+                ON CONFLICT (message_type, idempotence_id) DO NOTHING
+                """, messageType, idempotenceId, sequenceInstanceId);
+        return insertedRows == 1;
+    }
+
+    @Override
+    public boolean deleteIdempotenceClaim(String messageType, String idempotenceId) {
+        int deletedClaims = jdbcTemplate.update("""
+                DELETE FROM sequential_inbox_idempotence
+                WHERE message_type = ?
+                  AND idempotence_id = ?
+                """, messageType, idempotenceId);
+        return deletedClaims > 0;
+    }
+
+    private static ZonedDateTime zonedDateTime(ResultSet rs, String column) throws SQLException {
+        OffsetDateTime value = rs.getObject(column, OffsetDateTime.class);
+        return value == null ? null : value.toZonedDateTime();
+    }
+
+    private static SequencedMessagePendingAction pendingAction(String pendingAction) {
+        return pendingAction == null ? null : SequencedMessagePendingAction.valueOf(pendingAction);
+    }
+}
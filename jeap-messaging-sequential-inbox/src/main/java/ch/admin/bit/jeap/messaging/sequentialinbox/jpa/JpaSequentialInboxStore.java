@@ -0,0 +1,116 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.BufferedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessageState;
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Function;
+
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Stores the messages as entities with Spring Data JPA repositories. Statements writing several rows at once are run
+ * as JDBC batches.
+ */
+@Component
+@ConditionalOnProperty(name = SequentialInboxStore.STORE_PROPERTY, havingValue = "jpa", matchIfMissing = true)
+@RequiredArgsConstructor
+class JpaSequentialInboxStore implements SequentialInboxStore {
+
+    private final SpringDataJpaBufferedMessageRepository bufferedMessageRepository;
+    private final SpringDataJpaSequencedMessageRepository sequencedMessageRepository;
+    private final EntityManager entityManager;
+    private final JdbcTemplate jdbcTemplate;
+    private final MessageDictionary messageDictionary;
+
+    @Override
+    public void saveMessage(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage) {
+        SequencedMessage persistentSequencedMessage = sequencedMessageRepository.save(sequencedMessage);
+        if (bufferedMessage != null) {
+            bufferedMessage.setSequencedMessageId(persistentSequencedMessage.getId());
+            bufferedMessageRepository.save(bufferedMessage);
+        }
+        entityManager.flush();
+    }
+
+    @Override
+    public Optional<SequencedMessage> findMessageByMessageTypeAndIdempotenceId(String messageType, String idempotenceId) {
+        // An unknown message type is not added to the dictionary, no message of the type has been stored
+        return messageDictionary.findId(messageType)
+                .flatMap(messageTypeId -> sequencedMessageRepository.findByMessageTypeIdAndIdempotenceId(messageTypeId, idempotenceId));
+    }
+
+    @Override
+    public List<SequencedMessage> findMessagesBySequenceInstanceIdAndStates(long sequenceInstanceId, Set<SequencedMessageState> states) {
+        return sequencedMessageRepository.findAllBySequenceInstanceIdAndStateIn(sequenceInstanceId, states);
+    }
+
+    @Override
+    public Map<Long, BufferedMessage> findBufferedMessagesBySequencedMessageIds(Collection<Long> sequencedMessageIds) {
+        if (sequencedMessageIds.isEmpty()) {
+            return Map.of();
+        }
+        return bufferedMessageRepository.getAllBySequencedMessageIdIn(sequencedMessageIds).stream()
+                .collect(toMap(BufferedMessage::getSequencedMessageId, Function.identity()));
+    }
+
+    @Override
+    public void updateMessageState(long sequencedMessageId, SequencedMessageState state) {
+        sequencedMessageRepository.updateStateById(sequencedMessageId, state.getCode());
+    }
+
+    @Override
+    public void updateMessageStates(List<SequencedMessage> processedMessages, List<SequencedMessage> failedMessages) {
+        JdbcBatchStatements.updateMessageStates(jdbcTemplate, processedMessages, failedMessages);
+    }
+
+    @Override
+    public Set<IdempotenceClaim> createIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId) {
+        return JdbcBatchStatements.createIdempotenceClaims(jdbcTemplate, claims, sequenceInstanceId);
+    }
+
+    @Override
+    public Set<IdempotenceClaim> createInProgressIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId, Duration leaseDuration) {
+        return JdbcBatchStatements.createInProgressIdempotenceClaims(jdbcTemplate, claims, sequenceInstanceId, leaseDuration);
+    }
+
+    @Override
+    public void completeIdempotenceClaims(Collection<IdempotenceClaim> claims) {
+        JdbcBatchStatements.completeIdempotenceClaims(jdbcTemplate, claims);
+    }
+
+    @Override
+    public boolean createIdempotenceClaim(String messageType, String idempotenceId, long sequenceInstanceId) {
+        int insertedRows = entityManager.createNativeQuery("""
+                        INSERT INTO sequential_inbox_idempotence
+                            (message_type, idempotence_id, sequence_instance_id, created_at)
+                        VALUES (?1, ?2, ?3, NOW())
+                        ON CONFLICT (message_type, idempotence_id) DO NOTHING
+                        """)
+                .setParameter(1, messageType)
+                .setParameter(2, idempotenceId)
+                .setParameter(3, sequenceInstanceId)
+                .executeUpdate();
+        return insertedRows == 1;
+    }
+
+    @Override
+    public boolean deleteIdempotenceClaim(String messageType, String idempotenceId) {
+        int deletedClaims = entityManager.createNativeQuery("""
+                        DELETE FROM sequential_inbox_idempotence
+                        WHERE message_type = ?1
+                          AND idempotence_id = ?2
+                        """)
+                .setParameter(1, messageType)
+                .setParameter(2, idempotenceId)
+                .executeUpdate();
+        return deletedClaims > 0;
+    }
+}
@@ -0,0 +1,39 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Release passes of sequences using lease context locking lease the sequence instance instead of locking it for their
+ * transaction. Transactions locking the context, e.g. of the pending actions, lock the sequence instance row, which
+ * keeps a lease from being acquired until they commit, and are repeated if the instance is currently leased.
+ * Transactions updating the sequence instance without holding the lock increment its version, so that the lease
+ * holder repeats its release pass before releasing the lease.
+ */
+@Component
+@RequiredArgsConstructor
+class LeaseSequenceContextLock implements SequenceContextLock {
+
+    private final SequenceInstanceRepository repository;
+
+    @Override
+    public SequenceContextLockType getType() {
+        return SequenceContextLockType.LEASE;
+    }
+
+    @Override
+    public SequenceInstance lock(long sequenceInstanceId, int idleLockTimeoutSeconds) {
+        SequenceInstance sequenceInstance = repository.getByIdAndLockForUpdate(sequenceInstanceId, idleLockTimeoutSeconds);
+        if (sequenceInstance != null && repository.isLeased(sequenceInstanceId)) {
+            throw new SequenceInstanceLeasedException(sequenceInstanceId);
+        }
+        return sequenceInstance;
+    }
+
+    @Override
+    public void lockShared(long sequenceInstanceId) {
+        repository.incrementLockVersion(sequenceInstanceId);
+    }
+}
@@ -0,0 +1,133 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes the message types, topics and cluster names of sequenced messages as smallint IDs, stored in the table
+ * sequenced_message_dictionary. Entries are never changed or deleted, so each node caches them without expiry.
+ * <p>
+ * The entries of the configured message types, their topics and the Kafka clusters are created and loaded once at
+ * startup with {@link #preload(Collection)}, before the message listeners are started. Values not known at startup,
+ * e.g. the topic of a repartition consumer, are created in the transaction of the caller with a single insert that
+ * waits for a concurrent insert of the same value. Entries read or created in a transaction are only cached once it
+ * has committed, so that an ID created by a transaction that is rolled back is never handed out.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MessageDictionary {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Map<String, Short> idsByValue = new ConcurrentHashMap<>();
+    private final Map<Short, String> valuesById = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the missing entries of the given values with a single statement, and caches the entries of all of them.
+     * Called without a transaction, each statement commits on its own.
+     */
+    public void preload(Collection<String> values) {
+        String[] valueArray = values.toArray(String[]::new);
+        int created = jdbcTemplate.update("""
+                INSERT INTO sequenced_message_dictionary (id, value)
+                SELECT nextval('sequenced_message_dictionary_sequence'), new_value
+                FROM unnest(?::text[]) AS new_value
+                WHERE NOT EXISTS (SELECT 1 FROM sequenced_message_dictionary WHERE value = new_value)
+                ON CONFLICT (value) DO NOTHING
+                """, (Object) valueArray);
+        jdbcTemplate.query("SELECT id, value FROM sequenced_message_dictionary WHERE value = ANY(?::text[])",
+                rs -> put(rs.getShort("id"), rs.getString("value")), (Object) valueArray);
+        log.info("Loaded {} message dictionary entries, {} of them created", values.size(), created);
+    }
+
+    /**
+     * @return The ID of the value, created in the current transaction if the value is not yet in the dictionary
+     */
+    public short getId(String value) {
+        Short id = idsByValue.get(value);
+        if (id != null) {
+            return id;
+        }
+        Optional<Short> existingId = selectId(value);
+        if (existingId.isPresent()) {
+            return existingId.get();
+        }
+        jdbcTemplate.update("""
+                INSERT INTO sequenced_message_dictionary (id, value)
+                VALUES (nextval('sequenced_message_dictionary_sequence'), ?)
+                ON CONFLICT (value) DO NOTHING
+                """, value);
+        short createdId = selectId(value).orElseThrow(() ->
+                new IllegalStateException("Message dictionary entry for %s has not been created".formatted(value)));
+        log.info("Added {} to the message dictionary with ID {}", value, createdId);
+        return createdId;
+    }
+
+    /**
+     * Looks the value up without creating it, e.g. to find messages by message type.
+     *
+     * @return The ID of the value, or empty if the value is not in the dictionary, in which case no message refers to
+     * it either
+     */
+    public Optional<Short> findId(String value) {
+        Short id = idsByValue.get(value);
+        if (id != null) {
+            return Optional.of(id);
+        }
+        return selectId(value);
+    }
+
+    public String getValue(short id) {
+        String value = valuesById.get(id);
+        if (value != null) {
+            return value;
+        }
+        // Created by another node
+        List<String> values = jdbcTemplate.queryForList("SELECT value FROM sequenced_message_dictionary WHERE id = ?",
+                String.class, id);
+        if (values.isEmpty()) {
+            throw new IllegalStateException("Unknown message dictionary ID " + id);
+        }
+        putAfterCommit(id, values.getFirst());
+        return values.getFirst();
+    }
+
+    private Optional<Short> selectId(String value) {
+        List<Short> ids = jdbcTemplate.queryForList("SELECT id FROM sequenced_message_dictionary WHERE value = ?",
+                Short.class, value);
+        if (ids.isEmpty()) {
+            return Optional.empty();
+        }
+        putAfterCommit(ids.getFirst(), value);
+        return Optional.of(ids.getFirst());
+    }
+
+    private void putAfterCommit(short id, String value) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            put(id, value);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                put(id, value);
+            }
+        });
+    }
+
+    private void put(short id, String value) {
+        idsByValue.put(value, id);
+        valuesById.put(id, value);
+    }
+}
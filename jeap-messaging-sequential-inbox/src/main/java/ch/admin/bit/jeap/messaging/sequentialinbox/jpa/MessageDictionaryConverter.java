@@ -0,0 +1,26 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Maps the message type, topic and cluster name of a sequenced message to its ID in the {@link MessageDictionary}.
+ * Instantiated by Hibernate through the Spring bean container.
+ */
+@Converter
+@RequiredArgsConstructor
+public class MessageDictionaryConverter implements AttributeConverter<String, Short> {
+
+    private final MessageDictionary messageDictionary;
+
+    @Override
+    public Short convertToDatabaseColumn(String value) {
+        return value == null ? null : messageDictionary.getId(value);
+    }
+
+    @Override
+    public String convertToEntityAttribute(Short id) {
+        return id == null ? null : messageDictionary.getValue(id);
+    }
+}
@@ -14,10 +14,8 @@ import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
+import java.time.Duration;
+import java.util.*;
 
 import static java.util.stream.Collectors.toMap;
 
@@ -31,17 +29,18 @@ public class MessageRepository {
     private final SpringDataJpaBufferedMessageRepository bufferedMessageRepository;
     private final SpringDataJpaSequencedMessageRepository sequencedMessageRepository;
     private final SpringDataJpaMessageHeaderRepository messageHeaderRepository;
+    private final SequentialInboxStore store;
 
     private final EntityManager entityManager;
 
     @Transactional(propagation = Propagation.MANDATORY)
     public void saveMessage(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage) {
-        SequencedMessage persistentSequencedMessage = sequencedMessageRepository.save(sequencedMessage);
-        if (bufferedMessage != null) {
-            bufferedMessage.setSequencedMessageId(persistentSequencedMessage.getId());
-            bufferedMessageRepository.save(bufferedMessage);
-        }
-        entityManager.flush();
+        store.saveMessage(bufferedMessage, sequencedMessage);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public ClaimedMessage claimAndSaveMessage(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage) {
+        return store.claimAndSaveMessage(bufferedMessage, sequencedMessage);
     }
 
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
@@ -49,14 +48,24 @@ public class MessageRepository {
         return sequencedMessageRepository.getProcessedMessageTypesInSequence(sequenceInstanceId);
     }
 
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Set<String> getProcessedMessageTypesInSequenceInCurrentTransaction(long sequenceInstanceId) {
+        return sequencedMessageRepository.getProcessedMessageTypesInSequence(sequenceInstanceId);
+    }
+
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
     public List<SequencedMessage> getWaitingAndProcessedMessagesInNewTransaction(long sequenceInstanceId) {
-        return sequencedMessageRepository.findAllBySequenceInstanceIdAndStateIn(sequenceInstanceId, WAITING_AND_PROCESSED_STATE);
+        return store.findMessagesBySequenceInstanceIdAndStates(sequenceInstanceId, WAITING_AND_PROCESSED_STATE);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public List<SequencedMessage> getWaitingAndProcessedMessagesInCurrentTransaction(long sequenceInstanceId) {
+        return store.findMessagesBySequenceInstanceIdAndStates(sequenceInstanceId, WAITING_AND_PROCESSED_STATE);
     }
 
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
     public List<SequencedMessage> getWaitingMessagesInNewTransaction(long sequenceInstanceId) {
-        return sequencedMessageRepository.findAllBySequenceInstanceIdAndStateIn(sequenceInstanceId, Set.of(SequencedMessageState.WAITING));
+        return store.findMessagesBySequenceInstanceIdAndStates(sequenceInstanceId, Set.of(SequencedMessageState.WAITING));
     }
 
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
@@ -66,12 +75,39 @@ public class MessageRepository {
 
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
     public BufferedMessage getBufferedMessageInNewTransaction(SequencedMessage sequencedMessage) {
-        return bufferedMessageRepository.getBySequencedMessageId(sequencedMessage.getId());
+        return getBufferedMessagesBySequencedMessageId(List.of(sequencedMessage)).get(sequencedMessage.getId());
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public BufferedMessage getBufferedMessageInCurrentTransaction(SequencedMessage sequencedMessage) {
+        return getBufferedMessagesBySequencedMessageId(List.of(sequencedMessage)).get(sequencedMessage.getId());
+    }
+
+    /**
+     * Loads the buffered messages of the given sequenced messages with their headers in a single query.
+     *
+     * @return The buffered messages by sequenced message ID
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
+    public Map<Long, BufferedMessage> getBufferedMessagesInNewTransaction(Collection<SequencedMessage> sequencedMessages) {
+        return getBufferedMessagesBySequencedMessageId(sequencedMessages);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Map<Long, BufferedMessage> getBufferedMessagesInCurrentTransaction(Collection<SequencedMessage> sequencedMessages) {
+        return getBufferedMessagesBySequencedMessageId(sequencedMessages);
+    }
+
+    private Map<Long, BufferedMessage> getBufferedMessagesBySequencedMessageId(Collection<SequencedMessage> sequencedMessages) {
+        List<Long> sequencedMessageIds = sequencedMessages.stream()
+                .map(SequencedMessage::getId)
+                .toList();
+        return store.findBufferedMessagesBySequencedMessageIds(sequencedMessageIds);
     }
 
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
     public void setMessageStateInNewTransaction(SequencedMessage sequencedMessage, SequencedMessageState sequencedMessageState) {
-        sequencedMessageRepository.updateStateById(sequencedMessage.getId(), sequencedMessageState.name());
+        store.updateMessageState(sequencedMessage.getId(), sequencedMessageState);
     }
 
     /**
@@ -81,22 +117,45 @@ public class MessageRepository {
      */
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
     public void markMessageFailedAndReleaseIdempotenceClaimInNewTransaction(SequencedMessage sequencedMessage) {
-        sequencedMessageRepository.updateStateById(sequencedMessage.getId(), SequencedMessageState.FAILED.name());
-        int deletedClaims = entityManager.createNativeQuery("""
-                        DELETE FROM sequential_inbox_idempotence
-                        WHERE message_type = ?1
-                          AND idempotence_id = ?2
-                        """)
-                .setParameter(1, sequencedMessage.getMessageType())
-                .setParameter(2, sequencedMessage.getIdempotenceId())
-                .executeUpdate();
-        if (deletedClaims == 0) {
+        markMessageFailedAndReleaseIdempotenceClaim(sequencedMessage);
+    }
+
+    /**
+     * Same as {@link #markMessageFailedAndReleaseIdempotenceClaimInNewTransaction(SequencedMessage)}, for messages
+     * whose state or claim may have been written in the current transaction.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void markMessageFailedAndReleaseIdempotenceClaimInCurrentTransaction(SequencedMessage sequencedMessage) {
+        markMessageFailedAndReleaseIdempotenceClaim(sequencedMessage);
+    }
+
+    private void markMessageFailedAndReleaseIdempotenceClaim(SequencedMessage sequencedMessage) {
+        store.updateMessageState(sequencedMessage.getId(), SequencedMessageState.FAILED);
+        if (!store.deleteIdempotenceClaim(sequencedMessage.getMessageType(), sequencedMessage.getIdempotenceId())) {
             log.warn("No idempotence claim found while marking sequenced message {} of type {} with idempotence ID {} as FAILED. " +
                      "The message remains retryable, but the missing claim indicates previously modified or inconsistent Inbox state.",
                     sequencedMessage.getId(), sequencedMessage.getMessageType(), sequencedMessage.getIdempotenceId());
         }
     }
 
+    /**
+     * Marks the given messages as processed, and the given failed messages as failed while releasing their idempotence
+     * claims, with one JDBC batch per statement in a single new transaction.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
+    public void updateMessageStatesInNewTransaction(List<SequencedMessage> processedMessages, List<SequencedMessage> failedMessages) {
+        updateMessageStates(processedMessages, failedMessages);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void updateMessageStatesInCurrentTransaction(List<SequencedMessage> processedMessages, List<SequencedMessage> failedMessages) {
+        updateMessageStates(processedMessages, failedMessages);
+    }
+
+    private void updateMessageStates(List<SequencedMessage> processedMessages, List<SequencedMessage> failedMessages) {
+        store.updateMessageStates(processedMessages, failedMessages);
+    }
+
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
     public void clearPendingActionInNewTransaction(SequencedMessage sequencedMessage) {
         sequencedMessageRepository.clearPendingActionById(sequencedMessage.getId());
@@ -104,34 +163,133 @@ public class MessageRepository {
 
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
     public void clearPendingActionInNewTransaction(SequencedMessage sequencedMessage, SequencedMessageState sequencedMessageState) {
-        sequencedMessageRepository.clearPendingActionById(sequencedMessage.getId(), sequencedMessageState.name());
+        sequencedMessageRepository.clearPendingActionById(sequencedMessage.getId(), sequencedMessageState.getCode());
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void clearPendingActionInCurrentTransaction(SequencedMessage sequencedMessage) {
+        sequencedMessageRepository.clearPendingActionById(sequencedMessage.getId());
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void clearPendingActionInCurrentTransaction(SequencedMessage sequencedMessage, SequencedMessageState sequencedMessageState) {
+        sequencedMessageRepository.clearPendingActionById(sequencedMessage.getId(), sequencedMessageState.getCode());
     }
 
     @Transactional(propagation = Propagation.MANDATORY)
     public void setMessageStateInCurrentTransaction(SequencedMessage sequencedMessage, SequencedMessageState sequencedMessageState) {
-        sequencedMessageRepository.updateStateById(sequencedMessage.getId(), sequencedMessageState.name());
+        store.updateMessageState(sequencedMessage.getId(), sequencedMessageState);
     }
 
     @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
     public Optional<SequencedMessage> findByMessageTypeAndIdempotenceIdInNewTransaction(String messageType, String idempotenceId) {
-        return sequencedMessageRepository.findByMessageTypeAndIdempotenceId(messageType, idempotenceId);
+        return store.findMessageByMessageTypeAndIdempotenceId(messageType, idempotenceId);
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Optional<SequencedMessage> findByMessageTypeAndIdempotenceIdInCurrentTransaction(String messageType, String idempotenceId) {
+        return store.findMessageByMessageTypeAndIdempotenceId(messageType, idempotenceId);
     }
 
     @Transactional(propagation = Propagation.MANDATORY)
     public boolean createIdempotenceClaim(String messageType, String idempotenceId, long sequenceInstanceId) {
+        return store.createIdempotenceClaim(messageType, idempotenceId, sequenceInstanceId);
+    }
+
+    /**
+     * Creates an idempotence claim in progress, leased until the given duration has elapsed. A claim still in progress
+     * after its lease expired has been left by a consumer that failed before completing or releasing it, and is taken
+     * over.
+     *
+     * @return true if the claim has been created or taken over
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean createInProgressIdempotenceClaim(String messageType, String idempotenceId, long sequenceInstanceId, Duration leaseDuration) {
         int insertedRows = entityManager.createNativeQuery("""
                         INSERT INTO sequential_inbox_idempotence
-                            (message_type, idempotence_id, sequence_instance_id, created_at)
-                        VALUES (?1, ?2, ?3, NOW())
-                        ON CONFLICT (message_type, idempotence_id) DO NOTHING
+                            (message_type, idempotence_id, sequence_instance_id, created_at, state, lease_expires_at)
+                        VALUES (?1, ?2, ?3, NOW(), 'IN_PROGRESS', NOW() + ?4 * INTERVAL '1 millisecond')
+                        ON CONFLICT (message_type, idempotence_id) DO UPDATE
+                            SET lease_expires_at = EXCLUDED.lease_expires_at
+                            WHERE sequential_inbox_idempotence.state = 'IN_PROGRESS'
+                              AND sequential_inbox_idempotence.lease_expires_at < NOW()
                         """)
                 .setParameter(1, messageType)
                 .setParameter(2, idempotenceId)
                 .setParameter(3, sequenceInstanceId)
+                .setParameter(4, leaseDuration.toMillis())
                 .executeUpdate();
         return insertedRows == 1;
     }
 
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean isIdempotenceClaimInProgress(String messageType, String idempotenceId) {
+        List<?> states = entityManager.createNativeQuery("""
+                        SELECT state FROM sequential_inbox_idempotence
+                        WHERE message_type = ?1
+                          AND idempotence_id = ?2
+                        """)
+                .setParameter(1, messageType)
+                .setParameter(2, idempotenceId)
+                .getResultList();
+        return states.contains("IN_PROGRESS");
+    }
+
+    /**
+     * Completes an idempotence claim in progress, which then permanently rejects later deliveries.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
+    public void completeIdempotenceClaimInNewTransaction(IdempotenceClaim claim) {
+        entityManager.createNativeQuery("""
+                        UPDATE sequential_inbox_idempotence
+                        SET state = 'DONE', lease_expires_at = NULL
+                        WHERE message_type = ?1
+                          AND idempotence_id = ?2
+                        """)
+                .setParameter(1, claim.messageType())
+                .setParameter(2, claim.idempotenceId())
+                .executeUpdate();
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
+    public void releaseIdempotenceClaimInNewTransaction(IdempotenceClaim claim) {
+        releaseIdempotenceClaim(claim);
+    }
+
+    /**
+     * Creates the given idempotence claims with a single statement.
+     *
+     * @return The claims that have been created, i.e. that did not exist before
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Set<IdempotenceClaim> createIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId) {
+        return store.createIdempotenceClaims(claims, sequenceInstanceId);
+    }
+
+    /**
+     * Creates the given idempotence claims in progress with a single statement, see
+     * {@link #createInProgressIdempotenceClaim(String, String, long, Duration)}.
+     *
+     * @return The claims that have been created or taken over
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Set<IdempotenceClaim> createInProgressIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId, Duration leaseDuration) {
+        return store.createInProgressIdempotenceClaims(claims, sequenceInstanceId, leaseDuration);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED)
+    public void completeIdempotenceClaimsInNewTransaction(Collection<IdempotenceClaim> claims) {
+        store.completeIdempotenceClaims(claims);
+    }
+
+    /**
+     * Releases an idempotence claim that has been created in the current transaction, which is not rolled back.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void releaseIdempotenceClaim(IdempotenceClaim claim) {
+        store.deleteIdempotenceClaim(claim.messageType(), claim.idempotenceId());
+    }
+
     /**
      * Deletes all messages (sequenced, buffered, headers) associated with a given sequence instance
      * if the sequence instance is not in state CLOSED.
@@ -0,0 +1,135 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Node-local state of the sequence instances of sequences with partition context locking, owned by the consumer of
+ * the partition their records are keyed to. The processed message types of an owned instance are read from the
+ * database once, and kept up to date by the transactions of this node writing them. Changes are applied once the
+ * writing transaction has committed. Release passes recomputing them evict them, they are then read again. The state
+ * of the instances of a partition is dropped when the partition is assigned, revoked or lost, and read again from the
+ * database once the instances are owned again.
+ * <p>
+ * Transactions on other nodes, e.g. consuming a record of the same context from another partition or running the
+ * pending actions job, may leave fewer processed message types in memory than stored. This only leads to a message
+ * being buffered and released right away, as the number of waiting messages is not kept in memory but always read
+ * from the database, and releases are always computed from the stored messages.
+ */
+@Component
+@Slf4j
+public class PartitionOwnedSequenceInstances {
+
+    private final Cache<Long, OwnedSequenceInstance> ownedSequenceInstances;
+
+    PartitionOwnedSequenceInstances(@Value("${jeap.messaging.sequential-inbox.partition-owned.maximum-size:100000}") long maximumSize) {
+        this.ownedSequenceInstances = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * Records that the sequence instance is owned by the consumer of the given partition. Called by the consumer
+     * before handling a record of the instance.
+     */
+    public void own(TopicPartition partition, long sequenceInstanceId) {
+        ownedSequenceInstances.asMap().compute(sequenceInstanceId, (_, owned) ->
+                owned != null && owned.partition().equals(partition) ? owned : OwnedSequenceInstance.unread(partition));
+    }
+
+    /**
+     * Drops the state of the sequence instances owned by the consumers of the given partitions.
+     */
+    public void disown(Collection<TopicPartition> partitions) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        Set<TopicPartition> disownedPartitions = Set.copyOf(partitions);
+        ownedSequenceInstances.asMap().values().removeIf(owned -> disownedPartitions.contains(owned.partition()));
+        log.debug("Dropped the state of sequence instances owned by partitions {}", disownedPartitions);
+    }
+
+    /**
+     * @return true if the sequence instance is owned by the consumer of an assigned partition of this node
+     */
+    public boolean isOwned(long sequenceInstanceId) {
+        return ownedSequenceInstances.getIfPresent(sequenceInstanceId) != null;
+    }
+
+    /**
+     * @return The state of the owned sequence instance, or empty if it is not owned, not read yet or has been read
+     * for a different message type index
+     */
+    Optional<OwnedSequenceInstance> get(long sequenceInstanceId, int messageTypeIndexHash) {
+        OwnedSequenceInstance owned = ownedSequenceInstances.getIfPresent(sequenceInstanceId);
+        if (owned == null || !owned.isRead() || owned.messageTypeIndexHash() != messageTypeIndexHash) {
+            return Optional.empty();
+        }
+        return Optional.of(owned);
+    }
+
+    /**
+     * Keeps the state read in the current transaction once it has committed, as it may include changes of the
+     * transaction itself. Changes made by the transaction after the read are applied afterwards.
+     */
+    void putReadAfterCommit(long sequenceInstanceId, long processedMessageTypes, int messageTypeIndexHash) {
+        afterCommit(sequenceInstanceId, () -> ownedSequenceInstances.asMap().computeIfPresent(sequenceInstanceId, (_, owned) ->
+                owned.isRead() ? owned :
+                        new OwnedSequenceInstance(owned.partition(), messageTypeIndexHash, processedMessageTypes)));
+    }
+
+    void addProcessedMessageTypeAfterCommit(long sequenceInstanceId, long messageTypeBit, int messageTypeIndexHash) {
+        afterCommit(sequenceInstanceId, () -> ownedSequenceInstances.asMap().computeIfPresent(sequenceInstanceId, (_, owned) ->
+                owned.isRead() && owned.messageTypeIndexHash() == messageTypeIndexHash ?
+                        owned.withProcessedMessageTypes(owned.processedMessageTypes() | messageTypeBit) : owned));
+    }
+
+    void evictAfterCommit(long sequenceInstanceId) {
+        afterCommit(sequenceInstanceId, () -> ownedSequenceInstances.asMap().computeIfPresent(sequenceInstanceId, (_, owned) ->
+                OwnedSequenceInstance.unread(owned.partition())));
+    }
+
+    private void afterCommit(long sequenceInstanceId, Runnable runnable) {
+        if (!isOwned(sequenceInstanceId)) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            runnable.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                runnable.run();
+            }
+        });
+    }
+
+    /**
+     * @param messageTypeIndexHash The message type index hash the state has been read for, or null if not read yet
+     */
+    record OwnedSequenceInstance(TopicPartition partition, Integer messageTypeIndexHash, long processedMessageTypes) {
+
+        static OwnedSequenceInstance unread(TopicPartition partition) {
+            return new OwnedSequenceInstance(partition, null, 0L);
+        }
+
+        boolean isRead() {
+            return messageTypeIndexHash != null;
+        }
+
+        OwnedSequenceInstance withProcessedMessageTypes(long processedMessageTypes) {
+            return new OwnedSequenceInstance(partition, messageTypeIndexHash, processedMessageTypes);
+        }
+    }
+}
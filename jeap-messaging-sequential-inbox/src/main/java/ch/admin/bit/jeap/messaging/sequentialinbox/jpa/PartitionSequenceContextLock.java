@@ -0,0 +1,22 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
+import org.springframework.stereotype.Component;
+
+/**
+ * Locks the context of a sequence owned by the consumer of its partition like {@link UnsharedAdvisorySequenceContextLock}.
+ * The owning consumer serializes the messages of the context, the lock thus only waits for pending actions, recovered
+ * release passes, or a release pass of the previous owner still running after a rebalance.
+ */
+@Component
+class PartitionSequenceContextLock extends UnsharedAdvisorySequenceContextLock {
+
+    PartitionSequenceContextLock(SequenceInstanceRepository repository) {
+        super(repository);
+    }
+
+    @Override
+    public SequenceContextLockType getType() {
+        return SequenceContextLockType.PARTITION;
+    }
+}
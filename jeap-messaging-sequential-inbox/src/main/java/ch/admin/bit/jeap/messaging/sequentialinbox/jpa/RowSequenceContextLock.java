@@ -0,0 +1,27 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Locks the sequence instance row. Updates of the row by other transactions wait for the lock holder, so no shared
+ * lock is needed.
+ */
+@Component
+@RequiredArgsConstructor
+class RowSequenceContextLock implements SequenceContextLock {
+
+    private final SequenceInstanceRepository repository;
+
+    @Override
+    public SequenceContextLockType getType() {
+        return SequenceContextLockType.ROW;
+    }
+
+    @Override
+    public SequenceInstance lock(long sequenceInstanceId, int idleLockTimeoutSeconds) {
+        return repository.getByIdAndLockForUpdate(sequenceInstanceId, idleLockTimeoutSeconds);
+    }
+}
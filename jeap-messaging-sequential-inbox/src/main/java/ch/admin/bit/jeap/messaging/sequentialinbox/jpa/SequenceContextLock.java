@@ -0,0 +1,33 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
+
+/**
+ * Serializes the transactions handling the context of a sequence instance. A transaction releasing buffered messages,
+ * closing the instance or executing a pending action locks the context exclusively with {@link #lock(long, int)}
+ * before it invokes any handler, so that the handlers of a context are never invoked by two transactions at once. A
+ * transaction storing a message of the context without holding the lock calls {@link #lockShared(long)} before
+ * updating the sequence instance, so that the update is not lost by a concurrent exclusive holder writing the
+ * processed message types and waiting count of the instance.
+ */
+public interface SequenceContextLock {
+
+    SequenceContextLockType getType();
+
+    /**
+     * Locks the context of the sequence instance for the current transaction.
+     *
+     * @return The sequence instance, or null if it does not exist
+     * @throws SequenceInstanceLeasedException if the context cannot be locked while it is leased, the transaction is
+     *                                         then to be repeated
+     */
+    SequenceInstance lock(long sequenceInstanceId, int idleLockTimeoutSeconds);
+
+    /**
+     * Orders the current transaction after a transaction holding the context lock exclusively. Called before the
+     * sequence instance is updated by a transaction not holding the context lock.
+     */
+    default void lockShared(long sequenceInstanceId) {
+    }
+}
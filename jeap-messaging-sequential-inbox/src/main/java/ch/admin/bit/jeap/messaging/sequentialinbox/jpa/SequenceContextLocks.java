@@ -0,0 +1,35 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides the {@link SequenceContextLock} configured for a sequence.
+ */
+@Component
+public class SequenceContextLocks {
+
+    private final Map<SequenceContextLockType, SequenceContextLock> contextLocksByType = new EnumMap<>(SequenceContextLockType.class);
+
+    SequenceContextLocks(List<SequenceContextLock> contextLocks) {
+        contextLocks.forEach(contextLock -> contextLocksByType.put(contextLock.getType(), contextLock));
+    }
+
+    /**
+     * @param sequence The sequence, or null if the sequence of an instance is not configured anymore, in which case
+     *                 the row lock is used
+     */
+    public SequenceContextLock forSequence(Sequence sequence) {
+        SequenceContextLockType type = sequence == null ? SequenceContextLockType.ROW : sequence.getContextLock();
+        SequenceContextLock contextLock = contextLocksByType.get(type);
+        if (contextLock == null) {
+            throw new IllegalStateException("No context lock of type " + type);
+        }
+        return contextLock;
+    }
+}
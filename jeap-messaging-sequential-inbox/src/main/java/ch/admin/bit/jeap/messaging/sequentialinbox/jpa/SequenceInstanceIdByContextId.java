@@ -0,0 +1,4 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+record SequenceInstanceIdByContextId(String contextId, long id) {
+}
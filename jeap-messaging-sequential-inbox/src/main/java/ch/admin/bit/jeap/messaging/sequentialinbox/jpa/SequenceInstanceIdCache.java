@@ -0,0 +1,87 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Optional;
+
+/**
+ * Node-local cache of sequence instance IDs by sequence name and context ID. Entries are only added and evicted once
+ * the transaction that has read, created or deleted the instance has committed, so that the cache never contains IDs
+ * of uncommitted instances. Instances deleted by the housekeeping on another node remain in the cache until they
+ * expire, see {@link SequenceInstanceRepository#evictStaleId(String, String)}.
+ */
+@Component
+@Slf4j
+public class SequenceInstanceIdCache {
+
+    private final Cache<SequenceInstanceKey, Long> cache;
+
+    SequenceInstanceIdCache(@Value("${jeap.messaging.sequential-inbox.sequence-instance-id-cache.enabled:true}") boolean enabled,
+                            @Value("${jeap.messaging.sequential-inbox.sequence-instance-id-cache.maximum-size:10000}") long maximumSize,
+                            @Value("${jeap.messaging.sequential-inbox.sequence-instance-id-cache.expire-after-write:10m}") Duration expireAfterWrite) {
+        if (enabled) {
+            log.info("Caching up to {} sequence instance IDs for {}", maximumSize, expireAfterWrite);
+            this.cache = Caffeine.newBuilder()
+                    .maximumSize(maximumSize)
+                    .expireAfterWrite(expireAfterWrite)
+                    .recordStats()
+                    .build();
+        } else {
+            log.info("Sequence instance ID cache is disabled");
+            this.cache = null;
+        }
+    }
+
+    /**
+     * @return The underlying cache for registering cache metrics, or empty if the cache is disabled
+     */
+    public Optional<Cache<?, ?>> getNativeCache() {
+        return Optional.ofNullable(cache);
+    }
+
+    Optional<Long> get(String name, String contextId) {
+        if (cache == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(cache.getIfPresent(new SequenceInstanceKey(name, contextId)));
+    }
+
+    void putAfterCommit(String name, String contextId, long id) {
+        if (cache != null) {
+            afterCommit(() -> cache.put(new SequenceInstanceKey(name, contextId), id));
+        }
+    }
+
+    void evict(String name, String contextId) {
+        if (cache != null) {
+            cache.invalidate(new SequenceInstanceKey(name, contextId));
+        }
+    }
+
+    void evictAfterCommit(Collection<SequenceInstanceKey> keys) {
+        if (cache != null && !keys.isEmpty()) {
+            afterCommit(() -> cache.invalidateAll(keys));
+        }
+    }
+
+    private static void afterCommit(Runnable runnable) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            runnable.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                runnable.run();
+            }
+        });
+    }
+}
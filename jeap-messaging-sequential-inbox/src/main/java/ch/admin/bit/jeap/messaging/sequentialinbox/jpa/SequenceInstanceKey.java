@@ -0,0 +1,4 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+record SequenceInstanceKey(String name, String contextId) {
+}
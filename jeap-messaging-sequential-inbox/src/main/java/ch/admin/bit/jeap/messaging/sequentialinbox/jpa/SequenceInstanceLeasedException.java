@@ -0,0 +1,14 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Thrown while locking the context of a sequence instance that is leased by a release pass. It is only thrown before
+ * the transaction locking the context has done anything else, so that the transaction can be repeated.
+ */
+public class SequenceInstanceLeasedException extends ConcurrencyFailureException {
+
+    public SequenceInstanceLeasedException(long sequenceInstanceId) {
+        super("Sequence instance %d is leased by a release pass".formatted(sequenceInstanceId));
+    }
+}
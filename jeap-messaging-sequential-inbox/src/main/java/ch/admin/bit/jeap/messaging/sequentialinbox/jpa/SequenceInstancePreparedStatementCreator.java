@@ -9,41 +9,70 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.time.ZonedDateTime;
 
 /**
  * PreparedStatementCreator for inserting a new sequence instance. Sequence instances are created by the first message
- * arriving in a sequence context. There is a slight chance of a race condition where two messages are trying to create
- * a sequence instance concurrently. In this case, the first message will create the sequence instance, and the second
- * one will fail with a unique constraint violation. The second message will then retry the operation by reading the
- * existing instance. Unfortunately, the {@link org.hibernate.engine.jdbc.spi.SqlExceptionHelper} in Hibernate will
- * always log such constraint violation exception at the ERROR level. Discussions on the Hibernate issue tracker
- * about this issue have been going on for years, but no agreement/solution has been found yet. We thus avoid using
- * Hibernate for creating the sequence instance.
+ * arriving in a sequence context, possibly by several consumer threads at once. A plain insert fails with a unique
+ * constraint violation if another thread has created the instance concurrently. Unfortunately, the
+ * {@link org.hibernate.engine.jdbc.spi.SqlExceptionHelper} in Hibernate will always log such constraint violation
+ * exception at the ERROR level. Discussions on the Hibernate issue tracker about this issue have been going on for
+ * years, but no agreement/solution has been found yet. We thus avoid using Hibernate for creating the sequence instance.
+ * <p>
+ * If {@code getOrCreate} is set, the statement gets or creates the instance in a single round trip and never fails
+ * on a concurrent creation. An existing instance is read, otherwise the instance is inserted. If a concurrent
+ * transaction inserts the same instance after the statement has started, the insert waits for it and the no-op
+ * {@code DO UPDATE} returns the ID of the concurrently created row, which a {@code DO NOTHING} would not.
+ * <p>
+ * New instances have no processed message types yet. The {@code messageTypeIndexHash} of the sequence is stored along
+ * with them, see {@link SequenceInstanceRepository#findProcessedMessageTypes(long, int)}.
  */
 record SequenceInstancePreparedStatementCreator(String name, String contextId, String state,
-                                                ZonedDateTime createdAt, ZonedDateTime retainUntil)
+                                                ZonedDateTime createdAt, ZonedDateTime retainUntil,
+                                                Integer messageTypeIndexHash, boolean getOrCreate)
         implements PreparedStatementCreator, SqlProvider, ResultSetExtractor<Long> {
 
     private static final String SQL = """
-            INSERT INTO sequence_instance (id, name, context_id, state, created_at, retain_until)
-            VALUES (nextval('sequence_instance_sequence'), ?, ?, ?, ?, ?) RETURNING id
+            INSERT INTO sequence_instance (id, name, context_id, state, created_at, retain_until, message_type_index_hash)
+            VALUES (nextval('sequence_instance_sequence'), ?, ?, ?, ?, ?, ?) RETURNING id
+            """;
+
+    private static final String GET_OR_CREATE_SQL = """
+            WITH existing AS (
+                SELECT id FROM sequence_instance WHERE name = ? AND context_id = ?
+            ), inserted AS (
+                INSERT INTO sequence_instance (id, name, context_id, state, created_at, retain_until, message_type_index_hash)
+                SELECT nextval('sequence_instance_sequence'), ?, ?, ?, ?, ?, ?
+                WHERE NOT EXISTS (SELECT 1 FROM existing)
+                ON CONFLICT (name, context_id) DO UPDATE SET name = EXCLUDED.name
+                RETURNING id
+            )
+            SELECT id FROM existing
+            UNION ALL
+            SELECT id FROM inserted
             """;
 
     @Override
     public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
-        PreparedStatement ps = con.prepareStatement(SQL);
-        ps.setString(1, name);
-        ps.setString(2, contextId);
-        ps.setString(3, state);
-        ps.setObject(4, createdAt.toOffsetDateTime());
-        ps.setObject(5, retainUntil.toOffsetDateTime());
+        PreparedStatement ps = con.prepareStatement(getSql());
+        int index = 1;
+        if (getOrCreate) {
+            ps.setString(index++, name);
+            ps.setString(index++, contextId);
+        }
+        ps.setString(index++, name);
+        ps.setString(index++, contextId);
+        ps.setString(index++, state);
+        ps.setObject(index++, createdAt.toOffsetDateTime());
+        ps.setObject(index++, retainUntil.toOffsetDateTime());
+        ps.setObject(index, messageTypeIndexHash, Types.INTEGER);
         return ps;
     }
 
     @Override
     public String getSql() {
-        return SQL;
+        return getOrCreate ? GET_OR_CREATE_SQL : SQL;
     }
 
     @Override
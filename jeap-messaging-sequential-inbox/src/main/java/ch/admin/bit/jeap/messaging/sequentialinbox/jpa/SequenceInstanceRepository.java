@@ -2,20 +2,23 @@ package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
 
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstanceState;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessageState;
 import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Slice;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.time.Duration;
 import java.time.ZonedDateTime;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.util.*;
 
 import static java.util.stream.Collectors.toMap;
 
@@ -24,25 +27,296 @@ import static java.util.stream.Collectors.toMap;
 @Transactional(propagation = Propagation.MANDATORY) // All operations must happen in a transaction
 public class SequenceInstanceRepository {
 
+    private static final int ADVISORY_LOCK_NAMESPACE = "jeap-messaging-sequential-inbox".hashCode();
+
     private final SpringDataJpaSequenceInstanceRepository springDataJpaSequenceInstanceRepository;
     private final EntityManager entityManager;
     private final JdbcTemplate jdbcTemplate;
+    private final SequenceInstanceIdCache idCache;
+    private final PartitionOwnedSequenceInstances partitionOwnedSequenceInstances;
 
     @Transactional
     public long saveNewInstance(SequenceInstance sequenceInstance) {
-        return insertInstance(sequenceInstance.getName(), sequenceInstance.getContextId(), sequenceInstance.getState().name(),
-                sequenceInstance.getCreatedAt(), sequenceInstance.getRetainUntil());
+        long id = insertInstance(sequenceInstance, null, false);
+        idCache.putAfterCommit(sequenceInstance.getName(), sequenceInstance.getContextId(), id);
+        return id;
+    }
+
+    /**
+     * Gets the ID of the sequence instance with the name and context ID of the given instance, or inserts the given
+     * instance if it does not exist yet. Cached IDs are returned without accessing the database, otherwise a single
+     * statement is executed. A concurrent creation of the same instance neither fails nor rolls back the current
+     * transaction.
+     *
+     * @param messageTypeIndexHash The message type index hash of the sequence, stored with a newly inserted instance
+     * @return The ID of the existing or inserted instance
+     */
+    public long getOrCreateInstance(SequenceInstance sequenceInstance, int messageTypeIndexHash) {
+        String name = sequenceInstance.getName();
+        String contextId = sequenceInstance.getContextId();
+        Optional<Long> cachedId = idCache.get(name, contextId);
+        if (cachedId.isPresent()) {
+            return cachedId.get();
+        }
+        long id = insertInstance(sequenceInstance, messageTypeIndexHash, true);
+        idCache.putAfterCommit(name, contextId, id);
+        return id;
     }
 
     @SuppressWarnings("java:S2259")
-    private long insertInstance(String name, String contextId, String state, ZonedDateTime createdAt, ZonedDateTime retainUntil) {
-        SequenceInstancePreparedStatementCreator psc = new SequenceInstancePreparedStatementCreator(name, contextId, state, createdAt, retainUntil);
+    private long insertInstance(SequenceInstance sequenceInstance, Integer messageTypeIndexHash, boolean getOrCreate) {
+        SequenceInstancePreparedStatementCreator psc = new SequenceInstancePreparedStatementCreator(
+                sequenceInstance.getName(), sequenceInstance.getContextId(), sequenceInstance.getState().name(),
+                sequenceInstance.getCreatedAt(), sequenceInstance.getRetainUntil(), messageTypeIndexHash, getOrCreate);
         //noinspection DataFlowIssue
         return jdbcTemplate.query(psc, psc);
     }
 
+    /**
+     * Gets the ID of the sequence instance from the {@link SequenceInstanceIdCache}, or reads it from the database if
+     * it is not cached.
+     */
     public Optional<Long> findIdByNameAndContextId(String name, String contextId) {
-        return springDataJpaSequenceInstanceRepository.findIdByNameAndContextId(name, contextId);
+        Optional<Long> cachedId = idCache.get(name, contextId);
+        if (cachedId.isPresent()) {
+            return cachedId;
+        }
+        Optional<Long> id = springDataJpaSequenceInstanceRepository.findIdByNameAndContextId(name, contextId);
+        id.ifPresent(existingId -> idCache.putAfterCommit(name, contextId, existingId));
+        return id;
+    }
+
+    /**
+     * @return The IDs of the existing sequence instances with the given name by context ID. Context IDs without a
+     * sequence instance are not contained in the result. Cached IDs are not read from the database.
+     */
+    public Map<String, Long> findIdsByNameAndContextIds(String name, Collection<String> contextIds) {
+        Map<String, Long> ids = new HashMap<>();
+        List<String> uncachedContextIds = new ArrayList<>();
+        for (String contextId : contextIds) {
+            idCache.get(name, contextId).ifPresentOrElse(id -> ids.put(contextId, id), () -> uncachedContextIds.add(contextId));
+        }
+        if (!uncachedContextIds.isEmpty()) {
+            springDataJpaSequenceInstanceRepository.findIdsByNameAndContextIds(name, uncachedContextIds).forEach(existing -> {
+                ids.put(existing.contextId(), existing.id());
+                idCache.putAfterCommit(name, existing.contextId(), existing.id());
+            });
+        }
+        return ids;
+    }
+
+    /**
+     * Evicts the cached ID of the sequence instance if it is stale, i.e. if the instance has been deleted in the
+     * meantime, for example by the housekeeping on another node.
+     *
+     * @return true if a stale ID has been evicted, false if the cached ID is current or no ID is cached
+     */
+    public boolean evictStaleId(String name, String contextId) {
+        Optional<Long> cachedId = idCache.get(name, contextId);
+        if (cachedId.isEmpty() || cachedId.equals(springDataJpaSequenceInstanceRepository.findIdByNameAndContextId(name, contextId))) {
+            return false;
+        }
+        idCache.evict(name, contextId);
+        return true;
+    }
+
+    /**
+     * The processed message types of a sequence instance are stored as bits of the message types in the sequence, see
+     * {@link ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence#messageTypeBit(String)}. They
+     * are only valid if they have been stored with the current message type index hash of the sequence.
+     *
+     * @return The processed message types, or empty if they have been stored for a different message type index
+     */
+    public OptionalLong findProcessedMessageTypes(long id, int messageTypeIndexHash) {
+        if (partitionOwnedSequenceInstances.isOwned(id)) {
+            return findOwnedSequenceInstance(id, messageTypeIndexHash)
+                    .map(owned -> OptionalLong.of(owned.processedMessageTypes()))
+                    .orElseGet(OptionalLong::empty);
+        }
+        List<Long> processedMessageTypes = jdbcTemplate.queryForList("""
+                SELECT processed_message_types FROM sequence_instance
+                WHERE id = ? AND message_type_index_hash = ?
+                """, Long.class, id, messageTypeIndexHash);
+        return processedMessageTypes.isEmpty() ? OptionalLong.empty() : OptionalLong.of(processedMessageTypes.getFirst());
+    }
+
+    /**
+     * Adds a message type to the processed message types of a sequence instance. Must be called in the transaction
+     * marking the message as processed. Processed message types stored for a different message type index are left
+     * unchanged, they are recomputed by {@link #setProcessedMessageTypesAndDecrementWaitingCount(long, long, int, int, int)} or
+     * {@link #rebuildProcessedMessageTypes(String, List, int, int)}.
+     */
+    public void addProcessedMessageType(long id, long messageTypeBit, int messageTypeIndexHash) {
+        jdbcTemplate.update("""
+                UPDATE sequence_instance SET processed_message_types = processed_message_types | ?
+                WHERE id = ? AND message_type_index_hash = ?
+                """, messageTypeBit, id, messageTypeIndexHash);
+        partitionOwnedSequenceInstances.addProcessedMessageTypeAfterCommit(id, messageTypeBit, messageTypeIndexHash);
+    }
+
+    /**
+     * Sets the processed message types of a sequence instance locked by the current transaction, and subtracts the
+     * messages released by a release pass from its number of waiting messages. The number is decremented rather than
+     * overwritten, so that messages buffered after the pass has read the waiting messages are still counted. It is
+     * never set below the number of messages the pass has left waiting. Processed message types stored for the same
+     * message type index are merged rather than overwritten, so that types processed after the pass has read the
+     * messages are kept as well. Both values can thus be written concurrently by transactions not holding the lock.
+     * The row is only written if a value changes.
+     *
+     * @param releasedCount The number of waiting messages handled by the release pass
+     * @param waitingCount  The number of messages read by the release pass that are still waiting
+     */
+    public void setProcessedMessageTypesAndDecrementWaitingCount(long id, long processedMessageTypes, int releasedCount,
+                                                                 int waitingCount, int messageTypeIndexHash) {
+        jdbcTemplate.update("""
+                UPDATE sequence_instance
+                SET processed_message_types = CASE WHEN message_type_index_hash = ? THEN processed_message_types | ? ELSE ? END,
+                    waiting_count = greatest(waiting_count - ?, ?), message_type_index_hash = ?
+                WHERE id = ? AND (message_type_index_hash IS DISTINCT FROM ? OR processed_message_types | ? <> processed_message_types
+                                  OR waiting_count <> greatest(waiting_count - ?, ?))
+                """, messageTypeIndexHash, processedMessageTypes, processedMessageTypes,
+                releasedCount, waitingCount, messageTypeIndexHash,
+                id, messageTypeIndexHash, processedMessageTypes, releasedCount, waitingCount);
+        partitionOwnedSequenceInstances.evictAfterCommit(id);
+    }
+
+    /**
+     * Increments the number of waiting messages of a sequence instance. Must be called in the transaction buffering
+     * the message. The number is decremented by {@link #setProcessedMessageTypesAndDecrementWaitingCount(long, long, int, int, int)}
+     * once buffered messages have been released.
+     */
+    public void incrementWaitingCount(long id) {
+        jdbcTemplate.update("UPDATE sequence_instance SET waiting_count = waiting_count + 1 WHERE id = ?", id);
+    }
+
+    /**
+     * Decrements the number of waiting messages of a sequence instance if the given sequenced message is still
+     * waiting. Must be called by a transaction locking the sequence instance, before the transaction moves the message
+     * out of the waiting state other than by a release pass, e.g. by a pending action.
+     */
+    public void decrementWaitingCountIfWaiting(long id, long sequencedMessageId) {
+        jdbcTemplate.update("""
+                UPDATE sequence_instance SET waiting_count = greatest(waiting_count - 1, 0)
+                WHERE id = ? AND EXISTS (SELECT 1 FROM sequenced_message
+                                         WHERE id = ? AND sequence_instance_id = ? AND state_id = ?)
+                """, id, sequencedMessageId, id, SequencedMessageState.WAITING.getCode());
+    }
+
+    /**
+     * Reads the processed message types of a sequence instance without locking it, if no message is waiting. The
+     * number of waiting messages of an instance owned by the consumer of its partition is read from the database as
+     * well, as messages of its context may be buffered by consumers of other partitions, e.g. of another topic.
+     *
+     * @return The processed message types, or empty if messages are waiting or the processed message types have been
+     * stored for a different message type index
+     */
+    public OptionalLong findProcessedMessageTypesIfNothingWaiting(long id, int messageTypeIndexHash) {
+        if (partitionOwnedSequenceInstances.isOwned(id)) {
+            OptionalLong processedMessageTypes = findProcessedMessageTypes(id, messageTypeIndexHash);
+            if (processedMessageTypes.isEmpty() || isAnyMessageWaiting(id)) {
+                return OptionalLong.empty();
+            }
+            return processedMessageTypes;
+        }
+        List<Long> processedMessageTypes = jdbcTemplate.queryForList("""
+                SELECT processed_message_types FROM sequence_instance
+                WHERE id = ? AND message_type_index_hash = ? AND waiting_count = 0
+                """, Long.class, id, messageTypeIndexHash);
+        return processedMessageTypes.isEmpty() ? OptionalLong.empty() : OptionalLong.of(processedMessageTypes.getFirst());
+    }
+
+    private boolean isAnyMessageWaiting(long id) {
+        List<Integer> waitingCount = jdbcTemplate.queryForList(
+                "SELECT waiting_count FROM sequence_instance WHERE id = ?", Integer.class, id);
+        return waitingCount.isEmpty() || waitingCount.getFirst() > 0;
+    }
+
+    /**
+     * Reads the state of a sequence instance owned by the consumer of its partition from memory, or from the database
+     * if it has not been read yet, see {@link PartitionOwnedSequenceInstances}. State read from the database is kept
+     * once the current transaction has committed.
+     */
+    private Optional<PartitionOwnedSequenceInstances.OwnedSequenceInstance> findOwnedSequenceInstance(long id, int messageTypeIndexHash) {
+        Optional<PartitionOwnedSequenceInstances.OwnedSequenceInstance> owned = partitionOwnedSequenceInstances.get(id, messageTypeIndexHash);
+        if (owned.isPresent()) {
+            return owned;
+        }
+        List<PartitionOwnedSequenceInstances.OwnedSequenceInstance> read = jdbcTemplate.query("""
+                SELECT processed_message_types FROM sequence_instance
+                WHERE id = ? AND message_type_index_hash = ?
+                """, (rs, _) -> new PartitionOwnedSequenceInstances.OwnedSequenceInstance(null, messageTypeIndexHash,
+                rs.getLong("processed_message_types")), id, messageTypeIndexHash);
+        read.forEach(state -> partitionOwnedSequenceInstances.putReadAfterCommit(id,
+                state.processedMessageTypes(), messageTypeIndexHash));
+        return read.stream().findFirst();
+    }
+
+    /**
+     * Recomputes the processed message types from the processed sequenced messages for a batch of open instances of
+     * a sequence whose processed message types have been stored for a different message type index, or not at all.
+     * Instances locked by other transactions are skipped.
+     *
+     * @param messageTypeQualifiedNames The message types of the sequence, in the order of their bits
+     * @return The number of updated sequence instances
+     */
+    public int rebuildProcessedMessageTypes(String name, List<String> messageTypeQualifiedNames,
+                                            int messageTypeIndexHash, int batchSize) {
+        return jdbcTemplate.update(con -> {
+            PreparedStatement ps = con.prepareStatement("""
+                    UPDATE sequence_instance si
+                    SET processed_message_types = (
+                            SELECT coalesce(bit_or(1::bigint << (array_position(?::text[], d.value) - 1)), 0)
+                            FROM sequenced_message sm
+                            JOIN sequenced_message_dictionary d ON d.id = sm.message_type_id
+                            WHERE sm.sequence_instance_id = si.id
+                              AND sm.state_id = 2
+                              AND d.value = ANY (?::text[])),
+                        message_type_index_hash = ?
+                    WHERE si.id IN (SELECT id FROM sequence_instance
+                                    WHERE name = ?
+                                      AND state <> 'CLOSED'
+                                      AND message_type_index_hash IS DISTINCT FROM ?
+                                    LIMIT ? FOR UPDATE SKIP LOCKED)
+                    """);
+            Array messageTypes = con.createArrayOf("text", messageTypeQualifiedNames.toArray());
+            ps.setArray(1, messageTypes);
+            ps.setArray(2, messageTypes);
+            ps.setInt(3, messageTypeIndexHash);
+            ps.setString(4, name);
+            ps.setInt(5, messageTypeIndexHash);
+            ps.setInt(6, batchSize);
+            return ps;
+        });
+    }
+
+    /**
+     * Records that the buffered messages of a sequence instance are to be released asynchronously. The marker is kept
+     * until a release pass has completed, so that the release can be recovered if the node crashes before. A marker
+     * set already is moved to the start of the current transaction, so that a release pass running meanwhile, which
+     * may not see the message the release is requested for, does not clear it.
+     */
+    public void markReleaseRequested(long id) {
+        jdbcTemplate.update("UPDATE sequence_instance SET release_requested_at = now() WHERE id = ?", id);
+    }
+
+    /**
+     * Clears the release marker of a sequence instance locked by the current transaction, if the release has been
+     * requested before the current transaction started. The messages a release has been requested for before have
+     * been stored before the start of the transaction, and are seen by its release pass. A release requested later is
+     * kept for another pass.
+     */
+    public void clearReleaseRequested(long id) {
+        jdbcTemplate.update("""
+                UPDATE sequence_instance SET release_requested_at = NULL
+                WHERE id = ? AND release_requested_at <= now()
+                """, id);
+    }
+
+    /**
+     * @return The sequence instances whose release has been requested more than the given delay ago, oldest first
+     */
+    public List<SequenceInstance> findReleaseRequestedBefore(Duration delay, int maxNumInstances) {
+        return springDataJpaSequenceInstanceRepository.findReleaseRequestedBefore(delay.toSeconds(), maxNumInstances);
     }
 
     public SequenceInstance getByIdAndLockForUpdate(long id, int idleLockTimeoutSeconds) {
@@ -50,6 +324,114 @@ public class SequenceInstanceRepository {
         return springDataJpaSequenceInstanceRepository.getByIdAndLockForUpdate(id);
     }
 
+    /**
+     * Takes the transaction-scoped advisory lock of the sequence instance and reads the instance without locking its
+     * row. The lock is identified by a namespace key and a hash of the instance ID, see
+     * <a href="https://www.postgresql.org/docs/current/functions-admin.html#FUNCTIONS-ADVISORY-LOCKS">Advisory Lock Functions</a>.
+     */
+    public SequenceInstance getByIdAndLockAdvisory(long id, int idleLockTimeoutSeconds) {
+        setIdleLockTimeoutForCurrentTransaction(idleLockTimeoutSeconds);
+        jdbcTemplate.query("SELECT pg_advisory_xact_lock(?, ?)", (RowCallbackHandler) _ -> {
+        }, ADVISORY_LOCK_NAMESPACE, Long.hashCode(id));
+        return springDataJpaSequenceInstanceRepository.findById(id).orElse(null);
+    }
+
+    /**
+     * Takes the advisory lock of the sequence instance shared for the current transaction. Waits for a transaction
+     * holding the lock exclusively, but not for other transactions holding it shared.
+     */
+    public void lockAdvisoryShared(long id) {
+        jdbcTemplate.query("SELECT pg_advisory_xact_lock_shared(?, ?)", (RowCallbackHandler) _ -> {
+        }, ADVISORY_LOCK_NAMESPACE, Long.hashCode(id));
+    }
+
+    /**
+     * Reads the sequence instance with its lock version, without locking it.
+     */
+    public SequenceInstance getById(long id) {
+        return springDataJpaSequenceInstanceRepository.findById(id).orElse(null);
+    }
+
+    public void incrementLockVersion(long id) {
+        jdbcTemplate.update("UPDATE sequence_instance SET lock_version = lock_version + 1 WHERE id = ?", id);
+    }
+
+    /**
+     * Leases the sequence instance to the given owner until the lease duration has elapsed, if it is not leased or its
+     * lease has expired.
+     *
+     * @return true if the lease has been acquired
+     */
+    public boolean tryAcquireLease(long id, String owner, Duration leaseDuration) {
+        return jdbcTemplate.update("""
+                UPDATE sequence_instance SET lease_owner = ?, lease_expires_at = now() + ? * interval '1 millisecond'
+                WHERE id = ? AND (lease_owner IS NULL OR lease_expires_at < now())
+                """, owner, leaseDuration.toMillis(), id) == 1;
+    }
+
+    /**
+     * Extends the lease of the given owner by the lease duration from now.
+     *
+     * @return true if the lease is still held by the owner and has been renewed
+     */
+    public boolean renewLease(long id, String owner, Duration leaseDuration) {
+        return jdbcTemplate.update("""
+                UPDATE sequence_instance SET lease_expires_at = now() + ? * interval '1 millisecond'
+                WHERE id = ? AND lease_owner = ?
+                """, leaseDuration.toMillis(), id, owner) == 1;
+    }
+
+    /**
+     * Releases the lease of the given owner and clears the release marker of the sequence instance, if its lock
+     * version is still the given version.
+     *
+     * @return true if the lease has been released, false if the instance has been changed concurrently or the lease
+     * is not held by the owner anymore
+     */
+    public boolean releaseLeaseIfUnchanged(long id, String owner, long lockVersion) {
+        return jdbcTemplate.update("""
+                UPDATE sequence_instance SET lease_owner = NULL, lease_expires_at = NULL, release_requested_at = NULL
+                WHERE id = ? AND lease_owner = ? AND lock_version = ?
+                """, id, owner, lockVersion) == 1;
+    }
+
+    /**
+     * Releases the lease of the given owner without clearing the release marker, e.g. after a failed release pass.
+     */
+    public void abandonLease(long id, String owner) {
+        jdbcTemplate.update("""
+                UPDATE sequence_instance SET lease_owner = NULL, lease_expires_at = NULL
+                WHERE id = ? AND lease_owner = ?
+                """, id, owner);
+    }
+
+    /**
+     * @return true if the sequence instance is leased and its lease has not expired
+     */
+    public boolean isLeased(long id) {
+        return !jdbcTemplate.queryForList("""
+                SELECT id FROM sequence_instance
+                WHERE id = ? AND lease_owner IS NOT NULL AND lease_expires_at >= now()
+                """, Long.class, id).isEmpty();
+    }
+
+    /**
+     * Limits how long statements of the current transaction wait for a lock, see
+     * <a href="https://www.postgresql.org/docs/current/runtime-config-client.html">lock_timeout</a>. A statement waiting
+     * longer fails with a {@link org.springframework.dao.PessimisticLockingFailureException}.
+     */
+    public void setLockTimeoutForCurrentTransaction(Duration lockTimeout) {
+        long millis = Math.max(1, lockTimeout.toMillis());
+        entityManager.createNativeQuery("SET LOCAL lock_timeout = '" + millis + "'").executeUpdate();
+    }
+
+    /**
+     * Restores the lock timeout of the session for the remainder of the current transaction.
+     */
+    public void resetLockTimeoutForCurrentTransaction() {
+        entityManager.createNativeQuery("SET LOCAL lock_timeout TO DEFAULT").executeUpdate();
+    }
+
     /**
      * See <a href="https://www.postgresql.org/docs/current/sql-set.html">SET</a> and
      * <a href="https://www.postgresql.org/docs/current/runtime-config-client.html">Client Connection Settings</a>.
@@ -77,7 +459,7 @@ public class SequenceInstanceRepository {
      */
     @Transactional(propagation = Propagation.MANDATORY)
     public int deleteAllClosed() {
-        return springDataJpaSequenceInstanceRepository.deleteAllClosed();
+        return deleteAndEvictFromCache("DELETE FROM sequence_instance WHERE state = 'CLOSED' RETURNING name, context_id");
     }
 
     @Transactional(propagation = Propagation.MANDATORY)
@@ -98,7 +480,23 @@ public class SequenceInstanceRepository {
 
     @Transactional(propagation = Propagation.MANDATORY)
     public int deleteNotClosedById(long sequenceInstanceId) {
-        return springDataJpaSequenceInstanceRepository.deleteByIdAndStateNot(sequenceInstanceId, SequenceInstanceState.CLOSED);
+        return deleteAndEvictFromCache("DELETE FROM sequence_instance WHERE id = ? AND state <> 'CLOSED' RETURNING name, context_id",
+                sequenceInstanceId);
+    }
+
+    /**
+     * Deletes sequence instances with a statement returning the name and context ID of the deleted instances, and
+     * evicts their IDs from the {@link SequenceInstanceIdCache} once the current transaction has committed.
+     *
+     * @return The number of deleted sequence instances
+     */
+    private int deleteAndEvictFromCache(String deleteReturningKeysSql, Object... args) {
+        // JDBC statements do not flush the persistence context
+        entityManager.flush();
+        List<SequenceInstanceKey> deletedKeys = jdbcTemplate.query(deleteReturningKeysSql,
+                (rs, rowNum) -> new SequenceInstanceKey(rs.getString("name"), rs.getString("context_id")), args);
+        idCache.evictAfterCommit(deletedKeys);
+        return deletedKeys.size();
     }
 
     @Transactional(readOnly = true)
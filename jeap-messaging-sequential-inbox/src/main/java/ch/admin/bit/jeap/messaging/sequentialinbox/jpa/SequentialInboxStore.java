@@ -0,0 +1,95 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.BufferedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessageState;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Stores the messages and idempotence claims written and read by the inbox for every consumed and released message.
+ * The implementation is selected with {@code jeap.messaging.sequential-inbox.store}: {@code jpa} (default) stores the
+ * messages as entities, {@code jdbc} with plain JDBC statements, bypassing the persistence context. All operations run
+ * in the transaction of the caller, see {@link MessageRepository}.
+ */
+public interface SequentialInboxStore {
+
+    String STORE_PROPERTY = "jeap.messaging.sequential-inbox.store";
+
+    /**
+     * Inserts the sequenced message and, if not null, its buffered message with its headers. Assigns the IDs of the
+     * inserted rows to the given messages, and the ID of the sequenced message to the buffered message.
+     */
+    void saveMessage(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage);
+
+    /**
+     * Creates the idempotence claim of the sequenced message in its sequence instance and, if the claim has been created
+     * and no message with the same message type and idempotence ID exists, saves the message as with
+     * {@link #saveMessage(BufferedMessage, SequencedMessage)}. Stores may do so in a single statement.
+     */
+    default ClaimedMessage claimAndSaveMessage(BufferedMessage bufferedMessage, SequencedMessage sequencedMessage) {
+        String messageType = sequencedMessage.getMessageType();
+        String idempotenceId = sequencedMessage.getIdempotenceId();
+        boolean claimCreated = createIdempotenceClaim(messageType, idempotenceId, sequencedMessage.getSequenceInstanceId());
+        Optional<SequencedMessage> existingMessage = findMessageByMessageTypeAndIdempotenceId(messageType, idempotenceId);
+        if (claimCreated && existingMessage.isEmpty()) {
+            saveMessage(bufferedMessage, sequencedMessage);
+        }
+        return new ClaimedMessage(claimCreated, existingMessage);
+    }
+
+    Optional<SequencedMessage> findMessageByMessageTypeAndIdempotenceId(String messageType, String idempotenceId);
+
+    List<SequencedMessage> findMessagesBySequenceInstanceIdAndStates(long sequenceInstanceId, Set<SequencedMessageState> states);
+
+    /**
+     * Loads the buffered messages of the given sequenced messages with their headers.
+     *
+     * @return The buffered messages by sequenced message ID
+     */
+    Map<Long, BufferedMessage> findBufferedMessagesBySequencedMessageIds(Collection<Long> sequencedMessageIds);
+
+    void updateMessageState(long sequencedMessageId, SequencedMessageState state);
+
+    /**
+     * Marks the given messages as processed, and the given failed messages as failed while releasing their idempotence
+     * claims.
+     */
+    void updateMessageStates(List<SequencedMessage> processedMessages, List<SequencedMessage> failedMessages);
+
+    /**
+     * @return true if the claim has been created, false if it exists already
+     */
+    boolean createIdempotenceClaim(String messageType, String idempotenceId, long sequenceInstanceId);
+
+    /**
+     * Creates the given idempotence claims at once.
+     *
+     * @return The claims that have been created, i.e. that did not exist before
+     */
+    Set<IdempotenceClaim> createIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId);
+
+    /**
+     * Creates the given idempotence claims at once as in progress, leased until the given duration has elapsed. A claim
+     * still in progress after its lease expired has been left by a consumer that failed before completing or releasing
+     * it, and is taken over.
+     *
+     * @return The claims that have been created or taken over
+     */
+    Set<IdempotenceClaim> createInProgressIdempotenceClaims(Collection<IdempotenceClaim> claims, long sequenceInstanceId, Duration leaseDuration);
+
+    /**
+     * Completes the given idempotence claims in progress, which then permanently reject later deliveries.
+     */
+    void completeIdempotenceClaims(Collection<IdempotenceClaim> claims);
+
+    /**
+     * @return true if the claim has been deleted, false if it did not exist
+     */
+    boolean deleteIdempotenceClaim(String messageType, String idempotenceId);
+}
@@ -6,6 +6,7 @@ import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -18,6 +19,9 @@ interface SpringDataJpaBufferedMessageRepository extends JpaRepository<BufferedM
     @Query("from BufferedMessage bm left join fetch bm.headers where bm.sequencedMessageId = :sequencedMessageId")
     BufferedMessage getBySequencedMessageId(long sequencedMessageId);
 
+    @Query("select distinct bm from BufferedMessage bm left join fetch bm.headers where bm.sequencedMessageId in :sequencedMessageIds")
+    List<BufferedMessage> getAllBySequencedMessageIdIn(Collection<Long> sequencedMessageIds);
+
     @Modifying
     @Query(
             nativeQuery = true,
@@ -14,6 +14,7 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -23,14 +24,13 @@ interface SpringDataJpaSequenceInstanceRepository extends JpaRepository<Sequence
     @Query(nativeQuery = true, value = "SELECT id FROM sequence_instance WHERE name = ?1 AND context_id = ?2")
     Optional<Long> findIdByNameAndContextId(String name, String contextId);
 
+    @Query(nativeQuery = true, value = "SELECT context_id as contextId, id as id FROM sequence_instance WHERE name = ?1 AND context_id IN ?2")
+    List<SequenceInstanceIdByContextId> findIdsByNameAndContextIds(String name, Collection<String> contextIds);
+
     @Lock(LockModeType.PESSIMISTIC_WRITE)
     @Query("SELECT si FROM SequenceInstance si WHERE si.id = ?1")
     SequenceInstance getByIdAndLockForUpdate(long sequenceInstanceId);
 
-    @Modifying
-    @Query(nativeQuery = true, value = "DELETE FROM sequence_instance WHERE state = 'CLOSED'")
-    int deleteAllClosed();
-
     /**
      * Marks all expired sequence instances (retain_until < now()) for delayed removal by setting
      * remove_after = retain_until + delaySeconds
@@ -55,12 +55,17 @@ interface SpringDataJpaSequenceInstanceRepository extends JpaRepository<Sequence
      */
     List<SequenceInstance> findByRemoveAfterBeforeAndStateNotOrderByRemoveAfterAsc(ZonedDateTime date, SequenceInstanceState state, Pageable pageable);
 
-    @Modifying
-    @Query("DELETE FROM SequenceInstance si WHERE si.id = :id AND si.state <> :state")
-    int deleteByIdAndStateNot(@Param("id") long sequenceInstanceId, @Param("state") SequenceInstanceState state);
-
     Slice<SequenceInstance> findAllByPendingActionIsNotNull(Pageable pageable);
 
+    @Query(nativeQuery = true,
+            value = """
+                    SELECT * FROM sequence_instance
+                    WHERE release_requested_at < now() - make_interval(secs => :delaySeconds)
+                    ORDER BY release_requested_at
+                    LIMIT :maxNumInstances
+                    """)
+    List<SequenceInstance> findReleaseRequestedBefore(@Param("delaySeconds") long delaySeconds, @Param("maxNumInstances") int maxNumInstances);
+
     @Query(nativeQuery = true, value = "SELECT * from sequence_instance where created_at + (0.75 * EXTRACT(EPOCH FROM retain_until - created_at)) * INTERVAL '1 second' < now()")
     Page<SequenceInstance> findAllWithRetentionPeriodElapsed75Percent(Pageable pageable);
 
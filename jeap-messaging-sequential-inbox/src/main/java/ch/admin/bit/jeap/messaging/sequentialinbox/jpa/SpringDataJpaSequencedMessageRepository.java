@@ -16,7 +16,11 @@ import java.util.Set;
 @Repository
 interface SpringDataJpaSequencedMessageRepository extends JpaRepository<SequencedMessage, Long> {
 
-    @Query(nativeQuery = true, value = "SELECT message_type FROM sequenced_message WHERE sequence_instance_id = ?1 AND state = 'PROCESSED'")
+    @Query(nativeQuery = true, value = """
+            SELECT d.value FROM sequenced_message sm
+            JOIN sequenced_message_dictionary d ON d.id = sm.message_type_id
+            WHERE sm.sequence_instance_id = ?1 AND sm.state_id = 2
+            """)
     Set<String> getProcessedMessageTypesInSequence(Long sequenceInstanceId);
 
     List<SequencedMessage> findAllBySequenceInstanceIdAndStateIn(long sequenceInstanceId, Set<SequencedMessageState> state);
@@ -26,24 +30,33 @@ interface SpringDataJpaSequencedMessageRepository extends JpaRepository<Sequence
     Slice<SequencedMessage> findAllByPendingActionIsNotNull(Pageable pageable);
 
     @Modifying
-    @Query(nativeQuery = true, value = "UPDATE sequenced_message SET state = ?2, state_changed_at = NOW() WHERE id = ?1")
-    void updateStateById(long sequencedMessageId, String sequencedMessageStateName);
+    @Query(nativeQuery = true, value = "UPDATE sequenced_message SET state_id = ?2, state_changed_at = NOW() WHERE id = ?1")
+    void updateStateById(long sequencedMessageId, short sequencedMessageStateCode);
 
     @Modifying
     @Query(nativeQuery = true, value = "UPDATE sequenced_message SET pending_action = null WHERE id = ?1")
     void clearPendingActionById(long sequencedMessageId);
 
     @Modifying
-    @Query(nativeQuery = true, value = "UPDATE sequenced_message SET state = ?2, state_changed_at = NOW(), pending_action = null WHERE id = ?1")
-    void clearPendingActionById(long sequencedMessageId, String sequencedMessageStateName);
+    @Query(nativeQuery = true, value = "UPDATE sequenced_message SET state_id = ?2, state_changed_at = NOW(), pending_action = null WHERE id = ?1")
+    void clearPendingActionById(long sequencedMessageId, short sequencedMessageStateCode);
 
-    Optional<SequencedMessage> findByMessageTypeAndIdempotenceId(String messageType, String idempotenceId);
+    /**
+     * Finds the message by the ID of its message type rather than by the message type, which the dictionary converter
+     * would add to the dictionary if it is unknown.
+     */
+    @Query(nativeQuery = true, value = "SELECT * FROM sequenced_message WHERE message_type_id = ?1 AND idempotence_id = ?2")
+    Optional<SequencedMessage> findByMessageTypeIdAndIdempotenceId(short messageTypeId, String idempotenceId);
 
     @Modifying
     @Query(nativeQuery = true, value = "DELETE FROM sequenced_message WHERE sequence_instance_id IN (SELECT id FROM sequence_instance WHERE state = 'CLOSED')")
     int deleteForClosedSequences();
 
-    @Query(nativeQuery = true, value = "SELECT message_type as messageType, COUNT(*) as stateCount FROM sequenced_message WHERE state = 'WAITING' GROUP BY message_type")
+    @Query(nativeQuery = true, value = """
+            SELECT d.value as messageType, COUNT(*) as stateCount FROM sequenced_message sm
+            JOIN sequenced_message_dictionary d ON d.id = sm.message_type_id
+            WHERE sm.state_id = 1 GROUP BY d.value
+            """)
     List<CountByType> getWaitingMessageCountGroupedByMessageType();
 
     @Modifying
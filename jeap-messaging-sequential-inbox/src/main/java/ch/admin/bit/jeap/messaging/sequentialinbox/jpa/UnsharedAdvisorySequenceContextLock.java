@@ -0,0 +1,30 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Takes the same exclusive transaction-scoped advisory lock on the sequence instance ID as
+ * {@link AdvisorySequenceContextLock}, so that the handlers of a context are never invoked by two transactions at once.
+ * Unlike with {@link AdvisorySequenceContextLock}, transactions storing a message do not take the lock shared and thus
+ * never wait for a release pass: the processed message types and the waiting count they write are merged with the
+ * values written by the lock holder instead of being overwritten. No version is checked.
+ */
+@Component
+@RequiredArgsConstructor
+class UnsharedAdvisorySequenceContextLock implements SequenceContextLock {
+
+    private final SequenceInstanceRepository repository;
+
+    @Override
+    public SequenceContextLockType getType() {
+        return SequenceContextLockType.ADVISORY_UNSHARED;
+    }
+
+    @Override
+    public SequenceInstance lock(long sequenceInstanceId, int idleLockTimeoutSeconds) {
+        return repository.getByIdAndLockAdvisory(sequenceInstanceId, idleLockTimeoutSeconds);
+    }
+}
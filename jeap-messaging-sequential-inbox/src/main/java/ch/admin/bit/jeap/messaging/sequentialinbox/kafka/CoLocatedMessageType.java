@@ -0,0 +1,14 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxMessageHandler;
+
+/**
+ * A message type consumed by a consumer of several message types, see
+ * {@link KafkaSequentialInboxMessageConsumerFactory#startCoLocatedConsumer(String, String, java.util.List)} and
+ * {@link KafkaSequentialInboxMessageConsumerFactory#startRepartitionedConsumers(java.util.Map)}.
+ *
+ * @param topicName   The topic of the message type, or null to consume the default topic of the message type
+ * @param messageType The jEAP message type name
+ */
+public record CoLocatedMessageType(String topicName, String messageType, SequentialInboxMessageHandler messageHandler) {
+}
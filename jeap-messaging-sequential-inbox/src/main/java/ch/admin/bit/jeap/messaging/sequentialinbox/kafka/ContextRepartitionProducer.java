@@ -0,0 +1,96 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxException;
+import lombok.Getter;
+import org.apache.kafka.clients.CommonClientConfigs;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Re-publishes the raw key, value and headers of consumed records to the repartition topic of a cluster, choosing the
+ * partition by the sequence context so that all records of a context are consumed from the same partition. The
+ * records keep their original key, as the repartition topic is consumed with the deserializers of the cluster.
+ */
+class ContextRepartitionProducer implements AutoCloseable {
+
+    @Getter
+    private final String topicName;
+    private final Duration sendTimeout;
+    private final DefaultKafkaProducerFactory<byte[], byte[]> producerFactory;
+    private final KafkaTemplate<byte[], byte[]> kafkaTemplate;
+    private volatile int partitionCount;
+
+    ContextRepartitionProducer(String topicName, ConsumerFactory<?, ?> consumerFactory, Duration sendTimeout) {
+        this.topicName = topicName;
+        this.sendTimeout = sendTimeout;
+        this.producerFactory = new DefaultKafkaProducerFactory<>(producerConfig(consumerFactory));
+        this.kafkaTemplate = new KafkaTemplate<>(producerFactory);
+    }
+
+    /**
+     * Connection and security settings are shared with the consumers of the cluster, while its deserializers and
+     * interceptors do not apply to the producer
+     */
+    private static Map<String, Object> producerConfig(ConsumerFactory<?, ?> consumerFactory) {
+        Map<String, Object> producerConfig = new HashMap<>();
+        consumerFactory.getConfigurationProperties().forEach((name, value) -> {
+            if (ProducerConfig.configNames().contains(name)) {
+                producerConfig.put(name, value);
+            }
+        });
+        producerConfig.remove(CommonClientConfigs.CLIENT_ID_CONFIG);
+        producerConfig.remove(ProducerConfig.INTERCEPTOR_CLASSES_CONFIG);
+        producerConfig.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        producerConfig.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        producerConfig.put(ProducerConfig.ACKS_CONFIG, "all");
+        producerConfig.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        return producerConfig;
+    }
+
+    /**
+     * Sends the record to the partition of its sequence context and waits for the send to be acknowledged, so that the
+     * offset of the consumed record is only committed once it has been re-published.
+     */
+    void send(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, String sequenceContextKey) {
+        byte[] key = consumerRecord.key() == null ? null : consumerRecord.key().getSerializedMessage();
+        byte[] value = consumerRecord.value().getSerializedMessage();
+        ProducerRecord<byte[], byte[]> producerRecord = new ProducerRecord<>(topicName,
+                partition(sequenceContextKey), key, value, consumerRecord.headers());
+        try {
+            kafkaTemplate.send(producerRecord).get(sendTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SequentialInboxException.repartitionFailed(topicName, e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw SequentialInboxException.repartitionFailed(topicName, e);
+        }
+    }
+
+    private int partition(String sequenceContextKey) {
+        if (partitionCount == 0) {
+            partitionCount = kafkaTemplate.partitionsFor(topicName).size();
+        }
+        return Utils.toPositive(Utils.murmur2(sequenceContextKey.getBytes(StandardCharsets.UTF_8))) % partitionCount;
+    }
+
+    @Override
+    public void close() {
+        producerFactory.destroy();
+    }
+}
@@ -0,0 +1,24 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.sequentialinbox.inbox.SequentialInboxService;
+import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxMessageHandler;
+import lombok.RequiredArgsConstructor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.listener.BatchAcknowledgingMessageListener;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.List;
+
+@RequiredArgsConstructor
+public class KafkaSequentialInboxBatchMessageListener implements BatchAcknowledgingMessageListener<AvroMessageKey, AvroMessage> {
+
+    private final SequentialInboxMessageHandler messageHandler;
+    private final SequentialInboxService sequentialInboxService;
+
+    @Override
+    public void onMessage(List<ConsumerRecord<AvroMessageKey, AvroMessage>> consumerRecords, Acknowledgment acknowledgment) {
+        sequentialInboxService.handleMessages(consumerRecords, messageHandler, acknowledgment);
+    }
+}
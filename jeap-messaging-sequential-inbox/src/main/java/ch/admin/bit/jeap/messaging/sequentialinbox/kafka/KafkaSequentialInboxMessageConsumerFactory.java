@@ -4,27 +4,35 @@ import ch.admin.bit.jeap.messaging.avro.AvroMessage;
 import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
 import ch.admin.bit.jeap.messaging.avro.MessageTypeMetadata;
 import ch.admin.bit.jeap.messaging.kafka.contract.ContractsValidator;
+import ch.admin.bit.jeap.messaging.kafka.errorhandling.ErrorServiceSender;
 import ch.admin.bit.jeap.messaging.kafka.filter.ErrorHandlingTargetFilter;
 import ch.admin.bit.jeap.messaging.kafka.properties.KafkaProperties;
 import ch.admin.bit.jeap.messaging.kafka.spring.JeapKafkaBeanNames;
 import ch.admin.bit.jeap.messaging.sequentialinbox.inbox.SequentialInboxService;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.PartitionOwnedSequenceInstances;
 import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxException;
 import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxMessageHandler;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.listener.AcknowledgingMessageListener;
+import org.springframework.kafka.listener.BatchAcknowledgingMessageListener;
 import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ContainerProperties;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
-import java.util.Arrays;
-import java.util.List;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Component
 @Slf4j
@@ -36,16 +44,47 @@ public class KafkaSequentialInboxMessageConsumerFactory {
     private final SequentialInboxService sequentialInboxService;
     private final ContractsValidator contractsValidator;
     private final ErrorHandlingTargetFilter errorHandlingTargetFilter;
+    private final ErrorServiceSender errorServiceSender;
+    private final PartitionOwnedSequenceInstances partitionOwnedSequenceInstances;
+    private final boolean batchListenerEnabled;
+    private final boolean lanesEnabled;
+    private final int lanesMaxInFlightRecords;
 
     private final List<ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage>> containers = new CopyOnWriteArrayList<>();
+    private final List<SequenceContextLaneListener> laneListeners = new CopyOnWriteArrayList<>();
+    private final Map<String, ContextRepartitionProducer> contextRepartitionProducers = new ConcurrentHashMap<>();
+    private String repartitionTopic;
+    private Duration repartitionSendTimeout = Duration.ofSeconds(30);
 
-    public KafkaSequentialInboxMessageConsumerFactory(KafkaProperties kafkaProperties, BeanFactory beanFactory, SequentialInboxService sequentialInboxService, ContractsValidator contractsValidator, ErrorHandlingTargetFilter errorHandlingTargetFilter) {
+    public KafkaSequentialInboxMessageConsumerFactory(KafkaProperties kafkaProperties, BeanFactory beanFactory, SequentialInboxService sequentialInboxService, ContractsValidator contractsValidator, ErrorHandlingTargetFilter errorHandlingTargetFilter,
+                                                      ErrorServiceSender errorServiceSender, PartitionOwnedSequenceInstances partitionOwnedSequenceInstances,
+                                                      @Value("${jeap.messaging.sequential-inbox.batch-listener.enabled:false}") boolean batchListenerEnabled,
+                                                      @Value("${jeap.messaging.sequential-inbox.lanes.enabled:false}") boolean lanesEnabled,
+                                                      @Value("${jeap.messaging.sequential-inbox.lanes.max-in-flight-records:1000}") int lanesMaxInFlightRecords) {
         this.kafkaProperties = kafkaProperties;
         this.beanFactory = beanFactory;
         this.jeapKafkaBeanNames = new JeapKafkaBeanNames(kafkaProperties.getDefaultClusterName());
         this.sequentialInboxService = sequentialInboxService;
         this.contractsValidator = contractsValidator;
         this.errorHandlingTargetFilter = errorHandlingTargetFilter;
+        this.errorServiceSender = errorServiceSender;
+        this.partitionOwnedSequenceInstances = partitionOwnedSequenceInstances;
+        this.batchListenerEnabled = batchListenerEnabled;
+        this.lanesEnabled = lanesEnabled && !batchListenerEnabled;
+        this.lanesMaxInFlightRecords = lanesMaxInFlightRecords;
+        if (lanesEnabled && batchListenerEnabled) {
+            log.warn("Sequence context lanes are not supported by the batch listener and are disabled");
+        }
+    }
+
+    @Value("${jeap.messaging.sequential-inbox.repartition.topic:}")
+    public void setRepartitionTopic(String repartitionTopic) {
+        this.repartitionTopic = repartitionTopic;
+    }
+
+    @Value("${jeap.messaging.sequential-inbox.repartition.send-timeout:30s}")
+    public void setRepartitionSendTimeout(Duration repartitionSendTimeout) {
+        this.repartitionSendTimeout = repartitionSendTimeout;
     }
 
     public void startConsumer(String topicName, String messageType, String clusterName, SequentialInboxMessageHandler messageHandler) {
@@ -57,9 +96,121 @@ public class KafkaSequentialInboxMessageConsumerFactory {
         }
         contractsValidator.ensureConsumerContract(messageType, topicName);
 
-        log.info("Starting sequential inbox message listener for messageType '{}' on topic '{}' on cluster '{}'", messageType, topicName, clusterName);
+        if (batchListenerEnabled) {
+            log.info("Starting sequential inbox batch message listener for messageType '{}' on topic '{}' on cluster '{}'", messageType, topicName, clusterName);
+            KafkaSequentialInboxBatchMessageListener listener = new KafkaSequentialInboxBatchMessageListener(messageHandler, sequentialInboxService);
+            startConsumer(topicName, clusterName, createFilteredBatchListener(listener));
+        } else if (lanesEnabled) {
+            log.info("Starting sequential inbox message listener with sequence context lanes for messageType '{}' on topic '{}' on cluster '{}'", messageType, topicName, clusterName);
+            KafkaSequentialInboxMessageListener listener = new KafkaSequentialInboxMessageListener(messageHandler, sequentialInboxService);
+            startLaneConsumer(Set.of(topicName), clusterName, null, listener);
+        } else {
+            log.info("Starting sequential inbox message listener for messageType '{}' on topic '{}' on cluster '{}'", messageType, topicName, clusterName);
+            KafkaSequentialInboxMessageListener listener = new KafkaSequentialInboxMessageListener(messageHandler, sequentialInboxService);
+            startConsumer(topicName, clusterName, createFilteredListener(listener));
+        }
+    }
+
+    /**
+     * Starts a single consumer for the topics of several message types in a consumer group of its own, whose
+     * partitions are assigned by the {@link SequenceAwarePartitionAssignor}. Partition N of all topics is thus consumed
+     * by the same consumer, see docs/configuration.md.
+     *
+     * @param consumerGroupName Appended to the group ID of the cluster to name the consumer group
+     * @param clusterName       The cluster of all message types, or null for the default cluster
+     * @param messageTypes      The message types consumed by the consumer
+     */
+    public void startCoLocatedConsumer(String consumerGroupName, String clusterName, List<CoLocatedMessageType> messageTypes) {
+        if (!StringUtils.hasText(clusterName)) {
+            clusterName = kafkaProperties.getDefaultClusterName();
+        }
+        Map<String, SequentialInboxMessageHandler> messageHandlersByMessageType = new LinkedHashMap<>();
+        Set<String> topicNames = new LinkedHashSet<>();
+        for (CoLocatedMessageType messageType : messageTypes) {
+            String topicName = messageType.topicName();
+            if (!StringUtils.hasText(topicName)) {
+                topicName = getDefaultTopicForMessageType(messageType.messageHandler().getMessageTypeClass());
+            }
+            contractsValidator.ensureConsumerContract(messageType.messageType(), topicName);
+            messageHandlersByMessageType.put(messageType.messageType(), messageType.messageHandler());
+            topicNames.add(topicName);
+        }
+        log.info("Starting co-located sequential inbox consumer '{}'", consumerGroupName);
+        startMultiTypeConsumer(topicNames, clusterName, consumerGroupName, messageHandlersByMessageType);
+    }
+
+    /**
+     * Starts a consumer re-publishing the sequenced records of a message type to the repartition topic of its cluster,
+     * see {@link #startRepartitionedConsumers(Map)}. Records not sequenced are handled immediately.
+     */
+    public void startRepartitioningConsumer(String topicName, String messageType, String clusterName, SequentialInboxMessageHandler messageHandler) {
+        if (!StringUtils.hasText(clusterName)) {
+            clusterName = kafkaProperties.getDefaultClusterName();
+        }
+        if (!StringUtils.hasText(topicName)) {
+            topicName = getDefaultTopicForMessageType(messageHandler.getMessageTypeClass());
+        }
+        contractsValidator.ensureConsumerContract(messageType, topicName);
+
+        ContextRepartitionProducer contextRepartitionProducer = getContextRepartitionProducer(clusterName);
+        log.info("Starting sequential inbox repartitioning message listener for messageType '{}' on topic '{}' on cluster '{}' to topic '{}'",
+                messageType, topicName, clusterName, contextRepartitionProducer.getTopicName());
         KafkaSequentialInboxMessageListener listener = new KafkaSequentialInboxMessageListener(messageHandler, sequentialInboxService);
-        startConsumer(topicName, clusterName, listener);
+        KafkaSequentialInboxRepartitioningMessageListener repartitioningListener =
+                new KafkaSequentialInboxRepartitioningMessageListener(listener, sequentialInboxService, contextRepartitionProducer);
+        startConsumer(topicName, clusterName, createFilteredListener(repartitioningListener));
+    }
+
+    /**
+     * Starts a consumer per cluster sequencing the records re-published to the repartition topic of the cluster by the
+     * consumers started with {@link #startRepartitioningConsumer(String, String, String, SequentialInboxMessageHandler)}.
+     * The contracts of the message types are validated for their source topics only, as the repartition topic is
+     * internal to the service.
+     *
+     * @param messageTypesByClusterName The message types by their cluster, or by null for the default cluster
+     */
+    public void startRepartitionedConsumers(Map<String, List<CoLocatedMessageType>> messageTypesByClusterName) {
+        Map<String, Map<String, SequentialInboxMessageHandler>> messageHandlersByClusterName = new LinkedHashMap<>();
+        messageTypesByClusterName.forEach((clusterName, messageTypes) -> {
+            String resolvedClusterName = StringUtils.hasText(clusterName) ? clusterName : kafkaProperties.getDefaultClusterName();
+            Map<String, SequentialInboxMessageHandler> messageHandlersByMessageType =
+                    messageHandlersByClusterName.computeIfAbsent(resolvedClusterName, _ -> new LinkedHashMap<>());
+            messageTypes.forEach(messageType -> messageHandlersByMessageType.put(messageType.messageType(), messageType.messageHandler()));
+        });
+        messageHandlersByClusterName.forEach((clusterName, messageHandlersByMessageType) -> {
+            String repartitionTopicName = getContextRepartitionProducer(clusterName).getTopicName();
+            log.info("Starting sequential inbox consumer of repartition topic '{}'", repartitionTopicName);
+            startMultiTypeConsumer(Set.of(repartitionTopicName), clusterName, null, messageHandlersByMessageType);
+        });
+    }
+
+    private void startMultiTypeConsumer(Set<String> topicNames, String clusterName, String coLocatedConsumerGroupName,
+                                        Map<String, SequentialInboxMessageHandler> messageHandlersByMessageType) {
+        if (batchListenerEnabled) {
+            log.info("Starting sequential inbox batch message listener for messageTypes {} on topics {} on cluster '{}'",
+                    messageHandlersByMessageType.keySet(), topicNames, clusterName);
+            KafkaSequentialInboxMultiTypeBatchMessageListener listener = new KafkaSequentialInboxMultiTypeBatchMessageListener(messageHandlersByMessageType, sequentialInboxService);
+            startConsumer(topicNames, clusterName, coLocatedConsumerGroupName, createFilteredBatchListener(listener));
+        } else if (lanesEnabled) {
+            log.info("Starting sequential inbox message listener with sequence context lanes for messageTypes {} on topics {} on cluster '{}'",
+                    messageHandlersByMessageType.keySet(), topicNames, clusterName);
+            KafkaSequentialInboxMultiTypeMessageListener listener = new KafkaSequentialInboxMultiTypeMessageListener(messageHandlersByMessageType, sequentialInboxService);
+            startLaneConsumer(topicNames, clusterName, coLocatedConsumerGroupName, listener);
+        } else {
+            log.info("Starting sequential inbox message listener for messageTypes {} on topics {} on cluster '{}'",
+                    messageHandlersByMessageType.keySet(), topicNames, clusterName);
+            KafkaSequentialInboxMultiTypeMessageListener listener = new KafkaSequentialInboxMultiTypeMessageListener(messageHandlersByMessageType, sequentialInboxService);
+            startConsumer(topicNames, clusterName, coLocatedConsumerGroupName, createFilteredListener(listener));
+        }
+    }
+
+    private ContextRepartitionProducer getContextRepartitionProducer(String clusterName) {
+        return contextRepartitionProducers.computeIfAbsent(clusterName, _ -> {
+            ConcurrentKafkaListenerContainerFactory<AvroMessageKey, AvroMessage> kafkaListenerContainerFactory = getKafkaListenerContainerFactory(clusterName);
+            String topicName = StringUtils.hasText(repartitionTopic) ? repartitionTopic :
+                    getGroupId(kafkaListenerContainerFactory) + "-sequential-inbox-repartition";
+            return new ContextRepartitionProducer(topicName, kafkaListenerContainerFactory.getConsumerFactory(), repartitionSendTimeout);
+        });
     }
 
     private String getDefaultTopicForMessageType(Class<AvroMessage> messageTypeClass) {
@@ -78,20 +229,88 @@ public class KafkaSequentialInboxMessageConsumerFactory {
         }
     }
 
-    private void startConsumer(String topicName, String clusterName, AcknowledgingMessageListener<AvroMessageKey, AvroMessage> messageListener) {
+    /**
+     * @param messageListener Either a record or a batch message listener
+     */
+    private void startConsumer(String topicName, String clusterName, Object messageListener) {
+        startConsumer(Set.of(topicName), clusterName, null, messageListener);
+    }
+
+    /**
+     * Starts a consumer dispatching the records to a {@link SequenceContextLaneListener}. The container is stopped by
+     * the lane listener if a failing record can neither be handled nor sent to the error service.
+     */
+    private void startLaneConsumer(Set<String> topicNames, String clusterName, String coLocatedConsumerGroupName,
+                                   AcknowledgingMessageListener<AvroMessageKey, AvroMessage> listener) {
+        AtomicReference<ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage>> container = new AtomicReference<>();
+        SequenceContextLaneListener laneListener = new SequenceContextLaneListener(listener,
+                sequentialInboxService::getSequenceContextKey, errorServiceSender,
+                () -> container.get().stop(() -> log.error("Stopped the message listener container of topics {}, " +
+                        "its records not acknowledged are consumed again once their partitions are reassigned", topicNames)),
+                lanesMaxInFlightRecords);
+        laneListeners.add(laneListener);
+        container.set(createContainer(topicNames, clusterName, coLocatedConsumerGroupName, createFilteredListener(laneListener)));
+        start(container.get());
+    }
+
+    /**
+     * @param coLocatedConsumerGroupName Null for the consumer group of the cluster, otherwise the name of the
+     *                                   co-located consumer group
+     * @param messageListener            Either a record or a batch message listener
+     */
+    private void startConsumer(Set<String> topicNames, String clusterName, String coLocatedConsumerGroupName, Object messageListener) {
+        start(createContainer(topicNames, clusterName, coLocatedConsumerGroupName, messageListener));
+    }
+
+    private void start(ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage> container) {
+        container.start();
+        containers.add(container);
+    }
+
+    private ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage> createContainer(Set<String> topicNames, String clusterName,
+                                                                                          String coLocatedConsumerGroupName, Object messageListener) {
         ConcurrentKafkaListenerContainerFactory<AvroMessageKey, AvroMessage> kafkaListenerContainerFactory = getKafkaListenerContainerFactory(clusterName);
-        ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage> container = kafkaListenerContainerFactory.createContainer(topicName);
+        ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage> container = kafkaListenerContainerFactory.createContainer(topicNames.toArray(String[]::new));
         // The inbox invokes the JeapKafkaMessageCallback explicitly, avoid duplicate invocations by the interceptor
         // The inbox does not support record interceptors in general as buffered records might be consumed/buffered by
         // the inbox and not by the application's business logic. The inbox will then invoke the message handler as
         // soon as the release condition for the message is satisfied.
         container.setRecordInterceptor(null);
-        // setupMessageListener bypasses the listener adapter so we need to set the filter programmatically
-        AcknowledgingMessageListener<AvroMessageKey, AvroMessage> filteredListener = createFilteredListener(messageListener);
+        ContainerProperties containerProperties = container.getContainerProperties();
+        if (coLocatedConsumerGroupName != null) {
+            configureCoLocatedConsumerGroup(kafkaListenerContainerFactory, containerProperties, coLocatedConsumerGroupName);
+        }
+        // State kept in memory for sequences with partition context locking is only valid while the partition is owned
+        containerProperties.setConsumerRebalanceListener(new PartitionOwnershipRebalanceListener(
+                containerProperties.getConsumerRebalanceListener(), partitionOwnedSequenceInstances));
+        if (lanesEnabled) {
+            // Records are acknowledged out of order by their lanes. With async acks, the container commits the offsets
+            // of a partition only up to the lowest record not yet acknowledged.
+            containerProperties.setAckMode(ContainerProperties.AckMode.MANUAL);
+            containerProperties.setAsyncAcks(true);
+        }
+        // setupMessageListener bypasses the listener adapter, the listener is thus expected to apply the filter itself
+        container.setupMessageListener(messageListener);
+        return container;
+    }
 
-        container.setupMessageListener(filteredListener);
-        container.start();
-        containers.add(container);
+    private static void configureCoLocatedConsumerGroup(ConcurrentKafkaListenerContainerFactory<AvroMessageKey, AvroMessage> kafkaListenerContainerFactory,
+                                                        ContainerProperties containerProperties, String coLocatedConsumerGroupName) {
+        String groupId = containerProperties.getGroupId();
+        if (!StringUtils.hasText(groupId)) {
+            groupId = getGroupId(kafkaListenerContainerFactory);
+        }
+        // A group of its own, as the assignor must be used by all members of a group and the partitions of all
+        // co-located topics must be assigned by the same rebalance
+        containerProperties.setGroupId(groupId + "-" + coLocatedConsumerGroupName);
+        Properties consumerProperties = new Properties();
+        consumerProperties.putAll(containerProperties.getKafkaConsumerProperties());
+        consumerProperties.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, SequenceAwarePartitionAssignor.class.getName());
+        containerProperties.setKafkaConsumerProperties(consumerProperties);
+    }
+
+    private static String getGroupId(ConcurrentKafkaListenerContainerFactory<AvroMessageKey, AvroMessage> kafkaListenerContainerFactory) {
+        return (String) kafkaListenerContainerFactory.getConsumerFactory().getConfigurationProperties().get(ConsumerConfig.GROUP_ID_CONFIG);
     }
 
     private AcknowledgingMessageListener<AvroMessageKey, AvroMessage> createFilteredListener(
@@ -99,9 +318,7 @@ public class KafkaSequentialInboxMessageConsumerFactory {
 
         return (ConsumerRecord<AvroMessageKey, AvroMessage> data, Acknowledgment acknowledgment) -> {
             // Apply filter
-            @SuppressWarnings("unchecked")
-            ConsumerRecord<Object, Object> objectRecord = (ConsumerRecord<Object, Object>) (ConsumerRecord<?, ?>) data;
-            if (errorHandlingTargetFilter.filter(objectRecord)) {
+            if (isFilteredOut(data)) {
                 // Message filtered out - acknowledge it
                 if (acknowledgment != null) {
                     acknowledgment.acknowledge();
@@ -114,6 +331,20 @@ public class KafkaSequentialInboxMessageConsumerFactory {
         };
     }
 
+    private BatchAcknowledgingMessageListener<AvroMessageKey, AvroMessage> createFilteredBatchListener(
+            BatchAcknowledgingMessageListener<AvroMessageKey, AvroMessage> delegate) {
+
+        // Filtered records are acknowledged together with the remaining records of the batch
+        return (List<ConsumerRecord<AvroMessageKey, AvroMessage>> data, Acknowledgment acknowledgment) ->
+                delegate.onMessage(data.stream().filter(consumerRecord -> !isFilteredOut(consumerRecord)).toList(), acknowledgment);
+    }
+
+    private boolean isFilteredOut(ConsumerRecord<AvroMessageKey, AvroMessage> data) {
+        @SuppressWarnings("unchecked")
+        ConsumerRecord<Object, Object> objectRecord = (ConsumerRecord<Object, Object>) (ConsumerRecord<?, ?>) data;
+        return errorHandlingTargetFilter.filter(objectRecord);
+    }
+
     @SuppressWarnings("unchecked")
     private ConcurrentKafkaListenerContainerFactory<AvroMessageKey, AvroMessage> getKafkaListenerContainerFactory(String clusterName) {
         try {
@@ -129,6 +360,8 @@ public class KafkaSequentialInboxMessageConsumerFactory {
         log.info("Stopping all message listener containers...");
         containers.forEach(concurrentMessageListenerContainer ->
                 concurrentMessageListenerContainer.stop(true));
+        laneListeners.forEach(SequenceContextLaneListener::close);
+        contextRepartitionProducers.values().forEach(ContextRepartitionProducer::close);
     }
 
     public List<ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage>> getContainers() {
@@ -0,0 +1,41 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.sequentialinbox.inbox.SequentialInboxService;
+import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxMessageHandler;
+import lombok.RequiredArgsConstructor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.listener.BatchAcknowledgingMessageListener;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ch.admin.bit.jeap.messaging.sequentialinbox.kafka.KafkaSequentialInboxMultiTypeMessageListener.getMessageHandler;
+
+/**
+ * Batch listener of a co-located consumer. The records of a batch are handled per message type, each in the order
+ * they have been consumed, and the batch is acknowledged once all records have been handled.
+ */
+@RequiredArgsConstructor
+class KafkaSequentialInboxMultiTypeBatchMessageListener implements BatchAcknowledgingMessageListener<AvroMessageKey, AvroMessage> {
+
+    private final Map<String, SequentialInboxMessageHandler> messageHandlersByMessageType;
+    private final SequentialInboxService sequentialInboxService;
+
+    @Override
+    public void onMessage(List<ConsumerRecord<AvroMessageKey, AvroMessage>> consumerRecords, Acknowledgment acknowledgment) {
+        Map<SequentialInboxMessageHandler, List<ConsumerRecord<AvroMessageKey, AvroMessage>>> recordsByMessageHandler = new LinkedHashMap<>();
+        consumerRecords.forEach(consumerRecord -> recordsByMessageHandler
+                .computeIfAbsent(getMessageHandler(messageHandlersByMessageType, consumerRecord), _ -> new ArrayList<>())
+                .add(consumerRecord));
+        recordsByMessageHandler.forEach((messageHandler, records) ->
+                sequentialInboxService.handleMessages(records, messageHandler, null));
+        if (acknowledgment != null) {
+            acknowledgment.acknowledge();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.sequentialinbox.inbox.SequentialInboxService;
+import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxException;
+import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxMessageHandler;
+import lombok.RequiredArgsConstructor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.listener.AcknowledgingMessageListener;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.Map;
+
+/**
+ * Listener of a co-located consumer, which consumes the topics of several message types and handles each record with
+ * the handler of its message type.
+ */
+@RequiredArgsConstructor
+class KafkaSequentialInboxMultiTypeMessageListener implements AcknowledgingMessageListener<AvroMessageKey, AvroMessage> {
+
+    private final Map<String, SequentialInboxMessageHandler> messageHandlersByMessageType;
+    private final SequentialInboxService sequentialInboxService;
+
+    @Override
+    public void onMessage(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, Acknowledgment acknowledgment) {
+        sequentialInboxService.handleMessage(consumerRecord, getMessageHandler(messageHandlersByMessageType, consumerRecord), acknowledgment);
+    }
+
+    static SequentialInboxMessageHandler getMessageHandler(Map<String, SequentialInboxMessageHandler> messageHandlersByMessageType,
+                                                           ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        String messageType = consumerRecord.value().getType().getName();
+        SequentialInboxMessageHandler messageHandler = messageHandlersByMessageType.get(messageType);
+        if (messageHandler == null) {
+            throw SequentialInboxException.messageTypeNotConfiguredInAnySequence(messageType);
+        }
+        return messageHandler;
+    }
+}
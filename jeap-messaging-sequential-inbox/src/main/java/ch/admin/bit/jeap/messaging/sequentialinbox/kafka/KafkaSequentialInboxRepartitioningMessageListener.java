@@ -0,0 +1,36 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.sequentialinbox.inbox.SequentialInboxService;
+import lombok.RequiredArgsConstructor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.listener.AcknowledgingMessageListener;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.Optional;
+
+/**
+ * Listener of a source topic in repartition mode. Sequenced records are re-published to the repartition topic by their
+ * sequence context and handled by its consumer, records not sequenced are handled immediately by the delegate.
+ */
+@RequiredArgsConstructor
+class KafkaSequentialInboxRepartitioningMessageListener implements AcknowledgingMessageListener<AvroMessageKey, AvroMessage> {
+
+    private final AcknowledgingMessageListener<AvroMessageKey, AvroMessage> delegate;
+    private final SequentialInboxService sequentialInboxService;
+    private final ContextRepartitionProducer contextRepartitionProducer;
+
+    @Override
+    public void onMessage(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, Acknowledgment acknowledgment) {
+        Optional<String> sequenceContextKey = sequentialInboxService.getSequenceContextKey(consumerRecord.value());
+        if (sequenceContextKey.isEmpty()) {
+            delegate.onMessage(consumerRecord, acknowledgment);
+            return;
+        }
+        contextRepartitionProducer.send(consumerRecord, sequenceContextKey.get());
+        if (acknowledgment != null) {
+            acknowledgment.acknowledge();
+        }
+    }
+}
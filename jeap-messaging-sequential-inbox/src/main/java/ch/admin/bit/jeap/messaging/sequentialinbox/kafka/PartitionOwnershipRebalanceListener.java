@@ -0,0 +1,61 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.PartitionOwnedSequenceInstances;
+import lombok.RequiredArgsConstructor;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+
+import java.util.Collection;
+
+/**
+ * Drops the state of the sequence instances owned by the partitions of a container when they are assigned, revoked
+ * or lost, see {@link PartitionOwnedSequenceInstances}. Delegates to the rebalance listener configured on the
+ * container, if any.
+ */
+@RequiredArgsConstructor
+class PartitionOwnershipRebalanceListener implements ConsumerAwareRebalanceListener {
+
+    private final ConsumerRebalanceListener delegate;
+    private final PartitionOwnedSequenceInstances partitionOwnedSequenceInstances;
+
+    @Override
+    public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (delegate instanceof ConsumerAwareRebalanceListener consumerAwareDelegate) {
+            consumerAwareDelegate.onPartitionsRevokedBeforeCommit(consumer, partitions);
+        } else if (delegate != null) {
+            delegate.onPartitionsRevoked(partitions);
+        }
+    }
+
+    @Override
+    public void onPartitionsRevokedAfterCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (delegate instanceof ConsumerAwareRebalanceListener consumerAwareDelegate) {
+            consumerAwareDelegate.onPartitionsRevokedAfterCommit(consumer, partitions);
+        }
+        partitionOwnedSequenceInstances.disown(partitions);
+    }
+
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (delegate instanceof ConsumerAwareRebalanceListener consumerAwareDelegate) {
+            consumerAwareDelegate.onPartitionsLost(consumer, partitions);
+        } else if (delegate != null) {
+            delegate.onPartitionsLost(partitions);
+        }
+        partitionOwnedSequenceInstances.disown(partitions);
+    }
+
+    @Override
+    public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        // State kept from an earlier assignment may be outdated by the consumer the partitions have been assigned to
+        // in the meantime, it is read again from the database
+        partitionOwnedSequenceInstances.disown(partitions);
+        if (delegate instanceof ConsumerAwareRebalanceListener consumerAwareDelegate) {
+            consumerAwareDelegate.onPartitionsAssigned(consumer, partitions);
+        } else if (delegate != null) {
+            delegate.onPartitionsAssigned(partitions);
+        }
+    }
+}
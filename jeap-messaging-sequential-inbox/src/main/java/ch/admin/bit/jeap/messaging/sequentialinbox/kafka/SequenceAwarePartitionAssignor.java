@@ -0,0 +1,68 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerPartitionAssignor;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.*;
+
+/**
+ * Assigns partition N of every topic subscribed by a consumer group to the same member, so that the records of a
+ * context are consumed by the same consumer on all topics of its sequences if their producers key them by the
+ * context and the topics have the same number of partitions. Members are ordered by their group instance ID, or their
+ * member ID if they have none, and partition N is assigned to the N-th member modulo the number of members. A topic
+ * not subscribed by that member, e.g. during a rolling deployment changing the subscription, is assigned to the
+ * members subscribing it the same way.
+ */
+@Slf4j
+public class SequenceAwarePartitionAssignor implements ConsumerPartitionAssignor {
+
+    public static final String NAME = "jeap-sequential-inbox-sequence-aware";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public GroupAssignment assign(Cluster metadata, GroupSubscription groupSubscription) {
+        Map<String, Subscription> subscriptions = groupSubscription.groupSubscription();
+        List<String> memberIds = subscriptions.keySet().stream()
+                .sorted(Comparator.comparing((String memberId) -> subscriptions.get(memberId).groupInstanceId().orElse(memberId))
+                        .thenComparing(Comparator.naturalOrder()))
+                .toList();
+        Map<String, List<TopicPartition>> assignedPartitions = new LinkedHashMap<>();
+        memberIds.forEach(memberId -> assignedPartitions.put(memberId, new ArrayList<>()));
+
+        SortedSet<String> topics = new TreeSet<>();
+        subscriptions.values().forEach(subscription -> topics.addAll(subscription.topics()));
+        Map<String, Integer> partitionCounts = new TreeMap<>();
+        for (String topic : topics) {
+            Integer partitionCount = metadata.partitionCountForTopic(topic);
+            if (partitionCount == null) {
+                log.warn("No metadata for topic {}, not assigning its partitions", topic);
+                continue;
+            }
+            partitionCounts.put(topic, partitionCount);
+            List<String> subscribedMemberIds = memberIds.stream()
+                    .filter(memberId -> subscriptions.get(memberId).topics().contains(topic))
+                    .toList();
+            for (int partition = 0; partition < partitionCount; partition++) {
+                String memberId = memberIds.get(partition % memberIds.size());
+                if (!subscriptions.get(memberId).topics().contains(topic)) {
+                    memberId = subscribedMemberIds.get(partition % subscribedMemberIds.size());
+                }
+                assignedPartitions.get(memberId).add(new TopicPartition(topic, partition));
+            }
+        }
+        if (new HashSet<>(partitionCounts.values()).size() > 1) {
+            log.warn("Co-located topics have different partition counts {}, records of a context keyed to different " +
+                     "partition numbers are consumed by different members", partitionCounts);
+        }
+
+        Map<String, Assignment> assignments = new HashMap<>();
+        assignedPartitions.forEach((memberId, partitions) -> assignments.put(memberId, new Assignment(partitions)));
+        return new GroupAssignment(assignments);
+    }
+}
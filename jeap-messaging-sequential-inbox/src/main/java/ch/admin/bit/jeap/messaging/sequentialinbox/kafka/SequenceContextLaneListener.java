@@ -0,0 +1,145 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.kafka.errorhandling.ErrorServiceSender;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.listener.AcknowledgingMessageListener;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Dispatches the records of a listener container to lanes per sequence context, which are run on virtual threads.
+ * Records of the same lane are handled in the order they have been consumed, records of different lanes in parallel.
+ * Records which are not sequenced are dispatched to a lane per record key, or per partition if they have no key.
+ * <p>
+ * Records are acknowledged once handled. The container is expected to commit offsets asynchronously acknowledged out
+ * of order only up to the lowest offset not yet acknowledged per partition, so that no record is skipped if the
+ * consumer stops. The number of records in flight is bounded: the consumer thread blocks while the bound is reached.
+ * <p>
+ * As the container does not see the exceptions thrown in a lane, a failing record is sent to the error service and
+ * acknowledged, as are failing records of a batch. If the record cannot be sent to the error service, it is not
+ * acknowledged and the container is stopped: its offsets are then not committed beyond the record, which is consumed
+ * again once its partition has been assigned to another consumer or the service has been restarted.
+ */
+@Slf4j
+class SequenceContextLaneListener implements AcknowledgingMessageListener<AvroMessageKey, AvroMessage>, AutoCloseable {
+
+    private static final CompletableFuture<Void> IDLE_LANE = CompletableFuture.completedFuture(null);
+
+    private final AcknowledgingMessageListener<AvroMessageKey, AvroMessage> delegate;
+    private final Function<AvroMessage, Optional<String>> sequenceContextKeyFunction;
+    private final ErrorServiceSender errorServiceSender;
+    private final Runnable stopContainer;
+    private final AtomicBoolean containerStopRequested = new AtomicBoolean();
+    private final int maxInFlightRecords;
+    private final Semaphore inFlightRecords;
+    private final ConcurrentMap<Object, CompletableFuture<Void>> laneTails = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("sequential-inbox-lane-", 0).factory());
+
+    SequenceContextLaneListener(AcknowledgingMessageListener<AvroMessageKey, AvroMessage> delegate,
+                                Function<AvroMessage, Optional<String>> sequenceContextKeyFunction,
+                                ErrorServiceSender errorServiceSender,
+                                Runnable stopContainer,
+                                int maxInFlightRecords) {
+        this.delegate = delegate;
+        this.sequenceContextKeyFunction = sequenceContextKeyFunction;
+        this.errorServiceSender = errorServiceSender;
+        this.stopContainer = stopContainer;
+        this.maxInFlightRecords = Math.max(1, maxInFlightRecords);
+        this.inFlightRecords = new Semaphore(this.maxInFlightRecords);
+    }
+
+    @Override
+    public void onMessage(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, Acknowledgment acknowledgment) {
+        // Resolved on the consumer thread, a record of an unknown type is thus handled by the container's error handler
+        Object laneKey = getLaneKey(consumerRecord);
+        try {
+            inFlightRecords.acquire();
+        } catch (InterruptedException _) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while dispatching record at offset %d of %s-%d to its lane"
+                    .formatted(consumerRecord.offset(), consumerRecord.topic(), consumerRecord.partition()));
+        }
+        // The tail of a lane is replaced atomically, records are thus chained in the order they have been consumed
+        laneTails.compute(laneKey, (_, tail) -> {
+            CompletableFuture<Void> next = (tail == null ? IDLE_LANE : tail)
+                    .thenRunAsync(() -> handle(consumerRecord, acknowledgment), executor);
+            next.whenComplete((_, _) -> {
+                inFlightRecords.release();
+                laneTails.remove(laneKey, next);
+            });
+            return next;
+        });
+    }
+
+    private Object getLaneKey(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        Optional<String> sequenceContextKey = sequenceContextKeyFunction.apply(consumerRecord.value());
+        if (sequenceContextKey.isPresent()) {
+            return sequenceContextKey.get();
+        }
+        if (consumerRecord.key() != null) {
+            return consumerRecord.key();
+        }
+        return new TopicPartition(consumerRecord.topic(), consumerRecord.partition());
+    }
+
+    private void handle(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, Acknowledgment acknowledgment) {
+        try {
+            delegate.onMessage(consumerRecord, acknowledgment);
+        } catch (Exception ex) {
+            log.warn("Handling record at offset {} of {}-{} in its lane failed, sending it to the error service",
+                    consumerRecord.offset(), consumerRecord.topic(), consumerRecord.partition(), ex);
+            sendToErrorService(consumerRecord, acknowledgment, ex);
+        }
+    }
+
+    private void sendToErrorService(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord, Acknowledgment acknowledgment, Exception ex) {
+        try {
+            @SuppressWarnings("unchecked")
+            ConsumerRecord<Object, Object> objectRecord = (ConsumerRecord<Object, Object>) (ConsumerRecord<?, ?>) consumerRecord;
+            errorServiceSender.accept(objectRecord, ex);
+            acknowledgment.acknowledge();
+        } catch (Exception sendException) {
+            // The record is not acknowledged, so the offsets of its partition are no longer committed. It cannot be
+            // consumed again by this container, which is thus stopped to hand the partition over to another consumer.
+            log.error("Sending record at offset {} of {}-{} to the error service failed, stopping the container",
+                    consumerRecord.offset(), consumerRecord.topic(), consumerRecord.partition(), sendException);
+            if (containerStopRequested.compareAndSet(false, true)) {
+                stopContainer.run();
+            }
+        }
+    }
+
+    /**
+     * @return The number of records dispatched to a lane and not yet handled
+     */
+    int getInFlightRecordCount() {
+        return maxInFlightRecords - inFlightRecords.availablePermits();
+    }
+
+    /**
+     * Waits for the records dispatched to a lane to be handled. To be called after the container has been stopped.
+     */
+    @Override
+    public void close() {
+        while (!laneTails.isEmpty()) {
+            CompletableFuture.allOf(laneTails.values().toArray(CompletableFuture[]::new))
+                    .exceptionally(_ -> null)
+                    .join();
+        }
+        executor.close();
+    }
+}
@@ -19,6 +19,9 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * <li>Number of messages per SequencedMessageType in state WAITING</li>
  * <li>Average waiting time per SequencedMessageType (only waiting messages are taken into account)</li>
  * <li>Total number of messages consumed by the inbox</li>
+ * <li>Queue delay of asynchronous release passes and number of passes run by the consumer because the queue was full</li>
+ * <li>Number of release passes deferred because the sequence instance was locked, and their delay until completed</li>
+ * <li>Maximum number of connections held at once per handled record or batch</li>
  * </ul>
  */
 @RequiredArgsConstructor
@@ -30,6 +33,11 @@ class SequentialInboxMetrics implements SequentialInboxMetricsCollector {
     private static final String EXPIRING_SOON_SEQUENCES = "jeap.messaging.sequential-inbox.expiring-soon-sequences";
     private static final String RETENTION_PERIOD_EXPIRED_SEQUENCES = "jeap.messaging.sequential-inbox.retention-period-expired-sequences";
     private static final String DELETED_BY_HOUSEKEEPING_SEQUENCES = "jeap.messaging.sequential-inbox.deleted-by-housekeeping-sequences";
+    private static final String ASYNC_RELEASE_QUEUE_DELAY = "jeap.messaging.sequential-inbox.async-release-queue-delay";
+    private static final String ASYNC_RELEASE_REJECTED = "jeap.messaging.sequential-inbox.async-release-rejected";
+    private static final String RELEASE_DEFERRED = "jeap.messaging.sequential-inbox.release-deferred";
+    private static final String DEFERRED_RELEASE_DELAY = "jeap.messaging.sequential-inbox.deferred-release-delay";
+    private static final String CONNECTIONS_PER_OPERATION = "jeap.messaging.sequential-inbox.connections-per-operation";
 
     private static final String TYPE_TAG = "type";
 
@@ -69,6 +77,36 @@ class SequentialInboxMetrics implements SequentialInboxMetricsCollector {
                 .increment(amount);
     }
 
+    @Override
+    public void onAsyncReleaseStarted(Duration queueDelay) {
+        meterRegistry.timer(ASYNC_RELEASE_QUEUE_DELAY)
+                .record(queueDelay);
+    }
+
+    @Override
+    public void onAsyncReleaseRejected() {
+        meterRegistry.counter(ASYNC_RELEASE_REJECTED)
+                .increment();
+    }
+
+    @Override
+    public void onReleaseDeferred() {
+        meterRegistry.counter(RELEASE_DEFERRED)
+                .increment();
+    }
+
+    @Override
+    public void onDeferredReleaseCompleted(Duration deferralDelay) {
+        meterRegistry.timer(DEFERRED_RELEASE_DELAY)
+                .record(deferralDelay);
+    }
+
+    @Override
+    public void onOperationCompleted(int maxConnectionsHeld) {
+        meterRegistry.summary(CONNECTIONS_PER_OPERATION)
+                .record(maxConnectionsHeld);
+    }
+
     @Override
     public void onConsumedSequencedMessage(String messageType) {
         meterRegistry.counter(CONSUMED_MESSAGES, TYPE_TAG, messageType)
@@ -1,9 +1,17 @@
 package ch.admin.bit.jeap.messaging.sequentialinbox.metrics;
 
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
+import ch.admin.bit.jeap.messaging.sequentialinbox.inbox.AsyncReleaseExecutor;
+import ch.admin.bit.jeap.messaging.sequentialinbox.inbox.InboxConnectionTracker;
 import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.MessageRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceIdCache;
 import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.AutoConfiguration;
@@ -19,6 +27,10 @@ import org.springframework.scheduling.annotation.EnableScheduling;
 @Slf4j
 class SequentialInboxMetricsAutoConfiguration {
 
+    private static final String SEQUENCE_INSTANCE_ID_CACHE_NAME = "sequential-inbox-sequence-instance-ids";
+    private static final String ASYNC_RELEASE_EXECUTOR_NAME = "sequential-inbox-release";
+    private static final String CONNECTIONS_HELD = "jeap.messaging.sequential-inbox.connections-held";
+
     @Bean
     SequentialInboxMetrics sequentialInboxMetrics(SequentialInboxPersistenceMetrics persistenceMetrics,
                                                   MeterRegistry meterRegistry,
@@ -33,4 +45,23 @@ class SequentialInboxMetricsAutoConfiguration {
         log.info("Configuring SequentialInboxPersistenceMetrics with expiring-percentile={}", percentile);
         return new SequentialInboxPersistenceMetrics(messageRepository, sequenceInstanceRepository, percentile);
     }
+
+    @Bean
+    MeterBinder sequenceInstanceIdCacheMetrics(SequenceInstanceIdCache sequenceInstanceIdCache) {
+        return meterRegistry -> sequenceInstanceIdCache.getNativeCache().ifPresent(cache ->
+                CaffeineCacheMetrics.monitor(meterRegistry, cache, SEQUENCE_INSTANCE_ID_CACHE_NAME));
+    }
+
+    @Bean
+    MeterBinder asyncReleaseExecutorMetrics(AsyncReleaseExecutor asyncReleaseExecutor) {
+        return meterRegistry -> asyncReleaseExecutor.getNativeExecutor().ifPresent(executor ->
+                new ExecutorServiceMetrics(executor, ASYNC_RELEASE_EXECUTOR_NAME, Tags.empty()).bindTo(meterRegistry));
+    }
+
+    @Bean
+    MeterBinder inboxConnectionMetrics(InboxConnectionTracker inboxConnectionTracker) {
+        return meterRegistry -> Gauge.builder(CONNECTIONS_HELD, inboxConnectionTracker, InboxConnectionTracker::getConnectionsHeld)
+                .description("Connections currently held by the handling of records and batches")
+                .register(meterRegistry);
+    }
 }
@@ -9,4 +9,14 @@ public interface SequentialInboxMetricsCollector {
     void onWaitingMessageCompleted(String messageType, Duration waitDuration);
 
     void onSequenceInstanceDeletedByHousekeeping(String sequenceType, int amount);
+
+    void onAsyncReleaseStarted(Duration queueDelay);
+
+    void onAsyncReleaseRejected();
+
+    void onReleaseDeferred();
+
+    void onDeferredReleaseCompleted(Duration deferralDelay);
+
+    void onOperationCompleted(int maxConnectionsHeld);
 }
@@ -22,6 +22,7 @@ public class BufferedMessage {
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "bm_sequence")
     @SequenceGenerator(name = "bm_sequence", sequenceName = "buffered_message_sequence", allocationSize = 50)
     @Column(name = "id")
+    @Setter // for stores not using the persistence context
     private Long id;
 
     @ToString.Exclude
@@ -4,6 +4,7 @@ import jakarta.persistence.*;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 import lombok.ToString;
 
 import static lombok.AccessLevel.PROTECTED;
@@ -19,6 +20,7 @@ public class MessageHeader {
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "hm_sequence")
     @SequenceGenerator(name = "hm_sequence", sequenceName = "message_header_sequence", allocationSize = 50)
     @Column(name = "id")
+    @Setter // for stores not using the persistence context
     private Long id;
 
     @Column(name = "header_name")
@@ -48,6 +48,21 @@ public class SequenceInstance {
     @Enumerated(EnumType.STRING)
     private SequenceInstancePendingAction pendingAction;
 
+    /**
+     * Incremented by writers of an instance using lease context locking, never written by JPA
+     */
+    @Column(name = "lock_version", insertable = false, updatable = false)
+    private long lockVersion;
+
+    /**
+     * Owner of the lease of an instance using lease context locking, never written by JPA
+     */
+    @Column(name = "lease_owner", insertable = false, updatable = false)
+    private String leaseOwner;
+
+    @Column(name = "lease_expires_at", insertable = false, updatable = false)
+    private ZonedDateTime leaseExpiresAt;
+
     @Builder
     private SequenceInstance(@NonNull String name, @NonNull String contextId, SequenceInstanceState state, @NonNull Duration retentionPeriod) {
         this.name = name;
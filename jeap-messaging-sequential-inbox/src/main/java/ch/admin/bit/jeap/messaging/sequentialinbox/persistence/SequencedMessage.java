@@ -1,5 +1,6 @@
 package ch.admin.bit.jeap.messaging.sequentialinbox.persistence;
 
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.MessageDictionaryConverter;
 import jakarta.persistence.*;
 import lombok.Builder;
 import lombok.Getter;
@@ -22,9 +23,11 @@ public class SequencedMessage {
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "sm_sequence")
     @SequenceGenerator(name = "sm_sequence", sequenceName = "sequenced_message_sequence", allocationSize = 50)
     @Column(name = "id")
+    @Setter // for stores not using the persistence context
     private Long id;
 
-    @Column(name = "message_type")
+    @Column(name = "message_type_id")
+    @Convert(converter = MessageDictionaryConverter.class)
     private String messageType;
 
     @Column(name = "sequenced_message_id")
@@ -33,18 +36,21 @@ public class SequencedMessage {
     @Column(name = "idempotence_id")
     private String idempotenceId;
 
-    @Column(name = "cluster_name")
+    @Column(name = "cluster_name_id")
+    @Convert(converter = MessageDictionaryConverter.class)
     private String clusterName;
 
-    @Column(name = "topic")
+    @Column(name = "topic_id")
+    @Convert(converter = MessageDictionaryConverter.class)
     private String topic;
 
-    @Column(name = "state")
-    @Enumerated(EnumType.STRING)
+    @Column(name = "state_id")
+    @Convert(converter = SequencedMessageStateConverter.class)
     @Setter
     private SequencedMessageState state;
 
-    @Embedded
+    @Column(name = "trace_context")
+    @Convert(converter = SequentialInboxTraceContextConverter.class)
     private SequentialInboxTraceContext traceContext;
 
     @Column(name = "created_at")
@@ -74,6 +80,18 @@ public class SequencedMessage {
         this.sequenceInstanceId = sequenceInstanceId;
     }
 
+    /**
+     * Restores a stored message read by a store not using the persistence context.
+     */
+    @Builder(builderMethodName = "restore", builderClassName = "RestoreBuilder")
+    private SequencedMessage(Long id, long sequenceInstanceId, String messageType, UUID sequencedMessageId, String idempotenceId, String clusterName, String topic, SequencedMessageState state, SequentialInboxTraceContext traceContext, ZonedDateTime createdAt, ZonedDateTime stateChangedAt, SequencedMessagePendingAction pendingAction) {
+        this(sequenceInstanceId, messageType, sequencedMessageId, idempotenceId, clusterName, topic, state, traceContext);
+        this.id = id;
+        this.createdAt = createdAt;
+        this.stateChangedAt = stateChangedAt;
+        this.pendingAction = pendingAction;
+    }
+
     @Override
     public String toString() {
         return "SequencedMessage{" +
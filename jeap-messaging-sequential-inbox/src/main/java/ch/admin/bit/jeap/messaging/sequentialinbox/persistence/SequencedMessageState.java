@@ -1,9 +1,28 @@
 package ch.admin.bit.jeap.messaging.sequentialinbox.persistence;
 
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * State of a sequenced message, stored as its {@link #getCode() code} in {@code sequenced_message.state_id}.
+ */
+@Getter
+@RequiredArgsConstructor
 public enum SequencedMessageState {
-    WAITING, PROCESSED, FAILED;
+    WAITING((short) 1), PROCESSED((short) 2), FAILED((short) 3);
+
+    private final short code;
 
     public static boolean waitingOrProcessed(SequencedMessageState state) {
         return state == WAITING || state == PROCESSED;
     }
+
+    public static SequencedMessageState fromCode(short code) {
+        for (SequencedMessageState state : values()) {
+            if (state.code == code) {
+                return state;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sequenced message state code " + code);
+    }
 }
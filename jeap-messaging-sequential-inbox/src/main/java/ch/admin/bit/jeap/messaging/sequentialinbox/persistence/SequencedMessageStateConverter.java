@@ -0,0 +1,18 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.persistence;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+@Converter
+public class SequencedMessageStateConverter implements AttributeConverter<SequencedMessageState, Short> {
+
+    @Override
+    public Short convertToDatabaseColumn(SequencedMessageState state) {
+        return state == null ? null : state.getCode();
+    }
+
+    @Override
+    public SequencedMessageState convertToEntityAttribute(Short code) {
+        return code == null ? null : SequencedMessageState.fromCode(code);
+    }
+}
@@ -0,0 +1,88 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.persistence;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores a trace context in 34 bytes, laid out like a binary W3C trace context extended by the parent span ID: a
+ * version byte, the 128-bit trace ID, the span ID, the parent span ID and a flags byte. Missing IDs are stored as 0,
+ * which is not a valid trace or span ID. The trace ID string is derived from the trace ID when reading the context.
+ */
+@Converter
+public class SequentialInboxTraceContextConverter implements AttributeConverter<SequentialInboxTraceContext, byte[]> {
+
+    static final int LENGTH = 34;
+
+    private static final byte VERSION = 0;
+    private static final byte SAMPLED = 1;
+    private static final byte SAMPLING_DECIDED = 2;
+
+    @Override
+    public byte[] convertToDatabaseColumn(SequentialInboxTraceContext traceContext) {
+        return encode(traceContext);
+    }
+
+    @Override
+    public SequentialInboxTraceContext convertToEntityAttribute(byte[] value) {
+        return decode(value);
+    }
+
+    public static byte[] encode(SequentialInboxTraceContext traceContext) {
+        if (traceContext == null) {
+            return null;
+        }
+        byte flags = 0;
+        if (traceContext.getSampled() != null) {
+            flags = traceContext.getSampled() ? SAMPLED | SAMPLING_DECIDED : SAMPLING_DECIDED;
+        }
+        return ByteBuffer.allocate(LENGTH)
+                .put(VERSION)
+                .putLong(orZero(traceContext.getTraceIdHigh()))
+                .putLong(orZero(traceContext.getTraceId()))
+                .putLong(orZero(traceContext.getSpanId()))
+                .putLong(orZero(traceContext.getParentSpanId()))
+                .put(flags)
+                .array();
+    }
+
+    public static SequentialInboxTraceContext decode(byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.length != LENGTH || value[0] != VERSION) {
+            throw new IllegalArgumentException("Unsupported trace context of " + value.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(value, 1, LENGTH - 1);
+        Long traceIdHigh = orNull(buffer.getLong());
+        Long traceId = orNull(buffer.getLong());
+        Long spanId = orNull(buffer.getLong());
+        Long parentSpanId = orNull(buffer.getLong());
+        byte flags = buffer.get();
+        return SequentialInboxTraceContext.builder()
+                .traceIdHigh(traceIdHigh)
+                .traceId(traceId)
+                .spanId(spanId)
+                .parentSpanId(parentSpanId)
+                .traceIdString(traceIdString(traceIdHigh, traceId))
+                .sampled((flags & SAMPLING_DECIDED) == 0 ? null : (flags & SAMPLED) != 0)
+                .build();
+    }
+
+    private static String traceIdString(Long traceIdHigh, Long traceId) {
+        if (traceId == null) {
+            return null;
+        }
+        String low = "%016x".formatted(traceId);
+        return traceIdHigh == null ? low : "%016x".formatted(traceIdHigh) + low;
+    }
+
+    private static long orZero(Long id) {
+        return id == null ? 0L : id;
+    }
+
+    private static Long orNull(long id) {
+        return id == 0L ? null : id;
+    }
+}
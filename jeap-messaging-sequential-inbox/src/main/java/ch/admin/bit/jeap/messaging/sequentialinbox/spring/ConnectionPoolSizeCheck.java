@@ -0,0 +1,90 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.spring;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.kafka.KafkaSequentialInboxMessageConsumerFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.jdbc.metadata.CompositeDataSourcePoolMetadataProvider;
+import org.springframework.boot.jdbc.metadata.DataSourcePoolMetadata;
+import org.springframework.boot.jdbc.metadata.DataSourcePoolMetadataProvider;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+
+/**
+ * Warns on startup if the connection pool is smaller than the number of connections the consumer threads and
+ * asynchronous release threads of the inbox may hold at once. A thread holds one connection for the inbox bookkeeping,
+ * whose reads and writes are run in the transaction open on the thread, and one more for the transaction of the message
+ * handler.
+ */
+@Component
+@Slf4j
+class ConnectionPoolSizeCheck {
+
+    private final KafkaSequentialInboxMessageConsumerFactory messageConsumerFactory;
+    private final ObjectProvider<DataSource> dataSource;
+    private final ObjectProvider<DataSourcePoolMetadataProvider> metadataProviders;
+    private final boolean enabled;
+    private final boolean asyncReleaseEnabled;
+    private final int asyncReleaseMaxConcurrency;
+
+    ConnectionPoolSizeCheck(KafkaSequentialInboxMessageConsumerFactory messageConsumerFactory,
+                            ObjectProvider<DataSource> dataSource,
+                            ObjectProvider<DataSourcePoolMetadataProvider> metadataProviders,
+                            @Value("${jeap.messaging.sequential-inbox.connection-pool-check.enabled:true}") boolean enabled,
+                            @Value("${jeap.messaging.sequential-inbox.release.async.enabled:false}") boolean asyncReleaseEnabled,
+                            @Value("${jeap.messaging.sequential-inbox.release.async.max-concurrency:16}") int asyncReleaseMaxConcurrency) {
+        this.messageConsumerFactory = messageConsumerFactory;
+        this.dataSource = dataSource;
+        this.metadataProviders = metadataProviders;
+        this.enabled = enabled;
+        this.asyncReleaseEnabled = asyncReleaseEnabled;
+        this.asyncReleaseMaxConcurrency = asyncReleaseMaxConcurrency;
+    }
+
+    @EventListener
+    public void onAppReady(ApplicationReadyEvent ignored) {
+        if (enabled) {
+            check();
+        }
+    }
+
+    void check() {
+        DataSource pooledDataSource = dataSource.getIfUnique();
+        if (pooledDataSource == null) {
+            return;
+        }
+        DataSourcePoolMetadata poolMetadata = new CompositeDataSourcePoolMetadataProvider(metadataProviders.orderedStream().toList())
+                .getDataSourcePoolMetadata(pooledDataSource);
+        Integer maximumPoolSize = poolMetadata == null ? null : poolMetadata.getMax();
+        if (maximumPoolSize == null || maximumPoolSize < 0) {
+            log.debug("Maximum size of the connection pool is unknown, not checking it");
+            return;
+        }
+
+        int threads = getThreadCount();
+        int connectionsPerThread = getConnectionsPerThread();
+        int requiredConnections = threads * connectionsPerThread;
+        if (maximumPoolSize < requiredConnections) {
+            log.warn("The connection pool has a maximum size of {}, but {} inbox threads may hold up to {} connections each " +
+                     "({} in total). Threads will wait for connections under load. Increase the maximum pool size.",
+                    maximumPoolSize, threads, connectionsPerThread, requiredConnections);
+        }
+    }
+
+    int getThreadCount() {
+        int consumerThreads = messageConsumerFactory.getContainers().stream()
+                .mapToInt(ConcurrentMessageListenerContainer::getConcurrency)
+                .sum();
+        return consumerThreads + (asyncReleaseEnabled ? asyncReleaseMaxConcurrency : 0);
+    }
+
+    int getConnectionsPerThread() {
+        int inboxConnections = 1;
+        int handlerConnections = 1;
+        return inboxConnections + handlerConnections;
+    }
+}
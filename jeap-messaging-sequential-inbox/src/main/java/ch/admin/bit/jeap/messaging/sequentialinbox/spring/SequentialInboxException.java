@@ -2,8 +2,8 @@ package ch.admin.bit.jeap.messaging.sequentialinbox.spring;
 
 import ch.admin.bit.jeap.messaging.avro.AvroMessage;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.IdempotenceClaim;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessage;
-import org.springframework.dao.DataIntegrityViolationException;
 
 import java.lang.reflect.Method;
 import java.util.List;
@@ -38,12 +38,6 @@ public class SequentialInboxException extends RuntimeException {
                 "but has been received in the sequenced message listener.").formatted(messageTypeName));
     }
 
-    public static SequentialInboxException failedToReadExistingSequenceInstance(Sequence sequence, String contextId, DataIntegrityViolationException e) {
-        return new SequentialInboxException(
-                "Failed to retrieve SequenceInstance of type %s with contextId %s after concurrent insertion"
-                        .formatted(sequence.getName(), contextId), e);
-    }
-
     public static SequentialInboxException invalidListenerMethodSignature(Method method) {
         return new SequentialInboxException("Listener method %s has an invalid signature. It must have one or two parameters: (? extends AvroMessage) or (? extends AvroMessageKey, ? extends AvroMessage)."
                 .formatted(method));
@@ -82,4 +76,19 @@ public class SequentialInboxException extends RuntimeException {
         return new SequentialInboxException("Invocation of message handler method %s failed".formatted(method), throwable);
     }
 
+    public static SequentialInboxException idempotenceClaimInProgress(IdempotenceClaim idempotenceClaim) {
+        return new SequentialInboxException("Message %s with idempotence ID %s is being processed by another consumer, retry once its claim is completed or its lease expired"
+                .formatted(idempotenceClaim.messageType(), idempotenceClaim.idempotenceId()));
+    }
+
+    public static SequentialInboxException repartitionFailed(String repartitionTopicName, Exception cause) {
+        return new SequentialInboxException("Re-publishing a record to the repartition topic %s failed"
+                .formatted(repartitionTopicName), cause);
+    }
+
+    public static SequentialInboxException coLocatedMessageTypesOnDifferentClusters(Set<String> sequenceNames, Set<String> clusterNames) {
+        return new SequentialInboxException("Message types of the co-located sequences %s are consumed from different clusters %s"
+                .formatted(sequenceNames, clusterNames));
+    }
+
 }
@@ -4,9 +4,11 @@ import ch.admin.bit.jeap.messaging.avro.AvroMessage;
 import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequencedMessageType;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
+import ch.admin.bit.jeap.messaging.sequentialinbox.kafka.CoLocatedMessageType;
 import ch.admin.bit.jeap.messaging.sequentialinbox.kafka.KafkaSequentialInboxMessageConsumerFactory;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationStartedEvent;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.event.EventListener;
@@ -17,6 +19,7 @@ import java.util.*;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toCollection;
 import static java.util.stream.Collectors.toSet;
 
 @Component
@@ -26,6 +29,8 @@ class SequentialInboxListenerService {
     private final ApplicationContext applicationContext;
     private final SequentialInboxConfiguration sequentialInboxConfiguration;
     private final MessageHandlerProvider messageHandlerProvider;
+    private boolean coLocatedConsumersEnabled;
+    private boolean repartitionEnabled;
 
     public SequentialInboxListenerService(KafkaSequentialInboxMessageConsumerFactory messageConsumerFactory, ApplicationContext applicationContext, SequentialInboxConfiguration sequentialInboxConfiguration, MessageHandlerProvider messageHandlerProvider) {
         this.messageConsumerFactory = messageConsumerFactory;
@@ -34,6 +39,16 @@ class SequentialInboxListenerService {
         this.messageHandlerProvider = messageHandlerProvider;
     }
 
+    @Value("${jeap.messaging.sequential-inbox.co-located-consumers.enabled:false}")
+    public void setCoLocatedConsumersEnabled(boolean coLocatedConsumersEnabled) {
+        this.coLocatedConsumersEnabled = coLocatedConsumersEnabled;
+    }
+
+    @Value("${jeap.messaging.sequential-inbox.repartition.enabled:false}")
+    public void setRepartitionEnabled(boolean repartitionEnabled) {
+        this.repartitionEnabled = repartitionEnabled;
+    }
+
     @EventListener
     public void onAppStarted(ApplicationStartedEvent ignored) {
         startMessageListeners();
@@ -50,6 +65,20 @@ class SequentialInboxListenerService {
 
         List<ListenerBeanMethod> allAnnotatedMethods = getAllSequentialInboxMessageListenerMethods();
 
+        if (repartitionEnabled) {
+            if (coLocatedConsumersEnabled) {
+                log.info("Repartition mode is enabled, the repartition topic is consumed instead of co-located consumers");
+            }
+            Set<ListenerBeanMethod> startedListeners = startRepartitionListeners(sequencedMessageTypeConfigsOncePerJeapMessageType, allAnnotatedMethods);
+            assertAllAnnotatedListenersStarted(allAnnotatedMethods, startedListeners);
+            return;
+        }
+        if (coLocatedConsumersEnabled) {
+            Set<ListenerBeanMethod> startedListeners = startCoLocatedListeners(sequencedMessageTypeConfigsOncePerJeapMessageType, allAnnotatedMethods);
+            assertAllAnnotatedListenersStarted(allAnnotatedMethods, startedListeners);
+            return;
+        }
+
         Set<ListenerBeanMethod> startedListeners = sequencedMessageTypeConfigsOncePerJeapMessageType.stream()
                 .map(messageType -> startListener(messageType.getJeapMessageTypeName(), messageType.getTopic(), messageType.getClusterName(), allAnnotatedMethods))
                 .collect(toSet());
@@ -72,6 +101,77 @@ class SequentialInboxListenerService {
         return messageHandler.getListenerBeanMethod();
     }
 
+    /**
+     * Starts a consumer per message type re-publishing its sequenced records to the repartition topic of its cluster,
+     * and a consumer per cluster sequencing the records of the repartition topic.
+     */
+    private Set<ListenerBeanMethod> startRepartitionListeners(List<SequencedMessageType> sequencedMessageTypes, List<ListenerBeanMethod> allAnnotatedMethods) {
+        Map<String, List<CoLocatedMessageType>> repartitionedMessageTypesByClusterName = new HashMap<>();
+        Set<ListenerBeanMethod> startedListeners = new HashSet<>();
+        for (SequencedMessageType messageType : sequencedMessageTypes) {
+            String jeapMessageTypeName = messageType.getJeapMessageTypeName();
+            SequentialInboxMessageHandler messageHandler = getBeanForMessageType(allAnnotatedMethods, jeapMessageTypeName);
+            messageHandlerProvider.addHandler(jeapMessageTypeName, messageHandler);
+            messageConsumerFactory.startRepartitioningConsumer(messageType.getTopic(), jeapMessageTypeName, messageType.getClusterName(), messageHandler);
+            repartitionedMessageTypesByClusterName.computeIfAbsent(messageType.getClusterName(), _ -> new ArrayList<>())
+                    .add(new CoLocatedMessageType(messageType.getTopic(), jeapMessageTypeName, messageHandler));
+            startedListeners.add(messageHandler.getListenerBeanMethod());
+        }
+        messageConsumerFactory.startRepartitionedConsumers(repartitionedMessageTypesByClusterName);
+        return startedListeners;
+    }
+
+    /**
+     * Starts a co-located consumer per group of sequences sharing message types, consuming the topics of all message
+     * types of these sequences.
+     */
+    private Set<ListenerBeanMethod> startCoLocatedListeners(List<SequencedMessageType> sequencedMessageTypes, List<ListenerBeanMethod> allAnnotatedMethods) {
+        Map<String, Set<String>> sequenceNamesByJeapMessageTypeName = new TreeMap<>();
+        sequentialInboxConfiguration.getSequencedMessageTypes().forEach(messageType ->
+                sequenceNamesByJeapMessageTypeName.computeIfAbsent(messageType.getJeapMessageTypeName(), _ -> new TreeSet<>())
+                        .add(sequentialInboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName(messageType.getQualifiedName()).getName()));
+
+        // A message type is consumed by a single consumer, sequences sharing a message type are thus co-located together
+        List<Set<String>> sequenceNameGroups = new ArrayList<>();
+        for (Set<String> sequenceNames : sequenceNamesByJeapMessageTypeName.values()) {
+            Set<String> sequenceNameGroup = new TreeSet<>(sequenceNames);
+            Iterator<Set<String>> iterator = sequenceNameGroups.iterator();
+            while (iterator.hasNext()) {
+                Set<String> otherSequenceNameGroup = iterator.next();
+                if (!Collections.disjoint(otherSequenceNameGroup, sequenceNameGroup)) {
+                    sequenceNameGroup.addAll(otherSequenceNameGroup);
+                    iterator.remove();
+                }
+            }
+            sequenceNameGroups.add(sequenceNameGroup);
+        }
+
+        Set<ListenerBeanMethod> startedListeners = new HashSet<>();
+        for (Set<String> sequenceNameGroup : sequenceNameGroups) {
+            List<SequencedMessageType> groupMessageTypes = sequencedMessageTypes.stream()
+                    .filter(messageType -> sequenceNameGroup.containsAll(sequenceNamesByJeapMessageTypeName.get(messageType.getJeapMessageTypeName())))
+                    .toList();
+            Set<String> clusterNames = groupMessageTypes.stream()
+                    .map(SequencedMessageType::getClusterName)
+                    .collect(toCollection(HashSet::new));
+            if (clusterNames.size() > 1) {
+                throw SequentialInboxException.coLocatedMessageTypesOnDifferentClusters(sequenceNameGroup, clusterNames);
+            }
+
+            List<CoLocatedMessageType> coLocatedMessageTypes = new ArrayList<>();
+            for (SequencedMessageType messageType : groupMessageTypes) {
+                String jeapMessageTypeName = messageType.getJeapMessageTypeName();
+                SequentialInboxMessageHandler messageHandler = getBeanForMessageType(allAnnotatedMethods, jeapMessageTypeName);
+                messageHandlerProvider.addHandler(jeapMessageTypeName, messageHandler);
+                coLocatedMessageTypes.add(new CoLocatedMessageType(messageType.getTopic(), jeapMessageTypeName, messageHandler));
+                startedListeners.add(messageHandler.getListenerBeanMethod());
+            }
+            messageConsumerFactory.startCoLocatedConsumer(String.join("-", sequenceNameGroup),
+                    clusterNames.iterator().next(), coLocatedMessageTypes);
+        }
+        return startedListeners;
+    }
+
     private SequentialInboxMessageHandler getBeanForMessageType(List<ListenerBeanMethod> allAnnotatedMethods, String messageType) {
         List<SequentialInboxMessageHandler> beansForMessageType = new ArrayList<>();
         for (ListenerBeanMethod listenerBeanMethod : allAnnotatedMethods) {
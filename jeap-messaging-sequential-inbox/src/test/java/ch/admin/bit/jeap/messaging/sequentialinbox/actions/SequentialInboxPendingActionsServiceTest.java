@@ -86,4 +86,18 @@ class SequentialInboxPendingActionsServiceTest {
 
         verify(sequentialInboxService, never()).handleSequenceWithPendingAction(any());
     }
+
+    @Test
+    void runRequestedReleasesShouldRecoverRequestedReleases() {
+        PendingActionsConfigProperties properties = new PendingActionsConfigProperties();
+        SequenceInstance seq1 = mock(SequenceInstance.class);
+        SequenceInstance seq2 = mock(SequenceInstance.class);
+        when(sequenceInstanceRepository.findReleaseRequestedBefore(properties.getReleaseRecoveryDelay(), properties.getPageSize()))
+                .thenReturn(List.of(seq1, seq2));
+
+        service.runRequestedReleases();
+
+        verify(sequentialInboxService).handleRequestedRelease(seq1);
+        verify(sequentialInboxService).handleRequestedRelease(seq2);
+    }
 }
@@ -28,6 +28,10 @@ class SequentialInboxConfigurationLoaderTest {
                 .isNull();
         assertThat(seq.getRetentionPeriod())
                 .isEqualTo(Duration.ofHours(6));
+        assertThat(seq.getContextLock())
+                .isEqualTo(SequenceContextLockType.ADVISORY);
+        assertThat(sequentialInboxConfiguration.getSequenceByName("eventType2AfterEventType1").orElseThrow().getContextLock())
+                .isEqualTo(SequenceContextLockType.ROW);
         assertThat(sequentialInboxConfiguration.getSequenceByName("eventType2AfterEventType1")).isNotNull();
         assertThat(sequentialInboxConfiguration.getSequenceByName("eventType99AfterEventType98")).isNotNull();
         assertThat(sequentialInboxConfiguration.getSequenceByName("fooBar")).isEmpty();
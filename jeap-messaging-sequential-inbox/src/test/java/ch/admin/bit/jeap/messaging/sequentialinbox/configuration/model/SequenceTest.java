@@ -0,0 +1,83 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.deserializer.SequentialInboxConfigurationLoader;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SequenceTest {
+
+    private static Sequence loadSequence(String messageTypeName) {
+        SequentialInboxConfiguration configuration = new SequentialInboxConfigurationLoader(
+                "classpath:/configurations/valid/complex-releaseConditions.yml").loadSequenceDeclaration();
+        return configuration.getSequenceByQualifiedSequencedMessageTypeName(messageTypeName);
+    }
+
+    @Test
+    void compiledReleaseConditions_matchReleaseConditionsForAllCombinationsOfProcessedMessageTypes() {
+        Sequence sequence = loadSequence("MyEventType1");
+        List<String> messageTypes = sequence.getMessages().stream()
+                .map(SequencedMessageType::getQualifiedName)
+                .toList();
+
+        for (int combination = 0; combination < (1 << messageTypes.size()); combination++) {
+            Set<String> processedMessageTypes = new HashSet<>();
+            for (int i = 0; i < messageTypes.size(); i++) {
+                if ((combination & (1 << i)) != 0) {
+                    processedMessageTypes.add(messageTypes.get(i));
+                }
+            }
+            long processedMessageTypeBits = sequence.messageTypeBits(processedMessageTypes);
+
+            for (SequencedMessageType message : sequence.getMessages()) {
+                assertThat(message.isReleaseConditionSatisfied(processedMessageTypeBits))
+                        .as("%s with processed message types %s", message.getQualifiedName(), processedMessageTypes)
+                        .isEqualTo(message.isReleaseConditionSatisfied(processedMessageTypes));
+            }
+            assertThat(sequence.isComplete(processedMessageTypeBits))
+                    .isEqualTo(sequence.isComplete(processedMessageTypes));
+        }
+    }
+
+    @Test
+    void releaseCondition_isCompiledToSimplifiedDisjunctiveNormalForm() {
+        Sequence sequence = loadSequence("MyEventType3");
+        SequencedMessageType messageType3 = sequence.getMessages().get(2);
+
+        // MyEventType1 AND (MyEventType4 OR MyEventType1 OR ...) simplifies to MyEventType1
+        long[] terms = messageType3.getReleaseCondition().toDisjunctiveNormalForm(sequence::messageTypeBit);
+
+        assertThat(terms).containsExactly(sequence.messageTypeBit("MyEventType1"));
+    }
+
+    @Test
+    void successorMessageTypeBits() {
+        Sequence sequence = loadSequence("MyEventType1");
+
+        assertThat(sequence.successorMessageTypeBits("MyEventType1")).isEqualTo(
+                sequence.messageTypeBits(Set.of("MyEventType3", "MyEventType4", "MyEventType5", "MyEventType6")));
+        assertThat(sequence.successorMessageTypeBits("MyEventType3")).isEqualTo(sequence.messageTypeBit("MyEventType2"));
+        assertThat(sequence.successorMessageTypeBits("MyEventType9")).isEqualTo(
+                sequence.messageTypeBits(Set.of("MyEventType4", "MyEventType5", "MyEventType6")));
+        // MyEventType4 is not required by the simplified release condition of MyEventType3
+        assertThat(sequence.successorMessageTypeBits("MyEventType4")).isZero();
+        assertThat(sequence.successorMessageTypeBits("UnknownEventType")).isZero();
+        assertThat(sequence.messageTypeByBit(sequence.messageTypeBit("MyEventType5")).getQualifiedName()).isEqualTo("MyEventType5");
+    }
+
+    @Test
+    void messageTypeBits() {
+        Sequence sequence = loadSequence("MyEventType1");
+
+        assertThat(sequence.messageTypeBit("MyEventType1")).isEqualTo(1L);
+        assertThat(sequence.messageTypeBit("MyEventType2")).isEqualTo(2L);
+        assertThat(sequence.messageTypeBit("UnknownEventType")).isZero();
+        assertThat(sequence.messageTypeBits(Set.of("MyEventType1", "MyEventType2", "UnknownEventType"))).isEqualTo(3L);
+        assertThat(sequence.isComplete(0b1111111L)).isTrue();
+        assertThat(sequence.isComplete(0b0111111L)).isFalse();
+    }
+}
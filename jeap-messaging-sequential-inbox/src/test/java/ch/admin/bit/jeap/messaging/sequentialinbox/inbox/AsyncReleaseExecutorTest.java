@@ -0,0 +1,171 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class AsyncReleaseExecutorTest {
+
+    @Mock
+    private SequentialInboxMetricsCollector metricsCollector;
+
+    private AsyncReleaseExecutor executor;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    @Test
+    void submit_whilePassForSameInstanceIsQueued_doesNotQueueAnotherPass() throws Exception {
+        executor = new AsyncReleaseExecutor(metricsCollector, true, 1, 10);
+        CountDownLatch workerBlocked = new CountDownLatch(1);
+        CountDownLatch releaseWorker = new CountDownLatch(1);
+        AtomicInteger queuedPasses = new AtomicInteger();
+        AtomicInteger coveredPasses = new AtomicInteger();
+        CountDownLatch queuedPassRan = new CountDownLatch(1);
+
+        executor.submit(1L, () -> {
+            workerBlocked.countDown();
+            await(releaseWorker);
+        });
+        assertThat(workerBlocked.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.submit(2L, () -> {
+            queuedPasses.incrementAndGet();
+            queuedPassRan.countDown();
+        });
+        executor.submit(2L, coveredPasses::incrementAndGet);
+        releaseWorker.countDown();
+
+        assertThat(queuedPassRan.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.destroy();
+        assertThat(queuedPasses).hasValue(1);
+        assertThat(coveredPasses).hasValue(0);
+    }
+
+    @Test
+    void submit_oncePassForSameInstanceHasStarted_queuesAnotherPass() throws Exception {
+        executor = new AsyncReleaseExecutor(metricsCollector, true, 1, 10);
+        CountDownLatch firstPassStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstPass = new CountDownLatch(1);
+        CountDownLatch secondPassRan = new CountDownLatch(1);
+
+        executor.submit(1L, () -> {
+            firstPassStarted.countDown();
+            await(releaseFirstPass);
+        });
+        assertThat(firstPassStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        // The running pass may not see the message the second pass is requested for
+        executor.submit(1L, secondPassRan::countDown);
+        releaseFirstPass.countDown();
+
+        assertThat(secondPassRan.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void submit_whenQueueIsFull_runsPassOnRequestingThread() throws Exception {
+        executor = new AsyncReleaseExecutor(metricsCollector, true, 1, 1);
+        CountDownLatch workerBlocked = new CountDownLatch(1);
+        CountDownLatch releaseWorker = new CountDownLatch(1);
+        AtomicReference<Thread> rejectedPassThread = new AtomicReference<>();
+
+        executor.submit(1L, () -> {
+            workerBlocked.countDown();
+            await(releaseWorker);
+        });
+        assertThat(workerBlocked.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.submit(2L, () -> { });
+        executor.submit(3L, () -> rejectedPassThread.set(Thread.currentThread()));
+
+        assertThat(rejectedPassThread).hasValue(Thread.currentThread());
+        verify(metricsCollector).onAsyncReleaseRejected();
+
+        // The rejected pass is not considered queued anymore
+        CountDownLatch nextPassRan = new CountDownLatch(1);
+        releaseWorker.countDown();
+        executor.submit(3L, nextPassRan::countDown);
+        assertThat(nextPassRan.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void submit_whenPassFails_queuesNextPassForSameInstance() throws Exception {
+        executor = new AsyncReleaseExecutor(metricsCollector, true, 1, 10);
+        CountDownLatch failingPassRan = new CountDownLatch(1);
+        CountDownLatch nextPassRan = new CountDownLatch(1);
+
+        executor.submit(1L, () -> {
+            failingPassRan.countDown();
+            throw new IllegalStateException("release failed");
+        });
+        assertThat(failingPassRan.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.submit(1L, nextPassRan::countDown);
+
+        assertThat(nextPassRan.await(5, TimeUnit.SECONDS)).isTrue();
+        verify(metricsCollector, times(2)).onAsyncReleaseStarted(any());
+    }
+
+    @Test
+    void destroy_waitsForQueuedPassesAndRunsLaterPassesOnRequestingThread() throws Exception {
+        executor = new AsyncReleaseExecutor(metricsCollector, true, 1, 10);
+        CountDownLatch workerBlocked = new CountDownLatch(1);
+        AtomicInteger completedPasses = new AtomicInteger();
+        AtomicReference<Thread> passAfterShutdownThread = new AtomicReference<>();
+
+        executor.submit(1L, () -> {
+            workerBlocked.countDown();
+            sleep(100);
+            completedPasses.incrementAndGet();
+        });
+        executor.submit(2L, completedPasses::incrementAndGet);
+        assertThat(workerBlocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+        executor.destroy();
+
+        assertThat(completedPasses).hasValue(2);
+        assertThat(executor.getNativeExecutor()).hasValueSatisfying(nativeExecutor ->
+                assertThat(nativeExecutor.isTerminated()).isTrue());
+        executor.submit(3L, () -> passAfterShutdownThread.set(Thread.currentThread()));
+        assertThat(passAfterShutdownThread).hasValue(Thread.currentThread());
+    }
+
+    @Test
+    void disabled_hasNoExecutor() throws Exception {
+        executor = new AsyncReleaseExecutor(metricsCollector, false, 1, 10);
+
+        assertThat(executor.isEnabled()).isFalse();
+        assertThat(executor.getNativeExecutor()).isEmpty();
+        executor.destroy();
+        verifyNoInteractions(metricsCollector);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.kafka.errorhandling.ErrorServiceSender;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.deserializer.SequentialInboxConfigurationLoader;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.MessageRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.BufferedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessagePendingAction;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessageState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+
+import static java.util.stream.Collectors.toMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class BufferedMessageServiceTest {
+
+    private static final long SEQUENCE_INSTANCE_ID = 42L;
+
+    private static final SequentialInboxConfiguration CONFIGURATION = new SequentialInboxConfigurationLoader(
+            "classpath:/configurations/valid/complex-releaseConditions.yml").loadSequenceDeclaration();
+
+    @Mock
+    private ErrorServiceSender errorServiceSender;
+    @Mock
+    private SequentialInboxDeserializer inboxDeserializer;
+    @Mock
+    private MessageHandlerService messageHandlerService;
+    @Mock
+    private MessageRepository messageRepository;
+    @Mock
+    private SequenceInstanceRepository sequenceInstanceRepository;
+    @Mock
+    private SequentialInboxMetricsCollector metricsCollector;
+    @Mock
+    private SequenceInstance sequenceInstance;
+
+    private final Sequence sequence = CONFIGURATION.getSequenceByQualifiedSequencedMessageTypeName("MyEventType1");
+
+    private BufferedMessageService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new BufferedMessageService(errorServiceSender, inboxDeserializer, messageHandlerService,
+                messageRepository, sequenceInstanceRepository, CONFIGURATION,
+                new BufferedMessageTracing(Optional.empty()), metricsCollector);
+        // The ID of the sequenced message is passed as topic name to identify the handled messages
+        lenient().when(inboxDeserializer.deserialize(any(), any())).thenAnswer(invocation ->
+                new DeserializedMessage(mock(AvroMessageKey.class), mock(AvroMessage.class),
+                        String.valueOf(invocation.<SequencedMessage>getArgument(0).getId())));
+        lenient().when(messageRepository.getBufferedMessagesInNewTransaction(any())).thenAnswer(invocation ->
+                bufferedMessages(invocation.getArgument(0)));
+        lenient().when(messageRepository.getBufferedMessagesInCurrentTransaction(any())).thenAnswer(invocation ->
+                bufferedMessages(invocation.getArgument(0)));
+        lenient().when(sequenceInstance.getId()).thenReturn(SEQUENCE_INSTANCE_ID);
+    }
+
+    @Test
+    void releaseWaitingMessages_releasesChainedSuccessorsOnceTheirPredecessorIsProcessed() {
+        // MyEventType2 waits for MyEventType3, which waits for MyEventType1
+        SequencedMessage type2 = waiting(1L, "MyEventType2");
+        SequencedMessage type3 = waiting(2L, "MyEventType3");
+        SequencedMessage type1 = waiting(3L, "MyEventType1");
+        when(messageRepository.getWaitingAndProcessedMessagesInNewTransaction(SEQUENCE_INSTANCE_ID))
+                .thenReturn(List.of(type2, type3, type1));
+
+        ReleaseRound releaseRound = service.releaseWaitingMessagesWithoutTransaction(sequenceInstance, sequence);
+
+        assertThat(handledMessageIds()).containsExactly(3L, 2L, 1L);
+        assertThat(releaseRound).isEqualTo(new ReleaseRound(
+                sequence.messageTypeBits(Set.of("MyEventType1", "MyEventType2", "MyEventType3")), 3, 0));
+        verify(messageRepository).updateMessageStatesInNewTransaction(List.of(type1, type3, type2), List.of());
+    }
+
+    @Test
+    void releaseWaitingMessages_releasesAlreadyReleasableMessagesBeforeNewlyUnblockedSuccessors() {
+        // MyEventType9 is releasable from the start, before MyEventType1 unblocks MyEventType3 and MyEventType4
+        SequencedMessage type1 = waiting(1L, "MyEventType1");
+        SequencedMessage type3 = waiting(2L, "MyEventType3");
+        SequencedMessage type9 = waiting(3L, "MyEventType9");
+        SequencedMessage type4 = waiting(4L, "MyEventType4");
+        when(messageRepository.getWaitingAndProcessedMessagesInNewTransaction(SEQUENCE_INSTANCE_ID))
+                .thenReturn(List.of(type1, type3, type9, type4));
+
+        service.releaseWaitingMessagesWithoutTransaction(sequenceInstance, sequence);
+
+        // MyEventType9 unblocks MyEventType4 as well, which is only released once
+        assertThat(handledMessageIds()).containsExactly(1L, 3L, 2L, 4L);
+    }
+
+    @Test
+    void releaseWaitingMessages_whenHandlerFails_doesNotReleaseSuccessors() {
+        SequencedMessage type1 = waiting(1L, "MyEventType1");
+        SequencedMessage type3 = waiting(2L, "MyEventType3");
+        SequencedMessage type2 = waiting(3L, "MyEventType2");
+        when(messageRepository.getWaitingAndProcessedMessagesInNewTransaction(SEQUENCE_INSTANCE_ID))
+                .thenReturn(List.of(type1, type3, type2));
+        doThrow(new IllegalStateException("handler failed")).when(messageHandlerService).handle(any());
+
+        ReleaseRound releaseRound = service.releaseWaitingMessagesWithoutTransaction(sequenceInstance, sequence);
+
+        assertThat(handledMessageIds()).containsExactly(1L);
+        assertThat(releaseRound).isEqualTo(new ReleaseRound(0L, 1, 2));
+        verify(errorServiceSender).accept(any(), any(IllegalStateException.class));
+        verify(messageRepository).updateMessageStatesInNewTransaction(List.of(), List.of(type1));
+        verify(messageRepository).getBufferedMessagesInNewTransaction(List.of(type1));
+    }
+
+    @Test
+    void processBufferedMessagesInCurrentTransaction_forceProcessAll_releasesBlockedMessagesWithoutCheckingWaitingCount() {
+        SequencedMessage type2 = waiting(1L, "MyEventType2");
+        SequencedMessage type3 = waiting(2L, "MyEventType3");
+        when(messageRepository.getWaitingAndProcessedMessagesInCurrentTransaction(SEQUENCE_INSTANCE_ID))
+                .thenReturn(List.of(type2, type3));
+
+        boolean complete = service.processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence, true);
+
+        assertThat(complete).isFalse();
+        assertThat(handledMessageIds()).containsExactly(1L, 2L);
+        verify(sequenceInstanceRepository, never()).findProcessedMessageTypesIfNothingWaiting(anyLong(), anyInt());
+        verify(sequenceInstanceRepository).setProcessedMessageTypesAndDecrementWaitingCount(SEQUENCE_INSTANCE_ID,
+                sequence.messageTypeBits(Set.of("MyEventType2", "MyEventType3")), 2, 0, sequence.getMessageTypeIndexHash());
+        // The messages are read and their states are written in the transaction locking the sequence instance
+        verify(messageRepository).getBufferedMessagesInCurrentTransaction(List.of(type2, type3));
+        verify(messageRepository).updateMessageStatesInCurrentTransaction(List.of(type2, type3), List.of());
+        verify(messageRepository, never()).getBufferedMessagesInNewTransaction(any());
+        verify(messageRepository, never()).updateMessageStatesInNewTransaction(any(), any());
+    }
+
+    @Test
+    void processBufferedMessagesInCurrentTransaction_writesProcessedTypesAndReleasedAndWaitingCountsOfReleaseRound() {
+        SequencedMessage processedType1 = processed(1L, "MyEventType1");
+        SequencedMessage type4 = waiting(2L, "MyEventType4");
+        SequencedMessage otherType4 = waiting(3L, "MyEventType4");
+        SequencedMessage type2 = waiting(4L, "MyEventType2");
+        SequencedMessage otherType2 = waiting(5L, "MyEventType2");
+        when(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(SEQUENCE_INSTANCE_ID, sequence.getMessageTypeIndexHash()))
+                .thenReturn(OptionalLong.empty());
+        when(messageRepository.getWaitingAndProcessedMessagesInCurrentTransaction(SEQUENCE_INSTANCE_ID))
+                .thenReturn(List.of(processedType1, type4, otherType4, type2, otherType2));
+
+        boolean complete = service.processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence);
+
+        assertThat(complete).isFalse();
+        assertThat(handledMessageIds()).containsExactly(2L, 3L);
+        // Both messages of MyEventType2 keep waiting for MyEventType3
+        verify(sequenceInstanceRepository).setProcessedMessageTypesAndDecrementWaitingCount(SEQUENCE_INSTANCE_ID,
+                sequence.messageTypeBits(Set.of("MyEventType1", "MyEventType4")), 2, 2, sequence.getMessageTypeIndexHash());
+    }
+
+    @Test
+    void processBufferedMessagesInCurrentTransaction_whenNothingIsWaiting_doesNotReadMessages() {
+        long processedMessageTypes = sequence.messageTypeBit("MyEventType1");
+        when(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(SEQUENCE_INSTANCE_ID, sequence.getMessageTypeIndexHash()))
+                .thenReturn(OptionalLong.of(processedMessageTypes));
+
+        boolean complete = service.processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence);
+
+        assertThat(complete).isFalse();
+        verify(messageRepository, never()).getWaitingAndProcessedMessagesInCurrentTransaction(anyLong());
+        verify(sequenceInstanceRepository, never()).setProcessedMessageTypesAndDecrementWaitingCount(anyLong(), anyLong(), anyInt(), anyInt(), anyInt());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void releaseWaitingMessages_withPrefetchSizeSmallerThanReleasableMessages_loadsEachBufferedMessageOnce() {
+        service.setPrefetchSize(2);
+        // The messages of MyEventType3 are only queued once MyEventType1 has been processed
+        SequencedMessage type1 = waiting(1L, "MyEventType1");
+        SequencedMessage type9 = waiting(2L, "MyEventType9");
+        SequencedMessage type3 = waiting(3L, "MyEventType3");
+        SequencedMessage otherType3 = waiting(4L, "MyEventType3");
+        SequencedMessage anotherType3 = waiting(5L, "MyEventType3");
+        when(messageRepository.getWaitingAndProcessedMessagesInNewTransaction(SEQUENCE_INSTANCE_ID))
+                .thenReturn(List.of(type1, type9, type3, otherType3, anotherType3));
+
+        service.releaseWaitingMessagesWithoutTransaction(sequenceInstance, sequence);
+
+        ArgumentCaptor<Collection<SequencedMessage>> prefetched = ArgumentCaptor.forClass(Collection.class);
+        verify(messageRepository, times(3)).getBufferedMessagesInNewTransaction(prefetched.capture());
+        assertThat(prefetched.getAllValues()).containsExactly(
+                List.of(type1, type9), List.of(type3, otherType3), List.of(anotherType3));
+        assertThat(handledMessageIds()).containsExactly(1L, 2L, 3L, 4L, 5L);
+        verify(messageRepository, never()).getBufferedMessageInNewTransaction(any());
+    }
+
+    @Test
+    void releaseWaitingMessages_withStateBatchSizeSmallerThanReleasedMessages_writesAllStatesInBatches() {
+        service.setStateBatchSize(2);
+        SequencedMessage type1 = waiting(1L, "MyEventType1");
+        SequencedMessage type4 = waiting(2L, "MyEventType4");
+        SequencedMessage type5 = waiting(3L, "MyEventType5");
+        SequencedMessage type6 = waiting(4L, "MyEventType6");
+        SequencedMessage type9 = waiting(5L, "MyEventType9");
+        when(messageRepository.getWaitingAndProcessedMessagesInNewTransaction(SEQUENCE_INSTANCE_ID))
+                .thenReturn(List.of(type1, type4, type5, type6, type9));
+
+        service.releaseWaitingMessagesWithoutTransaction(sequenceInstance, sequence);
+
+        InOrder inOrder = inOrder(messageRepository);
+        inOrder.verify(messageRepository).updateMessageStatesInNewTransaction(List.of(type1, type9), List.of());
+        inOrder.verify(messageRepository).updateMessageStatesInNewTransaction(List.of(type4, type5), List.of());
+        // The last state is written by the flush at the end of the round
+        inOrder.verify(messageRepository).updateMessageStatesInNewTransaction(List.of(type6), List.of());
+        verify(messageRepository, times(3)).updateMessageStatesInNewTransaction(any(), any());
+    }
+
+    @Test
+    void releaseWaitingMessages_whenHandlerFailsWithinStateBatch_writesCollectedStatesWithFailedMessage() {
+        service.setStateBatchSize(3);
+        SequencedMessage type1 = waiting(1L, "MyEventType1");
+        SequencedMessage type9 = waiting(2L, "MyEventType9");
+        SequencedMessage type4 = waiting(3L, "MyEventType4");
+        SequencedMessage type5 = waiting(4L, "MyEventType5");
+        when(messageRepository.getWaitingAndProcessedMessagesInNewTransaction(SEQUENCE_INSTANCE_ID))
+                .thenReturn(List.of(type1, type9, type4, type5));
+        lenient().doThrow(new IllegalStateException("handler failed")).when(messageHandlerService)
+                .handle(argThat(deserializedMessage -> "2".equals(deserializedMessage.topicName())));
+
+        ReleaseRound releaseRound = service.releaseWaitingMessagesWithoutTransaction(sequenceInstance, sequence);
+
+        InOrder inOrder = inOrder(errorServiceSender, messageRepository);
+        inOrder.verify(errorServiceSender).accept(any(), any(IllegalStateException.class));
+        // The failed message releases its idempotence claim, so it is written immediately with the collected states
+        inOrder.verify(messageRepository).updateMessageStatesInNewTransaction(List.of(type1), List.of(type9));
+        inOrder.verify(messageRepository).updateMessageStatesInNewTransaction(List.of(type4, type5), List.of());
+        verify(messageRepository, times(2)).updateMessageStatesInNewTransaction(any(), any());
+        assertThat(releaseRound.releasedCount()).isEqualTo(4);
+    }
+
+    @Test
+    void processBufferedMessageWithPendingAction_consume_decrementsWaitingCountInCurrentTransaction() {
+        SequencedMessage message = sequencedMessage(1L, "MyEventType3", SequencedMessagePendingAction.CONSUME);
+        BufferedMessage bufferedMessage = BufferedMessage.builder().sequenceInstanceId(SEQUENCE_INSTANCE_ID).build();
+        when(messageRepository.getBufferedMessageInCurrentTransaction(message)).thenReturn(bufferedMessage);
+
+        service.processBufferedMessageWithPendingAction(message, sequence);
+
+        InOrder inOrder = inOrder(sequenceInstanceRepository, messageHandlerService, messageRepository);
+        // The waiting count is only decremented while the message is still waiting
+        inOrder.verify(sequenceInstanceRepository).decrementWaitingCountIfWaiting(SEQUENCE_INSTANCE_ID, 1L);
+        inOrder.verify(messageHandlerService).handle(any());
+        inOrder.verify(messageRepository).updateMessageStatesInCurrentTransaction(List.of(message), List.of());
+        verify(sequenceInstanceRepository).addProcessedMessageType(SEQUENCE_INSTANCE_ID,
+                sequence.messageTypeBit("MyEventType3"), sequence.getMessageTypeIndexHash());
+        verify(messageRepository).clearPendingActionInCurrentTransaction(message);
+        verify(messageRepository, never()).updateMessageStatesInNewTransaction(any(), any());
+        verify(messageRepository, never()).clearPendingActionInNewTransaction(any());
+    }
+
+    @Test
+    void processBufferedMessageWithPendingAction_consumeFailing_decrementsWaitingCountWithoutAddingProcessedType() {
+        SequencedMessage message = sequencedMessage(1L, "MyEventType3", SequencedMessagePendingAction.CONSUME);
+        BufferedMessage bufferedMessage = BufferedMessage.builder().sequenceInstanceId(SEQUENCE_INSTANCE_ID).build();
+        when(messageRepository.getBufferedMessageInCurrentTransaction(message)).thenReturn(bufferedMessage);
+        doThrow(new IllegalStateException("handler failed")).when(messageHandlerService).handle(any());
+
+        service.processBufferedMessageWithPendingAction(message, sequence);
+
+        verify(sequenceInstanceRepository).decrementWaitingCountIfWaiting(SEQUENCE_INSTANCE_ID, 1L);
+        verify(errorServiceSender).accept(any(), any(IllegalStateException.class));
+        verify(messageRepository).updateMessageStatesInCurrentTransaction(List.of(), List.of(message));
+        verify(sequenceInstanceRepository, never()).addProcessedMessageType(anyLong(), anyLong(), anyInt());
+        verify(messageRepository).clearPendingActionInCurrentTransaction(message);
+    }
+
+    @Test
+    void processBufferedMessageWithPendingAction_expire_decrementsWaitingCountAndAddsProcessedType() {
+        SequencedMessage message = sequencedMessage(1L, "MyEventType2", SequencedMessagePendingAction.EXPIRE);
+
+        service.processBufferedMessageWithPendingAction(message, sequence);
+
+        InOrder inOrder = inOrder(sequenceInstanceRepository, messageRepository);
+        inOrder.verify(sequenceInstanceRepository).decrementWaitingCountIfWaiting(SEQUENCE_INSTANCE_ID, 1L);
+        inOrder.verify(messageRepository).clearPendingActionInCurrentTransaction(message, SequencedMessageState.PROCESSED);
+        verify(sequenceInstanceRepository).addProcessedMessageType(SEQUENCE_INSTANCE_ID,
+                sequence.messageTypeBit("MyEventType2"), sequence.getMessageTypeIndexHash());
+        verifyNoInteractions(messageHandlerService);
+        verify(messageRepository, never()).clearPendingActionInNewTransaction(any(), eq(SequencedMessageState.PROCESSED));
+    }
+
+    private List<Long> handledMessageIds() {
+        ArgumentCaptor<DeserializedMessage> handled = ArgumentCaptor.forClass(DeserializedMessage.class);
+        verify(messageHandlerService, atLeast(0)).handle(handled.capture());
+        return handled.getAllValues().stream()
+                .map(deserializedMessage -> Long.valueOf(deserializedMessage.topicName()))
+                .toList();
+    }
+
+    private static Map<Long, BufferedMessage> bufferedMessages(Collection<SequencedMessage> sequencedMessages) {
+        return sequencedMessages.stream().collect(toMap(SequencedMessage::getId,
+                _ -> BufferedMessage.builder().sequenceInstanceId(SEQUENCE_INSTANCE_ID).build()));
+    }
+
+    private static SequencedMessage waiting(long id, String messageType) {
+        return sequencedMessage(id, messageType, SequencedMessageState.WAITING, null);
+    }
+
+    private static SequencedMessage processed(long id, String messageType) {
+        return sequencedMessage(id, messageType, SequencedMessageState.PROCESSED, null);
+    }
+
+    private static SequencedMessage sequencedMessage(long id, String messageType, SequencedMessagePendingAction pendingAction) {
+        return sequencedMessage(id, messageType, SequencedMessageState.WAITING, pendingAction);
+    }
+
+    private static SequencedMessage sequencedMessage(long id, String messageType, SequencedMessageState state,
+                                                     SequencedMessagePendingAction pendingAction) {
+        return SequencedMessage.restore()
+                .id(id)
+                .sequenceInstanceId(SEQUENCE_INSTANCE_ID)
+                .messageType(messageType)
+                .sequencedMessageId(UUID.randomUUID())
+                .idempotenceId("idempotence-" + id)
+                .clusterName("cluster")
+                .topic("topic")
+                .state(state)
+                .createdAt(ZonedDateTime.now())
+                .pendingAction(pendingAction)
+                .build();
+    }
+}
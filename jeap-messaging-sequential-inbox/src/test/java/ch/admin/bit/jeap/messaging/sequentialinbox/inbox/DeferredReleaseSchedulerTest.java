@@ -0,0 +1,154 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class DeferredReleaseSchedulerTest {
+
+    private static final Duration LOCK_WAIT_TIMEOUT = Duration.ofMillis(100);
+    private static final Duration DEFERRAL_DELAY = Duration.ofMillis(10);
+
+    @Mock
+    private SequentialInboxMetricsCollector metricsCollector;
+    @Mock
+    private SequenceInstanceRepository sequenceInstanceRepository;
+    @Mock
+    private Transactions transactions;
+
+    private DeferredReleaseScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        lenient().doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(transactions).runInNewTransaction(any());
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null) {
+            scheduler.destroy();
+        }
+    }
+
+    @Test
+    void defer_whileInstanceIsStillLocked_defersPassAgainUntilItHasRun() throws Exception {
+        scheduler = new DeferredReleaseScheduler(metricsCollector, sequenceInstanceRepository, transactions,
+                LOCK_WAIT_TIMEOUT, DEFERRAL_DELAY, 10);
+        List<Boolean> waitForLockArguments = new CopyOnWriteArrayList<>();
+        CountDownLatch released = new CountDownLatch(1);
+
+        scheduler.defer(42L, waitForLock -> {
+            waitForLockArguments.add(waitForLock);
+            if (waitForLockArguments.size() < 3) {
+                return false;
+            }
+            released.countDown();
+            return true;
+        });
+
+        assertThat(released.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(waitForLockArguments).containsExactly(false, false, false);
+        verify(metricsCollector, times(3)).onReleaseDeferred();
+        verify(metricsCollector, timeout(5000)).onDeferredReleaseCompleted(any());
+        verifyNoInteractions(sequenceInstanceRepository);
+    }
+
+    @Test
+    void defer_afterMaxDeferrals_waitsForLock() throws Exception {
+        scheduler = new DeferredReleaseScheduler(metricsCollector, sequenceInstanceRepository, transactions,
+                LOCK_WAIT_TIMEOUT, DEFERRAL_DELAY, 3);
+        List<Boolean> waitForLockArguments = new CopyOnWriteArrayList<>();
+        CountDownLatch released = new CountDownLatch(1);
+
+        scheduler.defer(42L, waitForLock -> {
+            waitForLockArguments.add(waitForLock);
+            if (!waitForLock) {
+                return false;
+            }
+            released.countDown();
+            return true;
+        });
+
+        assertThat(released.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(waitForLockArguments).containsExactly(false, false, true);
+    }
+
+    @Test
+    void defer_whilePassForSameInstanceIsPending_isCoveredByPendingPass() throws Exception {
+        scheduler = new DeferredReleaseScheduler(metricsCollector, sequenceInstanceRepository, transactions,
+                LOCK_WAIT_TIMEOUT, Duration.ofMillis(200), 10);
+        AtomicInteger pendingPasses = new AtomicInteger();
+        AtomicInteger coveredPasses = new AtomicInteger();
+        CountDownLatch released = new CountDownLatch(1);
+
+        scheduler.defer(42L, _ -> {
+            pendingPasses.incrementAndGet();
+            released.countDown();
+            return true;
+        });
+        scheduler.defer(42L, _ -> coveredPasses.incrementAndGet() > 0);
+
+        assertThat(released.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(pendingPasses).hasValue(1);
+        assertThat(coveredPasses).hasValue(0);
+        verify(metricsCollector, times(2)).onReleaseDeferred();
+    }
+
+    @Test
+    void defer_whenPassFails_recordsReleaseAsRequested() {
+        scheduler = new DeferredReleaseScheduler(metricsCollector, sequenceInstanceRepository, transactions,
+                LOCK_WAIT_TIMEOUT, DEFERRAL_DELAY, 10);
+
+        scheduler.defer(42L, _ -> {
+            throw new IllegalStateException("release failed");
+        });
+
+        verify(sequenceInstanceRepository, timeout(5000)).markReleaseRequested(42L);
+    }
+
+    @Test
+    void destroy_recordsPendingPassesAsReleaseRequested() {
+        scheduler = new DeferredReleaseScheduler(metricsCollector, sequenceInstanceRepository, transactions,
+                LOCK_WAIT_TIMEOUT, Duration.ofMinutes(1), 10);
+        AtomicInteger runPasses = new AtomicInteger();
+
+        scheduler.defer(42L, _ -> runPasses.incrementAndGet() > 0);
+        scheduler.defer(43L, _ -> runPasses.incrementAndGet() > 0);
+        scheduler.destroy();
+
+        verify(sequenceInstanceRepository).markReleaseRequested(42L);
+        verify(sequenceInstanceRepository).markReleaseRequested(43L);
+        assertThat(runPasses).hasValue(0);
+    }
+
+    @Test
+    void disabled_withoutLockWaitTimeout() {
+        scheduler = new DeferredReleaseScheduler(metricsCollector, sequenceInstanceRepository, transactions,
+                null, DEFERRAL_DELAY, 10);
+
+        assertThat(scheduler.isEnabled()).isFalse();
+        assertThat(scheduler.getLockWaitTimeout()).isNull();
+        scheduler.destroy();
+        verifyNoInteractions(sequenceInstanceRepository);
+    }
+}
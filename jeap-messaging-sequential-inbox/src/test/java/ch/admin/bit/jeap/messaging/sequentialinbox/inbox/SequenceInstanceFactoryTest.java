@@ -0,0 +1,138 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceContextLocks;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceLeasedException;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@ExtendWith(MockitoExtension.class)
+class SequenceInstanceFactoryTest {
+
+    @Mock
+    private SequenceInstanceRepository repository;
+    @Mock
+    private SequenceContextLocks contextLocks;
+    @Mock
+    private Transactions transactions;
+
+    @Test
+    void runLocked_serializesThreadsLockingTheSameSequenceInstance() throws Exception {
+        SequenceInstanceFactory factory = new SequenceInstanceFactory(repository, contextLocks, transactions, 600, 16, 1);
+        CountDownLatch firstLocked = new CountDownLatch(1);
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        AtomicBoolean secondRan = new AtomicBoolean();
+
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> factory.runLocked(42L, () -> {
+            firstLocked.countDown();
+            await(releaseFirst);
+        }));
+        assertThat(firstLocked.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> factory.runLocked(42L, () -> secondRan.set(true)));
+
+        Thread.sleep(100);
+        assertThat(secondRan).isFalse();
+
+        releaseFirst.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertThat(secondRan).isTrue();
+    }
+
+    @Test
+    void runLocked_withoutStripes_runsActionWithoutLocking() {
+        SequenceInstanceFactory factory = new SequenceInstanceFactory(repository, contextLocks, transactions, 600, 0, 1);
+        AtomicBoolean ran = new AtomicBoolean();
+
+        factory.runLocked(42L, () -> ran.set(true));
+
+        assertThat(ran).isTrue();
+    }
+
+    @Test
+    void tryRunLocked_givesUpIfLocalLockIsHeldByAnotherThread() throws Exception {
+        SequenceInstanceFactory factory = new SequenceInstanceFactory(repository, contextLocks, transactions, 600, 16, 1);
+        CountDownLatch firstLocked = new CountDownLatch(1);
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        AtomicBoolean secondRan = new AtomicBoolean();
+
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> factory.runLocked(42L, () -> {
+            firstLocked.countDown();
+            await(releaseFirst);
+        }));
+        assertThat(firstLocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(factory.tryRunLocked(42L, Duration.ofMillis(50), () -> secondRan.set(true))).isFalse();
+        assertThat(secondRan).isFalse();
+
+        releaseFirst.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        assertThat(factory.tryRunLocked(42L, Duration.ofMillis(50), () -> secondRan.set(true))).isTrue();
+        assertThat(secondRan).isTrue();
+    }
+
+    @Test
+    void retryOnLockConflict_repeatsActionUntilNoConflictUpToMaxAttempts() {
+        SequenceInstanceFactory factory = new SequenceInstanceFactory(repository, contextLocks, transactions, 600, 0, 3);
+        AtomicInteger attempts = new AtomicInteger();
+
+        factory.retryOnLockConflict(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new SequenceInstanceLeasedException(42L);
+            }
+        });
+        assertThat(attempts).hasValue(3);
+
+        attempts.set(0);
+        assertThatThrownBy(() -> factory.retryOnLockConflict(() -> {
+            attempts.incrementAndGet();
+            throw new SequenceInstanceLeasedException(42L);
+        })).isInstanceOf(SequenceInstanceLeasedException.class);
+        assertThat(attempts).hasValue(3);
+    }
+
+    @Test
+    void retryOnLockConflict_doesNotRepeatActionFailingOtherwise() {
+        SequenceInstanceFactory factory = new SequenceInstanceFactory(repository, contextLocks, transactions, 600, 0, 3);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> factory.retryOnLockConflict(() -> {
+            attempts.incrementAndGet();
+            throw new OptimisticLockingFailureException("conflict in message handler");
+        })).isInstanceOf(OptimisticLockingFailureException.class);
+        assertThat(attempts).hasValue(1);
+    }
+
+    @Test
+    void runLocked_doesNotRepeatActionOnConflict() {
+        SequenceInstanceFactory factory = new SequenceInstanceFactory(repository, contextLocks, transactions, 600, 16, 3);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> factory.runLocked(42L, () -> {
+            attempts.incrementAndGet();
+            throw new SequenceInstanceLeasedException(42L);
+        })).isInstanceOf(SequenceInstanceLeasedException.class);
+        assertThat(attempts).hasValue(1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
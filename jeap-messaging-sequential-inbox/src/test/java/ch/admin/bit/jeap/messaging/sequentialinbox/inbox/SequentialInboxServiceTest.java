@@ -2,21 +2,46 @@ package ch.admin.bit.jeap.messaging.sequentialinbox.inbox;
 
 import ch.admin.bit.jeap.messaging.avro.AvroMessage;
 import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.kafka.errorhandling.ErrorServiceSender;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequenceContextLockType;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequencedMessageType;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.ClaimedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.IdempotenceClaim;
+import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.PartitionOwnedSequenceInstances;
 import ch.admin.bit.jeap.messaging.sequentialinbox.jpa.SequenceInstanceRepository;
+import ch.admin.bit.jeap.messaging.sequentialinbox.metrics.SequentialInboxMetricsCollector;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessageState;
+import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxException;
 import ch.admin.bit.jeap.messaging.sequentialinbox.spring.SequentialInboxMessageHandler;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.PessimisticLockingFailureException;
 import org.springframework.kafka.support.Acknowledgment;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -37,6 +62,18 @@ class SequentialInboxServiceTest {
     @Mock
     private BufferedMessageService bufferedMessageService;
     @Mock
+    private ErrorServiceSender errorServiceSender;
+    @Mock
+    private AsyncReleaseExecutor asyncReleaseExecutor;
+    @Mock
+    private SequenceInstanceLeases sequenceInstanceLeases;
+    @Mock
+    private DeferredReleaseScheduler deferredReleaseScheduler;
+    @Mock
+    private PartitionOwnedSequenceInstances partitionOwnedSequenceInstances;
+    @Mock
+    private SequentialInboxMetricsCollector metricsCollector;
+    @Mock
     private SequentialInboxMessageHandler messageHandler;
     @Mock
     private Acknowledgment acknowledgment;
@@ -53,11 +90,23 @@ class SequentialInboxServiceTest {
     void setUp() {
         service = new SequentialInboxService(sequenceInstanceFactory, sequencedMessageService,
                 sequenceInstanceRepository, inboxConfiguration, transactions, messageHandlerService,
-                bufferedMessageService);
+                bufferedMessageService, errorServiceSender, asyncReleaseExecutor, sequenceInstanceLeases,
+                deferredReleaseScheduler, partitionOwnedSequenceInstances, new InboxConnectionTracker(metricsCollector));
         doAnswer(invocation -> {
             invocation.<Runnable>getArgument(0).run();
             return null;
         }).when(transactions).runInNewTransaction(any());
+        lenient().doAnswer(invocation -> invocation.<Supplier<?>>getArgument(0).get())
+                .when(transactions).callInNewTransaction(any());
+        lenient().when(bufferedMessageService.isReleaseRequired(anyLong(), any())).thenReturn(true);
+        lenient().doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(1).run();
+            return null;
+        }).when(sequenceInstanceFactory).runLocked(anyLong(), any());
+        lenient().doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(sequenceInstanceFactory).retryOnLockConflict(any());
     }
 
     @Test
@@ -76,7 +125,7 @@ class SequentialInboxServiceTest {
         when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
         when(sequencedMessageService.createIdempotenceClaim(
                 "qualified-message-type", "idempotence-id", 42L)).thenReturn(false);
-        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLockForUpdate(42L)).thenReturn(sequenceInstance);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
 
         ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
                 new ConsumerRecord<>("topic", 0, 1L, null, message);
@@ -84,7 +133,499 @@ class SequentialInboxServiceTest {
         service.handleMessage(consumerRecord, messageHandler, acknowledgment);
 
         verify(messageHandler, never()).invoke(any(), any());
+        verify(sequencedMessageService, never()).findByMessageTypeAndIdempotenceIdInCurrentTransaction(any(), any());
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_withPartitionContextLock_ownsSequenceInstanceForPartitionOfRecord() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequence.getContextLock()).thenReturn(SequenceContextLockType.PARTITION);
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim("qualified-message-type", "idempotence-id", 42L))
+                .thenReturn(false);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+
+        service.handleMessage(new ConsumerRecord<>("topic", 3, 1L, null, message), messageHandler, acknowledgment);
+
+        verify(partitionOwnedSequenceInstances).own(new TopicPartition("topic", 3), 42L);
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_withPartitionContextLock_whenPartitionHasBeenRevoked_requestsReleaseWithoutReleasing() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequence.getContextLock()).thenReturn(SequenceContextLockType.PARTITION);
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim("qualified-message-type", "idempotence-id", 42L))
+                .thenReturn(false);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+        when(partitionOwnedSequenceInstances.isOwned(42L)).thenReturn(false);
+
+        service.handleMessage(new ConsumerRecord<>("topic", 3, 1L, null, message), messageHandler, acknowledgment);
+
+        InOrder inOrder = inOrder(sequenceInstanceFactory, partitionOwnedSequenceInstances, sequenceInstanceRepository);
+        inOrder.verify(sequenceInstanceFactory).getExistingSequenceInstanceAndLock(sequence, 42L);
+        inOrder.verify(partitionOwnedSequenceInstances).isOwned(42L);
+        inOrder.verify(sequenceInstanceRepository).markReleaseRequested(42L);
+        verify(bufferedMessageService, never()).processBufferedMessagesInCurrentTransaction(any(), any());
+        verify(sequenceInstanceRepository, never()).clearReleaseRequested(anyLong());
+        verify(sequenceInstanceFactory, never()).retryOnLockConflict(any());
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_withPartitionContextLock_whenPartitionIsOwned_releasesBufferedMessages() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequence.getContextLock()).thenReturn(SequenceContextLockType.PARTITION);
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim("qualified-message-type", "idempotence-id", 42L))
+                .thenReturn(false);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+        when(partitionOwnedSequenceInstances.isOwned(42L)).thenReturn(true);
+
+        service.handleMessage(new ConsumerRecord<>("topic", 3, 1L, null, message), messageHandler, acknowledgment);
+
+        verify(bufferedMessageService).processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence);
+        verify(sequenceInstanceRepository, never()).markReleaseRequested(anyLong());
+        verify(sequenceInstanceFactory, never()).retryOnLockConflict(any());
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_whenCachedSequenceInstanceIdIsStale_retriesWithNewSequenceInstance() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L, 43L);
+        when(sequencedMessageService.createIdempotenceClaim("qualified-message-type", "idempotence-id", 42L))
+                .thenThrow(new DataIntegrityViolationException("foreign key violation"));
+        when(sequenceInstanceFactory.evictStaleSequenceInstanceId(sequence, "context-id")).thenReturn(true);
+        when(sequencedMessageService.createIdempotenceClaim("qualified-message-type", "idempotence-id", 43L))
+                .thenReturn(false);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 43L)).thenReturn(sequenceInstance);
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        verify(sequenceInstanceFactory).getExistingSequenceInstanceAndLock(sequence, 43L);
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_handlesMessageInTransactionHoldingIdempotenceClaim() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim("qualified-message-type", "idempotence-id", 42L))
+                .thenReturn(true);
+        when(sequencedMessageService.findByMessageTypeAndIdempotenceIdInCurrentTransaction(
+                "qualified-message-type", "idempotence-id")).thenReturn(Optional.empty());
+        when(sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, 42L)).thenReturn(true);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        verify(messageHandlerService).invokeMessageHandler(null, message, "topic", messageHandler);
+        verify(sequencedMessageService).storeSequencedMessage("qualified-message-type", Optional.empty(), 42L,
+                SequencedMessageState.PROCESSED, consumerRecord);
         verify(sequencedMessageService, never()).findByMessageTypeAndIdempotenceId(any(), any());
+        verify(bufferedMessageService).processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence);
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_whenMessageHandlerFails_marksMessageFailedAfterClaimTransactionHasBeenRolledBack() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequenceInstanceFactory.createOrGetSequenceInstanceInCurrentTransaction(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim("qualified-message-type", "idempotence-id", 42L))
+                .thenReturn(true);
+        when(sequencedMessageService.findByMessageTypeAndIdempotenceIdInCurrentTransaction(
+                "qualified-message-type", "idempotence-id")).thenReturn(Optional.empty());
+        when(sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, 42L)).thenReturn(true);
+        doThrow(new IllegalStateException("handler failed"))
+                .when(messageHandlerService).invokeMessageHandler(null, message, "topic", messageHandler);
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        assertThatThrownBy(() -> service.handleMessage(consumerRecord, messageHandler, acknowledgment))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("handler failed");
+
+        // The claim transaction and the transaction marking the message as failed
+        verify(transactions, times(2)).runInNewTransaction(any());
+        InOrder inOrder = inOrder(messageHandlerService, sequencedMessageService);
+        inOrder.verify(messageHandlerService).invokeMessageHandler(null, message, "topic", messageHandler);
+        inOrder.verify(sequencedMessageService).storeSequencedMessageInCurrentTransaction("qualified-message-type",
+                Optional.empty(), 42L, SequencedMessageState.FAILED, consumerRecord);
+        inOrder.verify(sequencedMessageService).releaseIdempotenceClaim(
+                new IdempotenceClaim("qualified-message-type", "idempotence-id"));
+        verify(sequencedMessageService, never()).storeFailedSequencedMessageInNewTransaction(any(), any(), anyLong(), any());
+        verify(sequenceInstanceFactory, never()).getExistingSequenceInstanceAndLock(any(), anyLong());
+        verify(acknowledgment, never()).acknowledge();
+    }
+
+    @Test
+    void handleMessage_whenNoReleaseIsRequired_doesNotLockSequenceInstance() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim(
+                "qualified-message-type", "idempotence-id", 42L)).thenReturn(false);
+        when(bufferedMessageService.isReleaseRequired(42L, sequence)).thenReturn(false);
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        verify(sequenceInstanceFactory, never()).getExistingSequenceInstanceAndLock(any(), anyLong());
+        verify(bufferedMessageService, never()).processBufferedMessagesInCurrentTransaction(any(), any());
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_withAsyncReleaseEnabled_requestsReleaseAndSubmitsReleasePass() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim(
+                "qualified-message-type", "idempotence-id", 42L)).thenReturn(false);
+        when(asyncReleaseExecutor.isEnabled()).thenReturn(true);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        verify(sequenceInstanceRepository).markReleaseRequested(42L);
+        verify(sequenceInstanceFactory, never()).runLocked(anyLong(), any());
+        verify(sequenceInstanceFactory, never()).getExistingSequenceInstanceAndLock(any(), anyLong());
+        verify(acknowledgment).acknowledge();
+
+        ArgumentCaptor<Runnable> releasePass = ArgumentCaptor.forClass(Runnable.class);
+        verify(asyncReleaseExecutor).submit(eq(42L), releasePass.capture());
+        releasePass.getValue().run();
+
+        InOrder inOrder = inOrder(sequenceInstanceFactory, sequenceInstanceRepository, bufferedMessageService);
+        inOrder.verify(sequenceInstanceFactory).getExistingSequenceInstanceAndLock(sequence, 42L);
+        inOrder.verify(bufferedMessageService).processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence);
+        inOrder.verify(sequenceInstanceRepository).clearReleaseRequested(42L);
+    }
+
+    @Test
+    void handleMessage_withLockWaitTimeout_defersReleasePassIfSequenceInstanceIsLocked() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim(
+                "qualified-message-type", "idempotence-id", 42L)).thenReturn(false);
+        when(deferredReleaseScheduler.isEnabled()).thenReturn(true);
+        when(deferredReleaseScheduler.getLockWaitTimeout()).thenReturn(Duration.ofMillis(100));
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(2).run();
+            return true;
+        }).when(sequenceInstanceFactory).tryRunLocked(eq(42L), eq(Duration.ofMillis(100)), any());
+        when(sequenceInstanceFactory.tryGetExistingSequenceInstanceAndLock(sequence, 42L, Duration.ofMillis(100)))
+                .thenThrow(new PessimisticLockingFailureException("lock timeout"));
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        verify(bufferedMessageService, never()).processBufferedMessagesInCurrentTransaction(any(), any());
+        verify(acknowledgment).acknowledge();
+
+        ArgumentCaptor<DeferredReleaseScheduler.DeferredRelease> releasePass =
+                ArgumentCaptor.forClass(DeferredReleaseScheduler.DeferredRelease.class);
+        verify(deferredReleaseScheduler).defer(eq(42L), releasePass.capture());
+        // The last deferral waits for the lock
+        assertThat(releasePass.getValue().tryRelease(true)).isTrue();
+
+        verify(sequenceInstanceFactory).getExistingSequenceInstanceAndLock(sequence, 42L);
+        verify(bufferedMessageService).processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence);
+    }
+
+    @Test
+    void handleMessage_withLeaseContextLock_releasesWithoutLockedTransactionAndRepeatsPassOnConcurrentChange() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequence.getContextLock()).thenReturn(SequenceContextLockType.LEASE);
+        when(sequence.isComplete(3L)).thenReturn(true);
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        when(sequencedMessageService.createIdempotenceClaim(
+                "qualified-message-type", "idempotence-id", 42L)).thenReturn(false);
+        SequenceInstanceLeases.Lease lease = mock(SequenceInstanceLeases.Lease.class);
+        when(lease.getSequenceInstance()).thenReturn(sequenceInstance);
+        when(sequenceInstanceLeases.tryAcquire(42L)).thenReturn(Optional.of(lease));
+        when(bufferedMessageService.releaseWaitingMessagesWithoutTransaction(sequenceInstance, sequence))
+                .thenReturn(new ReleaseRound(1L, 1, 1), new ReleaseRound(3L, 1, 0));
+        // The sequence instance is changed during the first pass
+        when(sequenceInstanceLeases.release(eq(lease), any())).thenReturn(false).thenAnswer(invocation -> {
+            invocation.<Consumer<SequenceInstance>>getArgument(1).accept(sequenceInstance);
+            return true;
+        });
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        verify(bufferedMessageService, times(2)).releaseWaitingMessagesWithoutTransaction(sequenceInstance, sequence);
+        verify(sequenceInstanceRepository).setProcessedMessageTypesAndDecrementWaitingCount(42L, 3L, 2, 0, 0);
+        verify(sequenceInstance).close();
+        verify(lease).close();
+        verify(sequenceInstanceFactory, never()).getExistingSequenceInstanceAndLock(any(), anyLong());
+        verify(bufferedMessageService, never()).processBufferedMessagesInCurrentTransaction(any(), any());
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_withTwoPhaseIdempotenceClaim_invokesHandlerAfterClaimCommittedAndCompletesClaim() {
+        service.setTwoPhaseIdempotenceClaimEnabled(true);
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstance(sequence, "context-id")).thenReturn(42L);
+        IdempotenceClaim claim = new IdempotenceClaim("qualified-message-type", "idempotence-id");
+        when(sequencedMessageService.createInProgressIdempotenceClaim(claim, 42L, Duration.ofMinutes(5))).thenReturn(true);
+        when(sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, 42L)).thenReturn(true);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        InOrder inOrder = inOrder(transactions, messageHandlerService, sequencedMessageService);
+        inOrder.verify(transactions).callInNewTransaction(any());
+        inOrder.verify(messageHandlerService).invokeMessageHandler(null, message, "topic", messageHandler);
+        inOrder.verify(sequencedMessageService).storeSequencedMessage("qualified-message-type", Optional.empty(), 42L,
+                SequencedMessageState.PROCESSED, consumerRecord);
+        inOrder.verify(sequencedMessageService).completeIdempotenceClaimInNewTransaction(claim);
+        verify(sequencedMessageService, never()).createIdempotenceClaim(any(), any(), anyLong());
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_withSingleTransactionEnabled_handlesAndReleasesMessagesInOneTransaction() {
+        service.setSingleTransactionEnabled(true);
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstanceInCurrentTransaction(sequence, "context-id")).thenReturn(42L);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+        when(sequencedMessageService.createIdempotenceClaim(
+                "qualified-message-type", "idempotence-id", 42L)).thenReturn(true);
+        when(sequencedMessageService.findByMessageTypeAndIdempotenceIdInCurrentTransaction(
+                "qualified-message-type", "idempotence-id")).thenReturn(Optional.empty());
+        when(sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, 42L)).thenReturn(true);
+        when(bufferedMessageService.processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence)).thenReturn(true);
+
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        verify(transactions, times(1)).runInNewTransaction(any());
+        verify(messageHandlerService).invokeMessageHandler(null, message, "topic", messageHandler);
+        verify(sequencedMessageService).storeSequencedMessageInCurrentTransaction("qualified-message-type",
+                Optional.empty(), 42L, SequencedMessageState.PROCESSED, consumerRecord);
+        verify(sequenceInstance).close();
+        verify(sequenceInstanceFactory, never()).createOrGetSequenceInstance(any(), any());
+        verify(sequencedMessageService, never()).storeSequencedMessage(any(), any(), anyLong(), any(), any());
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessage_withSingleTransactionEnabled_claimsAndBuffersMessageWithOneWrite() {
+        service.setSingleTransactionEnabled(true);
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstanceInCurrentTransaction(sequence, "context-id")).thenReturn(42L);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+        when(sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, 42L)).thenReturn(false);
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord =
+                new ConsumerRecord<>("topic", 0, 1L, null, message);
+        when(sequencedMessageService.claimAndBufferMessageInCurrentTransaction("qualified-message-type", 42L, consumerRecord))
+                .thenReturn(new ClaimedMessage(true, Optional.empty()));
+        when(bufferedMessageService.processBufferedMessagesInCurrentTransaction(sequenceInstance, sequence)).thenReturn(false);
+
+        service.handleMessage(consumerRecord, messageHandler, acknowledgment);
+
+        verify(sequencedMessageService, never()).createIdempotenceClaim(any(), any(), anyLong());
+        verify(sequencedMessageService, never()).storeSequencedMessageInCurrentTransaction(any(), any(), anyLong(), any(), any());
+        verify(messageHandlerService, never()).invokeMessageHandler(any(), any(), any(), any());
+        verify(sequenceInstance, never()).close();
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    void handleMessages_groupsRecordsBySequenceContext_locksOncePerGroupAndAcknowledgesOnce() {
+        AvroMessage first = mockSequencedMessage("first-id", "first-idempotence-id", "context-id");
+        AvroMessage second = mockSequencedMessage("second-id", "second-idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstances(sequence, Set.of("context-id")))
+                .thenReturn(Map.of("context-id", 42L));
+        // Both messages have already been claimed by a previous delivery
+        when(sequencedMessageService.createInProgressIdempotenceClaims(any(), anyLong(), any())).thenReturn(Set.of());
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+
+        service.handleMessages(List.of(
+                        new ConsumerRecord<>("topic", 0, 1L, null, first),
+                        new ConsumerRecord<>("topic", 0, 2L, null, second)),
+                messageHandler, acknowledgment);
+
+        verify(sequencedMessageService).createInProgressIdempotenceClaims(List.of(
+                new IdempotenceClaim("qualified-message-type", "first-idempotence-id"),
+                new IdempotenceClaim("qualified-message-type", "second-idempotence-id")), 42L, Duration.ofMinutes(5));
+        verify(sequenceInstanceFactory, times(1)).getExistingSequenceInstanceAndLock(sequence, 42L);
+        verify(messageHandler, never()).invoke(any(), any());
+        verify(sequencedMessageService, never()).completeIdempotenceClaimsInNewTransaction(any());
+        verify(acknowledgment, times(1)).acknowledge();
+    }
+
+    @Test
+    void handleMessages_commitsClaimsBeforeInvokingHandlersAndReleasesClaimOfFailedMessage() {
+        AvroMessage first = mockSequencedMessage("first-id", "first-idempotence-id", "context-id");
+        AvroMessage second = mockSequencedMessage("second-id", "second-idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstances(sequence, Set.of("context-id")))
+                .thenReturn(Map.of("context-id", 42L));
+        IdempotenceClaim firstClaim = new IdempotenceClaim("qualified-message-type", "first-idempotence-id");
+        IdempotenceClaim secondClaim = new IdempotenceClaim("qualified-message-type", "second-idempotence-id");
+        when(sequencedMessageService.createInProgressIdempotenceClaims(any(), anyLong(), any())).thenReturn(Set.of(firstClaim, secondClaim));
+        when(sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, 42L)).thenReturn(true);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+        doThrow(new IllegalStateException("handler failed"))
+                .when(messageHandlerService).invokeMessageHandler(null, second, "topic", messageHandler);
+
+        service.handleMessages(List.of(
+                        new ConsumerRecord<>("topic", 0, 1L, null, first),
+                        new ConsumerRecord<>("topic", 0, 2L, null, second)),
+                messageHandler, acknowledgment);
+
+        InOrder inOrder = inOrder(transactions, sequencedMessageService, messageHandlerService);
+        inOrder.verify(transactions).runInNewTransaction(any());
+        inOrder.verify(sequencedMessageService).createInProgressIdempotenceClaims(any(), anyLong(), any());
+        inOrder.verify(messageHandlerService).invokeMessageHandler(null, first, "topic", messageHandler);
+        inOrder.verify(messageHandlerService).invokeMessageHandler(null, second, "topic", messageHandler);
+        inOrder.verify(sequencedMessageService).storeFailedSequencedMessageInNewTransaction(
+                eq("qualified-message-type"), eq(Optional.empty()), eq(42L), any());
+        inOrder.verify(sequencedMessageService).releaseIdempotenceClaimInNewTransaction(secondClaim);
+        inOrder.verify(sequencedMessageService).completeIdempotenceClaimsInNewTransaction(List.of(firstClaim));
+        verify(sequencedMessageService, never()).releaseIdempotenceClaim(any());
+        verify(errorServiceSender).accept(any(ConsumerRecord.class), any(IllegalStateException.class));
+        verify(acknowledgment, times(1)).acknowledge();
+    }
+
+    @Test
+    void handleMessages_whenConsumerCrashesBeforeMessageIsStored_redeliveryTakesOverClaimAndHandlesMessage() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstances(sequence, Set.of("context-id")))
+                .thenReturn(Map.of("context-id", 42L));
+        IdempotenceClaim claim = new IdempotenceClaim("qualified-message-type", "idempotence-id");
+        // The claim is created by the first delivery, and taken over by the redelivery once its lease has expired
+        when(sequencedMessageService.createInProgressIdempotenceClaims(List.of(claim), 42L, Duration.ofMinutes(5)))
+                .thenReturn(Set.of(claim));
+        when(sequencedMessageService.findByMessageTypeAndIdempotenceId("qualified-message-type", "idempotence-id"))
+                .thenReturn(Optional.empty());
+        when(sequencedMessageService.isReleaseConditionSatisfiedInCurrentTransaction(sequence, sequencedMessageType, 42L)).thenReturn(true);
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord = new ConsumerRecord<>("topic", 0, 1L, null, message);
+        doThrow(new OutOfMemoryError("crash")).doNothing().when(sequencedMessageService).storeSequencedMessage(
+                "qualified-message-type", Optional.empty(), 42L, SequencedMessageState.PROCESSED, consumerRecord);
+
+        assertThatThrownBy(() -> service.handleMessages(List.of(consumerRecord), messageHandler, acknowledgment))
+                .isInstanceOf(OutOfMemoryError.class);
+
+        // The claim is left in progress, the batch is not acknowledged and redelivered
+        verify(sequencedMessageService, never()).completeIdempotenceClaimsInNewTransaction(any());
+        verify(sequencedMessageService, never()).releaseIdempotenceClaimInNewTransaction(any());
+        verify(acknowledgment, never()).acknowledge();
+
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+        service.handleMessages(List.of(consumerRecord), messageHandler, acknowledgment);
+
+        verify(messageHandlerService, times(2)).invokeMessageHandler(null, message, "topic", messageHandler);
+        verify(sequencedMessageService).completeIdempotenceClaimsInNewTransaction(List.of(claim));
+        verify(errorServiceSender, never()).accept(any(), any());
         verify(acknowledgment).acknowledge();
     }
+
+    @Test
+    void handleMessages_whenClaimIsInProgressByAnotherConsumer_sendsRecordToErrorHandlingInsteadOfSkippingIt() {
+        AvroMessage message = mockSequencedMessage("message-id", "idempotence-id", "context-id");
+        when(inboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("qualified-message-type"))
+                .thenReturn(sequence);
+        when(sequence.getName()).thenReturn("sequence-name");
+        when(sequenceInstanceFactory.createOrGetSequenceInstances(sequence, Set.of("context-id")))
+                .thenReturn(Map.of("context-id", 42L));
+        IdempotenceClaim claim = new IdempotenceClaim("qualified-message-type", "idempotence-id");
+        when(sequencedMessageService.createInProgressIdempotenceClaims(any(), anyLong(), any())).thenReturn(Set.of());
+        when(sequencedMessageService.isIdempotenceClaimInProgress(claim)).thenReturn(true);
+        when(sequenceInstanceFactory.getExistingSequenceInstanceAndLock(sequence, 42L)).thenReturn(sequenceInstance);
+
+        service.handleMessages(List.of(new ConsumerRecord<>("topic", 0, 1L, null, message)), messageHandler, acknowledgment);
+
+        verify(messageHandlerService, never()).invokeMessageHandler(any(), any(), any(), any());
+        verify(errorServiceSender).accept(any(ConsumerRecord.class), any(SequentialInboxException.class));
+        verify(sequencedMessageService, never()).releaseIdempotenceClaimInNewTransaction(any());
+        verify(acknowledgment).acknowledge();
+    }
+
+    private AvroMessage mockSequencedMessage(String id, String idempotenceId, String contextId) {
+        AvroMessage message = mock(AvroMessage.class, RETURNS_DEEP_STUBS);
+        lenient().when(message.getIdentity().getId()).thenReturn(id);
+        when(message.getIdentity().getIdempotenceId()).thenReturn(idempotenceId);
+        when(inboxConfiguration.qualifiedSequencedMessageTypeName(message)).thenReturn("qualified-message-type");
+        when(inboxConfiguration.requireSequencedMessageTypeByQualifiedName("qualified-message-type"))
+                .thenReturn(sequencedMessageType);
+        when(sequencedMessageType.shouldSequenceMessage(message)).thenReturn(true);
+        when(sequencedMessageType.extractContextId(message)).thenReturn(contextId);
+        return message;
+    }
 }
@@ -0,0 +1,139 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InMemorySequentialInboxStoreTest {
+
+    private final InMemorySequentialInboxStore store = new InMemorySequentialInboxStore();
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void savedMessagesAreReadWithBufferedMessageHeaders() {
+        SequencedMessage waitingMessage = createSequencedMessage(1L, SequencedMessageState.WAITING);
+        SequencedMessage processedMessage = createSequencedMessage(1L, SequencedMessageState.PROCESSED);
+        SequencedMessage otherInstanceMessage = createSequencedMessage(2L, SequencedMessageState.WAITING);
+        BufferedMessage bufferedMessage = BufferedMessage.builder()
+                .sequenceInstanceId(1L)
+                .value(new byte[]{4, 5, 6})
+                .build();
+        bufferedMessage.setHeaders(List.of(MessageHeader.builder()
+                .bufferedMessage(bufferedMessage)
+                .headerName("name")
+                .headerValue("value".getBytes(UTF_8))
+                .build()));
+
+        store.saveMessage(bufferedMessage, waitingMessage);
+        store.saveMessage(null, processedMessage);
+        store.saveMessage(null, otherInstanceMessage);
+
+        assertThat(bufferedMessage.getSequencedMessageId()).isEqualTo(waitingMessage.getId());
+        assertThat(store.findMessagesBySequenceInstanceIdAndStates(1L, Set.of(SequencedMessageState.WAITING, SequencedMessageState.PROCESSED)))
+                .containsExactly(waitingMessage, processedMessage);
+        assertThat(store.findMessagesBySequenceInstanceIdAndStates(1L, Set.of(SequencedMessageState.WAITING)))
+                .containsExactly(waitingMessage);
+        Map<Long, BufferedMessage> bufferedMessages = store.findBufferedMessagesBySequencedMessageIds(List.of(waitingMessage.getId(), processedMessage.getId()));
+        assertThat(bufferedMessages).containsOnlyKeys(waitingMessage.getId());
+        assertThat(bufferedMessages.get(waitingMessage.getId()).getValue()).isEqualTo(new byte[]{4, 5, 6});
+        assertThat(bufferedMessages.get(waitingMessage.getId()).getHeaderMap()).containsEntry("name", "value".getBytes(UTF_8));
+    }
+
+    @Test
+    void stateUpdatesAndIdempotenceClaims() {
+        SequencedMessage processedMessage = createSequencedMessage(1L, SequencedMessageState.WAITING);
+        SequencedMessage failedMessage = createSequencedMessage(1L, SequencedMessageState.WAITING);
+        store.saveMessage(null, processedMessage);
+        store.saveMessage(null, failedMessage);
+
+        assertThat(store.createIdempotenceClaims(List.of(claimOf(processedMessage), claimOf(failedMessage)), 1L))
+                .containsExactlyInAnyOrder(claimOf(processedMessage), claimOf(failedMessage));
+        assertThat(store.createIdempotenceClaim(failedMessage.getMessageType(), failedMessage.getIdempotenceId(), 1L)).isFalse();
+
+        store.updateMessageStates(List.of(processedMessage), List.of(failedMessage));
+
+        assertThat(store.findMessageByMessageTypeAndIdempotenceId(processedMessage.getMessageType(), processedMessage.getIdempotenceId()))
+                .hasValueSatisfying(found -> {
+                    assertThat(found.getState()).isEqualTo(SequencedMessageState.PROCESSED);
+                    assertThat(found.getStateChangedAt()).isNotNull();
+                });
+        assertThat(store.findMessagesBySequenceInstanceIdAndStates(1L, Set.of(SequencedMessageState.FAILED)))
+                .containsExactly(failedMessage);
+        assertThat(store.deleteIdempotenceClaim(failedMessage.getMessageType(), failedMessage.getIdempotenceId())).isFalse();
+        assertThat(store.deleteIdempotenceClaim(processedMessage.getMessageType(), processedMessage.getIdempotenceId())).isTrue();
+    }
+
+    @Test
+    void writesAreUndoneOnRollback() {
+        SequencedMessage committedMessage = createSequencedMessage(1L, SequencedMessageState.WAITING);
+        store.saveMessage(null, committedMessage);
+        store.createIdempotenceClaim(committedMessage.getMessageType(), committedMessage.getIdempotenceId(), 1L);
+        SequencedMessage rolledBackMessage = createSequencedMessage(1L, SequencedMessageState.WAITING);
+
+        TransactionSynchronizationManager.initSynchronization();
+        store.saveMessage(null, rolledBackMessage);
+        store.createIdempotenceClaim(rolledBackMessage.getMessageType(), rolledBackMessage.getIdempotenceId(), 1L);
+        store.updateMessageState(committedMessage.getId(), SequencedMessageState.PROCESSED);
+        store.deleteIdempotenceClaim(committedMessage.getMessageType(), committedMessage.getIdempotenceId());
+        completeTransaction(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        assertThat(store.findMessagesBySequenceInstanceIdAndStates(1L, Set.of(SequencedMessageState.values())))
+                .singleElement()
+                .satisfies(message -> {
+                    assertThat(message).isEqualTo(committedMessage);
+                    assertThat(message.getState()).isEqualTo(SequencedMessageState.WAITING);
+                });
+        assertThat(store.createIdempotenceClaim(rolledBackMessage.getMessageType(), rolledBackMessage.getIdempotenceId(), 1L)).isTrue();
+        assertThat(store.createIdempotenceClaim(committedMessage.getMessageType(), committedMessage.getIdempotenceId(), 1L)).isFalse();
+    }
+
+    @Test
+    void clear() {
+        SequencedMessage message = createSequencedMessage(1L, SequencedMessageState.WAITING);
+        store.saveMessage(null, message);
+        store.createIdempotenceClaim(message.getMessageType(), message.getIdempotenceId(), 1L);
+
+        store.clear();
+
+        assertThat(store.findMessageByMessageTypeAndIdempotenceId(message.getMessageType(), message.getIdempotenceId())).isEmpty();
+        assertThat(store.createIdempotenceClaim(message.getMessageType(), message.getIdempotenceId(), 1L)).isTrue();
+    }
+
+    private static void completeTransaction(int status) {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        synchronizations.forEach(synchronization -> synchronization.afterCompletion(status));
+    }
+
+    private static IdempotenceClaim claimOf(SequencedMessage message) {
+        return new IdempotenceClaim(message.getMessageType(), message.getIdempotenceId());
+    }
+
+    private static SequencedMessage createSequencedMessage(long instanceId, SequencedMessageState state) {
+        return SequencedMessage.builder()
+                .sequenceInstanceId(instanceId)
+                .messageType("type")
+                .sequencedMessageId(UUID.randomUUID())
+                .idempotenceId(UUID.randomUUID().toString())
+                .clusterName("cluster")
+                .topic("topic")
+                .state(state)
+                .build();
+    }
+}
@@ -0,0 +1,253 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest;
+import org.springframework.boot.persistence.autoconfigure.EntityScan;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.postgresql.PostgreSQLContainer;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+@DataJpaTest(properties = SequentialInboxStore.STORE_PROPERTY + "=jdbc")
+@ContextConfiguration(classes = JdbcSequentialInboxStoreTest.TestConfig.class)
+class JdbcSequentialInboxStoreTest {
+
+    @Container
+    @ServiceConnection
+    static PostgreSQLContainer postgres = new PostgreSQLContainer("postgres:17-alpine");
+
+    @EnableJpaRepositories
+    @EntityScan(basePackageClasses = SequencedMessage.class)
+    @ComponentScan
+    static class TestConfig {
+    }
+
+    @Autowired
+    private SequentialInboxStore store;
+    @Autowired
+    private MessageRepository messageRepository;
+    @Autowired
+    private SequenceInstanceRepository sequenceInstanceRepository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private MessageDictionary messageDictionary;
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("delete from message_header");
+        jdbcTemplate.execute("delete from buffered_message");
+        jdbcTemplate.execute("delete from sequenced_message");
+        jdbcTemplate.execute("delete from sequential_inbox_idempotence");
+        jdbcTemplate.execute("delete from sequence_instance");
+    }
+
+    @Test
+    void jdbcStoreIsSelectedByProperty() {
+        assertThat(store).isInstanceOf(JdbcSequentialInboxStore.class);
+    }
+
+    @Test
+    void savedMessagesAreReadWithBufferedMessageHeadersAndTraceContext() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        SequentialInboxTraceContext traceContext = SequentialInboxTraceContext.builder()
+                .traceId(1L)
+                .spanId(2L)
+                .traceIdString("0000000000000001")
+                .sampled(true)
+                .build();
+        SequencedMessage waitingMessage = createSequencedMessage(sequenceInstanceId, SequencedMessageState.WAITING, traceContext);
+        SequencedMessage processedMessage = createSequencedMessage(sequenceInstanceId, SequencedMessageState.PROCESSED, null);
+        BufferedMessage bufferedMessage = BufferedMessage.builder()
+                .sequenceInstanceId(sequenceInstanceId)
+                .key(new byte[]{1, 2, 3})
+                .value(new byte[]{4, 5, 6})
+                .build();
+        bufferedMessage.setHeaders(List.of(MessageHeader.builder()
+                .bufferedMessage(bufferedMessage)
+                .headerName("name")
+                .headerValue("value".getBytes(UTF_8))
+                .build()));
+
+        messageRepository.saveMessage(bufferedMessage, waitingMessage);
+        messageRepository.saveMessage(null, processedMessage);
+
+        assertThat(waitingMessage.getId()).isNotNull();
+        assertThat(bufferedMessage.getId()).isNotNull();
+        assertThat(bufferedMessage.getSequencedMessageId()).isEqualTo(waitingMessage.getId());
+
+        List<SequencedMessage> waitingAndProcessed = messageRepository.getWaitingAndProcessedMessagesInCurrentTransaction(sequenceInstanceId);
+        assertThat(waitingAndProcessed).containsExactlyInAnyOrder(waitingMessage, processedMessage);
+        SequencedMessage readWaitingMessage = waitingAndProcessed.stream()
+                .filter(message -> message.getState() == SequencedMessageState.WAITING)
+                .findFirst().orElseThrow();
+        assertThat(readWaitingMessage.getTraceContext()).usingRecursiveComparison().isEqualTo(traceContext);
+        assertThat(readWaitingMessage.getSequencedMessageId()).isEqualTo(waitingMessage.getSequencedMessageId());
+        assertThat(readWaitingMessage.getCreatedAt()).isNotNull();
+
+        Map<Long, BufferedMessage> bufferedMessages = messageRepository.getBufferedMessagesInCurrentTransaction(List.of(waitingMessage, processedMessage));
+        assertThat(bufferedMessages).containsOnlyKeys(waitingMessage.getId());
+        BufferedMessage readBufferedMessage = bufferedMessages.get(waitingMessage.getId());
+        assertThat(readBufferedMessage.getValue()).isEqualTo(new byte[]{4, 5, 6});
+        assertThat(readBufferedMessage.getHeaderMap()).containsEntry("name", "value".getBytes(UTF_8));
+    }
+
+    @Test
+    void stateUpdatesAndIdempotenceClaims() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        SequencedMessage sequencedMessage = createSequencedMessage(sequenceInstanceId, SequencedMessageState.WAITING, null);
+        messageRepository.saveMessage(null, sequencedMessage);
+
+        assertThat(messageRepository.createIdempotenceClaim(sequencedMessage.getMessageType(), sequencedMessage.getIdempotenceId(), sequenceInstanceId)).isTrue();
+        assertThat(messageRepository.createIdempotenceClaim(sequencedMessage.getMessageType(), sequencedMessage.getIdempotenceId(), sequenceInstanceId)).isFalse();
+
+        messageRepository.setMessageStateInCurrentTransaction(sequencedMessage, SequencedMessageState.PROCESSED);
+        assertThat(messageRepository.findByMessageTypeAndIdempotenceIdInCurrentTransaction(sequencedMessage.getMessageType(), sequencedMessage.getIdempotenceId()))
+                .hasValueSatisfying(found -> {
+                    assertThat(found.getState()).isEqualTo(SequencedMessageState.PROCESSED);
+                    assertThat(found.getStateChangedAt()).isNotNull();
+                });
+
+        messageRepository.markMessageFailedAndReleaseIdempotenceClaimInCurrentTransaction(sequencedMessage);
+        assertThat(store.findMessagesBySequenceInstanceIdAndStates(sequenceInstanceId, Set.of(SequencedMessageState.FAILED)))
+                .containsExactly(sequencedMessage);
+        assertThat(store.deleteIdempotenceClaim(sequencedMessage.getMessageType(), sequencedMessage.getIdempotenceId())).isFalse();
+    }
+
+    @Test
+    void claimAndSaveMessageClaimsAndInsertsWithOneStatement() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        SequencedMessage sequencedMessage = createSequencedMessage(sequenceInstanceId, SequencedMessageState.WAITING, null);
+        BufferedMessage bufferedMessage = BufferedMessage.builder()
+                .sequenceInstanceId(sequenceInstanceId)
+                .value(new byte[]{4, 5, 6})
+                .build();
+        bufferedMessage.setHeaders(List.of(
+                MessageHeader.builder().bufferedMessage(bufferedMessage).headerName("b").headerValue(new byte[]{2}).build(),
+                MessageHeader.builder().bufferedMessage(bufferedMessage).headerName("a").headerValue(new byte[]{1}).build()));
+
+        ClaimedMessage claimedMessage = messageRepository.claimAndSaveMessage(bufferedMessage, sequencedMessage);
+
+        assertThat(claimedMessage.claimCreated()).isTrue();
+        assertThat(claimedMessage.messageSaved()).isTrue();
+        assertThat(sequencedMessage.getId()).isNotNull();
+        assertThat(bufferedMessage.getSequencedMessageId()).isEqualTo(sequencedMessage.getId());
+        assertThat(store.findBufferedMessagesBySequencedMessageIds(List.of(sequencedMessage.getId())).get(sequencedMessage.getId()))
+                .satisfies(readBufferedMessage -> {
+                    assertThat(readBufferedMessage.getId()).isEqualTo(bufferedMessage.getId());
+                    assertThat(readBufferedMessage.getHeaders())
+                            .extracting(MessageHeader::getHeaderName, MessageHeader::getId)
+                            .containsExactlyInAnyOrder(
+                                    tuple("a", bufferedMessage.getHeaders().get(1).getId()),
+                                    tuple("b", bufferedMessage.getHeaders().get(0).getId()));
+                });
+
+        SequencedMessage redelivery = createSequencedMessage(sequenceInstanceId, SequencedMessageState.WAITING, null, sequencedMessage.getIdempotenceId());
+        ClaimedMessage alreadyClaimed = messageRepository.claimAndSaveMessage(null, redelivery);
+        assertThat(alreadyClaimed.claimCreated()).isFalse();
+        assertThat(alreadyClaimed.existingMessage()).contains(sequencedMessage);
+        assertThat(redelivery.getId()).isNull();
+
+        messageRepository.markMessageFailedAndReleaseIdempotenceClaimInCurrentTransaction(sequencedMessage);
+        ClaimedMessage retried = messageRepository.claimAndSaveMessage(null, redelivery);
+        assertThat(retried.claimCreated()).isTrue();
+        assertThat(retried.messageSaved()).isFalse();
+        assertThat(retried.existingMessage()).hasValueSatisfying(existing ->
+                assertThat(existing.getState()).isEqualTo(SequencedMessageState.FAILED));
+        assertThat(redelivery.getId()).isNull();
+    }
+
+    @Test
+    void findByMessageTypeAndIdempotenceIdFindsStoredMessageAndDoesNotAddUnknownMessageType() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        SequencedMessage sequencedMessage = createSequencedMessage(sequenceInstanceId);
+        messageRepository.saveMessage(null, sequencedMessage);
+
+        assertThat(messageRepository.findByMessageTypeAndIdempotenceIdInCurrentTransaction("type", sequencedMessage.getIdempotenceId()))
+                .hasValueSatisfying(found -> assertThat(found.getId()).isEqualTo(sequencedMessage.getId()));
+        assertThat(messageRepository.findByMessageTypeAndIdempotenceIdInCurrentTransaction("unknown-type", sequencedMessage.getIdempotenceId()))
+                .isEmpty();
+        assertThat(jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM sequenced_message_dictionary WHERE value = 'unknown-type'", Integer.class)).isZero();
+    }
+
+    @Test
+    void messageDictionaryPreloadCreatesMissingEntriesOnce() {
+        short existingId = messageDictionary.getId("preloaded-topic");
+
+        messageDictionary.preload(List.of("preloaded-topic", "preloaded-message-type"));
+        messageDictionary.preload(List.of("preloaded-topic", "preloaded-message-type"));
+
+        assertThat(messageDictionary.getId("preloaded-topic")).isEqualTo(existingId);
+        assertThat(jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM sequenced_message_dictionary WHERE value IN ('preloaded-topic', 'preloaded-message-type')",
+                Integer.class)).isEqualTo(2);
+        assertThat(messageDictionary.getValue(messageDictionary.getId("preloaded-message-type"))).isEqualTo("preloaded-message-type");
+    }
+
+    @Test
+    void claimAndSaveMessageAssignsHeaderIdsByPosition() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        SequencedMessage sequencedMessage = createSequencedMessage(sequenceInstanceId, SequencedMessageState.WAITING, null);
+        BufferedMessage bufferedMessage = BufferedMessage.builder()
+                .sequenceInstanceId(sequenceInstanceId)
+                .value(new byte[]{4, 5, 6})
+                .build();
+        bufferedMessage.setHeaders(List.of(
+                MessageHeader.builder().bufferedMessage(bufferedMessage).headerName("a").headerValue(new byte[]{2}).build(),
+                MessageHeader.builder().bufferedMessage(bufferedMessage).headerName("b").headerValue(new byte[]{3}).build(),
+                MessageHeader.builder().bufferedMessage(bufferedMessage).headerName("a").headerValue(new byte[]{1}).build()));
+
+        messageRepository.claimAndSaveMessage(bufferedMessage, sequencedMessage);
+
+        assertThat(bufferedMessage.getHeaders()).extracting(MessageHeader::getId).doesNotContainNull().doesNotHaveDuplicates();
+        assertThat(store.findBufferedMessagesBySequencedMessageIds(List.of(sequencedMessage.getId())).get(sequencedMessage.getId()).getHeaders())
+                .extracting(MessageHeader::getId, header -> header.getHeaderValue()[0])
+                .containsExactlyInAnyOrder(
+                        tuple(bufferedMessage.getHeaders().get(0).getId(), (byte) 2),
+                        tuple(bufferedMessage.getHeaders().get(1).getId(), (byte) 3),
+                        tuple(bufferedMessage.getHeaders().get(2).getId(), (byte) 1));
+    }
+
+    private static SequencedMessage createSequencedMessage(long instanceId, SequencedMessageState state, SequentialInboxTraceContext traceContext) {
+        return createSequencedMessage(instanceId, state, traceContext, UUID.randomUUID().toString());
+    }
+
+    private static SequencedMessage createSequencedMessage(long instanceId, SequencedMessageState state, SequentialInboxTraceContext traceContext, String idempotenceId) {
+        return SequencedMessage.builder()
+                .sequenceInstanceId(instanceId)
+                .messageType("type")
+                .sequencedMessageId(UUID.randomUUID())
+                .idempotenceId(idempotenceId)
+                .clusterName("cluster")
+                .topic("topic")
+                .state(state)
+                .traceContext(traceContext)
+                .build();
+    }
+
+    private long createAndPersistSequenceInstance() {
+        return sequenceInstanceRepository.saveNewInstance(SequenceInstance.builder()
+                .name("test")
+                .contextId(UUID.randomUUID().toString())
+                .state(SequenceInstanceState.OPEN)
+                .retentionPeriod(Duration.ofDays(7))
+                .build());
+    }
+}
@@ -106,6 +106,20 @@ class MessageRepositoryTest {
                 .isNotNull();
     }
 
+    @Test
+    void findByMessageTypeAndIdempotenceIdFindsStoredMessageAndDoesNotAddUnknownMessageType() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        SequencedMessage sequencedMessage = createSequencedMessage(sequenceInstanceId);
+        messageRepository.saveMessage(null, sequencedMessage);
+
+        assertThat(messageRepository.findByMessageTypeAndIdempotenceIdInCurrentTransaction("type", sequencedMessage.getIdempotenceId()))
+                .hasValueSatisfying(found -> assertThat(found.getId()).isEqualTo(sequencedMessage.getId()));
+        assertThat(messageRepository.findByMessageTypeAndIdempotenceIdInCurrentTransaction("unknown-type", sequencedMessage.getIdempotenceId()))
+                .isEmpty();
+        assertThat(jdbcTemplate.queryForObject(
+                "SELECT count(*) FROM sequenced_message_dictionary WHERE value = 'unknown-type'", Integer.class)).isZero();
+    }
+
     @Test
     void schemaKeepsExistingSequencedMessageIdempotenceIndexNonUnique() {
         String indexDefinition = jdbcTemplate.queryForObject("""
@@ -139,6 +153,86 @@ class MessageRepositoryTest {
         assertThat(otherMessageTypeClaim).isTrue();
     }
 
+    @Test
+    void createIdempotenceClaims_returnsOnlyNewlyCreatedClaims() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        IdempotenceClaim existingClaim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+        IdempotenceClaim newClaim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+        IdempotenceClaim otherMessageTypeClaim = new IdempotenceClaim("otherMessageType", existingClaim.idempotenceId());
+        messageRepository.createIdempotenceClaim(existingClaim.messageType(), existingClaim.idempotenceId(), sequenceInstanceId);
+
+        Set<IdempotenceClaim> createdClaims = messageRepository.createIdempotenceClaims(
+                List.of(existingClaim, newClaim, otherMessageTypeClaim), sequenceInstanceId);
+
+        assertThat(createdClaims).containsExactlyInAnyOrder(newClaim, otherMessageTypeClaim);
+    }
+
+    @Test
+    void releaseIdempotenceClaim_allowsClaimingAgain() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        IdempotenceClaim claim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+        messageRepository.createIdempotenceClaims(List.of(claim), sequenceInstanceId);
+
+        messageRepository.releaseIdempotenceClaim(claim);
+
+        assertThat(messageRepository.createIdempotenceClaim(claim.messageType(), claim.idempotenceId(), sequenceInstanceId)).isTrue();
+    }
+
+    @Test
+    void createInProgressIdempotenceClaim_isTakenOverOnlyOnceLeaseExpired() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        IdempotenceClaim claim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+
+        assertThat(messageRepository.createInProgressIdempotenceClaim(claim.messageType(), claim.idempotenceId(), sequenceInstanceId, Duration.ofMinutes(5))).isTrue();
+        assertThat(messageRepository.createInProgressIdempotenceClaim(claim.messageType(), claim.idempotenceId(), sequenceInstanceId, Duration.ofMinutes(5))).isFalse();
+        assertThat(messageRepository.isIdempotenceClaimInProgress(claim.messageType(), claim.idempotenceId())).isTrue();
+
+        // A lease expiring before now stands for a lease left by a failed consumer
+        IdempotenceClaim expiredClaim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+        messageRepository.createInProgressIdempotenceClaim(expiredClaim.messageType(), expiredClaim.idempotenceId(), sequenceInstanceId, Duration.ofMinutes(-1));
+        assertThat(messageRepository.createInProgressIdempotenceClaim(expiredClaim.messageType(), expiredClaim.idempotenceId(), sequenceInstanceId, Duration.ofMinutes(5))).isTrue();
+    }
+
+    @Test
+    void completedIdempotenceClaim_isNotInProgressAndCannotBeTakenOver() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        IdempotenceClaim claim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+        messageRepository.createInProgressIdempotenceClaim(claim.messageType(), claim.idempotenceId(), sequenceInstanceId, Duration.ofMinutes(-1));
+        TestTransaction.flagForCommit();
+        TestTransaction.end();
+
+        messageRepository.completeIdempotenceClaimInNewTransaction(claim);
+
+        TestTransaction.start();
+        assertThat(messageRepository.isIdempotenceClaimInProgress(claim.messageType(), claim.idempotenceId())).isFalse();
+        assertThat(messageRepository.createInProgressIdempotenceClaim(claim.messageType(), claim.idempotenceId(), sequenceInstanceId, Duration.ofMinutes(5))).isFalse();
+        assertThat(messageRepository.createIdempotenceClaim(claim.messageType(), claim.idempotenceId(), sequenceInstanceId)).isFalse();
+    }
+
+    @Test
+    void createInProgressIdempotenceClaims_leftByCrashedConsumerAreTakenOverOnlyOnceLeaseExpired() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        IdempotenceClaim leasedClaim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+        IdempotenceClaim expiredClaim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+        IdempotenceClaim completedClaim = new IdempotenceClaim("messageType", UUID.randomUUID().toString());
+        assertThat(messageRepository.createInProgressIdempotenceClaims(List.of(leasedClaim), sequenceInstanceId, Duration.ofMinutes(5)))
+                .containsExactly(leasedClaim);
+        // A lease expiring before now stands for a lease left by a consumer that crashed before storing the message
+        assertThat(messageRepository.createInProgressIdempotenceClaims(List.of(expiredClaim, completedClaim), sequenceInstanceId, Duration.ofMinutes(-1)))
+                .containsExactlyInAnyOrder(expiredClaim, completedClaim);
+        TestTransaction.flagForCommit();
+        TestTransaction.end();
+
+        messageRepository.completeIdempotenceClaimsInNewTransaction(List.of(completedClaim));
+
+        TestTransaction.start();
+        Set<IdempotenceClaim> redeliveredClaims = messageRepository.createInProgressIdempotenceClaims(
+                List.of(leasedClaim, expiredClaim, completedClaim), sequenceInstanceId, Duration.ofMinutes(5));
+        assertThat(redeliveredClaims).containsExactly(expiredClaim);
+        assertThat(messageRepository.isIdempotenceClaimInProgress(leasedClaim.messageType(), leasedClaim.idempotenceId())).isTrue();
+        assertThat(messageRepository.isIdempotenceClaimInProgress(completedClaim.messageType(), completedClaim.idempotenceId())).isFalse();
+    }
+
     @Test
     void createIdempotenceClaim_canBeAcquiredAgainAfterRollback() {
         long sequenceInstanceId = createAndPersistSequenceInstance();
@@ -295,6 +389,35 @@ class MessageRepositoryTest {
         TestTransaction.end();
     }
 
+    @Test
+    void getBufferedMessagesInNewTransactionReturnsMessagesWithHeadersBySequencedMessageId() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        SequencedMessage sequencedMessage1 = createSequencedMessage(sequenceInstanceId);
+        SequencedMessage sequencedMessage2 = createSequencedMessage(sequenceInstanceId);
+        SequencedMessage sequencedMessageWithoutBufferedMessage = createSequencedMessage(sequenceInstanceId);
+        BufferedMessage bufferedMessage1 = createBufferedMessageWithOneHeader(sequenceInstanceId);
+        BufferedMessage bufferedMessage2 = createBufferedMessageWithOneHeader(sequenceInstanceId);
+        messageRepository.saveMessage(bufferedMessage1, sequencedMessage1);
+        messageRepository.saveMessage(bufferedMessage2, sequencedMessage2);
+        messageRepository.saveMessage(null, sequencedMessageWithoutBufferedMessage);
+        TestTransaction.flagForCommit();
+        TestTransaction.end();
+
+        TestTransaction.start();
+        Map<Long, BufferedMessage> result = messageRepository.getBufferedMessagesInNewTransaction(
+                List.of(sequencedMessage1, sequencedMessage2, sequencedMessageWithoutBufferedMessage));
+
+        assertThat(result)
+                .hasSize(2)
+                .containsEntry(sequencedMessage1.getId(), bufferedMessage1)
+                .containsEntry(sequencedMessage2.getId(), bufferedMessage2);
+        // Headers are fetched with the buffered messages and available outside the transaction
+        assertThat(result.get(sequencedMessage1.getId()).getHeaderMap())
+                .containsEntry("name", "value".getBytes(UTF_8));
+        assertThat(messageRepository.getBufferedMessagesInNewTransaction(List.of())).isEmpty();
+        TestTransaction.end();
+    }
+
     @Test
     void setMessageStateInNewTransactionUpdatesStateCorrectly() {
         long sequenceInstanceId = createAndPersistSequenceInstance();
@@ -352,6 +475,33 @@ class MessageRepositoryTest {
         assertThat(updatedMessage.getState()).isEqualTo(SequencedMessageState.FAILED);
     }
 
+    @Test
+    void updateMessageStatesInNewTransaction_marksMessagesProcessedAndFailedAndReleasesClaims() {
+        long sequenceInstanceId = createAndPersistSequenceInstance();
+        SequencedMessage processedMessage1 = createSequencedMessage(sequenceInstanceId);
+        SequencedMessage processedMessage2 = createSequencedMessage(sequenceInstanceId);
+        SequencedMessage failedMessage = createSequencedMessage(sequenceInstanceId);
+        testEntityManager.persist(processedMessage1);
+        testEntityManager.persist(processedMessage2);
+        testEntityManager.persist(failedMessage);
+        messageRepository.createIdempotenceClaim(failedMessage.getMessageType(), failedMessage.getIdempotenceId(), sequenceInstanceId);
+        TestTransaction.flagForCommit();
+        TestTransaction.end();
+
+        messageRepository.updateMessageStatesInNewTransaction(List.of(processedMessage1, processedMessage2), List.of(failedMessage));
+
+        TestTransaction.start();
+        assertThat(testEntityManager.find(SequencedMessage.class, processedMessage1.getId()).getState())
+                .isEqualTo(SequencedMessageState.PROCESSED);
+        assertThat(testEntityManager.find(SequencedMessage.class, processedMessage2.getId()).getState())
+                .isEqualTo(SequencedMessageState.PROCESSED);
+        assertThat(testEntityManager.find(SequencedMessage.class, failedMessage.getId()).getState())
+                .isEqualTo(SequencedMessageState.FAILED);
+        assertThat(messageRepository.createIdempotenceClaim(
+                failedMessage.getMessageType(), failedMessage.getIdempotenceId(), sequenceInstanceId))
+                .isTrue();
+    }
+
     @Test
     void setMessageStateInCurrentTransactionUpdatesStateCorrectly() {
         long sequenceInstanceId = createAndPersistSequenceInstance();
@@ -556,9 +706,9 @@ class MessageRepositoryTest {
     @Test
     void traceContextRoundTripsNullWhenNoneWasCapturedAtPersistTime() {
         // The null-trace-context contract is what BufferedMessageTracing relies on: if no span was active at
-        // capture time, the embeddable must come back null on read so replay does not activate a synthetic
-        // zeroed SpanContext. Hibernate's default for @Embedded with all-null columns is to materialize null,
-        // governed by hibernate.create_empty_composites.enabled (default false).
+        // capture time, the trace context must come back null on read so replay does not activate a synthetic
+        // zeroed SpanContext. The converter stores a missing trace context as a null column rather than as zeroed
+        // bytes.
         long sequenceInstanceId = createAndPersistSequenceInstance();
         SequencedMessage sequencedMessage = createSequencedMessageWithTraceContext(sequenceInstanceId, null);
         messageRepository.saveMessage(null, sequencedMessage);
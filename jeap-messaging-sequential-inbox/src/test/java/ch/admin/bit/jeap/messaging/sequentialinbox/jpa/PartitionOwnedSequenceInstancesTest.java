@@ -0,0 +1,60 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PartitionOwnedSequenceInstancesTest {
+
+    private static final TopicPartition PARTITION_0 = new TopicPartition("topic", 0);
+    private static final TopicPartition PARTITION_1 = new TopicPartition("topic", 1);
+
+    @Test
+    void keepsStateOfOwnedSequenceInstancesOnly() {
+        PartitionOwnedSequenceInstances instances = new PartitionOwnedSequenceInstances(100);
+
+        instances.putReadAfterCommit(1L, 0b01L, 7);
+        assertThat(instances.isOwned(1L)).isFalse();
+        assertThat(instances.get(1L, 7)).isEmpty();
+
+        instances.own(PARTITION_0, 1L);
+        assertThat(instances.isOwned(1L)).isTrue();
+        assertThat(instances.get(1L, 7)).isEmpty();
+
+        instances.putReadAfterCommit(1L, 0b01L, 7);
+        instances.addProcessedMessageTypeAfterCommit(1L, 0b10L, 7);
+
+        assertThat(instances.get(1L, 7)).hasValueSatisfying(owned ->
+                assertThat(owned.processedMessageTypes()).isEqualTo(0b11L));
+        assertThat(instances.get(1L, 8)).isEmpty();
+    }
+
+    @Test
+    void evictedStateIsReadAgain() {
+        PartitionOwnedSequenceInstances instances = new PartitionOwnedSequenceInstances(100);
+        instances.own(PARTITION_0, 1L);
+        instances.putReadAfterCommit(1L, 0b01L, 7);
+
+        instances.evictAfterCommit(1L);
+
+        assertThat(instances.isOwned(1L)).isTrue();
+        assertThat(instances.get(1L, 7)).isEmpty();
+        instances.putReadAfterCommit(1L, 0b11L, 7);
+        assertThat(instances.get(1L, 7)).hasValueSatisfying(owned -> assertThat(owned.processedMessageTypes()).isEqualTo(0b11L));
+    }
+
+    @Test
+    void disownDropsStateOfPartitions() {
+        PartitionOwnedSequenceInstances instances = new PartitionOwnedSequenceInstances(100);
+        instances.own(PARTITION_0, 1L);
+        instances.own(PARTITION_1, 2L);
+
+        instances.disown(List.of(PARTITION_0));
+
+        assertThat(instances.isOwned(1L)).isFalse();
+        assertThat(instances.isOwned(2L)).isTrue();
+    }
+}
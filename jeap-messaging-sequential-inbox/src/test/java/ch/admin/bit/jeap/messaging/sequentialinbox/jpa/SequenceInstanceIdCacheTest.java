@@ -0,0 +1,35 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SequenceInstanceIdCacheTest {
+
+    @Test
+    void putAndEvict() {
+        SequenceInstanceIdCache cache = new SequenceInstanceIdCache(true, 100, Duration.ofMinutes(10));
+
+        cache.putAfterCommit("name", "contextId1", 1L);
+        cache.putAfterCommit("name", "contextId2", 2L);
+        cache.evictAfterCommit(List.of(new SequenceInstanceKey("name", "contextId1")));
+
+        assertThat(cache.get("name", "contextId1")).isEmpty();
+        assertThat(cache.get("name", "contextId2")).contains(2L);
+        assertThat(cache.get("otherName", "contextId2")).isEmpty();
+        assertThat(cache.getNativeCache()).isPresent();
+    }
+
+    @Test
+    void disabledCacheDoesNotCacheIds() {
+        SequenceInstanceIdCache cache = new SequenceInstanceIdCache(false, 100, Duration.ofMinutes(10));
+
+        cache.putAfterCommit("name", "contextId", 1L);
+
+        assertThat(cache.get("name", "contextId")).isEmpty();
+        assertThat(cache.getNativeCache()).isEmpty();
+    }
+}
@@ -3,6 +3,9 @@ package ch.admin.bit.jeap.messaging.sequentialinbox.jpa;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstance;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstancePendingAction;
 import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequenceInstanceState;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessage;
+import ch.admin.bit.jeap.messaging.sequentialinbox.persistence.SequencedMessageState;
+import org.apache.kafka.common.TopicPartition;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest;
@@ -11,28 +14,41 @@ import org.springframework.boot.persistence.autoconfigure.EntityScan;
 import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.postgresql.PostgreSQLContainer;
 
 import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @DataJpaTest
 @ContextConfiguration(classes = SequenceInstanceRepositoryTest.TestConfig.class)
 class SequenceInstanceRepositoryTest {
 
+    private static final int MESSAGE_TYPE_INDEX_HASH = 42;
+
     @Container
     @ServiceConnection
     static PostgreSQLContainer postgres = new PostgreSQLContainer("postgres:17-alpine");
@@ -43,6 +59,18 @@ class SequenceInstanceRepositoryTest {
     static class TestConfig {
     }
 
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    PartitionOwnedSequenceInstances partitionOwnedSequenceInstances;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
     private final TestEntityManager testEntityManager;
     private final SequenceInstanceRepository sequenceInstanceRepository;
     private final SpringDataJpaSequenceInstanceRepository jpaSequenceInstanceRepository;
@@ -81,6 +109,276 @@ class SequenceInstanceRepositoryTest {
                 .containsIgnoringCase("duplicate key value violates unique constraint \"sequence_instance_name_context_id_uk\"");
     }
 
+    @Test
+    void getOrCreateInstanceReturnsExistingOrNewInstance() {
+        long existingId = sequenceInstanceRepository.saveNewInstance(createSequenceInstance("name", "contextId3"));
+
+        long getId = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId3"), MESSAGE_TYPE_INDEX_HASH);
+        long createdId = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId4"), MESSAGE_TYPE_INDEX_HASH);
+
+        assertThat(getId).isEqualTo(existingId);
+        assertThat(createdId).isNotEqualTo(existingId);
+        assertThat(sequenceInstanceRepository.findIdByNameAndContextId("name", "contextId4")).contains(createdId);
+        assertThat(sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId4"), MESSAGE_TYPE_INDEX_HASH)).isEqualTo(createdId);
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    void getOrCreateInstanceConcurrentlyWaitsAndReturnsInstanceCreatedByOtherTransaction() throws Exception {
+        String contextId = UUID.randomUUID().toString();
+        CountDownLatch winnerHasCreated = new CountDownLatch(1);
+        CountDownLatch winnerMayCommit = new CountDownLatch(1);
+        CompletableFuture<Long> winner = CompletableFuture.supplyAsync(() -> inNewTransaction(() -> {
+            long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", contextId), MESSAGE_TYPE_INDEX_HASH);
+            winnerHasCreated.countDown();
+            await(winnerMayCommit);
+            return id;
+        }));
+
+        assertThat(winnerHasCreated.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Long> loser = CompletableFuture.supplyAsync(() -> inNewTransaction(() ->
+                sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", contextId), MESSAGE_TYPE_INDEX_HASH)));
+
+        assertThatThrownBy(() -> loser.get(200, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+        winnerMayCommit.countDown();
+
+        assertThat(loser.get(5, TimeUnit.SECONDS)).isEqualTo(winner.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void processedMessageTypesAreAddedForCurrentMessageTypeIndex() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId5"), MESSAGE_TYPE_INDEX_HASH);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(id, MESSAGE_TYPE_INDEX_HASH)).hasValue(0L);
+
+        sequenceInstanceRepository.addProcessedMessageType(id, 0b01L, MESSAGE_TYPE_INDEX_HASH);
+        sequenceInstanceRepository.addProcessedMessageType(id, 0b10L, MESSAGE_TYPE_INDEX_HASH);
+        sequenceInstanceRepository.addProcessedMessageType(id, 0b100L, MESSAGE_TYPE_INDEX_HASH + 1);
+
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(id, MESSAGE_TYPE_INDEX_HASH)).hasValue(0b11L);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(id, MESSAGE_TYPE_INDEX_HASH + 1)).isEmpty();
+    }
+
+    @Test
+    void setProcessedMessageTypesReplacesMessageTypeIndex() {
+        long id = sequenceInstanceRepository.saveNewInstance(createSequenceInstance("name", "contextId6"));
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(id, MESSAGE_TYPE_INDEX_HASH)).isEmpty();
+
+        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(id, 0b101L, 0, 0, MESSAGE_TYPE_INDEX_HASH);
+
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(id, MESSAGE_TYPE_INDEX_HASH)).hasValue(0b101L);
+    }
+
+    @Test
+    void processedMessageTypesAreOnlyFoundIfNothingIsWaiting() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId7"), MESSAGE_TYPE_INDEX_HASH);
+        sequenceInstanceRepository.addProcessedMessageType(id, 0b01L, MESSAGE_TYPE_INDEX_HASH);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)).hasValue(0b01L);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH + 1)).isEmpty();
+
+        sequenceInstanceRepository.incrementWaitingCount(id);
+        sequenceInstanceRepository.incrementWaitingCount(id);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)).isEmpty();
+
+        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(id, 0b11L, 1, 1, MESSAGE_TYPE_INDEX_HASH);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)).isEmpty();
+
+        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(id, 0b111L, 1, 0, MESSAGE_TYPE_INDEX_HASH);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)).hasValue(0b111L);
+    }
+
+    @Test
+    void waitingCountKeepsMessagesBufferedDuringRelease() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId13"), MESSAGE_TYPE_INDEX_HASH);
+        // Two messages are waiting when a release pass reads the waiting messages
+        sequenceInstanceRepository.incrementWaitingCount(id);
+        sequenceInstanceRepository.incrementWaitingCount(id);
+        // A third message is buffered while the pass is running
+        sequenceInstanceRepository.incrementWaitingCount(id);
+
+        // The pass has released both messages it has read
+        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(id, 0b1L, 2, 0, MESSAGE_TYPE_INDEX_HASH);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)).isEmpty();
+
+        // The next pass releases the message buffered meanwhile
+        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(id, 0b11L, 1, 0, MESSAGE_TYPE_INDEX_HASH);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)).hasValue(0b11L);
+    }
+
+    @Test
+    void waitingCountIsOnlyDecrementedForMessagesStillWaiting() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId14"), MESSAGE_TYPE_INDEX_HASH);
+        long waitingMessageId = saveSequencedMessage(id, "type1", SequencedMessageState.WAITING);
+        long processedMessageId = saveSequencedMessage(id, "type2", SequencedMessageState.PROCESSED);
+        sequenceInstanceRepository.incrementWaitingCount(id);
+
+        // A message no longer waiting, e.g. released meanwhile, has already been subtracted from the waiting count
+        sequenceInstanceRepository.decrementWaitingCountIfWaiting(id, processedMessageId);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)).isEmpty();
+
+        sequenceInstanceRepository.decrementWaitingCountIfWaiting(id, waitingMessageId);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)).hasValue(0L);
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    void waitingCountOfPartitionOwnedInstanceIsReadFromDatabase() {
+        long id = inNewTransaction(() -> sequenceInstanceRepository.getOrCreateInstance(
+                createSequenceInstance("name", UUID.randomUUID().toString()), MESSAGE_TYPE_INDEX_HASH));
+        partitionOwnedSequenceInstances.own(new TopicPartition("topic-a", 0), id);
+        inNewTransaction(() -> {
+            sequenceInstanceRepository.addProcessedMessageType(id, 0b01L, MESSAGE_TYPE_INDEX_HASH);
+            return null;
+        });
+        assertThat(inNewTransaction(() -> sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)))
+                .hasValue(0b01L);
+
+        // The context is spread over two partitions: a record of the context on partition 1 of another topic is
+        // consumed by another node, which buffers its message without updating the state kept by this node
+        inNewTransaction(() -> jdbcTemplate.update(
+                "UPDATE sequence_instance SET waiting_count = waiting_count + 1 WHERE id = ?", id));
+
+        assertThat(partitionOwnedSequenceInstances.get(id, MESSAGE_TYPE_INDEX_HASH)).isPresent();
+        assertThat(inNewTransaction(() -> sequenceInstanceRepository.findProcessedMessageTypesIfNothingWaiting(id, MESSAGE_TYPE_INDEX_HASH)))
+                .isEmpty();
+        partitionOwnedSequenceInstances.disown(List.of(new TopicPartition("topic-a", 0)));
+    }
+
+    @Test
+    void processedMessageTypesStoredDuringReleaseAreKept() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId9"), MESSAGE_TYPE_INDEX_HASH);
+        sequenceInstanceRepository.addProcessedMessageType(id, 0b001L, MESSAGE_TYPE_INDEX_HASH);
+        // A message type is processed by a transaction not holding the lock while a release pass is running
+        sequenceInstanceRepository.addProcessedMessageType(id, 0b100L, MESSAGE_TYPE_INDEX_HASH);
+
+        // The pass has read the messages before the concurrent transaction committed
+        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(id, 0b011L, 0, 0, MESSAGE_TYPE_INDEX_HASH);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(id, MESSAGE_TYPE_INDEX_HASH)).hasValue(0b111L);
+
+        // Processed message types stored for a different message type index are replaced
+        sequenceInstanceRepository.setProcessedMessageTypesAndDecrementWaitingCount(id, 0b010L, 0, 0, MESSAGE_TYPE_INDEX_HASH + 1);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(id, MESSAGE_TYPE_INDEX_HASH + 1)).hasValue(0b010L);
+    }
+
+    @Test
+    void getByIdAndLockAdvisoryReturnsInstance() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId10"), MESSAGE_TYPE_INDEX_HASH);
+
+        assertThat(sequenceInstanceRepository.getByIdAndLockAdvisory(id, 10).getId()).isEqualTo(id);
+        // Locks held by the same transaction do not conflict
+        sequenceInstanceRepository.lockAdvisoryShared(id);
+    }
+
+    @Test
+    void leaseIsOnlyAcquiredIfNotLeasedOrExpired() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId11"), MESSAGE_TYPE_INDEX_HASH);
+
+        assertThat(sequenceInstanceRepository.tryAcquireLease(id, "owner-1", Duration.ofSeconds(30))).isTrue();
+        assertThat(sequenceInstanceRepository.isLeased(id)).isTrue();
+        assertThat(sequenceInstanceRepository.tryAcquireLease(id, "owner-2", Duration.ofSeconds(30))).isFalse();
+        assertThat(sequenceInstanceRepository.renewLease(id, "owner-2", Duration.ofSeconds(30))).isFalse();
+        assertThat(sequenceInstanceRepository.renewLease(id, "owner-1", Duration.ofSeconds(30))).isTrue();
+
+        testEntityManager.getEntityManager()
+                .createNativeQuery("UPDATE sequence_instance SET lease_expires_at = now() - interval '1 second' WHERE id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+        assertThat(sequenceInstanceRepository.isLeased(id)).isFalse();
+        assertThat(sequenceInstanceRepository.tryAcquireLease(id, "owner-2", Duration.ofSeconds(30))).isTrue();
+    }
+
+    @Test
+    void leaseIsOnlyReleasedIfUnchanged() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId12"), MESSAGE_TYPE_INDEX_HASH);
+        sequenceInstanceRepository.tryAcquireLease(id, "owner", Duration.ofSeconds(30));
+        testEntityManager.getEntityManager()
+                .createNativeQuery("UPDATE sequence_instance SET release_requested_at = now() - interval '2 minutes' WHERE id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+        long lockVersion = sequenceInstanceRepository.getById(id).getLockVersion();
+
+        sequenceInstanceRepository.incrementLockVersion(id);
+
+        assertThat(sequenceInstanceRepository.releaseLeaseIfUnchanged(id, "owner", lockVersion)).isFalse();
+        assertThat(sequenceInstanceRepository.releaseLeaseIfUnchanged(id, "other-owner", lockVersion + 1)).isFalse();
+        assertThat(sequenceInstanceRepository.releaseLeaseIfUnchanged(id, "owner", lockVersion + 1)).isTrue();
+        assertThat(sequenceInstanceRepository.isLeased(id)).isFalse();
+        assertThat(sequenceInstanceRepository.findReleaseRequestedBefore(Duration.ofMinutes(1), 10))
+                .extracting(SequenceInstance::getId)
+                .doesNotContain(id);
+    }
+
+    @Test
+    void requestedReleasesAreFoundAfterTheDelayUntilCleared() {
+        long id = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance("name", "contextId8"), MESSAGE_TYPE_INDEX_HASH);
+        sequenceInstanceRepository.markReleaseRequested(id);
+        assertThat(sequenceInstanceRepository.findReleaseRequestedBefore(Duration.ofMinutes(1), 10)).isEmpty();
+
+        testEntityManager.getEntityManager()
+                .createNativeQuery("UPDATE sequence_instance SET release_requested_at = now() - interval '2 minutes' WHERE id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+        assertThat(sequenceInstanceRepository.findReleaseRequestedBefore(Duration.ofMinutes(1), 10))
+                .extracting(SequenceInstance::getId)
+                .containsExactly(id);
+
+        sequenceInstanceRepository.clearReleaseRequested(id);
+        assertThat(sequenceInstanceRepository.findReleaseRequestedBefore(Duration.ofMinutes(1), 10)).isEmpty();
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    void releaseRequestedWhileReleasePassIsRunningIsNotCleared() throws Exception {
+        long id = inNewTransaction(() -> sequenceInstanceRepository.getOrCreateInstance(
+                createSequenceInstance("name", UUID.randomUUID().toString()), MESSAGE_TYPE_INDEX_HASH));
+        inNewTransaction(() -> {
+            sequenceInstanceRepository.markReleaseRequested(id);
+            return null;
+        });
+        CountDownLatch passHasLocked = new CountDownLatch(1);
+        CountDownLatch passMayComplete = new CountDownLatch(1);
+        CompletableFuture<Void> releasePass = CompletableFuture.runAsync(() -> inNewTransaction(() -> {
+            sequenceInstanceRepository.getByIdAndLockAdvisory(id, -1);
+            passHasLocked.countDown();
+            await(passMayComplete);
+            sequenceInstanceRepository.clearReleaseRequested(id);
+            return null;
+        }));
+
+        assertThat(passHasLocked.await(5, TimeUnit.SECONDS)).isTrue();
+        // A message buffered while the pass is running requests another release, which does not wait for the pass
+        inNewTransaction(() -> {
+            sequenceInstanceRepository.markReleaseRequested(id);
+            return null;
+        });
+        passMayComplete.countDown();
+        releasePass.get(5, TimeUnit.SECONDS);
+
+        assertThat(inNewTransaction(() -> sequenceInstanceRepository.findReleaseRequestedBefore(Duration.ZERO, 100)))
+                .extracting(SequenceInstance::getId)
+                .contains(id);
+    }
+
+    @Test
+    void rebuildProcessedMessageTypesRecomputesOpenInstancesFromProcessedMessages() {
+        String name = UUID.randomUUID().toString();
+        long staleId = sequenceInstanceRepository.saveNewInstance(createSequenceInstance(name, "stale"));
+        long currentId = sequenceInstanceRepository.getOrCreateInstance(createSequenceInstance(name, "current"), MESSAGE_TYPE_INDEX_HASH);
+        saveSequencedMessage(staleId, "type1", SequencedMessageState.PROCESSED);
+        saveSequencedMessage(staleId, "type2", SequencedMessageState.WAITING);
+        saveSequencedMessage(staleId, "type3", SequencedMessageState.PROCESSED);
+        saveSequencedMessage(currentId, "type1", SequencedMessageState.PROCESSED);
+
+        int rebuilt = sequenceInstanceRepository.rebuildProcessedMessageTypes(
+                name, List.of("type1", "type2", "type3"), MESSAGE_TYPE_INDEX_HASH, 100);
+
+        assertThat(rebuilt).isOne();
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(staleId, MESSAGE_TYPE_INDEX_HASH)).hasValue(0b101L);
+        assertThat(sequenceInstanceRepository.findProcessedMessageTypes(currentId, MESSAGE_TYPE_INDEX_HASH)).hasValue(0L);
+        assertThat(sequenceInstanceRepository.rebuildProcessedMessageTypes(
+                name, List.of("type1", "type2", "type3"), MESSAGE_TYPE_INDEX_HASH, 100)).isZero();
+    }
+
     @Test
     void findByTypeAndContextId() {
         String name = UUID.randomUUID().toString();
@@ -392,6 +690,20 @@ class SequenceInstanceRepositoryTest {
         testEntityManager.persist(sequenceInstance);
     }
 
+    private long saveSequencedMessage(long sequenceInstanceId, String messageType, SequencedMessageState state) {
+        SequencedMessage sequencedMessage = SequencedMessage.builder()
+                .sequenceInstanceId(sequenceInstanceId)
+                .messageType(messageType)
+                .sequencedMessageId(UUID.randomUUID())
+                .idempotenceId(UUID.randomUUID().toString())
+                .clusterName("cluster")
+                .topic("topic")
+                .state(state)
+                .build();
+        messageRepository.saveMessage(null, sequencedMessage);
+        return sequencedMessage.getId();
+    }
+
     private SequenceInstance createSequenceInstance(String name, String contextId) {
         return SequenceInstance.builder()
                 .name(name)
@@ -425,4 +737,21 @@ class SequenceInstanceRepositoryTest {
         jpaSequenceInstanceRepository.save(instance);
     }
 
+
+    private <T> T inNewTransaction(Supplier<T> supplier) {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        return transaction.execute(ignored -> supplier.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Timed out waiting for concurrent creation test");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for concurrent creation test", e);
+        }
+    }
 }
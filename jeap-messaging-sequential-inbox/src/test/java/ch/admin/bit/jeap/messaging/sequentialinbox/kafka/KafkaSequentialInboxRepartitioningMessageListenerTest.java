@@ -0,0 +1,58 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.sequentialinbox.inbox.SequentialInboxService;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.listener.AcknowledgingMessageListener;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.Optional;
+
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class KafkaSequentialInboxRepartitioningMessageListenerTest {
+
+    @Mock
+    private AcknowledgingMessageListener<AvroMessageKey, AvroMessage> delegate;
+    @Mock
+    private SequentialInboxService sequentialInboxService;
+    @Mock
+    private ContextRepartitionProducer contextRepartitionProducer;
+    @Mock
+    private AvroMessage message;
+    @Mock
+    private Acknowledgment acknowledgment;
+
+    @Test
+    void republishesSequencedRecordByItsContext() {
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord = new ConsumerRecord<>("topic", 0, 0, null, message);
+        when(sequentialInboxService.getSequenceContextKey(message)).thenReturn(Optional.of("sequence:context"));
+        KafkaSequentialInboxRepartitioningMessageListener listener =
+                new KafkaSequentialInboxRepartitioningMessageListener(delegate, sequentialInboxService, contextRepartitionProducer);
+
+        listener.onMessage(consumerRecord, acknowledgment);
+
+        verify(contextRepartitionProducer).send(consumerRecord, "sequence:context");
+        verify(acknowledgment).acknowledge();
+        verifyNoInteractions(delegate);
+    }
+
+    @Test
+    void handlesRecordNotSequencedImmediately() {
+        ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord = new ConsumerRecord<>("topic", 0, 0, null, message);
+        when(sequentialInboxService.getSequenceContextKey(message)).thenReturn(Optional.empty());
+        KafkaSequentialInboxRepartitioningMessageListener listener =
+                new KafkaSequentialInboxRepartitioningMessageListener(delegate, sequentialInboxService, contextRepartitionProducer);
+
+        listener.onMessage(consumerRecord, acknowledgment);
+
+        verify(delegate).onMessage(consumerRecord, acknowledgment);
+        verifyNoInteractions(contextRepartitionProducer);
+    }
+}
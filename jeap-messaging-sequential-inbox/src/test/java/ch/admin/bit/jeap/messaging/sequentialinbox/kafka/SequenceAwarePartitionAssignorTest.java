@@ -0,0 +1,65 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import org.apache.kafka.clients.consumer.ConsumerPartitionAssignor.Assignment;
+import org.apache.kafka.clients.consumer.ConsumerPartitionAssignor.GroupAssignment;
+import org.apache.kafka.clients.consumer.ConsumerPartitionAssignor.GroupSubscription;
+import org.apache.kafka.clients.consumer.ConsumerPartitionAssignor.Subscription;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SequenceAwarePartitionAssignorTest {
+
+    private static final Node NODE = new Node(0, "localhost", 9092);
+
+    private final SequenceAwarePartitionAssignor assignor = new SequenceAwarePartitionAssignor();
+
+    @Test
+    void assignsSamePartitionOfAllTopicsToSameMember() {
+        Cluster cluster = cluster(Map.of("topic-a", 4, "topic-b", 4));
+        Map<String, Subscription> subscriptions = Map.of(
+                "member-2", new Subscription(List.of("topic-a", "topic-b")),
+                "member-1", new Subscription(List.of("topic-a", "topic-b")));
+
+        GroupAssignment groupAssignment = assignor.assign(cluster, new GroupSubscription(subscriptions));
+
+        Map<String, Assignment> assignments = groupAssignment.groupAssignment();
+        assertThat(assignments.get("member-1").partitions()).containsExactlyInAnyOrder(
+                new TopicPartition("topic-a", 0), new TopicPartition("topic-a", 2),
+                new TopicPartition("topic-b", 0), new TopicPartition("topic-b", 2));
+        assertThat(assignments.get("member-2").partitions()).containsExactlyInAnyOrder(
+                new TopicPartition("topic-a", 1), new TopicPartition("topic-a", 3),
+                new TopicPartition("topic-b", 1), new TopicPartition("topic-b", 3));
+    }
+
+    @Test
+    void assignsTopicToSubscribingMembersOnly() {
+        Cluster cluster = cluster(Map.of("topic-a", 2, "topic-b", 2));
+        Map<String, Subscription> subscriptions = Map.of(
+                "member-1", new Subscription(List.of("topic-a")),
+                "member-2", new Subscription(List.of("topic-a", "topic-b")));
+
+        GroupAssignment groupAssignment = assignor.assign(cluster, new GroupSubscription(subscriptions));
+
+        Map<String, Assignment> assignments = groupAssignment.groupAssignment();
+        assertThat(assignments.get("member-1").partitions()).containsExactly(new TopicPartition("topic-a", 0));
+        assertThat(assignments.get("member-2").partitions()).containsExactlyInAnyOrder(
+                new TopicPartition("topic-a", 1), new TopicPartition("topic-b", 0), new TopicPartition("topic-b", 1));
+    }
+
+    private static Cluster cluster(Map<String, Integer> partitionCountsByTopic) {
+        List<PartitionInfo> partitions = new ArrayList<>();
+        partitionCountsByTopic.forEach((topic, partitionCount) -> {
+            for (int partition = 0; partition < partitionCount; partition++) {
+                partitions.add(new PartitionInfo(topic, partition, NODE, new Node[]{NODE}, new Node[]{NODE}));
+            }
+        });
+        return new Cluster("cluster", List.of(NODE), partitions, Set.of(), Set.of());
+    }
+}
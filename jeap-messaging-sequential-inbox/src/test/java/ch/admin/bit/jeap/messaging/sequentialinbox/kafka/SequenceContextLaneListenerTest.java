@@ -0,0 +1,138 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.kafka;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.kafka.errorhandling.ErrorServiceSender;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class SequenceContextLaneListenerTest {
+
+    private final Map<AvroMessage, String> contextKeys = new ConcurrentHashMap<>();
+    private final List<Long> handledOffsets = new CopyOnWriteArrayList<>();
+    private final List<Long> acknowledgedOffsets = new CopyOnWriteArrayList<>();
+    private final Runnable stopContainer = mock(Runnable.class);
+
+    @Test
+    void handlesRecordsOfTheSameContextInOrderAndOfDifferentContextsInParallel() throws Exception {
+        CountDownLatch firstRecordBlocked = new CountDownLatch(1);
+        CountDownLatch unblockFirstRecord = new CountDownLatch(1);
+        SequenceContextLaneListener listener = new SequenceContextLaneListener((consumerRecord, acknowledgment) -> {
+            if (consumerRecord.offset() == 0) {
+                firstRecordBlocked.countDown();
+                await(unblockFirstRecord);
+            }
+            handledOffsets.add(consumerRecord.offset());
+            acknowledgment.acknowledge();
+        }, message -> Optional.ofNullable(contextKeys.get(message)), mock(ErrorServiceSender.class), stopContainer, 10);
+
+        listener.onMessage(consumerRecord(0, "context-a"), acknowledgment(0));
+        assertThat(firstRecordBlocked.await(5, TimeUnit.SECONDS)).isTrue();
+        listener.onMessage(consumerRecord(1, "context-a"), acknowledgment(1));
+        listener.onMessage(consumerRecord(2, "context-b"), acknowledgment(2));
+
+        awaitHandled(1);
+        assertThat(handledOffsets).containsExactly(2L);
+
+        unblockFirstRecord.countDown();
+        listener.close();
+        assertThat(handledOffsets).containsExactly(2L, 0L, 1L);
+        assertThat(acknowledgedOffsets).containsExactlyInAnyOrder(0L, 1L, 2L);
+        assertThat(listener.getInFlightRecordCount()).isZero();
+    }
+
+    @Test
+    void sendsFailingRecordToErrorServiceAndContinuesItsLane() {
+        ErrorServiceSender errorServiceSender = mock(ErrorServiceSender.class);
+        SequenceContextLaneListener listener = new SequenceContextLaneListener((consumerRecord, acknowledgment) -> {
+            if (consumerRecord.offset() == 0) {
+                throw new IllegalStateException("handler failed");
+            }
+            handledOffsets.add(consumerRecord.offset());
+            acknowledgment.acknowledge();
+        }, message -> Optional.ofNullable(contextKeys.get(message)), errorServiceSender, stopContainer, 10);
+        ConsumerRecord<AvroMessageKey, AvroMessage> failingRecord = consumerRecord(0, "context-a");
+
+        listener.onMessage(failingRecord, acknowledgment(0));
+        listener.onMessage(consumerRecord(1, "context-a"), acknowledgment(1));
+        listener.close();
+
+        verify(errorServiceSender, timeout(5000)).accept(same(objectRecord(failingRecord)), any(IllegalStateException.class));
+        assertThat(handledOffsets).containsExactly(1L);
+        assertThat(acknowledgedOffsets).containsExactlyInAnyOrder(0L, 1L);
+        verify(stopContainer, never()).run();
+    }
+
+    @Test
+    void stopsContainerWithoutAcknowledgingRecordIfSendingToErrorServiceFails() {
+        ErrorServiceSender errorServiceSender = mock(ErrorServiceSender.class);
+        doThrow(new IllegalStateException("error service unavailable")).when(errorServiceSender).accept(any(), any());
+        SequenceContextLaneListener listener = new SequenceContextLaneListener((consumerRecord, acknowledgment) -> {
+            if (consumerRecord.offset() < 2) {
+                throw new IllegalStateException("handler failed");
+            }
+            handledOffsets.add(consumerRecord.offset());
+            acknowledgment.acknowledge();
+        }, message -> Optional.ofNullable(contextKeys.get(message)), errorServiceSender, stopContainer, 10);
+
+        listener.onMessage(consumerRecord(0, "context-a"), acknowledgment(0));
+        listener.onMessage(consumerRecord(1, "context-b"), acknowledgment(1));
+        listener.onMessage(consumerRecord(2, "context-a"), acknowledgment(2));
+        listener.close();
+
+        // The offsets of the partition are not committed beyond the failed records, which are consumed again by the
+        // consumer the partition is reassigned to once the container has stopped
+        assertThat(acknowledgedOffsets).containsExactly(2L);
+        assertThat(handledOffsets).containsExactly(2L);
+        verify(stopContainer, times(1)).run();
+    }
+
+    private ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord(long offset, String contextKey) {
+        AvroMessage message = mock(AvroMessage.class);
+        contextKeys.put(message, contextKey);
+        return new ConsumerRecord<>("topic", 0, offset, null, message);
+    }
+
+    private Acknowledgment acknowledgment(long offset) {
+        return () -> acknowledgedOffsets.add(offset);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConsumerRecord<Object, Object> objectRecord(ConsumerRecord<AvroMessageKey, AvroMessage> consumerRecord) {
+        return (ConsumerRecord<Object, Object>) (ConsumerRecord<?, ?>) consumerRecord;
+    }
+
+    private void awaitHandled(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (handledOffsets.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SequentialInboxTraceContextConverterTest {
+
+    private final SequentialInboxTraceContextConverter converter = new SequentialInboxTraceContextConverter();
+
+    @Test
+    void traceContextIsStoredInThirtyFourBytes() {
+        SequentialInboxTraceContext traceContext = SequentialInboxTraceContext.builder()
+                .traceIdHigh(0x0af7651916cd43ddL)
+                .traceId(0x8448eb211c80319cL)
+                .spanId(0xb7ad6b7169203331L)
+                .parentSpanId(4L)
+                .traceIdString("0af7651916cd43dd8448eb211c80319c")
+                .sampled(true)
+                .build();
+
+        byte[] value = converter.convertToDatabaseColumn(traceContext);
+
+        assertThat(value).hasSize(SequentialInboxTraceContextConverter.LENGTH);
+        assertThat(converter.convertToEntityAttribute(value))
+                .usingRecursiveComparison()
+                .isEqualTo(traceContext);
+    }
+
+    @Test
+    void missingIdsAndSamplingDecisionAreRestoredAsNull() {
+        SequentialInboxTraceContext traceContext = SequentialInboxTraceContext.builder()
+                .traceId(1L)
+                .spanId(2L)
+                .traceIdString("0000000000000001")
+                .build();
+
+        SequentialInboxTraceContext restored = converter.convertToEntityAttribute(converter.convertToDatabaseColumn(traceContext));
+
+        assertThat(restored).usingRecursiveComparison().isEqualTo(traceContext);
+        assertThat(restored.getTraceIdHigh()).isNull();
+        assertThat(restored.getParentSpanId()).isNull();
+        assertThat(restored.getSampled()).isNull();
+    }
+
+    @Test
+    void notSampledIsDistinguishedFromUndecided() {
+        SequentialInboxTraceContext traceContext = SequentialInboxTraceContext.builder()
+                .traceId(1L)
+                .spanId(2L)
+                .sampled(false)
+                .build();
+
+        assertThat(converter.convertToEntityAttribute(converter.convertToDatabaseColumn(traceContext)).getSampled())
+                .isFalse();
+    }
+
+    @Test
+    void nullTraceContextIsStoredAsNull() {
+        assertThat(converter.convertToDatabaseColumn(null)).isNull();
+        assertThat(converter.convertToEntityAttribute(null)).isNull();
+    }
+
+    @Test
+    void unsupportedValueIsRejected() {
+        assertThatThrownBy(() -> converter.convertToEntityAttribute(new byte[]{1, 2, 3}))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,53 @@
+package ch.admin.bit.jeap.messaging.sequentialinbox.spring;
+
+import ch.admin.bit.jeap.messaging.avro.AvroMessage;
+import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.sequentialinbox.kafka.KafkaSequentialInboxMessageConsumerFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.jdbc.metadata.DataSourcePoolMetadataProvider;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ConnectionPoolSizeCheckTest {
+
+    @Mock
+    private KafkaSequentialInboxMessageConsumerFactory messageConsumerFactory;
+    @Mock
+    private ObjectProvider<DataSource> dataSource;
+    @Mock
+    private ObjectProvider<DataSourcePoolMetadataProvider> metadataProviders;
+    @Mock
+    private ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage> container1;
+    @Mock
+    private ConcurrentMessageListenerContainer<AvroMessageKey, AvroMessage> container2;
+
+    @Test
+    void threadCountIncludesConsumerAndAsyncReleaseThreads() {
+        when(messageConsumerFactory.getContainers()).thenReturn(List.of(container1, container2));
+        when(container1.getConcurrency()).thenReturn(3);
+        when(container2.getConcurrency()).thenReturn(1);
+
+        assertThat(check(false).getThreadCount()).isEqualTo(4);
+        assertThat(check(true).getThreadCount()).isEqualTo(4 + 16);
+    }
+
+    @Test
+    void inboxBookkeepingHoldsOneConnectionBesidesTheMessageHandler() {
+        assertThat(check(false).getConnectionsPerThread()).isEqualTo(2);
+    }
+
+    private ConnectionPoolSizeCheck check(boolean asyncReleaseEnabled) {
+        return new ConnectionPoolSizeCheck(messageConsumerFactory, dataSource, metadataProviders, true,
+                asyncReleaseEnabled, 16);
+    }
+}
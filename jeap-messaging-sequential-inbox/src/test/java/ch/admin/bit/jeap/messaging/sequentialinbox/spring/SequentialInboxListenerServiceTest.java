@@ -2,6 +2,7 @@ package ch.admin.bit.jeap.messaging.sequentialinbox.spring;
 
 import ch.admin.bit.jeap.messaging.avro.AvroMessage;
 import ch.admin.bit.jeap.messaging.avro.AvroMessageKey;
+import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.Sequence;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequencedMessageType;
 import ch.admin.bit.jeap.messaging.sequentialinbox.configuration.model.SequentialInboxConfiguration;
 import ch.admin.bit.jeap.messaging.sequentialinbox.kafka.KafkaSequentialInboxMessageConsumerFactory;
@@ -59,6 +60,40 @@ class SequentialInboxListenerServiceTest {
                 .startConsumer(eq("topic"), eq("AvroMessage"), eq("clusterName"), any());
     }
 
+    @Test
+    void startMessageListenersWithCoLocatedConsumers() {
+        ValidListener bean = new ValidListener();
+        mockListener(bean);
+        Sequence sequence = mock(Sequence.class);
+        when(sequence.getName()).thenReturn("sequence");
+        when(sequentialInboxConfiguration.getSequenceByQualifiedSequencedMessageTypeName("AvroMessage")).thenReturn(sequence);
+        sequentialInboxListenerService.setCoLocatedConsumersEnabled(true);
+
+        sequentialInboxListenerService.startMessageListeners();
+
+        verify(messageConsumerFactory, times(1)).startCoLocatedConsumer(eq("sequence"), eq("clusterName"),
+                argThat(messageTypes -> messageTypes.size() == 1 &&
+                                        messageTypes.getFirst().topicName().equals("topic") &&
+                                        messageTypes.getFirst().messageType().equals("AvroMessage")));
+        verify(messageConsumerFactory, never()).startConsumer(any(), any(), any(), any());
+    }
+
+    @Test
+    void startMessageListenersWithRepartitionTopic() {
+        ValidListener bean = new ValidListener();
+        mockListener(bean);
+        sequentialInboxListenerService.setRepartitionEnabled(true);
+
+        sequentialInboxListenerService.startMessageListeners();
+
+        verify(messageConsumerFactory, times(1))
+                .startRepartitioningConsumer(eq("topic"), eq("AvroMessage"), eq("clusterName"), any());
+        verify(messageConsumerFactory, times(1)).startRepartitionedConsumers(argThat(messageTypesByClusterName ->
+                messageTypesByClusterName.keySet().equals(Set.of("clusterName")) &&
+                messageTypesByClusterName.get("clusterName").getFirst().messageType().equals("AvroMessage")));
+        verify(messageConsumerFactory, never()).startConsumer(any(), any(), any(), any());
+    }
+
     @Test
     void startMessageListenersNoListenerForConfiguredSequencedMessageType() {
         Object noListenerBean = new Object();
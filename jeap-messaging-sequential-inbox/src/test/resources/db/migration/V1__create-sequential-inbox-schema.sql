@@ -13,7 +13,14 @@ CREATE TABLE sequence_instance
     closed_at      timestamp with time zone,
     retain_until   timestamp with time zone NOT NULL,
     remove_after   timestamp with time zone,
-    pending_action text
+    pending_action text,
+    processed_message_types bigint not null default 0,
+    message_type_index_hash integer,
+    waiting_count integer not null default 0,
+    release_requested_at timestamp with time zone,
+    lock_version bigint not null default 0,
+    lease_owner varchar(36),
+    lease_expires_at timestamp with time zone
 );
 
 ALTER TABLE sequence_instance
@@ -21,23 +28,30 @@ ALTER TABLE sequence_instance
 
 CREATE INDEX idx_sequence_instance_remove_after ON sequence_instance (remove_after);
 CREATE INDEX idx_sequence_instance_retain_until ON sequence_instance (retain_until);
+CREATE INDEX idx_sequence_instance_release_requested_at ON sequence_instance (release_requested_at)
+    WHERE release_requested_at IS NOT NULL;
+
+CREATE SEQUENCE sequenced_message_dictionary_sequence AS smallint START WITH 1 INCREMENT 1;
+
+CREATE TABLE sequenced_message_dictionary
+(
+    id    smallint not null
+        constraint sequenced_message_dictionary_pkey primary key,
+    value text     not null
+        constraint sequenced_message_dictionary_value_uk unique
+);
 
 CREATE TABLE sequenced_message
 (
     id                   bigint                   not null
         constraint sequenced_message_pkey primary key,
-    message_type         text                     not null,
-    cluster_name         text                     not null,
-    topic                text                     not null,
+    message_type_id      smallint                 not null,
+    cluster_name_id      smallint                 not null,
+    topic_id             smallint                 not null,
     sequenced_message_id UUID                     not null,
     idempotence_id       text                     not null,
-    state                text                     not null,
-    trace_id_high        bigint,
-    trace_id             bigint,
-    span_id              bigint,
-    parent_span_id       bigint,
-    trace_id_string      text,
-    sampled              boolean,
+    state_id             smallint                 not null,
+    trace_context        bytea,
     created_at           timestamp with time zone NOT NULL,
     state_changed_at     timestamp with time zone,
     sequence_instance_id bigint references sequence_instance,
@@ -46,7 +60,7 @@ CREATE TABLE sequenced_message
 
 CREATE INDEX sequenced_message_sequence_instance_id ON sequenced_message (sequence_instance_id);
 CREATE INDEX sequenced_message_idempotence_id ON sequenced_message (idempotence_id);
-CREATE INDEX idx_sequenced_message_state_message_type ON sequenced_message (state, message_type); -- for metrics
+CREATE INDEX idx_sequenced_message_state_message_type ON sequenced_message (state_id, message_type_id); -- for metrics
 
 CREATE TABLE sequential_inbox_idempotence
 (
@@ -54,6 +68,8 @@ CREATE TABLE sequential_inbox_idempotence
     idempotence_id       text                     not null,
     sequence_instance_id bigint                   not null references sequence_instance ON DELETE CASCADE,
     created_at           timestamp with time zone NOT NULL,
+    state                varchar(16)              NOT NULL DEFAULT 'DONE',
+    lease_expires_at     timestamp with time zone,
     CONSTRAINT sequential_inbox_idempotence_pkey PRIMARY KEY (message_type, idempotence_id)
 );
 